@@ -17,15 +17,25 @@
 package com.google.copybara;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.copybara.Info.MigrationReference;
 import com.google.copybara.config.ConfigFile;
 import com.google.copybara.config.SkylarkParser;
+import com.google.copybara.util.FileUtil;
+import com.google.copybara.util.console.BufferedConsole;
 import com.google.copybara.util.console.Console;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.annotation.Nullable;
 
 /**
@@ -66,9 +76,85 @@ public class Copybara {
   public boolean validate(Options options, ConfigFile configContent)
       throws RepoException, IOException {
     Console console = options.get(GeneralOptions.class).console();
+    List<String> messages = getValidationMessages(options, configContent, console);
+    reportValidation(console, configContent.path(), messages);
+    return messages.isEmpty();
+  }
+
+  /**
+   * Validates {@code configs} in parallel and reports the result of each of them, in order, plus
+   * a summary.
+   *
+   * <p>All the configs are loaded with the same parser and options, so the imports that they
+   * share are only evaluated once. The errors and messages of loading each config are held and
+   * printed together with its result.
+   *
+   * @return true if all the configs are valid
+   */
+  public boolean bulkValidate(Options options, List<ConfigFile> configs)
+      throws RepoException, IOException {
+    return bulkValidate(options, configs, ImmutableMap.of());
+  }
+
+  /**
+   * Like {@link #bulkValidate(Options, List)}, but also reports as invalid the configs that could
+   * not be loaded. {@code loadErrors} maps the path of each of them to the error. They are reported
+   * before the rest of the configs.
+   */
+  public boolean bulkValidate(Options options, List<ConfigFile> configs,
+      Map<String, String> loadErrors) throws RepoException, IOException {
+    Console console = options.get(GeneralOptions.class).console();
+    for (Map.Entry<String, String> loadError : loadErrors.entrySet()) {
+      reportValidation(console, loadError.getKey(), ImmutableList.of(loadError.getValue()));
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(
+        Math.max(1, Math.min(FileUtil.DEFAULT_PARALLELISM, configs.size())));
+    List<BufferedConsole> outputs = new ArrayList<>();
+    List<Future<List<String>>> results = new ArrayList<>();
+    int invalid = loadErrors.size();
+    try {
+      for (ConfigFile config : configs) {
+        BufferedConsole output = new BufferedConsole(console);
+        outputs.add(output);
+        results.add(executor.submit(() -> getValidationMessages(options, config, output)));
+      }
+      for (int i = 0; i < configs.size(); i++) {
+        List<String> messages = results.get(i).get();
+        outputs.get(i).flush();
+        reportValidation(console, configs.get(i).path(), messages);
+        if (!messages.isEmpty()) {
+          invalid++;
+        }
+      }
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw new RuntimeException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while validating configurations");
+    } finally {
+      executor.shutdownNow();
+    }
+    int total = configs.size() + loadErrors.size();
+    String summary = String.format("Validated %d configurations: %d valid, %d invalid.",
+        total, total - invalid, invalid);
+    if (invalid == 0) {
+      console.info(summary);
+    } else {
+      console.error(summary);
+    }
+    return invalid == 0;
+  }
+
+  /**
+   * Returns the validation error messages for the config, including the ones of loading it. The
+   * errors and messages of the evaluation of the config are reported to {@code console}.
+   */
+  private List<String> getValidationMessages(Options options, ConfigFile configContent,
+      Console console) throws IOException {
     ArrayList<String> messages = new ArrayList<>();
     try {
-      Config config = skylarkParser.loadConfig(configContent, options);
+      Config config = skylarkParser.loadConfig(configContent, options, console);
       messages.addAll(validateConfig(config));
     } catch (ValidationException e) {
       // The validate subcommand should not throw Validation exceptions but log a result
@@ -80,13 +166,16 @@ public class Copybara {
       }
       messages.add(error.toString());
     }
+    return messages;
+  }
+
+  private static void reportValidation(Console console, String path, List<String> messages) {
     if (messages.isEmpty()) {
-      console.info(String.format("Configuration '%s' is valid.", configContent.path()));
+      console.info(String.format("Configuration '%s' is valid.", path));
     } else {
-      console.error(String.format("Configuration '%s' is invalid.", configContent.path()));
+      console.error(String.format("Configuration '%s' is invalid.", path));
       messages.forEach(console::error);
     }
-    return messages.isEmpty();
   }
 
   private Config loadConfig(Options options, ConfigFile configContents)
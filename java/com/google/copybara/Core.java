@@ -386,7 +386,8 @@ public class Core implements OptionsAwareModule {
       name = "replace",
       returnType = Replace.class,
       doc = "Replace a text with another text using optional regex groups. This tranformer can be"
-          + " automatically reversed.",
+          + " automatically reversed. Binary files (files with a NUL byte in the first 8000 bytes)"
+          + " are not modified.",
       parameters = {
           @Param(name = "self", type = Core.class, doc = "this object"),
           @Param(name = "before", type = String.class,
@@ -497,7 +498,8 @@ public class Core implements OptionsAwareModule {
       name = "verify_match",
       returnType = VerifyMatch.class,
       doc = "Verifies that a RegEx matches (or not matches) the specified files. Does not, " +
-          "transform anything, but will stop the workflow if it fails.",
+          "transform anything, but will stop the workflow if it fails. Binary files (files with a"
+          + " NUL byte in the first 8000 bytes) are not verified, unless verify_no_match is set.",
       parameters = {
           @Param(name = "self", type = Core.class, doc = "this object"),
           @Param(name = "regex", type = String.class,
@@ -513,19 +515,26 @@ public class Core implements OptionsAwareModule {
           @Param(name = "verify_no_match", type = Boolean.class,
               doc = "If true, the transformation will verify that the RegEx does not match.",
               defaultValue = "False"),
+          @Param(name = "fail_fast", type = Boolean.class,
+              doc = "If true, the transformation stops verifying files after the first one that"
+                  + " fails the validation. Useful for big trees where only knowing that the"
+                  + " validation fails is enough.",
+              defaultValue = "False"),
       },
       objectType = Core.class, useLocation = true)
   public static final BuiltinFunction VERIFY_MATCH = new BuiltinFunction("verify_match",
       ImmutableList.of(
           Glob.ALL_FILES,
+          false,
           false
       )) {
     public VerifyMatch invoke(Core self, String regex, Glob paths, Boolean verifyNoMatch,
-        Location location) throws EvalException {
+        Boolean failFast, Location location) throws EvalException {
       return VerifyMatch.create(location,
           regex,
           paths,
-          verifyNoMatch);
+          verifyNoMatch,
+          failFast);
     }
   };
 
@@ -21,11 +21,17 @@ import com.beust.jcommander.Parameters;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 import com.google.copybara.util.console.Console;
+import java.io.Closeable;
 import java.io.IOException;
 import java.nio.file.FileSystem;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.annotation.Nullable;
 
 /**
@@ -33,6 +39,8 @@ import javax.annotation.Nullable;
  */
 public final class GeneralOptions implements Option {
 
+  private static final Logger logger = Logger.getLogger(GeneralOptions.class.getName());
+
   public static final String NOANSI = "--noansi";
   public static final String FORCE = "--force";
   public static final String CONFIG_ROOT_FLAG = "--config-root";
@@ -45,6 +53,7 @@ public final class GeneralOptions implements Option {
   private final boolean force;
   @Nullable
   private final Path configRoot;
+  private final List<Closeable> resources = new ArrayList<>();
 
   @VisibleForTesting
   public GeneralOptions(FileSystem fileSystem, boolean verbose, Console console) {
@@ -115,6 +124,36 @@ public final class GeneralOptions implements Option {
     return configRoot;
   }
 
+  /**
+   * Registers a resource that lives as long as the command, like a long running git process, so
+   * that it is closed by {@link #closeResources()} when the command finishes.
+   */
+  public <T extends Closeable> T closeOnExit(T resource) {
+    synchronized (resources) {
+      resources.add(Preconditions.checkNotNull(resource));
+    }
+    return resource;
+  }
+
+  /**
+   * Closes the resources registered with {@link #closeOnExit(Closeable)}, the most recent first.
+   * Errors are logged, since the command already finished.
+   */
+  public void closeResources() {
+    List<Closeable> toClose;
+    synchronized (resources) {
+      toClose = Lists.reverse(new ArrayList<>(resources));
+      resources.clear();
+    }
+    for (Closeable resource : toClose) {
+      try {
+        resource.close();
+      } catch (IOException | RuntimeException e) {
+        logger.log(Level.WARNING, "Cannot close " + resource, e);
+      }
+    }
+  }
+
   @Parameters(separators = "=")
   public static final class Args {
     @Parameter(names = "-v", description = "Verbose output.")
@@ -38,9 +38,11 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.function.Supplier;
@@ -111,6 +113,7 @@ public class Main {
     jcommander.setProgramName("copybara");
 
     String version = getVersion();
+    GeneralOptions generalOptions = null;
     try {
       logger.log(Level.INFO, "Copybara version: " + version);
       jcommander.parse(args);
@@ -123,12 +126,26 @@ public class Main {
       }
       mainArgs.parseUnnamedArgs();
 
-      GeneralOptions generalOptions = generalOptionsArgs.init(environment, fs, console);
+      generalOptions = generalOptionsArgs.init(environment, fs, console);
       allOptions.add(generalOptions);
       Options options = new Options(allOptions);
 
       initEnvironment(options, mainArgs, jcommander);
 
+      if (mainArgs.getSubcommand() == Subcommand.BULK_VALIDATE) {
+        List<ConfigFile> configFiles = new ArrayList<>();
+        // A path that cannot be loaded is one more invalid configuration, not a failure of the run
+        Map<String, String> loadErrors = new LinkedHashMap<>();
+        for (String path : mainArgs.getConfigPaths()) {
+          try {
+            configFiles.add(loadConfig(fs.getPath(path), generalOptions.getConfigRoot()));
+          } catch (CommandLineException | ValidationException | InvalidPathException e) {
+            loadErrors.put(path, e.getMessage());
+          }
+        }
+        return copybara.bulkValidate(options, configFiles, loadErrors)
+            ? ExitCode.SUCCESS : ExitCode.CONFIGURATION_ERROR;
+      }
       final Path configPath = fs.getPath(mainArgs.getConfigPath());
       ConfigFile configFile = loadConfig(configPath, generalOptions.getConfigRoot());
       switch (mainArgs.getSubcommand()) {
@@ -136,12 +153,17 @@ public class Main {
           return copybara.validate(options, configFile)
               ? ExitCode.SUCCESS : ExitCode.CONFIGURATION_ERROR;
         case MIGRATE:
-          copybara.run(
-              options,
-              configFile,
-              mainArgs.getWorkflowName(),
-              mainArgs.getBaseWorkdir(fs),
-              mainArgs.getSourceRef());
+          try {
+            copybara.run(
+                options,
+                configFile,
+                mainArgs.getWorkflowName(),
+                mainArgs.getBaseWorkdir(fs),
+                mainArgs.getSourceRef());
+          } finally {
+            // Don't leave the old working directory contents behind.
+            options.get(WorkflowOptions.class).getWorkdirCleaner().awaitTermination();
+          }
           break;
         case INFO:
           copybara.info(options, configFile, mainArgs.getWorkflowName());
@@ -171,6 +193,10 @@ public class Main {
       handleUnexpectedError(console, "Unexpected error (please file a bug): " + e.getMessage(), e);
       return ExitCode.INTERNAL_ERROR;
     } finally {
+      if (generalOptions != null) {
+        // Stop the processes that the origins and destinations kept for the whole command.
+        generalOptions.closeResources();
+      }
       try {
         shutdown();
       } catch (InterruptedException e) {
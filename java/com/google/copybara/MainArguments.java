@@ -16,11 +16,13 @@
 
 package com.google.copybara;
 
+import static com.google.copybara.Subcommand.BULK_VALIDATE;
 import static com.google.copybara.Subcommand.INFO;
 import static com.google.copybara.Subcommand.VALIDATE;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.StandardSystemProperty;
+import com.google.common.collect.ImmutableList;
 
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
@@ -44,7 +46,8 @@ import javax.annotation.concurrent.NotThreadSafe;
 public final class MainArguments {
   static final String COPYBARA_SKYLARK_CONFIG_FILENAME = "copy.bara.sky";
 
-  @Parameter(description = "[COMMAND] CONFIG_PATH [WORKFLOW_NAME [SOURCE_REF]]")
+  @Parameter(description = "[COMMAND] CONFIG_PATH [WORKFLOW_NAME [SOURCE_REF]]"
+      + " | bulk_validate CONFIG_PATH...")
   List<String> unnamed = new ArrayList<>();
 
   @Parameter(names = "--help", help = true, description = "Shows this help text")
@@ -65,7 +68,15 @@ public final class MainArguments {
   }
 
   public String getConfigPath() {
-    return getArgs().configPath;
+    return getArgs().configPaths.get(0);
+  }
+
+  /**
+   * Returns all the configuration paths. Only {@link Subcommand#BULK_VALIDATE} accepts more than
+   * one.
+   */
+  public ImmutableList<String> getConfigPaths() {
+    return getArgs().configPaths;
   }
 
   @Nullable
@@ -121,7 +132,8 @@ public final class MainArguments {
   void parseUnnamedArgs() throws CommandLineException {
     if (unnamed.size() < 1) {
       throw new CommandLineException("Expected at least a configuration file.");
-    } else if (unnamed.size() > 4) {
+    } else if (unnamed.size() > 4
+        && !unnamed.get(0).equalsIgnoreCase(BULK_VALIDATE.toString())) {
       throw new CommandLineException("Expected at most four arguments.");
     }
 
@@ -143,6 +155,12 @@ public final class MainArguments {
           String.format("Configuration file missing for '%s' subcommand.",
               subcommand.toString().toLowerCase()));
     }
+    if (subcommand == BULK_VALIDATE) {
+      argumentHolder = new ArgumentHolder(subcommand,
+          ImmutableList.copyOf(unnamed.subList(argumentId, unnamed.size())),
+          /*workflowName=*/null, /*sourceRef=*/null);
+      return;
+    }
     String configPath = unnamed.get(argumentId);
     argumentId++;
 
@@ -163,20 +181,21 @@ public final class MainArguments {
       sourceRef = unnamed.get(argumentId);
       argumentId++; // Just in case we add more arguments
     }
-    argumentHolder = new ArgumentHolder(subcommand, configPath, workflowName, sourceRef);
+    argumentHolder = new ArgumentHolder(
+        subcommand, ImmutableList.of(configPath), workflowName, sourceRef);
   }
 
   private static class ArgumentHolder {
 
     private final Subcommand subcommand;
-    private final String configPath;
+    private final ImmutableList<String> configPaths;
     @Nullable private final String workflowName;
     @Nullable private final String sourceRef;
 
-    private ArgumentHolder(Subcommand subcommand, String configPath,
+    private ArgumentHolder(Subcommand subcommand, ImmutableList<String> configPaths,
         @Nullable  String workflowName, @Nullable String sourceRef) {
       this.subcommand = subcommand;
-      this.configPath = configPath;
+      this.configPaths = configPaths;
       this.workflowName = workflowName;
       this.sourceRef = sourceRef;
     }
@@ -28,6 +28,10 @@ public enum Subcommand {
    * Validate that the configuration is correct.
    */
   VALIDATE,
+  /**
+   * Validate that many configurations are correct, sharing the evaluation of their imports.
+   */
+  BULK_VALIDATE,
   /**
    * Read the last migrated reference in the origin and destination.
    */
@@ -20,6 +20,7 @@ import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Splitter;
 import com.google.copybara.authoring.Author;
+import com.google.copybara.util.FileTreeIndex;
 import com.google.copybara.util.Glob;
 import com.google.copybara.util.console.Console;
 import com.google.devtools.build.lib.skylarkinterface.Param;
@@ -38,7 +39,6 @@ import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.Collectors;
 import javax.annotation.Nullable;
 
 /**
@@ -59,12 +59,28 @@ public final class TransformWork {
   private Metadata metadata;
   private final Changes changes;
   private final Console console;
+  private final FileTreeIndex treeIndex;
+  private final Glob originFiles;
 
   public TransformWork(Path checkoutDir, Metadata metadata, Changes changes, Console console) {
+    this(checkoutDir, metadata, changes, console, new FileTreeIndex(checkoutDir));
+  }
+
+  public TransformWork(Path checkoutDir, Metadata metadata, Changes changes, Console console,
+      FileTreeIndex treeIndex) {
+    this(checkoutDir, metadata, changes, console, treeIndex, Glob.ALL_FILES);
+  }
+
+  public TransformWork(Path checkoutDir, Metadata metadata, Changes changes, Console console,
+      FileTreeIndex treeIndex, Glob originFiles) {
     this.checkoutDir = Preconditions.checkNotNull(checkoutDir);
     this.metadata = Preconditions.checkNotNull(metadata);
     this.changes = changes;
     this.console = console;
+    this.treeIndex = Preconditions.checkNotNull(treeIndex);
+    this.originFiles = Preconditions.checkNotNull(originFiles);
+    Preconditions.checkArgument(treeIndex.getRoot().equals(checkoutDir),
+        "Index for %s cannot be used for %s", treeIndex.getRoot(), checkoutDir);
   }
 
 
@@ -75,6 +91,23 @@ public final class TransformWork {
     return checkoutDir;
   }
 
+  /**
+   * An index of the files in the checkout directory. Transformations should use it for finding
+   * files instead of walking the checkout directory, and must keep it up to date when they
+   * create, move or delete files.
+   */
+  public FileTreeIndex getTreeIndex() {
+    return treeIndex;
+  }
+
+  /**
+   * The origin files of the workflow, relative to the checkout directory. Files that don't match
+   * them were removed from the checkout directory before running the transformations.
+   */
+  public Glob getOriginFiles() {
+    return originFiles;
+  }
+
   /**
    * A description of the migrated changes to include in the destination's change description. The
    * destination may add more boilerplate text or metadata.
@@ -107,12 +140,13 @@ public final class TransformWork {
     if (runnable instanceof Glob) {
       PathMatcher pathMatcher = ((Glob) runnable).relativeTo(checkoutDir);
 
-      return SkylarkList.createImmutable(Files.walk(checkoutDir)
-          .filter(Files::isRegularFile)
-          .filter(pathMatcher::matches)
-          .map(checkoutDir::relativize)
-          .map(CheckoutPath::new)
-          .collect(Collectors.toList()));
+      List<CheckoutPath> result = new ArrayList<>();
+      for (Path file : treeIndex.match(pathMatcher)) {
+        if (Files.isRegularFile(file)) {
+          result.add(new CheckoutPath(checkoutDir.relativize(file)));
+        }
+      }
+      return SkylarkList.createImmutable(result);
     } else if (runnable instanceof Transformation) {
       ((Transformation) runnable).transform(this);
       return Runtime.NONE;
@@ -253,7 +287,7 @@ public final class TransformWork {
    */
   public TransformWork withConsole(Console newConsole) {
     return new TransformWork(checkoutDir, metadata, changes,
-        Preconditions.checkNotNull(newConsole));
+        Preconditions.checkNotNull(newConsole), treeIndex, originFiles);
   }
 
   /**
@@ -27,6 +27,7 @@ import com.google.copybara.Destination.WriterResult;
 import com.google.copybara.Info.MigrationReference;
 import com.google.copybara.authoring.Authoring;
 import com.google.copybara.util.DiffUtil;
+import com.google.copybara.util.FileTreeIndex;
 import com.google.copybara.util.FileUtil;
 import com.google.copybara.util.Glob;
 import com.google.copybara.util.console.Console;
@@ -155,7 +156,7 @@ public final class Workflow<O extends Reference, D extends Reference> implements
   public void run(Path workdir, @Nullable String sourceRef)
       throws RepoException, IOException, ValidationException {
     console.progress("Cleaning working directory");
-    FileUtil.deleteAllFilesRecursively(workdir);
+    workflowOptions.getWorkdirCleaner().clean(workdir);
 
     console.progress("Getting last revision: "
         + "Resolving " + ((sourceRef == null) ? "origin reference" : sourceRef));
@@ -252,7 +253,7 @@ public final class Workflow<O extends Reference, D extends Reference> implements
         Metadata metadata, Changes changes, @Nullable String destinationBaseline)
         throws IOException, RepoException, ValidationException {
       processConsole.progress("Cleaning working directory");
-      FileUtil.deleteAllFilesRecursively(workdir);
+      workflowOptions.getWorkdirCleaner().clean(workdir);
       Path checkoutDir = workdir.resolve("checkout");
       Files.createDirectories(checkoutDir);
 
@@ -263,8 +264,9 @@ public final class Workflow<O extends Reference, D extends Reference> implements
       PathMatcher originFiles = Workflow.this.originFiles.relativeTo(checkoutDir);
       processConsole.progress("Removing excluded origin files");
 
-      int deleted = FileUtil.deleteFilesRecursively(
-          checkoutDir, FileUtil.notPathMatcher(originFiles));
+      FileTreeIndex treeIndex =
+          new FileTreeIndex(checkoutDir, workflowOptions.getBinaryFileClassifier());
+      int deleted = treeIndex.deleteMatching(FileUtil.notPathMatcher(originFiles));
       if (deleted != 0) {
         processConsole.info(
             String.format("Removed %d files from workdir that do not match origin_files", deleted));
@@ -274,18 +276,24 @@ public final class Workflow<O extends Reference, D extends Reference> implements
       if (reverseTransformForCheck != null) {
         console.progress("Making a copy or the workdir for reverse checking");
         originCopy = Files.createDirectories(workdir.resolve("origin"));
-        FileUtil.copyFilesRecursively(checkoutDir, originCopy, FAIL_OUTSIDE_SYMLINKS);
+        FileUtil.copyFilesRecursively(checkoutDir, originCopy, FAIL_OUTSIDE_SYMLINKS,
+            FileUtil.DEFAULT_PARALLELISM);
       }
 
-      TransformWork transformWork = new TransformWork(checkoutDir, metadata, changes, console);
+      TransformWork transformWork =
+          new TransformWork(checkoutDir, metadata, changes, console, treeIndex,
+              Workflow.this.originFiles);
       transformation.transform(transformWork);
+      treeIndex.logBinarySkips();
 
       if (reverseTransformForCheck != null) {
         console.progress("Checking that the transformations can be reverted");
         Path reverse = Files.createDirectories(workdir.resolve("reverse"));
-        FileUtil.copyFilesRecursively(checkoutDir, reverse, FAIL_OUTSIDE_SYMLINKS);
+        FileUtil.copyFilesRecursively(checkoutDir, reverse, FAIL_OUTSIDE_SYMLINKS,
+            FileUtil.DEFAULT_PARALLELISM);
         reverseTransformForCheck.transform(
-            new TransformWork(reverse, metadata, changes, console)
+            new TransformWork(reverse, metadata, changes, console, new FileTreeIndex(reverse),
+                Workflow.this.originFiles)
         );
         String diff = new String(DiffUtil.diff(originCopy, reverse, verbose),
             StandardCharsets.UTF_8);
@@ -19,7 +19,11 @@ package com.google.copybara;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.copybara.util.BinaryFileClassifier;
+import com.google.copybara.util.WorkdirCleaner;
 import com.google.copybara.util.console.Console;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 
 /**
@@ -66,6 +70,16 @@ public class WorkflowOptions implements Option {
           + " doing the push")
   boolean firstMigration = false;
 
+  private final WorkdirCleaner workdirCleaner = new WorkdirCleaner();
+
+  @Parameter(names = "--binary-file-extensions",
+      description = "Comma separated list of file extensions (for example 'png,jar') of files that"
+          + " are always considered binary, without reading them. Text transformations like"
+          + " core.replace or core.verify_match (unless verify_no_match is set) skip binary"
+          + " files. Other files are considered binary if they have a NUL byte in the first 8000"
+          + " bytes.")
+  List<String> binaryFileExtensions = new ArrayList<>();
+
   public WorkflowOptions() {}
 
   @VisibleForTesting
@@ -87,6 +101,20 @@ public class WorkflowOptions implements Option {
     return firstMigration;
   }
 
+  /**
+   * Returns the classifier that text transformations use for skipping binary files.
+   */
+  public BinaryFileClassifier getBinaryFileClassifier() {
+    return new BinaryFileClassifier(binaryFileExtensions);
+  }
+
+  /**
+   * Returns the cleaner used for emptying the working directory between migrations.
+   */
+  public WorkdirCleaner getWorkdirCleaner() {
+    return workdirCleaner;
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) {
@@ -98,11 +126,12 @@ public class WorkflowOptions implements Option {
     WorkflowOptions that = (WorkflowOptions) o;
     return Objects.equals(changeBaseline, that.changeBaseline)
         && Objects.equals(lastRevision, that.lastRevision)
-        && Objects.equals(firstMigration, that.firstMigration);
+        && Objects.equals(firstMigration, that.firstMigration)
+        && Objects.equals(binaryFileExtensions, that.binaryFileExtensions);
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(changeBaseline, lastRevision, firstMigration);
+    return Objects.hash(changeBaseline, lastRevision, firstMigration, binaryFileExtensions);
   }
 }
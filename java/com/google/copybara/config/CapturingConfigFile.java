@@ -20,6 +20,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
@@ -30,6 +31,7 @@ import java.util.Set;
  */
 class CapturingConfigFile<T> extends ConfigFile<T> {
   private final Set<CapturingConfigFile<T>> children = new LinkedHashSet<>();
+  private final Map<String, CapturingConfigFile<T>> resolvedLabels = new LinkedHashMap<>();
   private final ConfigFile<T> wrapped;
 
   CapturingConfigFile(ConfigFile<T> config) {
@@ -70,11 +72,20 @@ class CapturingConfigFile<T> extends ConfigFile<T> {
     }
   }
 
+  /**
+   * Retrieve the labels resolved directly from this file.
+   * @return A Map from each label to the captured ConfigFile it resolved to.
+   */
+  ImmutableMap<String, CapturingConfigFile<T>> getResolvedLabels() {
+    return ImmutableMap.copyOf(resolvedLabels);
+  }
+
   @Override
   protected ConfigFile<T> createConfigFile(String label, T resolved) throws CannotResolveLabel {
     CapturingConfigFile<T> child =
         new CapturingConfigFile<T>(wrapped.createConfigFile(label, resolved));
     children.add(child);
+    resolvedLabels.put(label, child);
     return child;
   }
 
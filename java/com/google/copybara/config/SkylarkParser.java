@@ -21,8 +21,16 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.copybara.authoring.Authoring;
 import com.google.copybara.Config;
 import com.google.copybara.Core;
@@ -30,6 +38,7 @@ import com.google.copybara.GeneralOptions;
 import com.google.copybara.Options;
 import com.google.copybara.ValidationException;
 import com.google.copybara.config.base.OptionsAwareModule;
+import com.google.copybara.util.FileUtil;
 import com.google.copybara.util.console.Console;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventHandler;
@@ -45,12 +54,21 @@ import com.google.devtools.build.lib.syntax.SkylarkSignatureProcessor;
 import com.google.devtools.build.lib.syntax.StringLiteral;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.annotation.Nullable;
 
 /**
  * Loads Copybara configs out of Skylark files.
@@ -62,6 +80,20 @@ public class SkylarkParser {
   // For now all the modules are namespaces. We don't use variables except for 'core'.
   private final Iterable<Class<?>> modules;
 
+  /**
+   * Parsed config files by path and content. Parsing doesn't depend on the options, so the ASTs
+   * are shared by all the evaluations of this parser.
+   */
+  private final Cache<HashCode, BuildFileAST> parsedFiles =
+      CacheBuilder.newBuilder().softValues().build();
+
+  /**
+   * Evaluated config files by the hash of their content and the content of their transitive
+   * imports. See {@link Evaluator#eval(ConfigFile)}.
+   */
+  private final Cache<HashCode, EvaluatedFile> evaluatedFiles =
+      CacheBuilder.newBuilder().softValues().build();
+
   public SkylarkParser(Set<Class<?>> modules) {
     this.modules = ImmutableSet.<Class<?>>builder()
         .add(Authoring.Module.class)
@@ -87,9 +119,18 @@ public class SkylarkParser {
 
   public Config loadConfig(ConfigFile content, Options options)
       throws IOException, ValidationException {
+    return loadConfig(content, options, options.get(GeneralOptions.class).console());
+  }
+
+  /**
+   * Like {@link #loadConfig(ConfigFile, Options)}, but the errors and messages of the evaluation
+   * are reported to {@code console} instead of the console of the options.
+   */
+  public Config loadConfig(ConfigFile content, Options options, Console console)
+      throws IOException, ValidationException {
     Core core;
     try {
-      Environment env = executeSkylark(content, options);
+      Environment env = new Evaluator(options, console).eval(content);
 
       core = (Core) env.getGlobals().get(Core.CORE_VAR);
     } catch (InterruptedException e) {
@@ -102,7 +143,7 @@ public class SkylarkParser {
   @VisibleForTesting
   public Environment executeSkylark(ConfigFile content, Options options)
       throws IOException, ValidationException, InterruptedException {
-    return new Evaluator(options).eval(content);
+    return new Evaluator(options, options.get(GeneralOptions.class).console()).eval(content);
   }
 
   /**
@@ -122,46 +163,207 @@ public class SkylarkParser {
 
   /**
    * An utility class for traversing and evaluating the config file dependency graph.
+   *
+   * <p>The graph is read and parsed first, following the imports depth-first. Then each file is
+   * executed as soon as all its imports are evaluated, so files that don't depend on each other
+   * are executed in parallel. The events of each file are stored and reported in the order of a
+   * sequential depth-first evaluation.
    */
   private final class Evaluator {
 
     private final LinkedHashSet<String> pending = new LinkedHashSet<>();
-    private final Map<String, Environment> loaded = new HashMap<>();
+    /** The files of the graph by path, in depth-first post-order. */
+    private final Map<String, ConfigNode> nodes = new LinkedHashMap<>();
     private final Options options;
     private final Console console;
     private final EventHandler eventHandler;
 
-    private Evaluator(Options options) {
+    private Evaluator(Options options, Console console) {
       this.options = Preconditions.checkNotNull(options);
-      console = options.get(GeneralOptions.class).console();
+      this.console = Preconditions.checkNotNull(console);
       eventHandler = new ConsoleEventHandler(console);
     }
 
     private Environment eval(ConfigFile content)
         throws IOException, ValidationException, InterruptedException {
+      ConfigNode root = resolve(content);
+      evaluateGraph();
+      // Report the events up to the first failure, like a sequential evaluation would
+      for (ConfigNode node : nodes.values()) {
+        node.events.replay(eventHandler);
+        if (node.failure != null) {
+          Throwables.propagateIfInstanceOf(node.failure, InterruptedException.class);
+          Throwables.propagateIfPossible(
+              node.failure, IOException.class, ValidationException.class);
+          throw new RuntimeException(node.failure);
+        }
+      }
+      return root.env;
+    }
+
+    /**
+     * Reads and parses {@code content} and, recursively, its imports.
+     */
+    private ConfigNode resolve(ConfigFile content) throws IOException, ValidationException {
       if (pending.contains(content.path())) {
         throw throwCycleError(content.path());
-      } else if (loaded.containsKey(content.path())) {
-        return loaded.get(content.path());
+      }
+      ConfigNode node = nodes.get(content.path());
+      if (node != null) {
+        return node;
       }
       pending.add(content.path());
 
-      Frame globals = createGlobals(eventHandler, options, content);
-
-      BuildFileAST buildFileAST = BuildFileAST.parseSkylarkFileWithoutImports(
-          new InputSourceForConfigFile(content), eventHandler);
+      byte[] bytes = content.content();
+      BuildFileAST buildFileAST = parse(content, bytes);
 
-      Map<String, Extension> imports = new HashMap<>();
+      Hasher transitiveHash = Hashing.sha256().newHasher()
+          .putString(content.path(), UTF_8)
+          .putBytes(bytes);
+      Map<String, ConfigNode> imports = new LinkedHashMap<>();
       for (StringLiteral anImport : buildFileAST.getRawImports()) {
-        imports.put(anImport.getValue(),
-            new Extension(eval(content.resolve(anImport.getValue() + BARA_SKY))));
+        ConfigNode imported = resolve(content.resolve(anImport.getValue() + BARA_SKY));
+        imports.put(anImport.getValue(), imported);
+        transitiveHash
+            .putString(anImport.getValue(), UTF_8)
+            .putBytes(imported.hash.asBytes());
       }
-      Environment env = createEnvironment(eventHandler, globals, imports);
-
-      checkCondition(buildFileAST.exec(env, eventHandler), "Error loading config file");
+      node = new ConfigNode(
+          content, buildFileAST, ImmutableMap.copyOf(imports), transitiveHash.hash());
       pending.remove(content.path());
-      loaded.put(content.path(), env);
-      return env;
+      nodes.put(content.path(), node);
+      return node;
+    }
+
+    /**
+     * Executes the files of the graph. A file is not executed if one of its imports failed.
+     */
+    private void evaluateGraph() throws InterruptedException {
+      if (nodes.size() == 1) {
+        evaluate(Iterables.getOnlyElement(nodes.values()));
+        return;
+      }
+      ExecutorService executor = Executors.newFixedThreadPool(FileUtil.DEFAULT_PARALLELISM);
+      try {
+        // The nodes are in depth-first post-order, so the imports of a file are already scheduled
+        Map<ConfigNode, CompletableFuture<Void>> results = new HashMap<>();
+        for (ConfigNode node : nodes.values()) {
+          CompletableFuture<?>[] imports = node.imports.values().stream()
+              .map(results::get)
+              .toArray(CompletableFuture<?>[]::new);
+          results.put(node, CompletableFuture.allOf(imports).thenRunAsync(() -> {
+            // Skip the files that depend on a failed one
+            if (node.imports.values().stream().allMatch(imported -> imported.env != null)) {
+              evaluate(node);
+            }
+          }, executor));
+        }
+        CompletableFuture.allOf(results.values().toArray(new CompletableFuture<?>[0])).get();
+      } catch (ExecutionException e) {
+        // evaluate() stores the failures in the node
+        throw new IllegalStateException(e.getCause());
+      } finally {
+        executor.shutdownNow();
+      }
+    }
+
+    /**
+     * Executes a file whose imports are already evaluated, or reuses a previous evaluation of it.
+     *
+     * <p>A file is not executed again if it was already evaluated by this parser with the same
+     * options and neither its content, the content of its transitive imports nor the content of
+     * the files that the modules resolved while executing it changed. The events of the previous
+     * evaluation, like warnings and printed messages, are reported again in that case.
+     */
+    private void evaluate(ConfigNode node) {
+      try {
+        EvaluatedFile evaluated = getCachedEvaluation(node.hash, node.content);
+        Environment env;
+        if (evaluated != null) {
+          // Report the warnings and the output of the first evaluation again
+          for (Event event : evaluated.events) {
+            node.events.handle(event);
+          }
+          env = evaluated.env;
+        } else {
+          Map<String, Extension> imports = new HashMap<>();
+          for (Entry<String, ConfigNode> imported : node.imports.entrySet()) {
+            imports.put(imported.getKey(), new Extension(imported.getValue().env));
+          }
+          // Capture the files that the modules resolve (for example patches), since they are
+          // part of the result too.
+          CapturingConfigFile<?> capturingContent = new CapturingConfigFile<>(node.content);
+          Frame globals = createGlobals(node.events, options, capturingContent);
+          env = createEnvironment(node.events, globals, imports);
+
+          checkCondition(node.ast.exec(env, node.events), "Error loading config file");
+          // The environment is shared by the importers and by later loads, so its values are
+          // frozen before caching it.
+          env.mutability().close();
+          cacheEvaluation(node.hash, env, node.events.getEvents(), capturingContent);
+        }
+        node.env = env;
+      } catch (Exception e) {
+        node.failure = e;
+      }
+    }
+
+    /**
+     * Parses {@code content}, reusing the AST if the same file was already parsed.
+     */
+    private BuildFileAST parse(ConfigFile content, byte[] bytes) throws IOException {
+      HashCode hash = Hashing.sha256().newHasher()
+          .putString(content.path(), UTF_8)
+          .putBytes(bytes)
+          .hash();
+      BuildFileAST buildFileAST = parsedFiles.getIfPresent(hash);
+      if (buildFileAST == null) {
+        buildFileAST = BuildFileAST.parseSkylarkFileWithoutImports(
+            new InputSourceForConfigFile(content.path(), bytes), eventHandler);
+        // The errors are reported while parsing, so we only reuse ASTs without them
+        if (!buildFileAST.containsErrors()) {
+          parsedFiles.put(hash, buildFileAST);
+        }
+      }
+      return buildFileAST;
+    }
+
+    /**
+     * Returns a previous evaluation of the file, or null if there is none or it is not valid
+     * anymore.
+     */
+    @Nullable
+    private EvaluatedFile getCachedEvaluation(HashCode hash, ConfigFile content)
+        throws IOException {
+      EvaluatedFile evaluated = evaluatedFiles.getIfPresent(hash);
+      if (evaluated == null || evaluated.options != options) {
+        return null;
+      }
+      for (Entry<String, HashCode> resolved : evaluated.resolvedLabels.entrySet()) {
+        try {
+          if (!hash(content.resolve(resolved.getKey()).content()).equals(resolved.getValue())) {
+            return null;
+          }
+        } catch (CannotResolveLabel | IOException e) {
+          // Executing the file again reports the error
+          return null;
+        }
+      }
+      return evaluated;
+    }
+
+    private void cacheEvaluation(HashCode hash, Environment env, ImmutableList<Event> events,
+        CapturingConfigFile<?> capturingContent) throws IOException {
+      ImmutableMap.Builder<String, HashCode> resolvedLabels = ImmutableMap.builder();
+      for (Entry<String, ? extends CapturingConfigFile<?>> resolved
+          : capturingContent.getResolvedLabels().entrySet()) {
+        if (!resolved.getValue().getResolvedLabels().isEmpty()) {
+          // We cannot resolve the nested labels again in getCachedEvaluation
+          return;
+        }
+        resolvedLabels.put(resolved.getKey(), hash(resolved.getValue().content()));
+      }
+      evaluatedFiles.put(hash, new EvaluatedFile(options, env, events, resolvedLabels.build()));
     }
 
     private ValidationException throwCycleError(String cycleElement)
@@ -177,6 +379,10 @@ public class SkylarkParser {
     }
   }
 
+  private static HashCode hash(byte[] content) {
+    return Hashing.sha256().hashBytes(content);
+  }
+
   /**
    * Creates a Skylark environment making the {@code modules} available as global variables.
    *
@@ -226,6 +432,75 @@ public class SkylarkParser {
     return env.getGlobals().get(module.getAnnotation(SkylarkModule.class).name());
   }
 
+  /**
+   * A config file of the dependency graph and the result of executing it.
+   */
+  private static final class ConfigNode {
+
+    private final ConfigFile content;
+    private final BuildFileAST ast;
+    private final ImmutableMap<String, ConfigNode> imports;
+    /** Hash of the content of the file and of its transitive imports. */
+    private final HashCode hash;
+    private final StoredEventHandler events = new StoredEventHandler();
+    @Nullable private volatile Environment env;
+    @Nullable private volatile Exception failure;
+
+    private ConfigNode(ConfigFile content, BuildFileAST ast,
+        ImmutableMap<String, ConfigNode> imports, HashCode hash) {
+      this.content = content;
+      this.ast = ast;
+      this.imports = imports;
+      this.hash = hash;
+    }
+  }
+
+  /**
+   * An EventHandler that stores the events, so that they can be reported later in a
+   * deterministic order.
+   */
+  private static final class StoredEventHandler implements EventHandler {
+
+    private final List<Event> events = new ArrayList<>();
+
+    @Override
+    public synchronized void handle(Event event) {
+      events.add(event);
+    }
+
+    private synchronized ImmutableList<Event> getEvents() {
+      return ImmutableList.copyOf(events);
+    }
+
+    private synchronized void replay(EventHandler eventHandler) {
+      for (Event event : events) {
+        eventHandler.handle(event);
+      }
+    }
+  }
+
+  /**
+   * The result of evaluating a config file, that can be reused by later evaluations of the same
+   * file with the same options.
+   */
+  private static final class EvaluatedFile {
+
+    private final Options options;
+    private final Environment env;
+    /** The events of the evaluation, reported again when the evaluation is reused. */
+    private final ImmutableList<Event> events;
+    /** Hash of the content of the files resolved by the modules, by label. */
+    private final ImmutableMap<String, HashCode> resolvedLabels;
+
+    private EvaluatedFile(Options options, Environment env, ImmutableList<Event> events,
+        ImmutableMap<String, HashCode> resolvedLabels) {
+      this.options = options;
+      this.env = env;
+      this.events = events;
+      this.resolvedLabels = resolvedLabels;
+    }
+  }
+
   /**
    * An EventHandler that does the translation to {@link Console} events.
    */
@@ -277,10 +552,9 @@ public class SkylarkParser {
     private final String content;
     private final String path;
 
-    private InputSourceForConfigFile(ConfigFile content) throws IOException {
-
-      this.content = Preconditions.checkNotNull(new String(content.content(), UTF_8));
-      path = Preconditions.checkNotNull(content.path());
+    private InputSourceForConfigFile(String path, byte[] content) {
+      this.content = new String(content, UTF_8);
+      this.path = Preconditions.checkNotNull(path);
     }
 
     @Override
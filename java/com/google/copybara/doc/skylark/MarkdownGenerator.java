@@ -285,7 +285,8 @@ public class MarkdownGenerator extends BasicAnnotationProcessor {
   }
 
   private String simplerJavaTypes(Element field) {
-    String s = field.asType().toString();
+    // Remove the type arguments: 'java.util.List<java.lang.String>' is documented as 'list'
+    String s = field.asType().toString().replaceAll("<.*>$", "");
     int dot = s.lastIndexOf('.');
     if (dot == -1) {
       return deCapitalize(s);
@@ -78,11 +78,14 @@ public class FolderDestination implements Destination<Reference> {
       }
       console.progress("FolderDestination: deleting previous data from " + localFolder);
 
-      FileUtil.deleteFilesRecursively(localFolder, destinationFiles.relativeTo(localFolder));
+      FileUtil.deleteFilesRecursively(localFolder, destinationFiles.relativeTo(localFolder),
+          FileUtil.DEFAULT_PARALLELISM);
 
       console.progress("FolderDestination: Copying contents of the workdir to " + localFolder);
+      // The workdir is not modified after this point, so its files can be hardlinked.
       FileUtil.copyFilesRecursively(transformResult.getPath(), localFolder,
-          CopySymlinkStrategy.FAIL_OUTSIDE_SYMLINKS);
+          CopySymlinkStrategy.FAIL_OUTSIDE_SYMLINKS, FileUtil.DEFAULT_PARALLELISM,
+          /*allowHardlinks=*/true);
       return WriterResult.OK;
     }
   }
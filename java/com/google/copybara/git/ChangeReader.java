@@ -18,6 +18,8 @@ package com.google.copybara.git;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.CharMatcher;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
@@ -30,6 +32,7 @@ import com.google.copybara.Change;
 import com.google.copybara.LabelFinder;
 import com.google.copybara.RepoException;
 import com.google.copybara.authoring.InvalidAuthorException;
+import com.google.copybara.git.GitCatFileSession.Commit;
 import com.google.copybara.util.console.Console;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
@@ -63,6 +66,15 @@ class ChangeReader {
   }
 
   ImmutableList<GitChange> run(String refExpression) throws RepoException {
+    if (limit != -1 && GitRepository.isSingleObjectRevision(refExpression)) {
+      GitCatFileSession session = repository.catFileSession();
+      if (session != null && !repository.logRewritesCommits(session)) {
+        ImmutableList<GitChange> changes = readFirstParents(session, refExpression);
+        if (changes != null) {
+          return changes;
+        }
+      }
+    }
     List<String> params = new ArrayList<>(
         Arrays.asList("log", "--no-color", "--date=iso-strict"));
 
@@ -78,7 +90,88 @@ class ChangeReader {
         repository.simpleCommand(params.toArray(new String[params.size()])).getStdout());
   }
 
-  private ImmutableList<GitChange> parseChanges(String log) throws RepoException {
+  /**
+   * Equivalent to {@code git log --first-parent -<limit> <revision>}, but reading the commits with
+   * the {@code git cat-file} session of the repository. Returns null if a message cannot be
+   * formatted like git log does.
+   */
+  @Nullable
+  private ImmutableList<GitChange> readFirstParents(GitCatFileSession session, String revision)
+      throws RepoException {
+    ImmutableList.Builder<GitChange> builder = ImmutableList.builder();
+    String next = revision;
+    for (int i = 0; i < limit && next != null; i++) {
+      Commit commit = repository.readCommit(session, next);
+      List<String> lines = logMessageLines(commit.getMessage());
+      if (lines == null) {
+        return null;
+      }
+      ImmutableList.Builder<GitReference> parents = ImmutableList.builder();
+      for (String parent : commit.getParents()) {
+        parents.add(repository.createReferenceFromCompleteSha1(parent));
+      }
+      Map<String, String> labels = new LinkedHashMap<>();
+      StringBuilder message = new StringBuilder();
+      for (String line : lines) {
+        addMessageLine(line, message, labels);
+      }
+      Change<GitReference> change = new Change<>(
+          repository.createReferenceFromCompleteSha1(commit.getSha1()),
+          parseAuthor(commit.getAuthor()), message.toString(), commit.getAuthorDate(),
+          ImmutableMap.copyOf(labels));
+      builder.add(new GitChange(change, parents.build()));
+      next = commit.getParents().isEmpty() ? null : commit.getParents().get(0);
+    }
+    // Return older commit first.
+    return builder.build().reverse();
+  }
+
+  /**
+   * Returns the lines of a commit message as the default format of git log shows them: without
+   * leading or trailing empty lines, without trailing whitespace and with the tabs expanded to
+   * 8 columns.
+   *
+   * <p>Returns null if a line has both tabs and non-ASCII characters, since git expands the tabs
+   * using the display width of the characters.
+   */
+  @VisibleForTesting
+  @Nullable
+  static List<String> logMessageLines(String message) {
+    List<String> lines = new ArrayList<>();
+    for (String line : Splitter.on('\n').split(message)) {
+      line = CharMatcher.anyOf(" \t\r").trimTrailingFrom(line);
+      if (line.indexOf('\t') != -1) {
+        if (!CharMatcher.ascii().matchesAllOf(line)) {
+          return null;
+        }
+        line = expandTabs(line);
+      }
+      if (!line.isEmpty() || !lines.isEmpty()) {
+        lines.add(line);
+      }
+    }
+    while (!lines.isEmpty() && lines.get(lines.size() - 1).isEmpty()) {
+      lines.remove(lines.size() - 1);
+    }
+    return lines;
+  }
+
+  private static String expandTabs(String line) {
+    StringBuilder result = new StringBuilder();
+    for (char c : line.toCharArray()) {
+      if (c == '\t') {
+        do {
+          result.append(' ');
+        } while (result.length() % 8 != 0);
+      } else {
+        result.append(c);
+      }
+    }
+    return result.toString();
+  }
+
+  @VisibleForTesting
+  ImmutableList<GitChange> parseChanges(String log) throws RepoException {
     // No changes. We cannot know until we run git log since fromRef can be null (HEAD)
     if (log.isEmpty()) {
       return ImmutableList.of();
@@ -102,18 +195,7 @@ class ChangeReader {
       ZonedDateTime dateTime = null;
       while (!line.isEmpty()) {
         if (line.startsWith("Author: ")) {
-          String authorStr = line.substring("Author: ".length()).trim();
-          Author parsedUser;
-          try {
-            parsedUser = AuthorParser.parse(authorStr);
-          } catch (InvalidAuthorException e) {
-            throw new RepoException("Invalid author found in Git history.", e);
-          }
-          if (authoring == null || authoring.useAuthor(parsedUser.getEmail())) {
-            author = parsedUser;
-          } else {
-            author = authoring.getDefaultAuthor();
-          }
+          author = parseAuthor(line.substring("Author: ".length()).trim());
         } else if (line.startsWith("Date: ")) {
           dateTime = ZonedDateTime.parse(line.substring("Date: ".length()).trim());
         }
@@ -130,17 +212,7 @@ class ChangeReader {
         if (!s.startsWith(GitOrigin.GIT_LOG_COMMENT_PREFIX)) {
           break;
         }
-        LabelFinder labelFinder = new LabelFinder(
-            s.substring(GitOrigin.GIT_LOG_COMMENT_PREFIX.length()));
-        if (labelFinder.isLabel()) {
-          String previous = labels.put(labelFinder.getName(), labelFinder.getValue());
-          if (previous != null && verbose) {
-            console.warn(String.format("Possible duplicate label '%s' happening multiple times"
-                    + " in commit. Keeping only the last value: '%s'\n  Discarded value: '%s'",
-                labelFinder.getName(), labelFinder.getValue(), previous));
-          }
-        }
-        message.append(s, GitOrigin.GIT_LOG_COMMENT_PREFIX.length(), s.length()).append("\n");
+        addMessageLine(s.substring(GitOrigin.GIT_LOG_COMMENT_PREFIX.length()), message, labels);
       }
       Change<GitReference> change = new Change<>(
           ref, author, message.toString(), dateTime, ImmutableMap.copyOf(labels));
@@ -150,6 +222,32 @@ class ChangeReader {
     return builder.build().reverse();
   }
 
+  private Author parseAuthor(String authorStr) throws RepoException {
+    Author parsedUser;
+    try {
+      parsedUser = AuthorParser.parse(authorStr);
+    } catch (InvalidAuthorException e) {
+      throw new RepoException("Invalid author found in Git history.", e);
+    }
+    if (authoring == null || authoring.useAuthor(parsedUser.getEmail())) {
+      return parsedUser;
+    }
+    return authoring.getDefaultAuthor();
+  }
+
+  private void addMessageLine(String line, StringBuilder message, Map<String, String> labels) {
+    LabelFinder labelFinder = new LabelFinder(line);
+    if (labelFinder.isLabel()) {
+      String previous = labels.put(labelFinder.getName(), labelFinder.getValue());
+      if (previous != null && verbose) {
+        console.warn(String.format("Possible duplicate label '%s' happening multiple times"
+                + " in commit. Keeping only the last value: '%s'\n  Discarded value: '%s'",
+            labelFinder.getName(), labelFinder.getValue(), previous));
+      }
+    }
+    message.append(line).append("\n");
+  }
+
   private String removePrefix(String log, String line, String prefix) {
     Preconditions.checkState(line.startsWith(prefix), "Cannot find '%s' in:\n%s", prefix, log);
     return line.substring(prefix.length()).trim();
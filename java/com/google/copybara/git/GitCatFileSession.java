@@ -0,0 +1,398 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.git;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Ascii;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.copybara.RepoException;
+import com.google.copybara.git.GitObjectReader.GitObject;
+import com.google.copybara.git.GitObjectReader.TreeEntry;
+import com.google.copybara.git.GitRepository.GitObjectType;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.nio.file.Path;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A long running {@code git cat-file --batch} process that resolves revisions and reads objects
+ * of a repository over a single pipe, instead of executing git once per read.
+ *
+ * <p>Revisions are resolved by git, so any revision syntax accepted by {@code git rev-parse} that
+ * names a single object works. The process sees the objects and references written after it was
+ * started.
+ *
+ * <p>This class is thread-safe: the requests are serialized.
+ */
+final class GitCatFileSession implements Closeable {
+
+  private static final Logger logger = Logger.getLogger(GitCatFileSession.class.getName());
+
+  private static final int MAX_PIPELINED_REQUESTS = 100;
+
+  private final Path gitDir;
+  private final Process process;
+  private final OutputStream requests;
+  private final InputStream responses;
+  private boolean broken;
+
+  private GitCatFileSession(Path gitDir, Process process) {
+    this.gitDir = Preconditions.checkNotNull(gitDir);
+    this.process = Preconditions.checkNotNull(process);
+    this.requests = process.getOutputStream();
+    this.responses = new BufferedInputStream(process.getInputStream());
+  }
+
+  /**
+   * Starts a session for the repository in {@code gitDir}.
+   */
+  static GitCatFileSession start(String gitBinary, Path gitDir, Map<String, String> environment)
+      throws RepoException {
+    ProcessBuilder builder = new ProcessBuilder(
+        gitBinary, "--git-dir=" + gitDir, "cat-file", "--batch");
+    builder.environment().clear();
+    builder.environment().putAll(environment);
+    builder.directory(gitDir.toFile());
+    Process process;
+    try {
+      process = builder.start();
+    } catch (IOException e) {
+      throw new RepoException("Cannot start git cat-file for " + gitDir, e);
+    }
+    drainErrors(process, gitDir);
+    return new GitCatFileSession(gitDir, process);
+  }
+
+  /**
+   * Logs the error output of the process, so that it doesn't block if it writes too much.
+   */
+  private static void drainErrors(Process process, Path gitDir) {
+    Thread drainer = new Thread(() -> {
+      try (BufferedReader errors =
+          new BufferedReader(new InputStreamReader(process.getErrorStream(), UTF_8))) {
+        String line;
+        while ((line = errors.readLine()) != null) {
+          logger.warning("git cat-file for " + gitDir + ": " + line);
+        }
+      } catch (IOException e) {
+        logger.log(Level.FINE, "Cannot read the errors of git cat-file", e);
+      }
+    }, "git-cat-file-errors");
+    drainer.setDaemon(true);
+    drainer.start();
+  }
+
+  /**
+   * Returns false if the process exited or the communication with it failed. The session cannot be
+   * used anymore in that case.
+   */
+  synchronized boolean isAlive() {
+    return !broken && process.isAlive();
+  }
+
+  /**
+   * Resolves {@code revision} to the complete SHA-1 of the object it names.
+   *
+   * @throws CannotFindReferenceException if the revision doesn't name an object
+   */
+  String resolve(String revision) throws RepoException {
+    return request(revision, /*peel=*/"").sha1;
+  }
+
+  /**
+   * Reads the object named by {@code revision}.
+   *
+   * @throws CannotFindReferenceException if the revision doesn't name an object
+   */
+  GitObject read(String revision) throws RepoException {
+    return request(revision, /*peel=*/"").object;
+  }
+
+  /**
+   * Reads the tree named by {@code treeish}, peeling commits and tags, and returns its entries in
+   * the stored order. {@code treeish} can also be a {@code <revision>:<path>} of a directory.
+   */
+  ImmutableList<TreeEntry> readTree(String treeish) throws RepoException {
+    // A peel suffix after ':' would be part of the path.
+    Response response = request(treeish, treeish.contains(":") ? "" : "^{tree}");
+    return GitObjectReader.parseTree(response.sha1, response.object);
+  }
+
+  /**
+   * Reads the commit named by {@code revision}, peeling tags.
+   *
+   * @throws CannotFindReferenceException if the revision doesn't name a commit
+   */
+  Commit readCommit(String revision) throws RepoException {
+    Response response = request(revision, "^{commit}");
+    return parseCommit(response.sha1, response.object.getContent());
+  }
+
+  /**
+   * Resolves each of {@code revisions} to the complete SHA-1 of the object it names, in the same
+   * order. The requests are written in chunks before reading their responses, so resolving many
+   * revisions doesn't pay a round trip per revision.
+   *
+   * @throws CannotFindReferenceException if any of the revisions doesn't name an object
+   */
+  synchronized ImmutableList<String> resolveAll(List<String> revisions) throws RepoException {
+    ImmutableList.Builder<String> result = ImmutableList.builder();
+    // Small enough for the requests to fit in the pipe buffer, so that we never block writing
+    // while git blocks writing responses that we are not reading yet.
+    for (List<String> chunk : Lists.partition(revisions, MAX_PIPELINED_REQUESTS)) {
+      writeRequests(chunk);
+      CannotFindReferenceException missing = null;
+      for (String revision : chunk) {
+        // Read all the responses of the chunk even if one is missing, to keep the session usable.
+        try {
+          result.add(readResponse(revision, revision).sha1);
+        } catch (CannotFindReferenceException e) {
+          missing = missing == null ? e : missing;
+        }
+      }
+      if (missing != null) {
+        throw missing;
+      }
+    }
+    return result.build();
+  }
+
+  /**
+   * Reads the object named by {@code revision} followed by the {@code peel} suffix. The suffix is
+   * not part of the error message if the object doesn't exist.
+   */
+  private synchronized Response request(String revision, String peel) throws RepoException {
+    writeRequests(ImmutableList.of(revision + peel));
+    return readResponse(revision, revision + peel);
+  }
+
+  private void writeRequests(List<String> names) throws RepoException {
+    for (String name : names) {
+      Preconditions.checkArgument(!name.isEmpty() && name.indexOf('\n') == -1,
+          "Invalid revision '%s'", name);
+    }
+    if (broken) {
+      throw new RepoException("The git cat-file session for " + gitDir + " is closed");
+    }
+    try {
+      for (String name : names) {
+        requests.write((name + "\n").getBytes(UTF_8));
+      }
+      requests.flush();
+    } catch (IOException e) {
+      broken = true;
+      throw new RepoException("Error writing requests to git cat-file for " + gitDir, e);
+    }
+  }
+
+  private Response readResponse(String revision, String name) throws RepoException {
+    try {
+      String header = readLine();
+      if (header.equals(name + " missing") || header.equals(name + " ambiguous")) {
+        throw new CannotFindReferenceException("Cannot find reference '" + revision + "'");
+      }
+      List<String> fields = Splitter.on(' ').splitToList(header);
+      if (fields.size() != 3) {
+        throw new IOException("Unexpected output from git cat-file: " + header);
+      }
+      GitObjectType type = GitObjectType.valueOf(Ascii.toUpperCase(fields.get(1)));
+      byte[] content = new byte[Integer.parseInt(fields.get(2))];
+      ByteStreams.readFully(responses, content);
+      if (responses.read() != '\n') {
+        throw new IOException("Missing object terminator in git cat-file output");
+      }
+      return new Response(fields.get(0), new GitObject(type, content));
+    } catch (IOException | IllegalArgumentException e) {
+      // We don't know where the next response starts anymore.
+      broken = true;
+      throw new RepoException("Error reading '" + revision + "' with git cat-file from "
+          + gitDir, e);
+    }
+  }
+
+  private String readLine() throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int b;
+    while ((b = responses.read()) != '\n') {
+      if (b == -1) {
+        throw new IOException("git cat-file exited unexpectedly");
+      }
+      line.write(b);
+    }
+    return new String(line.toByteArray(), UTF_8);
+  }
+
+  /**
+   * Parses the content of a commit object. The message is decoded with the charset of the
+   * {@code encoding} header, like {@code git log} does, or UTF-8 if there is none or it is not
+   * supported.
+   */
+  static Commit parseCommit(String sha1, byte[] content) throws RepoException {
+    String text = new String(content, charsetOf(content));
+    ImmutableList.Builder<String> parents = ImmutableList.builder();
+    String author = null;
+    ZonedDateTime authorDate = null;
+    int pos = 0;
+    while (pos < text.length() && text.charAt(pos) != '\n') {
+      int end = text.indexOf('\n', pos);
+      if (end == -1) {
+        end = text.length();
+      }
+      String header = text.substring(pos, end);
+      pos = end + 1;
+      // Continuation lines of multi-line headers (like gpgsig) start with a space. Ignore them.
+      if (header.startsWith("parent ")) {
+        parents.add(header.substring("parent ".length()));
+      } else if (header.startsWith("author ")) {
+        String identity = header.substring("author ".length());
+        int emailEnd = identity.lastIndexOf('>');
+        if (emailEnd == -1) {
+          throw new RepoException("Invalid author in commit " + sha1 + ": " + identity);
+        }
+        author = identity.substring(0, emailEnd + 1);
+        authorDate = parseDate(sha1, identity.substring(emailEnd + 1).trim());
+      }
+    }
+    if (author == null) {
+      throw new RepoException("Corrupted commit object " + sha1);
+    }
+    String message = pos + 1 <= text.length() ? text.substring(pos + 1) : "";
+    return new Commit(sha1, parents.build(), author, authorDate, message);
+  }
+
+  private static Charset charsetOf(byte[] content) {
+    // Headers are ASCII, so any charset that doesn't fail is good to find the encoding header.
+    for (String header : Splitter.on('\n').split(new String(content, ISO_8859_1))) {
+      if (header.isEmpty()) {
+        break;
+      }
+      if (header.startsWith("encoding ")) {
+        try {
+          return Charset.forName(header.substring("encoding ".length()).trim());
+        } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+          return UTF_8;
+        }
+      }
+    }
+    return UTF_8;
+  }
+
+  /**
+   * Parses the {@code <epoch seconds> <+hhmm offset>} date of an identity header.
+   */
+  private static ZonedDateTime parseDate(String sha1, String date) throws RepoException {
+    List<String> fields = Splitter.on(' ').omitEmptyStrings().splitToList(date);
+    try {
+      return ZonedDateTime.ofInstant(
+          Instant.ofEpochSecond(Long.parseLong(fields.get(0))), ZoneOffset.of(fields.get(1)));
+    } catch (IndexOutOfBoundsException | NumberFormatException | DateTimeException e) {
+      throw new RepoException("Invalid author date in commit " + sha1 + ": " + date, e);
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    broken = true;
+    try {
+      // Closing the input makes git exit.
+      requests.close();
+    } catch (IOException e) {
+      logger.log(Level.FINE, "Cannot close git cat-file input", e);
+    }
+    process.destroy();
+  }
+
+  private static final class Response {
+
+    private final String sha1;
+    private final GitObject object;
+
+    private Response(String sha1, GitObject object) {
+      this.sha1 = sha1;
+      this.object = object;
+    }
+  }
+
+  /**
+   * The parents, author and message of a commit object.
+   */
+  static final class Commit {
+
+    private final String sha1;
+    private final ImmutableList<String> parents;
+    private final String author;
+    private final ZonedDateTime authorDate;
+    private final String message;
+
+    private Commit(String sha1, ImmutableList<String> parents, String author,
+        ZonedDateTime authorDate, String message) {
+      this.sha1 = Preconditions.checkNotNull(sha1);
+      this.parents = Preconditions.checkNotNull(parents);
+      this.author = Preconditions.checkNotNull(author);
+      this.authorDate = Preconditions.checkNotNull(authorDate);
+      this.message = Preconditions.checkNotNull(message);
+    }
+
+    String getSha1() {
+      return sha1;
+    }
+
+    ImmutableList<String> getParents() {
+      return parents;
+    }
+
+    /**
+     * The author in {@code Name <email>} format, as stored in the commit.
+     */
+    String getAuthor() {
+      return author;
+    }
+
+    ZonedDateTime getAuthorDate() {
+      return authorDate;
+    }
+
+    /**
+     * The message as stored in the commit.
+     */
+    String getMessage() {
+      return message;
+    }
+  }
+}
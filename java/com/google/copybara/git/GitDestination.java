@@ -137,7 +137,14 @@ public final class GitDestination implements Destination<GitReference> {
         return null;
       }
       ImmutableSet<String> roots = destinationFiles.roots();
-      GitRepository gitRepository = cloneBaseline();
+      try (GitRepository gitRepository = cloneBaseline()) {
+        return findPreviousRef(gitRepository, roots, labelName);
+      }
+    }
+
+    @Nullable
+    private String findPreviousRef(GitRepository gitRepository, ImmutableSet<String> roots,
+        String labelName) throws RepoException {
       String commit = gitRepository.revParse("FETCH_HEAD");
       String labelPrefix = labelName + ": ";
       // Look at commits in reverse chronological order, starting from FETCH_HEAD.
@@ -261,6 +268,9 @@ public final class GitDestination implements Destination<GitReference> {
             + "'. Use " + WorkflowOptions.FIRST_MIGRATION_FLAG
             + " flag if you want to push anyway");
       }
+    } finally {
+      // The rest of the operations on the scratch repository execute git directly.
+      scratchClone.close();
     }
     return scratchClone;
   }
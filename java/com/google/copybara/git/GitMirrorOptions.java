@@ -29,4 +29,14 @@ public final class GitMirrorOptions implements Option {
   @Parameter(names = "--git-mirror-force",
       description = "Force push even if it is not fast-forward")
   boolean forcePush = false;
+
+  @Parameter(names = "--git-mirror-push-batch-size",
+      description = "Maximum number of references to push in a single git push when only the"
+          + " references that changed since the last mirror are pushed")
+  int pushBatchSize = 1000;
+
+  @Parameter(names = "--git-mirror-push-threads",
+      description = "Number of git push commands to run in parallel when the references to"
+          + " push are split in several batches")
+  int pushThreads = 1;
 }
@@ -22,6 +22,7 @@ import static com.google.copybara.config.base.SkylarkUtil.convertFromNoneable;
 
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.copybara.Core;
 import com.google.copybara.GeneralOptions;
 import com.google.copybara.Options;
@@ -105,8 +106,10 @@ public class GitModule implements OptionsAwareModule {
               doc = "Migration name"),
           @Param(name = "origin", type = String.class,
               doc = "Indicates the URL of the origin git repository"),
-          @Param(name = "destination", type = String.class,
-              doc = "Indicates the URL of the destination git repository"),
+          @Param(name = "destination", type = Object.class,
+              doc = "Indicates the URL of the destination git repository. A list of URLs can be"
+                  + " used for mirroring to several destinations. In that case the origin is"
+                  + " fetched once and the destinations are pushed concurrently."),
           @Param(name = "refspecs", type = SkylarkList.class, generic1 = String.class,
               defaultValue = "['refs/heads/*']",
               doc = "Represents a list of git refspecs to mirror between origin and destination."
@@ -120,7 +123,7 @@ public class GitModule implements OptionsAwareModule {
       objectType = GitModule.class, useLocation = true, useEnvironment = true)
   @UsesFlags(GitMirrorOptions.class)
   public static final BuiltinFunction MIRROR = new BuiltinFunction("mirror") {
-    public NoneType invoke(GitModule self, String name, String origin, String destination,
+    public NoneType invoke(GitModule self, String name, String origin, Object destination,
         SkylarkList<String> strRefSpecs, Boolean prune, Location location, Environment env)
         throws EvalException {
       GeneralOptions generalOptions = self.options.get(GeneralOptions.class);
@@ -132,12 +135,33 @@ public class GitModule implements OptionsAwareModule {
       }
       Core.getCore(env).addMigration(location, name,
           new Mirror(generalOptions, self.options.get(GitOptions.class),
-              origin, destination, refspecs,
-              self.options.get(GitMirrorOptions.class).forcePush, prune));
+              self.options.get(GitMirrorOptions.class), origin,
+              mirrorDestinations(destination, location), refspecs, prune));
       return Runtime.NONE;
     }
   };
 
+  private static ImmutableList<String> mirrorDestinations(Object destination, Location location)
+      throws EvalException {
+    if (destination instanceof String) {
+      return ImmutableList.of(checkNotEmpty((String) destination, "destination", location));
+    }
+    if (!(destination instanceof SkylarkList)) {
+      throw new EvalException(location, String.format(
+          "'destination' should be a string or a list of strings, but '%s' is of type %s",
+          destination, destination.getClass()));
+    }
+    List<String> destinations = SkylarkList.castList(
+        (SkylarkList<?>) destination, String.class, "destination");
+    if (destinations.isEmpty()) {
+      throw new EvalException(location, "'destination' cannot be an empty list");
+    }
+    if (ImmutableSet.copyOf(destinations).size() != destinations.size()) {
+      throw new EvalException(location, "Duplicated URLs in 'destination': " + destinations);
+    }
+    return ImmutableList.copyOf(destinations);
+  }
+
   @SkylarkSignature(name = "gerrit_origin", returnType = GitOrigin.class,
       doc = "Defines a Git origin of type Gerrit.",
       parameters = {
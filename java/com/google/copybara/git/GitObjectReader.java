@@ -0,0 +1,627 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.git;
+
+import com.google.common.base.Ascii;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.copybara.RepoException;
+import com.google.copybara.git.GitRepository.GitObjectType;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import javax.annotation.Nullable;
+
+/**
+ * Reads git objects directly from the object database of a repository, without executing git.
+ *
+ * <p>Supports loose objects and version 2 pack index files, including {@code OFS_DELTA} and
+ * {@code REF_DELTA} resolution. Pack and index files are memory-mapped. Alternates, version 1
+ * pack indexes and packs bigger than 2GB are not supported: the packs that cannot be read are
+ * skipped, and their objects are reported as missing, so that callers can fall back to git.
+ *
+ * <p>This class is not thread-safe.
+ */
+final class GitObjectReader implements Closeable {
+
+  private static final Logger logger = Logger.getLogger(GitObjectReader.class.getName());
+
+  private static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
+
+  private static final int IDX_V2_MAGIC = 0xff744f63;
+  private static final int PACK_MAGIC = 0x5041434b; // 'PACK'
+
+  private static final int OBJ_COMMIT = 1;
+  private static final int OBJ_TREE = 2;
+  private static final int OBJ_BLOB = 3;
+  private static final int OBJ_TAG = 4;
+  private static final int OBJ_OFS_DELTA = 6;
+  private static final int OBJ_REF_DELTA = 7;
+
+  private final Path objectsDir;
+  private final List<Pack> packs = new ArrayList<>();
+  /** The packs that cannot be read, so that we don't try them again. */
+  private final Set<String> unsupportedPacks = new HashSet<>();
+  private final Inflater inflater = new Inflater();
+  private final byte[] inflaterInput = new byte[8192];
+  private final byte[] inflaterOverflow = new byte[1];
+
+  private GitObjectReader(Path objectsDir) {
+    this.objectsDir = Preconditions.checkNotNull(objectsDir);
+  }
+
+  /**
+   * Creates a reader for the object database of {@code gitDir}.
+   */
+  static GitObjectReader open(Path gitDir) throws RepoException {
+    GitObjectReader reader = new GitObjectReader(gitDir.resolve("objects"));
+    reader.scanPacks();
+    return reader;
+  }
+
+  /**
+   * Reads the object identified by the complete SHA-1 {@code sha1}.
+   *
+   * @throws CannotFindReferenceException if the object is not present in the repository
+   */
+  GitObject read(String sha1) throws RepoException {
+    Preconditions.checkArgument(sha1.length() == 40, "Not a complete SHA-1: %s", sha1);
+    byte[] id = HEX.decode(sha1);
+    try {
+      GitObject object = readLoose(sha1);
+      if (object != null) {
+        return object;
+      }
+      object = readPacked(id);
+      if (object != null) {
+        return object;
+      }
+      // The repository might have been repacked or fetched since we listed the packs.
+      scanPacks();
+      object = readPacked(id);
+      if (object != null) {
+        return object;
+      }
+    } catch (IOException | DataFormatException e) {
+      throw new RepoException("Cannot read git object " + sha1 + " from " + objectsDir, e);
+    }
+    throw new CannotFindReferenceException("Cannot find object '" + sha1 + "'");
+  }
+
+  /**
+   * Reads the tree object {@code sha1} and returns its entries in the stored order.
+   */
+  ImmutableList<TreeEntry> readTree(String sha1) throws RepoException {
+    return parseTree(sha1, read(sha1));
+  }
+
+  /**
+   * Returns the entries of the directory {@code path} of {@code sha1}, a commit, tag or tree. This
+   * is the tree that git names {@code <sha1>:<path>}. {@code path} is empty for the root
+   * directory.
+   *
+   * @return the entries in the stored order, or null if {@code path} doesn't exist or is not a
+   *     directory
+   */
+  @Nullable
+  ImmutableList<TreeEntry> readDirectory(String sha1, String path) throws RepoException {
+    String tree = sha1;
+    GitObject object = read(sha1);
+    while (object.getType() != GitObjectType.TREE) {
+      if (object.getType() == GitObjectType.COMMIT) {
+        tree = header(tree, object, "tree");
+      } else if (object.getType() == GitObjectType.TAG) {
+        tree = header(tree, object, "object");
+      } else {
+        return null;
+      }
+      object = read(tree);
+    }
+    ImmutableList<TreeEntry> entries = parseTree(tree, object);
+    if (path.isEmpty()) {
+      return entries;
+    }
+    for (String name : Splitter.on('/').split(path)) {
+      TreeEntry directory = null;
+      for (TreeEntry entry : entries) {
+        if (entry.getName().equals(name) && entry.getType() == GitObjectType.TREE) {
+          directory = entry;
+          break;
+        }
+      }
+      if (directory == null) {
+        return null;
+      }
+      entries = readTree(directory.getSha1());
+    }
+    return entries;
+  }
+
+  /**
+   * Returns the value of the header {@code name} of a commit or tag object.
+   */
+  private static String header(String sha1, GitObject object, String name)
+      throws RepoException {
+    String prefix = name + " ";
+    for (String line : Splitter.on('\n').split(
+        new String(object.getContent(), StandardCharsets.UTF_8))) {
+      if (line.isEmpty()) {
+        break;
+      }
+      if (line.startsWith(prefix)) {
+        return line.substring(prefix.length());
+      }
+    }
+    throw new RepoException("Cannot find '" + name + "' header in " + sha1);
+  }
+
+  /**
+   * Parses the entries of the tree {@code object} identified by {@code sha1}.
+   */
+  static ImmutableList<TreeEntry> parseTree(String sha1, GitObject object) throws RepoException {
+    if (object.getType() != GitObjectType.TREE) {
+      throw new RepoException(sha1 + " is not a tree but a " + object.getType());
+    }
+    ImmutableList.Builder<TreeEntry> result = ImmutableList.builder();
+    byte[] content = object.getContent();
+    int pos = 0;
+    while (pos < content.length) {
+      int space = indexOf(content, (byte) ' ', pos);
+      int nul = indexOf(content, (byte) 0, space);
+      if (space == -1 || nul == -1 || nul + 21 > content.length) {
+        throw new RepoException("Corrupted tree object " + sha1);
+      }
+      String mode = new String(content, pos, space - pos, StandardCharsets.US_ASCII);
+      String name = new String(content, space + 1, nul - space - 1, StandardCharsets.UTF_8);
+      String entrySha1 = HEX.encode(content, nul + 1, 20);
+      result.add(new TreeEntry(mode, name, entrySha1));
+      pos = nul + 21;
+    }
+    return result.build();
+  }
+
+  /**
+   * Releases the native resources used for decompression.
+   */
+  @Override
+  public void close() {
+    inflater.end();
+  }
+
+  private static int indexOf(byte[] content, byte value, int from) {
+    if (from == -1) {
+      return -1;
+    }
+    for (int i = from; i < content.length; i++) {
+      if (content[i] == value) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private void scanPacks() throws RepoException {
+    Path packDir = objectsDir.resolve("pack");
+    if (!Files.isDirectory(packDir)) {
+      return;
+    }
+    Set<String> known = new HashSet<>(unsupportedPacks);
+    for (Pack pack : packs) {
+      known.add(pack.name);
+    }
+    try (DirectoryStream<Path> idxFiles = Files.newDirectoryStream(packDir, "*.idx")) {
+      for (Path idx : idxFiles) {
+        String name = idx.getFileName().toString();
+        name = name.substring(0, name.length() - ".idx".length());
+        Path packFile = packDir.resolve(name + ".pack");
+        if (known.contains(name) || !Files.exists(packFile)) {
+          continue;
+        }
+        try {
+          packs.add(new Pack(name, map(idx), map(packFile)));
+        } catch (IOException e) {
+          logger.log(Level.WARNING, "Skipping pack " + name + " of " + objectsDir, e);
+          unsupportedPacks.add(name);
+        }
+      }
+    } catch (IOException e) {
+      throw new RepoException("Cannot read pack files from " + packDir, e);
+    }
+  }
+
+  private static MappedByteBuffer map(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Files bigger than 2GB are not supported: " + file);
+      }
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+  }
+
+  private GitObject readLoose(String sha1) throws IOException {
+    Path file = objectsDir.resolve(sha1.substring(0, 2)).resolve(sha1.substring(2));
+    byte[] raw;
+    try (InputStream in = new InflaterInputStream(Files.newInputStream(file))) {
+      raw = ByteStreams.toByteArray(in);
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+    // Loose objects are stored as '<type> <size>\0<content>'
+    int space = indexOf(raw, (byte) ' ', 0);
+    int nul = indexOf(raw, (byte) 0, space);
+    if (space == -1 || nul == -1) {
+      throw new IOException("Corrupted loose object " + file);
+    }
+    GitObjectType type = GitObjectType.valueOf(
+        Ascii.toUpperCase(new String(raw, 0, space, StandardCharsets.US_ASCII)));
+    int size = Integer.parseInt(new String(raw, space + 1, nul - space - 1,
+        StandardCharsets.US_ASCII));
+    if (raw.length - nul - 1 != size) {
+      throw new IOException("Unexpected size for loose object " + file);
+    }
+    return new GitObject(type, Arrays.copyOfRange(raw, nul + 1, raw.length));
+  }
+
+  private GitObject readPacked(byte[] id) throws IOException, DataFormatException {
+    for (Pack pack : packs) {
+      long offset = pack.find(id);
+      if (offset != -1) {
+        return readPackEntry(pack, offset);
+      }
+    }
+    return null;
+  }
+
+  private GitObject readPackEntry(Pack pack, long offset) throws IOException, DataFormatException {
+    ByteBuffer data = pack.data;
+    int pos = Math.toIntExact(offset);
+    int c = data.get(pos++) & 0xff;
+    int type = (c >> 4) & 7;
+    long size = c & 0x0f;
+    int shift = 4;
+    while ((c & 0x80) != 0) {
+      c = data.get(pos++) & 0xff;
+      size |= (long) (c & 0x7f) << shift;
+      shift += 7;
+    }
+    switch (type) {
+      case OBJ_COMMIT:
+        return new GitObject(GitObjectType.COMMIT, inflate(data, pos, size));
+      case OBJ_TREE:
+        return new GitObject(GitObjectType.TREE, inflate(data, pos, size));
+      case OBJ_BLOB:
+        return new GitObject(GitObjectType.BLOB, inflate(data, pos, size));
+      case OBJ_TAG:
+        return new GitObject(GitObjectType.TAG, inflate(data, pos, size));
+      case OBJ_OFS_DELTA: {
+        c = data.get(pos++) & 0xff;
+        long baseDistance = c & 0x7f;
+        while ((c & 0x80) != 0) {
+          c = data.get(pos++) & 0xff;
+          baseDistance = ((baseDistance + 1) << 7) | (c & 0x7f);
+        }
+        GitObject base = readPackEntry(pack, offset - baseDistance);
+        return new GitObject(base.getType(), applyDelta(base.getContent(),
+            inflate(data, pos, size)));
+      }
+      case OBJ_REF_DELTA: {
+        byte[] baseId = new byte[20];
+        for (int i = 0; i < 20; i++) {
+          baseId[i] = data.get(pos++);
+        }
+        long baseOffset = pack.find(baseId);
+        GitObject base = baseOffset != -1
+            ? readPackEntry(pack, baseOffset)
+            : readRefDeltaBaseOutsidePack(baseId);
+        return new GitObject(base.getType(), applyDelta(base.getContent(),
+            inflate(data, pos, size)));
+      }
+      default:
+        throw new IOException(String.format("Unknown object type %d at offset %d in %s",
+            type, offset, pack.name));
+    }
+  }
+
+  private GitObject readRefDeltaBaseOutsidePack(byte[] baseId)
+      throws IOException, DataFormatException {
+    String sha1 = HEX.encode(baseId);
+    GitObject base = readLoose(sha1);
+    if (base == null) {
+      base = readPacked(baseId);
+    }
+    if (base == null) {
+      throw new IOException("Cannot find delta base " + sha1);
+    }
+    return base;
+  }
+
+  private byte[] inflate(ByteBuffer data, int pos, long size)
+      throws IOException, DataFormatException {
+    if (size > Integer.MAX_VALUE) {
+      throw new IOException("Objects bigger than 2GB are not supported");
+    }
+    byte[] result = new byte[(int) size];
+    inflater.reset();
+    int written = 0;
+    while (!inflater.finished()) {
+      if (inflater.needsInput()) {
+        int len = Math.min(inflaterInput.length, data.limit() - pos);
+        if (len <= 0) {
+          throw new IOException("Unexpected end of pack data");
+        }
+        for (int i = 0; i < len; i++) {
+          inflaterInput[i] = data.get(pos + i);
+        }
+        pos += len;
+        inflater.setInput(inflaterInput, 0, len);
+      }
+      if (written < result.length) {
+        written += inflater.inflate(result, written, result.length - written);
+      } else if (inflater.inflate(inflaterOverflow) != 0) {
+        // We have all the expected bytes. Only the end of the zlib stream should remain.
+        throw new IOException("Inflated data is bigger than the expected " + size + " bytes");
+      }
+      if (inflater.needsDictionary()) {
+        throw new IOException("Unexpected deflate dictionary in pack data");
+      }
+    }
+    if (written != size) {
+      throw new IOException("Unexpected inflated size. Expected " + size + " but got " + written);
+    }
+    return result;
+  }
+
+  /**
+   * Applies a git delta (as stored in OFS_DELTA and REF_DELTA entries) to {@code base}.
+   */
+  static byte[] applyDelta(byte[] base, byte[] delta) throws IOException {
+    int[] pos = {0};
+    long baseSize = readDeltaSize(delta, pos);
+    if (baseSize != base.length) {
+      throw new IOException("Delta base size mismatch: " + baseSize + " vs " + base.length);
+    }
+    long resultSize = readDeltaSize(delta, pos);
+    if (resultSize > Integer.MAX_VALUE) {
+      throw new IOException("Objects bigger than 2GB are not supported");
+    }
+    byte[] result = new byte[(int) resultSize];
+    int out = 0;
+    int i = pos[0];
+    while (i < delta.length) {
+      int op = delta[i++] & 0xff;
+      if ((op & 0x80) != 0) {
+        // Copy from base: the bits 0-3 say which offset bytes are present, 4-6 the size bytes.
+        int copyOffset = 0;
+        int copySize = 0;
+        for (int bit = 0; bit < 4; bit++) {
+          if ((op & (1 << bit)) != 0) {
+            copyOffset |= (delta[i++] & 0xff) << (8 * bit);
+          }
+        }
+        for (int bit = 0; bit < 3; bit++) {
+          if ((op & (0x10 << bit)) != 0) {
+            copySize |= (delta[i++] & 0xff) << (8 * bit);
+          }
+        }
+        if (copySize == 0) {
+          copySize = 0x10000;
+        }
+        if (copyOffset < 0 || copyOffset + copySize > base.length
+            || out + copySize > result.length) {
+          throw new IOException("Invalid delta copy instruction");
+        }
+        System.arraycopy(base, copyOffset, result, out, copySize);
+        out += copySize;
+      } else if (op != 0) {
+        // Insert the next 'op' bytes of the delta.
+        if (i + op > delta.length || out + op > result.length) {
+          throw new IOException("Invalid delta insert instruction");
+        }
+        System.arraycopy(delta, i, result, out, op);
+        i += op;
+        out += op;
+      } else {
+        throw new IOException("Invalid delta instruction 0");
+      }
+    }
+    if (out != result.length) {
+      throw new IOException("Delta result size mismatch: " + out + " vs " + result.length);
+    }
+    return result;
+  }
+
+  private static long readDeltaSize(byte[] delta, int[] pos) {
+    long size = 0;
+    int shift = 0;
+    int c;
+    do {
+      c = delta[pos[0]++] & 0xff;
+      size |= (long) (c & 0x7f) << shift;
+      shift += 7;
+    } while ((c & 0x80) != 0);
+    return size;
+  }
+
+  /**
+   * A pack file together with its (version 2) index.
+   */
+  private static final class Pack {
+
+    private final String name;
+    private final ByteBuffer idx;
+    private final ByteBuffer data;
+    private final int count;
+    private final int shaTable;
+    private final int offsetTable;
+    private final int largeOffsetTable;
+
+    private Pack(String name, ByteBuffer idx, ByteBuffer data) throws IOException {
+      this.name = name;
+      this.idx = idx;
+      this.data = data;
+      if (idx.getInt(0) != IDX_V2_MAGIC || idx.getInt(4) != 2) {
+        throw new IOException("Unsupported pack index version for " + name);
+      }
+      if (data.getInt(0) != PACK_MAGIC) {
+        throw new IOException("Invalid pack file " + name);
+      }
+      int fanout = 8;
+      count = idx.getInt(fanout + 255 * 4);
+      shaTable = fanout + 256 * 4;
+      // The CRC32 table is between the SHA-1 table and the offset table.
+      offsetTable = shaTable + count * 20 + count * 4;
+      largeOffsetTable = offsetTable + count * 4;
+    }
+
+    /**
+     * Returns the offset in the pack file of the object {@code id} or -1 if it is not present.
+     */
+    private long find(byte[] id) {
+      int first = id[0] & 0xff;
+      int low = first == 0 ? 0 : idx.getInt(8 + (first - 1) * 4);
+      int high = idx.getInt(8 + first * 4) - 1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        int cmp = compareSha(mid, id);
+        if (cmp < 0) {
+          low = mid + 1;
+        } else if (cmp > 0) {
+          high = mid - 1;
+        } else {
+          int offset = idx.getInt(offsetTable + mid * 4);
+          if ((offset & 0x80000000) == 0) {
+            return offset;
+          }
+          return idx.getLong(largeOffsetTable + (offset & 0x7fffffff) * 8);
+        }
+      }
+      return -1;
+    }
+
+    private int compareSha(int index, byte[] id) {
+      int base = shaTable + index * 20;
+      for (int i = 0; i < 20; i++) {
+        int cmp = (idx.get(base + i) & 0xff) - (id[i] & 0xff);
+        if (cmp != 0) {
+          return cmp;
+        }
+      }
+      return 0;
+    }
+  }
+
+  /**
+   * The type and uncompressed content of a git object.
+   */
+  static final class GitObject {
+
+    private final GitObjectType type;
+    private final byte[] content;
+
+    GitObject(GitObjectType type, byte[] content) {
+      this.type = Preconditions.checkNotNull(type);
+      this.content = Preconditions.checkNotNull(content);
+    }
+
+    GitObjectType getType() {
+      return type;
+    }
+
+    byte[] getContent() {
+      return content;
+    }
+
+    @Override
+    public String toString() {
+      return MoreObjects.toStringHelper(this)
+          .add("type", type)
+          .add("size", content.length)
+          .toString();
+    }
+  }
+
+  /**
+   * An entry of a tree object.
+   */
+  static final class TreeEntry {
+
+    private final String mode;
+    private final String name;
+    private final String sha1;
+
+    TreeEntry(String mode, String name, String sha1) {
+      this.mode = Preconditions.checkNotNull(mode);
+      this.name = Preconditions.checkNotNull(name);
+      this.sha1 = Preconditions.checkNotNull(sha1);
+    }
+
+    String getMode() {
+      return mode;
+    }
+
+    String getName() {
+      return name;
+    }
+
+    String getSha1() {
+      return sha1;
+    }
+
+    GitObjectType getType() {
+      switch (mode) {
+        case "40000":
+          return GitObjectType.TREE;
+        case "160000":
+          return GitObjectType.COMMIT;
+        default:
+          return GitObjectType.BLOB;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return MoreObjects.toStringHelper(this)
+          .add("mode", mode)
+          .add("name", name)
+          .add("sha1", sha1)
+          .toString();
+    }
+  }
+}
@@ -38,6 +38,13 @@ public final class GitOptions implements Option {
           + " after the checkout.", hidden = true)
   String originCheckoutHook = null;
 
+  @Parameter(names = "--git-read-objects-in-process",
+      description = "Read the git trees and commits needed by git.origin in-process instead of"
+          + " with git. The objects that cannot be read in-process are read with git."
+          + " Experimental.",
+      hidden = true)
+  boolean readObjectsInProcess = false;
+
   public GitOptions(String homeDir) {
     this.repoStorage = homeDir + "/.copybara/repos";
   }
@@ -22,6 +22,7 @@ import com.google.common.base.MoreObjects;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 import com.google.copybara.authoring.Authoring;
 import com.google.copybara.Change;
@@ -43,7 +44,11 @@ import com.google.devtools.build.lib.shell.CommandException;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.annotation.Nullable;
 
 /**
@@ -60,6 +65,12 @@ public final class GitOrigin implements Origin<GitReference> {
     RECURSIVE
   }
   static final String GIT_LOG_COMMENT_PREFIX = "    ";
+
+  /**
+   * Number of changes read with a single git invocation when visiting the history.
+   */
+  private static final int VISIT_CHANGES_PAGE_SIZE = 50;
+
   private final GitRepository repository;
 
   /**
@@ -79,11 +90,19 @@ public final class GitOrigin implements Origin<GitReference> {
   @Nullable
   private final Map<String, String> environment;
   private final SubmoduleStrategy submoduleStrategy;
+  private final GeneralOptions generalOptions;
 
-  private GitOrigin(Console console, GitRepository repository, String repoUrl,
+  /**
+   * Repositories of the submodules, by url. Like {@link #repository}, they keep their git
+   * processes until the command finishes.
+   */
+  private final Map<String, GitRepository> submoduleRepositories = new ConcurrentHashMap<>();
+
+  private GitOrigin(GeneralOptions generalOptions, GitRepository repository, String repoUrl,
       @Nullable String configRef, GitRepoType repoType, GitOptions gitOptions, boolean verbose,
       @Nullable Map<String, String> environment, SubmoduleStrategy submoduleStrategy) {
-    this.console = checkNotNull(console);
+    this.generalOptions = checkNotNull(generalOptions);
+    this.console = generalOptions.console();
     this.repository = checkNotNull(repository);
     // Remove a possible trailing '/' so that the url is normalized.
     this.repoUrl = repoUrl.endsWith("/") ? repoUrl.substring(0, repoUrl.length() - 1) : repoUrl;
@@ -129,6 +148,9 @@ public final class GitOrigin implements Origin<GitReference> {
       if (submoduleStrategy == SubmoduleStrategy.NO) {
         return;
       }
+      // Submodules that share a repository are fetched together, and their commits are resolved
+      // in a single batch.
+      Map<String, Map<Submodule, String>> commitsByUrl = new LinkedHashMap<>();
       for (Submodule submodule : repo.listSubmodules(currentRemoteUrl)) {
         ImmutableList<TreeElement> elements = repo.lsTree(ref, submodule.getPath());
         if (elements.size() != 1) {
@@ -138,25 +160,41 @@ public final class GitOrigin implements Origin<GitReference> {
         }
         TreeElement element = Iterables.getOnlyElement(elements);
         Preconditions.checkArgument(element.getPath().equals(submodule.getPath()));
+        commitsByUrl.computeIfAbsent(submodule.getUrl(), url -> new LinkedHashMap<>())
+            .put(submodule, element.getRef());
+      }
 
-        GitRepository subRepo = GitRepository.bareRepoInCache(
-            submodule.getUrl(), environment, verbose, gitOptions.repoStorage);
+      for (Map.Entry<String, Map<Submodule, String>> entry : commitsByUrl.entrySet()) {
+        GitRepository subRepo = submoduleRepositories.computeIfAbsent(entry.getKey(),
+            url -> cachedRepository(generalOptions, url, environment, gitOptions));
         subRepo.initGitDir();
-        subRepo.fetchSingleRef(submodule.getUrl(), submodule.getBranch());
-        GitReference submoduleRef = subRepo.resolveReference(element.getRef());
-
-        Path subdir = workdir.resolve(submodule.getPath());
-        try {
-          Files.createDirectories(workdir.resolve(submodule.getPath()));
-        } catch (IOException e) {
-          throw new RepoException(String.format(
-              "Cannot create subdirectory %s for submodule: %s", subdir, submodule));
+        Set<String> branches = new LinkedHashSet<>();
+        for (Submodule submodule : entry.getValue().keySet()) {
+          branches.add(submodule.getBranch());
+        }
+        for (String branch : branches) {
+          subRepo.fetchSingleRef(entry.getKey(), branch);
+        }
+        ImmutableMap<String, String> commits = subRepo.revParse(entry.getValue().values());
+
+        for (Map.Entry<Submodule, String> submoduleCommit : entry.getValue().entrySet()) {
+          Submodule submodule = submoduleCommit.getKey();
+          GitReference submoduleRef =
+              subRepo.createReferenceFromCompleteSha1(commits.get(submoduleCommit.getValue()));
+
+          Path subdir = workdir.resolve(submodule.getPath());
+          try {
+            Files.createDirectories(workdir.resolve(submodule.getPath()));
+          } catch (IOException e) {
+            throw new RepoException(String.format(
+                "Cannot create subdirectory %s for submodule: %s", subdir, submodule));
+          }
+
+          checkoutRepo(subRepo, submodule.getUrl(), subdir,
+              submoduleStrategy == SubmoduleStrategy.RECURSIVE
+                  ? SubmoduleStrategy.RECURSIVE
+                  : SubmoduleStrategy.NO, submoduleRef);
         }
-
-        checkoutRepo(subRepo, submodule.getUrl(), subdir,
-            submoduleStrategy == SubmoduleStrategy.RECURSIVE
-                ? SubmoduleStrategy.RECURSIVE
-                : SubmoduleStrategy.NO, submoduleRef);
       }
     }
 
@@ -188,24 +226,30 @@ public final class GitOrigin implements Origin<GitReference> {
     @Override
     public void visitChanges(GitReference start, ChangesVisitor visitor)
         throws RepoException {
+      // Read the first-parent history in pages instead of one 'git log' invocation per change.
       ChangeReader queryChanges =
           ChangeReader.Builder.forOrigin(authoring, repository, console)
               .setVerbose(verbose)
-              .setLimit(1)
+              .setLimit(VISIT_CHANGES_PAGE_SIZE)
               .build();
 
       ImmutableList<GitChange> result = queryChanges.run(start.asString());
       if (result.isEmpty()) {
         throw new CannotFindReferenceException("Cannot find reference " + start.asString());
       }
-      GitChange current = Iterables.getOnlyElement(result);
-      while (current != null) {
-        if (visitor.visit(current.getChange()) == VisitResult.TERMINATE
-            || current.getParents().isEmpty()) {
-          break;
+      while (true) {
+        // ChangeReader returns the older change first.
+        GitChange current = null;
+        for (GitChange change : result.reverse()) {
+          current = change;
+          if (visitor.visit(current.getChange()) == VisitResult.TERMINATE) {
+            return;
+          }
+        }
+        if (current == null || current.getParents().isEmpty()) {
+          return;
         }
-        current =
-            Iterables.getOnlyElement(queryChanges.run(current.getParents().get(0).asString()));
+        result = queryChanges.run(current.getParents().get(0).asString());
       }
     }
   }
@@ -273,6 +317,18 @@ public final class GitOrigin implements Origin<GitReference> {
         .toString();
   }
 
+  /**
+   * Returns the repository in the cache for {@code url}. Its git processes are stopped when the
+   * command finishes.
+   */
+  private static GitRepository cachedRepository(GeneralOptions generalOptions, String url,
+      Map<String, String> environment, GitOptions gitOptions) {
+    GitRepository repository = GitRepository.bareRepoInCache(
+        url, environment, generalOptions.isVerbose(), gitOptions.repoStorage);
+    return generalOptions.closeOnExit(
+        gitOptions.readObjectsInProcess ? repository.withInProcessObjectReader() : repository);
+  }
+
   /**
    * Builds a new {@link GitOrigin}.
    */
@@ -280,11 +336,11 @@ public final class GitOrigin implements Origin<GitReference> {
       Map<String, String> environment, SubmoduleStrategy submoduleStrategy) {
 
     GitOptions gitConfig = options.get(GitOptions.class);
-    boolean verbose = options.get(GeneralOptions.class).isVerbose();
+    GeneralOptions generalOptions = options.get(GeneralOptions.class);
 
     return new GitOrigin(
-        options.get(GeneralOptions.class).console(),
-        GitRepository.bareRepoInCache(url, environment, verbose, gitConfig.repoStorage),
-        url, ref, type, options.get(GitOptions.class), verbose, environment, submoduleStrategy);
+        generalOptions,
+        cachedRepository(generalOptions, url, environment, gitConfig),
+        url, ref, type, gitConfig, generalOptions.isVerbose(), environment, submoduleStrategy);
   }
 }
@@ -33,6 +33,9 @@ import com.google.common.collect.Range;
 import com.google.common.net.PercentEscaper;
 import com.google.copybara.EmptyChangeException;
 import com.google.copybara.RepoException;
+import com.google.copybara.git.GitCatFileSession.Commit;
+import com.google.copybara.git.GitObjectReader.GitObject;
+import com.google.copybara.git.GitObjectReader.TreeEntry;
 import com.google.copybara.util.BadExitStatusWithOutputException;
 import com.google.copybara.util.CommandOutput;
 import com.google.copybara.util.CommandOutputWithStatus;
@@ -43,22 +46,34 @@ import com.google.devtools.build.lib.shell.CommandException;
 import com.google.devtools.build.lib.syntax.EvalException;
 import com.google.re2j.Matcher;
 import com.google.re2j.Pattern;
+import java.io.Closeable;
 import java.io.IOException;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
 import javax.annotation.CheckReturnValue;
 import javax.annotation.Nullable;
 
 /**
  * A class for manipulating Git repositories
+ *
+ * <p>Some reads are done with a long running {@code git cat-file} process. Users should
+ * {@link #close()} the repository when they are done with it, so that the process doesn't outlive
+ * them.
  */
-public class GitRepository {
+public class GitRepository implements Closeable {
+
+  private static final Logger logger = Logger.getLogger(GitRepository.class.getName());
 
   private static final java.util.regex.Pattern SPACES = java.util.regex.Pattern.compile("( |\t)+");
 
@@ -68,6 +83,7 @@ public class GitRepository {
       "([0-9]{6}) (commit|tag|tree|blob) ([a-f0-9]{40})\t(.*)");
 
   private static final Pattern SHA1_PATTERN = Pattern.compile("[a-f0-9]{7,40}");
+  private static final Pattern COMPLETE_SHA1_PATTERN = Pattern.compile("[a-f0-9]{40}");
 
   private static final Pattern FAILED_REBASE = Pattern.compile("Failed to merge in the changes");
   private static final ImmutableList<Pattern> REF_NOT_FOUND_ERRORS =
@@ -75,7 +91,8 @@ public class GitRepository {
           Pattern.compile("pathspec '(.+)' did not match any file"),
           Pattern.compile(
               "ambiguous argument '(.+)': unknown revision or path not in the working tree"),
-          Pattern.compile("fatal: Couldn't find remote ref ([^\n]+)\n"));
+          Pattern.compile("fatal: Couldn't find remote ref ([^\n]+)\n"),
+          Pattern.compile("fatal: bad revision '(.+)'"));
 
   /**
    * Label to be used for marking the original revision id (Git SHA-1) for migrated commits.
@@ -100,12 +117,48 @@ public class GitRepository {
   private final boolean verbose;
   private final Map<String, String> environment;
 
+  /**
+   * The {@code git cat-file --batch} session used for reading objects, started on first use. It
+   * is shared with the instances created by {@link #withWorkTree(Path)}, since they use the same
+   * git directory.
+   */
+  private final AtomicReference<GitCatFileSession> catFileSession;
+
+  /**
+   * Whether the trees and commits are read with {@link #objectReader} instead of the
+   * {@code git cat-file} session. See {@link #withInProcessObjectReader()}.
+   */
+  private final boolean readObjectsInProcess;
+
+  /**
+   * The in-process object reader, opened on first use. Shared like {@link #catFileSession}.
+   */
+  private final AtomicReference<GitObjectReader> objectReader;
+
+  /**
+   * Whether the git configuration has a mailmap or a log output encoding, read on first use.
+   * Shared like {@link #catFileSession}.
+   */
+  private final AtomicReference<Boolean> logConfigured;
+
   GitRepository(
       Path gitDir, @Nullable Path workTree, boolean verbose, Map<String, String> environment) {
+    this(gitDir, workTree, verbose, environment, new AtomicReference<>(),
+        /*readObjectsInProcess=*/false, new AtomicReference<>(), new AtomicReference<>());
+  }
+
+  private GitRepository(Path gitDir, @Nullable Path workTree, boolean verbose,
+      Map<String, String> environment, AtomicReference<GitCatFileSession> catFileSession,
+      boolean readObjectsInProcess, AtomicReference<GitObjectReader> objectReader,
+      AtomicReference<Boolean> logConfigured) {
     this.gitDir = Preconditions.checkNotNull(gitDir);
     this.workTree = workTree;
     this.verbose = verbose;
     this.environment = Preconditions.checkNotNull(environment);
+    this.catFileSession = Preconditions.checkNotNull(catFileSession);
+    this.readObjectsInProcess = readObjectsInProcess;
+    this.objectReader = Preconditions.checkNotNull(objectReader);
+    this.logConfigured = Preconditions.checkNotNull(logConfigured);
   }
 
   public static GitRepository bareRepo(Path gitDir, Map<String, String> environment,
@@ -210,7 +263,8 @@ public class GitRepository {
    * @param refspecs a set refspecs in the form of 'foo' for branches, 'refs/some/ref' or
    * 'refs/foo/bar:refs/bar/foo'.
    * @return the set of fetched references and what action was done ( rejected, new reference,
-   * updated, etc.)
+   * updated, etc.). Only the local references that match the destination of the refspecs are
+   * inspected, so refspecs without a local destination return an empty result.
    */
   FetchResult fetch(String url, boolean prune, boolean force, Iterable<String> refspecs)
       throws RepoException {
@@ -233,12 +287,54 @@ public class GitRepository {
       args.add(ref);
     }
 
-    ImmutableMap<String, GitReference> before = showRef();
+    // Only look at the local references that the fetch can modify. For example fetchSingleRef
+    // only updates FETCH_HEAD, so there is no need to list all the references of the repository.
+    ImmutableSet<String> refPatterns = fetchedLocalRefPatterns(refspecs);
+    ImmutableMap<String, GitReference> before = refsMatching(refPatterns);
     git(getCwd(), addGitDirAndWorkTreeParams(args));
-    ImmutableMap<String, GitReference> after = showRef();
+    ImmutableMap<String, GitReference> after = refsMatching(refPatterns);
     return new FetchResult(before, after);
   }
 
+  /**
+   * Returns the {@code for-each-ref} patterns that cover all the local references that a fetch
+   * of {@code refspecs} could create, update or delete, or {@code null} if we cannot restrict the
+   * set of references.
+   */
+  @Nullable
+  @VisibleForTesting
+  static ImmutableSet<String> fetchedLocalRefPatterns(Iterable<String> refspecs) {
+    ImmutableSet.Builder<String> result = ImmutableSet.builder();
+    for (String refspec : refspecs) {
+      int colon = refspec.indexOf(':');
+      // Refspecs without a local destination only update FETCH_HEAD.
+      if (colon == -1 || colon == refspec.length() - 1) {
+        continue;
+      }
+      String destination = refspec.substring(colon + 1);
+      if (!destination.startsWith("refs/")) {
+        // Git would expand the short name to a full reference. Play safe and list everything.
+        return null;
+      }
+      int wildcard = destination.indexOf('*');
+      if (wildcard != -1) {
+        // for-each-ref matches patterns as prefixes up to a slash. 'refs/heads/foo-*' is
+        // converted to 'refs/heads', that is a superset of the references that can be updated.
+        destination = destination.substring(0, destination.lastIndexOf('/', wildcard));
+      }
+      result.add(destination);
+    }
+    return result.build();
+  }
+
+  private ImmutableMap<String, GitReference> refsMatching(@Nullable ImmutableSet<String> patterns)
+      throws RepoException {
+    if (patterns == null) {
+      return showRef();
+    }
+    return patterns.isEmpty() ? ImmutableMap.of() : forEachRef(patterns);
+  }
+
   // TODO(team): Use JGit URIish.java
   static String validateUrl(String url) throws RepoException {
     if (!FULL_URI.matcher(url).matches()) {
@@ -248,37 +344,192 @@ public class GitRepository {
   }
 
   /**
-   * Execute show-ref git command in the local repository and returns a map from reference name to
-   * GitReference(SHA-1).
+   * Returns a map from reference name to GitReference(SHA-1) for all the references in the local
+   * repository.
    */
   ImmutableMap<String, GitReference> showRef() throws RepoException {
+    return forEachRef(ImmutableList.of());
+  }
+
+  /**
+   * Execute for-each-ref git command in the local repository and returns a map from reference name
+   * to GitReference(SHA-1) for the references matching {@code patterns}.
+   *
+   * <p>Patterns are the ones accepted by {@code git for-each-ref}: a reference prefix like
+   * 'refs/heads' or a glob like 'refs/tags/v1.*'. An empty list returns all the references. This
+   * allows to query many references with a single git invocation.
+   */
+  ImmutableMap<String, GitReference> forEachRef(Iterable<String> patterns) throws RepoException {
     ImmutableMap.Builder<String, GitReference> result = ImmutableMap.builder();
-    CommandOutput commandOutput = gitAllowNonZeroExit(ImmutableList.of("show-ref"));
+    List<String> args = Lists.newArrayList("for-each-ref", "--format=%(objectname) %(refname)");
+    Iterables.addAll(args, patterns);
+    CommandOutput commandOutput = gitAllowNonZeroExit(args);
 
     if (!commandOutput.getStderr().isEmpty()) {
       throw new RepoException(String.format(
-          "Error executing show-ref on %s git repo:\n%s", getGitDir(), commandOutput.getStderr()));
+          "Error executing for-each-ref on %s git repo:\n%s", getGitDir(),
+          commandOutput.getStderr()));
     }
 
     for (String line : Splitter.on('\n').split(commandOutput.getStdout())) {
       if (line.isEmpty()) {
         continue;
       }
-      List<String> strings = Splitter.on(' ').splitToList(line);
-      Preconditions.checkState(strings.size() == 2
-          && SHA1_PATTERN.matcher(strings.get(0)).matches(), "Cannot parse line: '%s'", line);
+      int space = line.indexOf(' ');
+      Preconditions.checkState(space != -1
+          && SHA1_PATTERN.matcher(line.substring(0, space)).matches(),
+          "Cannot parse line: '%s'", line);
       // Ref -> SHA1
-      result.put(strings.get(1), new GitReference(this, strings.get(0)));
+      result.put(line.substring(space + 1), new GitReference(this, line.substring(0, space)));
     }
     return result.build();
   }
 
+  /**
+   * Lists the references of the remote repository {@code url} and returns a map from reference
+   * name to SHA-1. The peeled entries of annotated tags ({@code refs/tags/foo^{}}) are not
+   * included.
+   */
+  ImmutableMap<String, String> lsRemote(String url) throws RepoException {
+    ImmutableMap.Builder<String, String> result = ImmutableMap.builder();
+    for (String line : Splitter.on('\n').omitEmptyStrings()
+        .split(simpleCommand("ls-remote", url).getStdout())) {
+      int tab = line.indexOf('\t');
+      Preconditions.checkState(tab != -1
+          && SHA1_PATTERN.matcher(line.substring(0, tab)).matches(),
+          "Cannot parse line: '%s'", line);
+      String ref = line.substring(tab + 1);
+      if (!ref.endsWith("^{}")) {
+        result.put(ref, line.substring(0, tab));
+      }
+    }
+    return result.build();
+  }
+
+  /**
+   * Creates a reader that accesses the objects of this repository in-process, without executing
+   * git. The caller is responsible of closing it.
+   */
+  GitObjectReader newObjectReader() throws RepoException {
+    return GitObjectReader.open(gitDir);
+  }
+
   /**
    * Returns an instance equivalent to this one but with a different work tree. This does not
    * initialize or alter the given work tree.
    */
   public GitRepository withWorkTree(Path newWorkTree) {
-    return new GitRepository(this.gitDir, newWorkTree, this.verbose, this.environment);
+    return new GitRepository(this.gitDir, newWorkTree, this.verbose, this.environment,
+        this.catFileSession, this.readObjectsInProcess, this.objectReader, this.logConfigured);
+  }
+
+  /**
+   * Returns an instance equivalent to this one but that reads trees and commits in-process with a
+   * {@link GitObjectReader}, instead of with git. The objects that the reader doesn't support are
+   * read with git.
+   */
+  GitRepository withInProcessObjectReader() {
+    return new GitRepository(this.gitDir, this.workTree, this.verbose, this.environment,
+        this.catFileSession, /*readObjectsInProcess=*/true, this.objectReader,
+        this.logConfigured);
+  }
+
+  /**
+   * Returns the {@code git cat-file --batch} session of this repository, starting it if it is not
+   * running. Returns null if the git directory is not initialized yet.
+   *
+   * <p>The session is stopped by {@link #close()}.
+   */
+  @Nullable
+  GitCatFileSession catFileSession() throws RepoException {
+    synchronized (catFileSession) {
+      GitCatFileSession session = catFileSession.get();
+      if (session != null && session.isAlive()) {
+        return session;
+      }
+      if (session != null) {
+        session.close();
+        catFileSession.set(null);
+      }
+      if (!Files.isDirectory(gitDir.resolve("objects"))) {
+        return null;
+      }
+      session = GitCatFileSession.start(resolveGitBinary(environment), gitDir, environment);
+      catFileSession.set(session);
+      return session;
+    }
+  }
+
+  /**
+   * Stops the {@code git cat-file --batch} session of this repository and of the instances
+   * created by {@link #withWorkTree(Path)}, if it is running, and closes the in-process object
+   * reader.
+   *
+   * <p>The repository can still be used after closing it. A new session is started if needed.
+   */
+  @Override
+  public void close() {
+    synchronized (catFileSession) {
+      GitCatFileSession session = catFileSession.getAndSet(null);
+      if (session != null) {
+        session.close();
+      }
+    }
+    synchronized (objectReader) {
+      GitObjectReader reader = objectReader.getAndSet(null);
+      if (reader != null) {
+        reader.close();
+      }
+    }
+  }
+
+  /**
+   * Returns true if {@code git log} could show authors or messages that are different from the
+   * ones stored in the commits, because there is a mailmap or a log output encoding.
+   */
+  boolean logRewritesCommits(GitCatFileSession session) throws RepoException {
+    if (workTree != null && Files.exists(workTree.resolve(".mailmap"))) {
+      return true;
+    }
+    try {
+      // The default mailmap of bare repositories.
+      session.resolve("HEAD:.mailmap");
+      return true;
+    } catch (CannotFindReferenceException e) {
+      // No mailmap in HEAD
+    }
+    synchronized (logConfigured) {
+      if (logConfigured.get() == null) {
+        CommandOutputWithStatus out = gitAllowNonZeroExit(ImmutableList.of("config",
+            "--get-regexp", "^(mailmap\\.|log\\.mailmap$|i18n\\.logoutputencoding$)"));
+        if (!out.getTerminationStatus().success()
+            && (out.getTerminationStatus().getExitCode() != 1 || !out.getStderr().isEmpty())) {
+          throw new RepoException("Error executing git config:\n" + out.getStderr());
+        }
+        logConfigured.set(!out.getStdout().trim().isEmpty());
+      }
+      return logConfigured.get();
+    }
+  }
+
+  @VisibleForTesting
+  boolean isCatFileSessionRunning() {
+    synchronized (catFileSession) {
+      GitCatFileSession session = catFileSession.get();
+      return session != null && session.isAlive();
+    }
+  }
+
+  /**
+   * Returns true if {@code revision} can be resolved with the {@code git cat-file} session:
+   * revisions that name a single object, and that git wouldn't parse as a flag.
+   */
+  static boolean isSingleObjectRevision(String revision) {
+    return !revision.isEmpty()
+        && !revision.startsWith("-")
+        && !revision.startsWith("^")
+        && !revision.contains("..")
+        && revision.indexOf('\n') == -1;
   }
 
   /**
@@ -377,10 +628,68 @@ public class GitRepository {
    * Resolves a git reference to the SHA-1 reference
    */
   public String revParse(String ref) throws RepoException {
+    if (COMPLETE_SHA1_PATTERN.matcher(ref).matches()) {
+      // Like rev-parse, we don't check that the object exists.
+      return ref;
+    }
+    GitCatFileSession session = isSingleObjectRevision(ref) ? catFileSession() : null;
+    if (session != null) {
+      return session.resolve(ref);
+    }
     // Runs rev-parse on the reference and remove the extra newline from the output.
     return simpleCommand("rev-parse", ref).getStdout().trim();
   }
 
+  /**
+   * Resolves several git references to their SHA-1 with a single git invocation. If the
+   * {@code git cat-file} session of the repository can be used, the references are sent to it in
+   * batches and no new process is started.
+   *
+   * @return a map from the requested reference to its SHA-1, in the same order as {@code refs}
+   * @throws CannotFindReferenceException if any of the references cannot be resolved
+   */
+  public ImmutableMap<String, String> revParse(Iterable<String> refs) throws RepoException {
+    ImmutableList<String> uniqueRefs = ImmutableSet.copyOf(refs).asList();
+    if (uniqueRefs.isEmpty()) {
+      return ImmutableMap.of();
+    }
+    GitCatFileSession session = Iterables.all(uniqueRefs, GitRepository::isSingleObjectRevision)
+        ? catFileSession()
+        : null;
+    if (session != null) {
+      // Like rev-parse, we don't check that complete SHA-1s exist.
+      List<String> toResolve = uniqueRefs.stream()
+          .filter(ref -> !COMPLETE_SHA1_PATTERN.matcher(ref).matches())
+          .collect(Collectors.toList());
+      Iterator<String> resolved = session.resolveAll(toResolve).iterator();
+      ImmutableMap.Builder<String, String> result = ImmutableMap.builder();
+      for (String ref : uniqueRefs) {
+        result.put(ref, COMPLETE_SHA1_PATTERN.matcher(ref).matches() ? ref : resolved.next());
+      }
+      return result.build();
+    }
+    List<String> args = new ArrayList<>(uniqueRefs.size() + 2);
+    args.add("rev-parse");
+    args.addAll(uniqueRefs);
+    // Avoid ambiguity between references and paths in the work tree.
+    args.add("--");
+    List<String> sha1s = Splitter.on('\n').omitEmptyStrings()
+        .splitToList(git(getCwd(), addGitDirAndWorkTreeParams(args)).getStdout());
+    // rev-parse echoes '--' at the end when it is used as separator.
+    if (!sha1s.isEmpty() && sha1s.get(sha1s.size() - 1).equals("--")) {
+      sha1s = sha1s.subList(0, sha1s.size() - 1);
+    }
+    if (sha1s.size() != uniqueRefs.size()) {
+      throw new RepoException(String.format(
+          "Unexpected output for rev-parse of %s: %s", uniqueRefs, sha1s));
+    }
+    ImmutableMap.Builder<String, String> result = ImmutableMap.builder();
+    for (int i = 0; i < uniqueRefs.size(); i++) {
+      result.put(uniqueRefs.get(i), sha1s.get(i));
+    }
+    return result.build();
+  }
+
   public void rebase(String newBaseline) throws RepoException {
     CommandOutputWithStatus output = gitAllowNonZeroExit(
         ImmutableList.of("rebase", Preconditions.checkNotNull(newBaseline)));
@@ -456,6 +765,10 @@ public class GitRepository {
   }
 
   ImmutableList<TreeElement> lsTree(GitReference reference, String treeish) throws RepoException {
+    GitCatFileSession session = isPlainPath(treeish) ? catFileSession() : null;
+    if (session != null) {
+      return lsTreePath(session, reference, treeish);
+    }
     ImmutableList.Builder<TreeElement> result = ImmutableList.builder();
     String stdout = simpleCommand("ls-tree", reference.asString(), treeish).getStdout();
     for (String line : Splitter.on('\n').split(stdout)) {
@@ -478,6 +791,108 @@ public class GitRepository {
     return result.build();
   }
 
+  private static boolean isPlainPath(String path) {
+    if (path.isEmpty() || path.indexOf('\n') != -1) {
+      return false;
+    }
+    for (String segment : Splitter.on('/').split(path)) {
+      if (segment.isEmpty() || segment.equals(".") || segment.equals("..")
+          || segment.contains("*") || segment.contains("?") || segment.contains("[")) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Equivalent to {@code git ls-tree <reference> <path>} for a path without a trailing slash, that
+   * lists only the entry at {@code path}, using the {@code git cat-file} session for resolving
+   * the reference and reading the parent tree.
+   */
+  private ImmutableList<TreeElement> lsTreePath(GitCatFileSession session,
+      GitReference reference, String path) throws RepoException {
+    // Fails like ls-tree if the reference doesn't exist.
+    String commit = session.resolve(reference.asString());
+    int slash = path.lastIndexOf('/');
+    String parent = slash == -1 ? "" : path.substring(0, slash);
+    String name = path.substring(slash + 1);
+    for (TreeEntry entry : readDirectory(session, commit, parent)) {
+      if (entry.getName().equals(name)) {
+        return ImmutableList.of(new TreeElement(entry.getType(), entry.getSha1(), path));
+      }
+    }
+    return ImmutableList.of();
+  }
+
+  /**
+   * Returns the entries of the directory {@code path} of {@code commit}, or an empty list if it
+   * doesn't exist or is not a directory. {@code path} is empty for the root directory.
+   */
+  private ImmutableList<TreeEntry> readDirectory(GitCatFileSession session, String commit,
+      String path) throws RepoException {
+    if (readObjectsInProcess) {
+      try {
+        ImmutableList<TreeEntry> entries = readDirectoryInProcess(commit, path);
+        return entries == null ? ImmutableList.of() : entries;
+      } catch (RepoException e) {
+        logger.log(Level.INFO, String.format(
+            "Cannot read '%s' of %s in-process. Reading it with git.", path, commit), e);
+      }
+    }
+    String treeish = path.isEmpty() ? commit + "^{tree}" : commit + ":" + path;
+    GitObject tree;
+    try {
+      tree = session.read(treeish);
+    } catch (CannotFindReferenceException e) {
+      // ls-tree doesn't fail for paths that don't exist.
+      return ImmutableList.of();
+    }
+    if (tree.getType() != GitObjectType.TREE) {
+      return ImmutableList.of();
+    }
+    return GitObjectReader.parseTree(treeish, tree);
+  }
+
+  @Nullable
+  private ImmutableList<TreeEntry> readDirectoryInProcess(String commit, String path)
+      throws RepoException {
+    synchronized (objectReader) {
+      return inProcessObjectReader().readDirectory(commit, path);
+    }
+  }
+
+  /**
+   * Reads the commit {@code revision} with the {@code git cat-file} session, or with the
+   * in-process object reader if it is enabled and {@code revision} is a complete SHA-1.
+   */
+  Commit readCommit(GitCatFileSession session, String revision) throws RepoException {
+    if (readObjectsInProcess && COMPLETE_SHA1_PATTERN.matcher(revision).matches()) {
+      try {
+        GitObject object;
+        synchronized (objectReader) {
+          object = inProcessObjectReader().read(revision);
+        }
+        // Tags are peeled by the session.
+        if (object.getType() == GitObjectType.COMMIT) {
+          return GitCatFileSession.parseCommit(revision, object.getContent());
+        }
+      } catch (RepoException e) {
+        logger.log(Level.INFO, String.format(
+            "Cannot read commit %s in-process. Reading it with git.", revision), e);
+      }
+    }
+    return session.readCommit(revision);
+  }
+
+  private GitObjectReader inProcessObjectReader() throws RepoException {
+    GitObjectReader reader = objectReader.get();
+    if (reader == null) {
+      reader = GitObjectReader.open(gitDir);
+      objectReader.set(reader);
+    }
+    return reader;
+  }
+
   private String siblingUrl(String currentRemoteUrl, String submoduleName, String relativeUrl)
       throws RepoException {
     int idx = currentRemoteUrl.lastIndexOf('/');
@@ -16,65 +16,216 @@
 
 package com.google.copybara.git;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import com.beust.jcommander.internal.Lists;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Iterables;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.net.PercentEscaper;
 import com.google.copybara.GeneralOptions;
 import com.google.copybara.Migration;
 import com.google.copybara.RepoException;
 import com.google.copybara.ValidationException;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import javax.annotation.Nullable;
 
 /**
  * Mirror one or more refspects between git repositories.
+ *
+ * <p>The origin is fetched once and then pushed to all the destinations concurrently. A failure
+ * pushing to one destination doesn't stop the pushes to the rest of destinations.
+ *
+ * <p>After a successful push, a fingerprint of the mirrored references is stored in the local
+ * cache repository. If the next run starts from the same references and the references of the
+ * destination still match them, the destination is known to be in sync and only the references
+ * that the fetch created, updated or deleted are pushed. Otherwise all the refspecs are pushed,
+ * so changes done to the destination by others are repaired.
  */
 public class Mirror implements Migration {
 
+  private static final String MIRROR_STATE_DIR = "copybara_mirror";
+  private static final PercentEscaper PERCENT_ESCAPER = new PercentEscaper(
+      "-_", /*plusForSpace=*/ true);
+
   private final GeneralOptions generalOptions;
   private final GitOptions gitOptions;
+  private final GitMirrorOptions mirrorOptions;
   private final String origin;
-  private final String destination;
+  private final ImmutableList<String> destinations;
   private final List<Refspec> refspec;
-  private final boolean forcePush;
   private final boolean prune;
 
-  Mirror(GeneralOptions generalOptions, GitOptions gitOptions, String origin, String destination,
-      List<Refspec> refspec, boolean forcePush, boolean prune) {
+  Mirror(GeneralOptions generalOptions, GitOptions gitOptions, GitMirrorOptions mirrorOptions,
+      String origin, List<String> destinations, List<Refspec> refspec, boolean prune) {
     this.generalOptions = Preconditions.checkNotNull(generalOptions);
     this.gitOptions = Preconditions.checkNotNull(gitOptions);
+    this.mirrorOptions = Preconditions.checkNotNull(mirrorOptions);
     this.origin = Preconditions.checkNotNull(origin);
-    this.destination = Preconditions.checkNotNull(destination);
+    this.destinations = ImmutableList.copyOf(destinations);
+    Preconditions.checkArgument(!this.destinations.isEmpty(), "No destinations");
     this.refspec = Preconditions.checkNotNull(refspec);
-    this.forcePush = forcePush;
     this.prune = prune;
   }
 
   @Override
   public void run(Path workdir, @Nullable String sourceRef)
       throws RepoException, IOException, ValidationException {
-    GitRepository repo = GitRepository.bareRepoInCache(origin, generalOptions.getEnvironment(),
-        generalOptions.isVerbose(), gitOptions.repoStorage);
+    try (GitRepository repo = GitRepository.bareRepoInCache(origin,
+        generalOptions.getEnvironment(), generalOptions.isVerbose(), gitOptions.repoStorage)) {
+      fetchAndPush(repo);
+    }
+  }
+
+  private void fetchAndPush(GitRepository repo) throws RepoException, IOException {
     repo.initGitDir();
     List<String> fetchRefspecs = refspec.stream()
         .map(r -> r.getOrigin() + ":" + r.getOrigin())
         .collect(Collectors.toList());
 
+    ImmutableMap<String, GitReference> before = mirroredRefs(repo, fetchRefspecs);
+    String beforeFingerprint = before == null ? null : fingerprint(before);
+    // Destinations that are known to be in sync with the local references before fetching.
+    ImmutableMap.Builder<String, Boolean> inSyncBuilder = ImmutableMap.builder();
+    for (String destination : destinations) {
+      Path stateFile = stateFile(repo, destination);
+      inSyncBuilder.put(destination, beforeFingerprint != null && Files.exists(stateFile)
+          && new String(Files.readAllBytes(stateFile), UTF_8).equals(beforeFingerprint));
+    }
+    ImmutableMap<String, Boolean> inSync = inSyncBuilder.build();
+
     generalOptions.console().progress("Fetching from " + origin);
 
-    repo.fetch(origin, /*prune=*/true, /*force=*/true, fetchRefspecs);
+    FetchResult fetchResult = repo.fetch(origin, /*prune=*/true, /*force=*/true, fetchRefspecs);
+
+    ImmutableMap<String, GitReference> after = mirroredRefs(repo, fetchRefspecs);
+    String afterFingerprint = after == null ? null : fingerprint(after);
+
+    if (destinations.size() == 1) {
+      mirror(repo, Iterables.getOnlyElement(destinations), before, inSync, fetchResult,
+          afterFingerprint);
+      return;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(destinations.size());
+    Map<String, Future<Void>> results = new LinkedHashMap<>();
+    try {
+      for (String destination : destinations) {
+        results.put(destination, executor.submit(() -> {
+          mirror(repo, destination, before, inSync, fetchResult, afterFingerprint);
+          return null;
+        }));
+      }
+      Map<String, Throwable> failed = new LinkedHashMap<>();
+      for (Map.Entry<String, Future<Void>> result : results.entrySet()) {
+        try {
+          result.getValue().get();
+          generalOptions.console().info("Mirrored " + origin + " to " + result.getKey());
+        } catch (ExecutionException e) {
+          failed.put(result.getKey(), e.getCause());
+          generalOptions.console().error(
+              "Failed to mirror " + origin + " to " + result.getKey() + ": "
+                  + e.getCause().getMessage());
+        }
+      }
+      if (!failed.isEmpty()) {
+        throw new RepoException(String.format("Failed to mirror %s to %d of %d destinations: %s",
+            origin, failed.size(), destinations.size(), failed.keySet()),
+            Iterables.getFirst(failed.values(), null));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RepoException("Interrupted while mirroring " + origin, e);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Pushes the fetched references to one destination and records its state if the push succeeds.
+   */
+  private void mirror(GitRepository repo, String destination,
+      @Nullable ImmutableMap<String, GitReference> before, ImmutableMap<String, Boolean> inSync,
+      FetchResult fetchResult, @Nullable String afterFingerprint)
+      throws RepoException, IOException {
+    Path stateFile = stateFile(repo, destination);
+    // If the push fails we don't know the state of the destination anymore.
+    Files.deleteIfExists(stateFile);
+    if (inSync.get(destination) && destinationMatches(repo, destination, before)) {
+      pushChanged(repo, destination, fetchResult);
+    } else {
+      pushAll(repo, destination);
+    }
+
+    if (afterFingerprint != null) {
+      Files.createDirectories(stateFile.getParent());
+      Files.write(stateFile, afterFingerprint.getBytes(UTF_8));
+    }
+  }
+
+  /**
+   * Returns true if the references of {@code destination} are the ones that mirroring
+   * {@code refs} creates. This detects the references that others changed in the destination
+   * since the last push.
+   */
+  private boolean destinationMatches(GitRepository repo, String destination,
+      ImmutableMap<String, GitReference> refs) throws RepoException {
+    Map<String, String> expected = new HashMap<>();
+    for (Map.Entry<String, GitReference> ref : refs.entrySet()) {
+      for (Refspec r : refspec) {
+        if (r.matchesOrigin(ref.getKey())) {
+          expected.put(r.convert(ref.getKey()), ref.getValue().asString());
+        }
+      }
+    }
+    Map<String, String> actual = new HashMap<>();
+    for (Map.Entry<String, String> ref : repo.lsRemote(destination).entrySet()) {
+      if (refspec.stream().anyMatch(r -> r.matchesDestination(ref.getKey()))) {
+        actual.put(ref.getKey(), ref.getValue());
+      }
+    }
+    if (!prune) {
+      // Pushing all the refspecs wouldn't delete the extra references either
+      actual.keySet().retainAll(expected.keySet());
+    }
+    if (!actual.equals(expected)) {
+      generalOptions.console().info("References of " + destination
+          + " changed since the last mirror. Pushing all the references.");
+      return false;
+    }
+    return true;
+  }
+
+  private static Path stateFile(GitRepository repo, String destination) {
+    return repo.getGitDir().resolve(MIRROR_STATE_DIR)
+        .resolve(PERCENT_ESCAPER.escape(destination));
+  }
 
+  private void pushAll(GitRepository repo, String destination) throws RepoException {
     List<String> pushRefspecs = refspec.stream()
         .map(r ->
             // Add '+' if we can force the push + origin/local repo refspec location + ':'
             // + remote refspec location.
             // For example in 'refs/foo:refs/bar' refspec with force push we would use
             // '+refs/foo:refs/bar'
-            (r.isAllowNoFastForward() || forcePush ? "+" : "")
-                + r.getOrigin() + ":" + r.getDestination())
+            (isForce(r) ? "+" : "") + r.getOrigin() + ":" + r.getDestination())
         .collect(Collectors.toList());
 
     generalOptions.console().progress("Pushing to " + destination);
@@ -86,4 +237,136 @@ public class Mirror implements Migration {
     repo.simpleCommand(Iterables.toArray(cmd, String.class));
   }
 
+  /**
+   * Pushes only the references that were created, updated or deleted (if prune is enabled) by the
+   * last fetch.
+   */
+  private void pushChanged(GitRepository repo, String destination, FetchResult fetchResult)
+      throws RepoException {
+    List<String> pushRefspecs = new ArrayList<>();
+    for (String ref : Iterables.concat(fetchResult.getInserted().keySet(),
+        fetchResult.getUpdated().keySet())) {
+      for (Refspec r : refspec) {
+        if (r.matchesOrigin(ref)) {
+          pushRefspecs.add((isForce(r) ? "+" : "") + ref + ":" + r.convert(ref));
+        }
+      }
+    }
+    if (prune) {
+      for (String ref : fetchResult.getDeleted().keySet()) {
+        for (Refspec r : refspec) {
+          if (r.matchesOrigin(ref)) {
+            pushRefspecs.add(":" + r.convert(ref));
+          }
+        }
+      }
+    }
+    if (pushRefspecs.isEmpty()) {
+      generalOptions.console().info("No references changed in " + origin
+          + ". Skipping push to " + destination);
+      return;
+    }
+    generalOptions.console().progress(
+        String.format("Pushing %d changed references to %s", pushRefspecs.size(), destination));
+
+    List<List<String>> batches = ImmutableList.copyOf(
+        Iterables.partition(pushRefspecs, Math.max(1, mirrorOptions.pushBatchSize)));
+    if (batches.size() == 1 || mirrorOptions.pushThreads <= 1) {
+      for (List<String> batch : batches) {
+        push(repo, destination, batch);
+      }
+      return;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(
+        Math.min(mirrorOptions.pushThreads, batches.size()));
+    try {
+      List<Future<Void>> results = new ArrayList<>();
+      for (List<String> batch : batches) {
+        results.add(executor.submit(() -> {
+          push(repo, destination, batch);
+          return null;
+        }));
+      }
+      for (Future<Void> result : results) {
+        result.get();
+      }
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), RepoException.class);
+      throw new RepoException("Error pushing to " + destination, e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RepoException("Interrupted while pushing to " + destination, e);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private void push(GitRepository repo, String destination, List<String> pushRefspecs)
+      throws RepoException {
+    List<String> cmd = Lists.newArrayList("push", destination);
+    cmd.addAll(pushRefspecs);
+    repo.simpleCommand(Iterables.toArray(cmd, String.class));
+  }
+
+  private boolean isForce(Refspec r) {
+    return r.isAllowNoFastForward() || mirrorOptions.forcePush;
+  }
+
+  /**
+   * Returns the local references that are mirrored, or null if we cannot list them in a reliable
+   * way (For example refspecs that don't use complete reference names).
+   */
+  @Nullable
+  private ImmutableMap<String, GitReference> mirroredRefs(GitRepository repo,
+      List<String> fetchRefspecs) throws RepoException {
+    for (Refspec r : refspec) {
+      if (!r.getOrigin().startsWith("refs/")) {
+        return null;
+      }
+    }
+    ImmutableSet<String> patterns = GitRepository.fetchedLocalRefPatterns(fetchRefspecs);
+    if (patterns == null || patterns.isEmpty()) {
+      return null;
+    }
+    if (refspec.stream().noneMatch(r -> r.getOrigin().contains("*"))) {
+      // Resolve the references in one batch. Fall back to listing them if some of them don't
+      // exist yet, like before the first fetch.
+      ImmutableMap<String, String> sha1s;
+      try {
+        sha1s = repo.revParse(refspec.stream().map(Refspec::getOrigin).collect(Collectors.toSet()));
+      } catch (CannotFindReferenceException e) {
+        sha1s = null;
+      }
+      if (sha1s != null) {
+        ImmutableMap.Builder<String, GitReference> result = ImmutableMap.builder();
+        for (Map.Entry<String, String> entry : sha1s.entrySet()) {
+          result.put(entry.getKey(), repo.createReferenceFromCompleteSha1(entry.getValue()));
+        }
+        return result.build();
+      }
+    }
+    ImmutableMap.Builder<String, GitReference> result = ImmutableMap.builder();
+    for (Map.Entry<String, GitReference> entry : repo.forEachRef(patterns).entrySet()) {
+      if (refspec.stream().anyMatch(r -> r.matchesOrigin(entry.getKey()))) {
+        result.put(entry);
+      }
+    }
+    return result.build();
+  }
+
+  /**
+   * A fingerprint of the mirrored references and the configuration that affects how they are
+   * pushed.
+   */
+  private String fingerprint(ImmutableMap<String, GitReference> refs) {
+    Hasher hasher = Hashing.sha256().newHasher();
+    for (Refspec r : refspec) {
+      hasher.putString(r.getOrigin() + ":" + r.getDestination() + "\n", UTF_8);
+    }
+    hasher.putBoolean(prune);
+    for (String ref : ImmutableSortedSet.copyOf(refs.keySet())) {
+      hasher.putString(refs.get(ref).asString() + " " + ref + "\n", UTF_8);
+    }
+    return hasher.hash().toString();
+  }
 }
@@ -51,6 +51,31 @@ public class Refspec {
     return allowNoFastForward;
   }
 
+  /**
+   * Returns true if {@code ref} is matched by the origin part of the refspec.
+   */
+  boolean matchesOrigin(String ref) {
+    return matches(origin, ref);
+  }
+
+  /**
+   * Returns true if {@code ref} is matched by the destination part of the refspec.
+   */
+  boolean matchesDestination(String ref) {
+    return matches(destination, ref);
+  }
+
+  private static boolean matches(String pattern, String ref) {
+    int wildcard = pattern.indexOf('*');
+    if (wildcard == -1) {
+      return ref.equals(pattern);
+    }
+    String prefix = pattern.substring(0, wildcard);
+    String suffix = pattern.substring(wildcard + 1);
+    return ref.length() > prefix.length() + suffix.length()
+        && ref.startsWith(prefix) && ref.endsWith(suffix);
+  }
+
   /**
    * Converts a reference from the origin to the destination reference using the refspec.
    *
@@ -33,6 +33,8 @@ import com.google.devtools.build.lib.syntax.BuiltinFunction;
 import com.google.devtools.build.lib.syntax.EvalException;
 import com.google.devtools.build.lib.syntax.SkylarkList;
 import com.google.devtools.build.lib.syntax.Type;
+import java.io.IOException;
+import java.util.stream.Collectors;
 
 /**
  * Skylark module that provides a basic transform to apply patchfiles.
@@ -75,8 +77,15 @@ public class PatchModule implements LabelsAwareModule, OptionsAwareModule {
       for (String patch : Type.STRING_LIST.convert(patches, "patches")) {
         builder.add(self.resolve(patch, location));
       }
-      return new PatchTransformation(
-          builder.build(), self.generalOptions, /*reverse=*/ false);
+      ImmutableList<ConfigFile<?>> patchFiles = builder.build();
+      try {
+        // The patches are parsed now, so that they are read only once per config
+        return new PatchTransformation(patchFiles, self.generalOptions, /*reverse=*/ false);
+      } catch (IOException e) {
+        throw new EvalException(location, "Failed to read patches: " + patchFiles.stream()
+            .map(ConfigFile::path)
+            .collect(Collectors.joining(", ")), e);
+      }
     }
   };
 
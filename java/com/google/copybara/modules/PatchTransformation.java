@@ -16,22 +16,46 @@
 
 package com.google.copybara.modules;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 import com.google.copybara.GeneralOptions;
 import com.google.copybara.TransformWork;
 import com.google.copybara.Transformation;
 import com.google.copybara.ValidationException;
 import com.google.copybara.config.ConfigFile;
 import com.google.copybara.util.DiffUtil;
+import com.google.copybara.util.FileTreeIndex;
+import com.google.copybara.util.UnifiedDiff;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.util.stream.Collectors;
 
 /**
  * Transformation for applying patch file during a workflow. Instantiated by {@link PatchModule}.
+ *
+ * <p>The patches are read and parsed when the transformation is created, that is, when the
+ * config is loaded. A patch that only modifies files excluded by the origin files of the workflow
+ * is skipped.
  */
 class PatchTransformation implements Transformation {
 
+  /**
+   * Parsed patches by content. They are shared by all the configs loaded in the process, so each
+   * patch is parsed once.
+   */
+  private static final Cache<HashCode, UnifiedDiff> PARSED_PATCHES =
+      CacheBuilder.newBuilder().softValues().build();
+
   private final ImmutableList<ConfigFile<?>> patches;
+  private final ImmutableList<byte[]> contents;
+  private final ImmutableList<UnifiedDiff> parsedPatches;
   private final boolean reverse;
   private final GeneralOptions options;
 
@@ -39,26 +63,106 @@ class PatchTransformation implements Transformation {
 
 
   PatchTransformation(
-      ImmutableList<ConfigFile<?>> patches, GeneralOptions options, boolean reverse) {
+      ImmutableList<ConfigFile<?>> patches, GeneralOptions options, boolean reverse)
+      throws IOException {
+    this.patches = patches;
+    this.reverse = reverse;
+    this.options = options;
+    ImmutableList.Builder<byte[]> contents = ImmutableList.builder();
+    ImmutableList.Builder<UnifiedDiff> parsedPatches = ImmutableList.builder();
+    for (ConfigFile<?> patch : patches) {
+      byte[] content = patch.content();
+      contents.add(content);
+      parsedPatches.add(parse(content));
+    }
+    this.contents = contents.build();
+    this.parsedPatches = parsedPatches.build();
+  }
+
+  private PatchTransformation(ImmutableList<ConfigFile<?>> patches,
+      ImmutableList<byte[]> contents, ImmutableList<UnifiedDiff> parsedPatches,
+      GeneralOptions options, boolean reverse) {
     this.patches = patches;
+    this.contents = contents;
+    this.parsedPatches = parsedPatches;
     this.reverse = reverse;
     this.options = options;
   }
 
+  private static UnifiedDiff parse(byte[] content) {
+    HashCode hash = Hashing.sha256().hashBytes(content);
+    UnifiedDiff parsed = PARSED_PATCHES.getIfPresent(hash);
+    if (parsed == null) {
+      parsed = UnifiedDiff.parse(content, SLASHES_TO_STRIP);
+      PARSED_PATCHES.put(hash, parsed);
+    }
+    return parsed;
+  }
+
   @Override
   public void transform(TransformWork work) throws IOException, ValidationException {
+    Path checkoutDir = work.getCheckoutDir();
     for (int i = 0; i < patches.size(); i++) {
       ConfigFile<?> patch = patches.get(i);
+      UnifiedDiff parsed = parsedPatches.get(i);
+      if (isExcluded(parsed, checkoutDir, work.getOriginFiles().relativeTo(checkoutDir))) {
+        work.getConsole().info(String.format(
+            "Skipping patch %d/%d: '%s'. All its files are excluded by origin_files.",
+            i, patches.size(), patch.path()));
+        continue;
+      }
       work.getConsole().info(
           String.format("Applying patch %d/%d: '%s'.", i, patches.size(), patch.path()));
-      DiffUtil.patch(
-          work.getCheckoutDir(), patch.content(), SLASHES_TO_STRIP, options.isVerbose(), reverse);
+      if (!parsed.apply(checkoutDir, reverse)) {
+        DiffUtil.gitApply(
+            checkoutDir, contents.get(i), SLASHES_TO_STRIP, options.isVerbose(), reverse);
+      }
+      updateIndex(work.getTreeIndex(), checkoutDir, parsed);
+    }
+  }
+
+  /**
+   * Returns true if the patch modifies files, but all of them were excluded from the checkout dir
+   * by the origin files. Patches for files that are missing for other reasons, like being deleted
+   * or renamed in the origin, are applied (and fail).
+   */
+  private boolean isExcluded(UnifiedDiff parsed, Path checkoutDir, PathMatcher originFiles) {
+    ImmutableSet<String> required = parsed.getRequiredPaths(reverse);
+    if (required.isEmpty()) {
+      return false;
+    }
+    for (String path : required) {
+      Path file = checkoutDir.resolve(path);
+      if (originFiles.matches(file) || Files.exists(file, LinkOption.NOFOLLOW_LINKS)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Records the files that the patch created, modified or deleted.
+   */
+  private static void updateIndex(FileTreeIndex index, Path checkoutDir, UnifiedDiff parsed) {
+    if (!parsed.isSupported()) {
+      // We don't know which files were modified.
+      index.invalidate();
+      return;
+    }
+    for (String path : parsed.getPaths()) {
+      Path file = checkoutDir.resolve(path);
+      if (Files.exists(file, LinkOption.NOFOLLOW_LINKS)) {
+        index.add(file);
+      } else {
+        index.remove(file);
+      }
     }
   }
 
   @Override
   public Transformation reverse() {
-    return new PatchTransformation(patches.reverse(), options, !reverse);
+    return new PatchTransformation(
+        patches.reverse(), contents.reverse(), parsedPatches.reverse(), options, !reverse);
   }
 
   @Override
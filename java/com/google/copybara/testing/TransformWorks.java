@@ -20,6 +20,8 @@ import com.google.copybara.Change;
 import com.google.copybara.Changes;
 import com.google.copybara.Metadata;
 import com.google.copybara.TransformWork;
+import com.google.copybara.util.FileTreeIndex;
+import com.google.copybara.util.Glob;
 import com.google.copybara.util.console.Console;
 import com.google.devtools.build.lib.syntax.SkylarkList;
 import java.nio.file.Path;
@@ -33,6 +35,14 @@ public class TransformWorks {
    * Creates an instance with reasonable defaults for testing.
    */
   public static TransformWork of(Path checkoutDir, String msg, Console console) {
+    return of(checkoutDir, msg, console, Glob.ALL_FILES);
+  }
+
+  /**
+   * Like {@link #of(Path, String, Console)}, for a workflow with {@code originFiles}.
+   */
+  public static TransformWork of(Path checkoutDir, String msg, Console console,
+      Glob originFiles) {
     return new TransformWork(checkoutDir,
         new Metadata(msg, new Author("foo", "foo@foo.com")),
         new Changes() {
@@ -46,7 +56,7 @@ public class TransformWorks {
             throw new UnsupportedOperationException();
           }
           // TODO(malcon): Pass this from test.
-        }, console);
+        }, console, new FileTreeIndex(checkoutDir), originFiles);
   }
 
 }
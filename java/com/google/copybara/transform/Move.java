@@ -23,6 +23,7 @@ import com.google.copybara.TransformWork;
 import com.google.copybara.Transformation;
 import com.google.copybara.ValidationException;
 import com.google.copybara.WorkflowOptions;
+import com.google.copybara.util.FileTreeIndex;
 import com.google.copybara.util.FileUtil;
 import com.google.copybara.util.Glob;
 import com.google.devtools.build.lib.events.Location;
@@ -32,6 +33,7 @@ import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import javax.annotation.Nullable;
 
 /**
@@ -70,6 +72,22 @@ public class Move implements Transformation {
         workflowOptions);
   }
 
+  String getBefore() {
+    return before;
+  }
+
+  String getAfter() {
+    return after;
+  }
+
+  Glob getPaths() {
+    return paths;
+  }
+
+  boolean isOverwrite() {
+    return overwrite;
+  }
+
   @Override
     public String toString() {
       return MoreObjects.toStringHelper(this)
@@ -95,7 +113,7 @@ public class Move implements Transformation {
         // files in it - this is most likely a mistake.
         new VerifyDirIsEmptyVisitor(after).walk();
       }
-      createParentDirs(after);
+      createParentDirs(after, work.getTreeIndex());
       try {
         boolean beforeIsDir = Files.isDirectory(before);
         if (paths != Glob.ALL_FILES && !beforeIsDir) {
@@ -103,9 +121,11 @@ public class Move implements Transformation {
               "Cannot use user defined 'paths' filter when the 'before' is not a directory: "
                   + paths);
         }
-        Files.walkFileTree(before,
-            new MovingVisitor(before, after, beforeIsDir ? paths.relativeTo(before) : null,
-                overwrite));
+        // Without a filter, directories can be moved with a single rename
+        PathMatcher matcher = beforeIsDir && paths != Glob.ALL_FILES
+            ? paths.relativeTo(before)
+            : null;
+        new MovingVisitor(before, after, matcher, overwrite).visit(work.getTreeIndex());
       } catch (FileAlreadyExistsException e) {
         throw new ValidationException(
             String.format("Cannot move file to '%s' because it already exists", e.getFile()));
@@ -121,9 +141,11 @@ public class Move implements Transformation {
     return new Move(after, before, paths, /*overwrite=*/false, location, workflowOptions);
   }
 
-  private void createParentDirs(Path after) throws IOException, ValidationException {
+  private void createParentDirs(Path after, FileTreeIndex treeIndex)
+      throws IOException, ValidationException {
     try {
       Files.createDirectories(after.getParent());
+      treeIndex.addDirectory(after.getParent());
     } catch (FileAlreadyExistsException e) {
       // This exception message is particularly bad and we don't want to treat it as unhandled
       throw new ValidationException(String.format(
@@ -0,0 +1,543 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.transform;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.copybara.TransformWork;
+import com.google.copybara.ValidationException;
+import com.google.copybara.util.FileTreeIndex;
+import com.google.copybara.util.Glob;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+
+/**
+ * Runs several consecutive {@link Move} transformations walking the checkout directory once.
+ *
+ * <p>The moves are first simulated over the files and directories of the checkout directory,
+ * which computes the final path of every file and the directories that exist at the end. Then
+ * each file is moved directly to its final path. A directory whose files all end up in the same
+ * new directory with the same relative paths is moved with a single rename, if the new directory
+ * doesn't exist. The resulting tree, including the empty directories, is the same as running the
+ * moves one by one.
+ *
+ * <p>If the simulation finds that a move would fail or do nothing, or that moving the files
+ * directly to their final paths could conflict, the moves are run one by one instead. That way
+ * the errors are the same as without the planner.
+ */
+final class MovePlanner {
+
+  private static final Logger logger = Logger.getLogger(MovePlanner.class.getName());
+
+  private final ImmutableList<Move> moves;
+
+  MovePlanner(List<Move> moves) {
+    this.moves = ImmutableList.copyOf(moves);
+  }
+
+  static boolean canBatch(Object transformation) {
+    return transformation instanceof Move;
+  }
+
+  String describe() {
+    List<String> descriptions = new ArrayList<>();
+    for (Move move : moves) {
+      descriptions.add(move.describe());
+    }
+    return Joiner.on(", ").join(descriptions);
+  }
+
+  void transform(TransformWork work) throws IOException, ValidationException {
+    Plan plan = Plan.read(work.getTreeIndex());
+    for (Move move : moves) {
+      if (!plan.simulate(move)) {
+        logger.info("Cannot plan the moves together because of " + move + ". Running them one by"
+            + " one.");
+        runOneByOne(work);
+        return;
+      }
+    }
+    if (!plan.apply(work.getTreeIndex())) {
+      logger.info("The planned moves conflict with each other. Running them one by one.");
+      runOneByOne(work);
+    }
+  }
+
+  private void runOneByOne(TransformWork work) throws IOException, ValidationException {
+    for (Move move : moves) {
+      move.transform(work);
+    }
+  }
+
+  /**
+   * The simulated state of the checkout directory. Paths are relative to the checkout directory,
+   * with the empty string being the checkout directory itself.
+   */
+  private static final class Plan {
+
+    private final Path checkoutDir;
+    /** The path of each file (or symlink) at the start, indexed by file id. */
+    private final List<String> originalPaths = new ArrayList<>();
+    private final Set<String> originalDirs = new TreeSet<>();
+    /** Current path to file id. */
+    private final TreeMap<String, Integer> files = new TreeMap<>();
+    private final TreeSet<String> dirs = new TreeSet<>();
+    private final Set<String> symlinks = new HashSet<>();
+
+    private Plan(Path checkoutDir) {
+      this.checkoutDir = checkoutDir;
+    }
+
+    static Plan read(FileTreeIndex index) throws IOException {
+      Plan plan = new Plan(index.getRoot());
+      plan.readDirectory(index, index.getRoot());
+      return plan;
+    }
+
+    private void readDirectory(FileTreeIndex index, Path dir) throws IOException {
+      for (Path path : index.list(dir)) {
+        String relative = checkoutDir.relativize(path).toString();
+        if (index.isDirectory(path)) {
+          originalDirs.add(relative);
+          dirs.add(relative);
+          readDirectory(index, path);
+        } else {
+          files.put(relative, originalPaths.size());
+          originalPaths.add(relative);
+          if (Files.isSymbolicLink(path)) {
+            symlinks.add(relative);
+          }
+        }
+      }
+    }
+
+    /**
+     * Applies {@code move} to the simulated state, with the same semantics as
+     * {@link Move#transform}. Returns false if the move would fail or do nothing, or if it is not
+     * supported by the planner.
+     */
+    boolean simulate(Move move) {
+      String before = move.getBefore();
+      String after = move.getAfter();
+      // Symlinks are followed when resolving 'before' and 'after'. Don't try to model that.
+      if (hasSymlink(before) || hasSymlink(after)) {
+        return false;
+      }
+      boolean beforeIsDir = before.isEmpty() || dirs.contains(before);
+      if (!beforeIsDir && !files.containsKey(before)) {
+        // No-op
+        return false;
+      }
+      if ((after.isEmpty() || dirs.contains(after)) && isUnder(after, before, /*orEqual=*/true)
+          && !filesUnder(after).isEmpty()) {
+        // Files already exist in 'after'
+        return false;
+      }
+      if (!createParents(after) || (move.getPaths() != Glob.ALL_FILES && !beforeIsDir)) {
+        return false;
+      }
+      if (!beforeIsDir) {
+        return moveFile(before, after, move.isOverwrite());
+      }
+      if (move.getPaths() == Glob.ALL_FILES) {
+        return moveTree(before, before, after, move.isOverwrite());
+      }
+      PathMatcher matcher = move.getPaths().relativeTo(checkoutDir.resolve(before));
+      for (String source : new ArrayList<>(filesUnder(before).keySet())) {
+        if (isUnder(after, before, /*orEqual=*/false)
+            && isUnder(source, after, /*orEqual=*/false)) {
+          // Like MovingVisitor, the files already in 'after' are not moved again.
+          continue;
+        }
+        if (!matcher.matches(checkoutDir.resolve(source))) {
+          continue;
+        }
+        if (!moveToDestination(source, before, after, move.isOverwrite())) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Moves the directory {@code dir} from {@code before} to {@code after} like
+     * {@link MovingVisitor} does without a paths filter: with a single rename if the destination
+     * doesn't exist, otherwise file by file.
+     */
+    private boolean moveTree(String dir, String before, String after, boolean overwrite) {
+      if (dir.equals(after)) {
+        return true;
+      }
+      String dest = resolve(after, relative(dir, before));
+      if (!dest.isEmpty() && !isUnder(dest, dir, /*orEqual=*/true) && !dirs.contains(dest)
+          && !files.containsKey(dest)) {
+        if (!createParents(dest)) {
+          return false;
+        }
+        renameDirectory(dir, dest);
+        return true;
+      }
+      for (String source : new ArrayList<>(filesUnder(dir).keySet())) {
+        if (parent(source).equals(dir)
+            && !moveToDestination(source, before, after, overwrite)) {
+          return false;
+        }
+      }
+      for (String subdir : new ArrayList<>(dirsUnder(dir))) {
+        if (parent(subdir).equals(dir) && !moveTree(subdir, before, after, overwrite)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private boolean moveToDestination(String source, String before, String after,
+        boolean overwrite) {
+      String dest = resolve(after, relative(source, before));
+      return createParents(dest) && moveFile(source, dest, overwrite);
+    }
+
+    private void renameDirectory(String dir, String dest) {
+      for (String file : new ArrayList<>(filesUnder(dir).keySet())) {
+        String newPath = resolve(dest, relative(file, dir));
+        files.put(newPath, files.remove(file));
+        if (symlinks.remove(file)) {
+          symlinks.add(newPath);
+        }
+      }
+      List<String> renamedDirs = new ArrayList<>(dirsUnder(dir));
+      renamedDirs.add(dir);
+      for (String renamed : renamedDirs) {
+        String newPath = resolve(dest, relative(renamed, dir));
+        dirs.remove(renamed);
+        dirs.add(newPath);
+      }
+    }
+
+    private boolean hasSymlink(String path) {
+      for (String current = path; !current.isEmpty(); current = parent(current)) {
+        if (symlinks.contains(current)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Creates the parent directories of {@code path}. Returns false if one of them is a file.
+     */
+    private boolean createParents(String path) {
+      List<String> parents = new ArrayList<>();
+      for (String current = parent(path); !current.isEmpty(); current = parent(current)) {
+        if (dirs.contains(current)) {
+          break;
+        }
+        if (files.containsKey(current)) {
+          return false;
+        }
+        parents.add(current);
+      }
+      dirs.addAll(parents);
+      return true;
+    }
+
+    private boolean moveFile(String source, String dest, boolean overwrite) {
+      if (dest.isEmpty() || source.equals(dest) || dirs.contains(dest) || symlinks.contains(dest)
+          || (files.containsKey(dest) && !overwrite)) {
+        return false;
+      }
+      files.remove(dest);
+      files.put(dest, files.remove(source));
+      if (symlinks.remove(source)) {
+        symlinks.add(dest);
+      }
+      return true;
+    }
+
+    private SortedMap<String, Integer> filesUnder(String dir) {
+      // '0' is the character after '/'
+      return dir.isEmpty() ? files : files.subMap(dir + "/", dir + "0");
+    }
+
+    private SortedSet<String> dirsUnder(String dir) {
+      return dir.isEmpty() ? dirs : dirs.subSet(dir + "/", dir + "0");
+    }
+
+    /**
+     * Moves the files to their final paths. Returns false, without modifying anything, if that
+     * cannot be done without conflicts between files that are moved.
+     */
+    boolean apply(FileTreeIndex treeIndex) throws IOException {
+      String[] finalPaths = new String[originalPaths.size()];
+      for (Map.Entry<String, Integer> entry : files.entrySet()) {
+        finalPaths[entry.getValue()] = entry.getKey();
+      }
+      // Paths of the original files that are moved to another path. Overwritten files are
+      // deleted before moving anything, so their paths are free.
+      Set<String> movedAway = new HashSet<>();
+      for (int id = 0; id < finalPaths.length; id++) {
+        if (finalPaths[id] != null && !originalPaths.get(id).equals(finalPaths[id])) {
+          movedAway.add(originalPaths.get(id));
+        }
+      }
+      // Files are moved in any order, so a file or a directory cannot take the path of a file
+      // that is moved away.
+      if (!Collections.disjoint(dirs, movedAway)) {
+        return false;
+      }
+      // Directories that don't exist at the end, because the moves renamed them. They are deleted
+      // once they are empty, which allows files to take their paths.
+      List<String> removedDirs = new ArrayList<>();
+      for (String dir : originalDirs) {
+        if (!dirs.contains(dir)) {
+          removedDirs.add(dir);
+        }
+      }
+      Set<String> removedDirSet = new HashSet<>(removedDirs);
+      for (int id = 0; id < finalPaths.length; id++) {
+        if (finalPaths[id] == null || originalPaths.get(id).equals(finalPaths[id])) {
+          continue;
+        }
+        if (movedAway.contains(finalPaths[id])) {
+          return false;
+        }
+        if (removedDirSet.contains(finalPaths[id])
+            && isUnderAny(originalPaths.get(id), removedDirSet)) {
+          return false;
+        }
+      }
+
+      for (int id = 0; id < finalPaths.length; id++) {
+        if (finalPaths[id] == null) {
+          Path overwritten = checkoutDir.resolve(originalPaths.get(id));
+          Files.delete(overwritten);
+          treeIndex.remove(overwritten);
+        }
+      }
+      boolean[] moved = new boolean[finalPaths.length];
+      for (Map.Entry<String, String> rename : directoryRenames(finalPaths).entrySet()) {
+        Path source = checkoutDir.resolve(rename.getKey());
+        Path dest = checkoutDir.resolve(rename.getValue());
+        Files.createDirectories(dest.getParent());
+        Files.move(source, dest, LinkOption.NOFOLLOW_LINKS);
+        treeIndex.moveDirectory(source, dest);
+        for (int id : filesUnder(rename.getKey(), finalPaths)) {
+          moved[id] = true;
+        }
+      }
+      // The files that take the path of a removed directory are moved after deleting it.
+      moveFiles(finalPaths, moved, /*toRemovedDirs=*/false, removedDirSet, treeIndex);
+      removedDirs.sort((a, b) -> Integer.compare(depth(b), depth(a)));
+      for (String dir : removedDirs) {
+        Files.deleteIfExists(checkoutDir.resolve(dir));
+        treeIndex.removeDirectory(checkoutDir.resolve(dir));
+      }
+      moveFiles(finalPaths, moved, /*toRemovedDirs=*/true, removedDirSet, treeIndex);
+      // Move creates directories even if nothing is moved into them, like the parent of 'after'.
+      for (String dir : dirs) {
+        Files.createDirectories(checkoutDir.resolve(dir));
+        treeIndex.addDirectory(checkoutDir.resolve(dir));
+      }
+      return true;
+    }
+
+    private void moveFiles(String[] finalPaths, boolean[] moved, boolean toRemovedDirs,
+        Set<String> removedDirs, FileTreeIndex treeIndex) throws IOException {
+      for (int id = 0; id < finalPaths.length; id++) {
+        if (moved[id] || finalPaths[id] == null
+            || finalPaths[id].equals(originalPaths.get(id))
+            || removedDirs.contains(finalPaths[id]) != toRemovedDirs) {
+          continue;
+        }
+        Path source = checkoutDir.resolve(originalPaths.get(id));
+        Path dest = checkoutDir.resolve(finalPaths[id]);
+        Files.createDirectories(dest.getParent());
+        Files.move(source, dest, LinkOption.NOFOLLOW_LINKS);
+        treeIndex.move(source, dest);
+        moved[id] = true;
+      }
+    }
+
+    private static boolean isUnderAny(String path, Set<String> dirs) {
+      for (String current = parent(path); !current.isEmpty(); current = parent(current)) {
+        if (dirs.contains(current)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private List<Integer> filesUnder(String dir, String[] finalPaths) {
+      List<Integer> result = new ArrayList<>();
+      for (int id = 0; id < finalPaths.length; id++) {
+        if (isUnder(originalPaths.get(id), dir, /*orEqual=*/false)) {
+          result.add(id);
+        }
+      }
+      return result;
+    }
+
+    /**
+     * Returns the original directories that can be moved with a single rename, with the new path
+     * of each one, sorted by new path so that parent directories are created first.
+     *
+     * <p>A directory can be renamed if all the files under it end up in the same new directory
+     * with the same relative paths, it doesn't contain empty directories, and the new directory
+     * didn't exist.
+     */
+    private Map<String, String> directoryRenames(String[] finalPaths) {
+      // The new path of each directory, or null if its files don't move together.
+      Map<String, String> targets = new HashMap<>();
+      Set<String> invalid = new HashSet<>();
+      for (int id = 0; id < finalPaths.length; id++) {
+        String original = originalPaths.get(id);
+        String finalPath = finalPaths[id];
+        String target = finalPath != null && name(finalPath).equals(name(original))
+            ? parent(finalPath)
+            : null;
+        mergeTarget(parent(original), target, targets, invalid);
+      }
+      List<String> deepestFirst = new ArrayList<>(originalDirs);
+      deepestFirst.sort((a, b) -> Integer.compare(depth(b), depth(a)));
+      for (String dir : deepestFirst) {
+        String target = invalid.contains(dir) ? null : targets.get(dir);
+        // A directory without files (directly or in subdirectories) is invalid too
+        if (target == null) {
+          invalid.add(dir);
+        }
+        mergeTarget(parent(dir),
+            target != null && name(target).equals(name(dir)) ? parent(target) : null,
+            targets, invalid);
+      }
+
+      Set<String> originalFiles = new HashSet<>(originalPaths);
+      List<String> chosen = new ArrayList<>();
+      List<String> topFirst = new ArrayList<>(deepestFirst);
+      Collections.reverse(topFirst);
+      for (String dir : topFirst) {
+        String target = targets.get(dir);
+        if (invalid.contains(dir) || target.equals(dir) || target.isEmpty()
+            || originalDirs.contains(target) || originalFiles.contains(target)
+            || isUnder(target, dir, /*orEqual=*/false) || isUnder(dir, target, /*orEqual=*/false)) {
+          continue;
+        }
+        boolean underChosen = false;
+        for (String other : chosen) {
+          if (isUnder(dir, other, /*orEqual=*/false)) {
+            underChosen = true;
+            break;
+          }
+        }
+        if (!underChosen) {
+          chosen.add(dir);
+        }
+      }
+      TreeMap<String, String> result = new TreeMap<>();
+      for (String dir : chosen) {
+        String target = targets.get(dir);
+        boolean conflicts = false;
+        for (String other : chosen) {
+          // The new directory must not exist when it is renamed. Nested renames could create it.
+          if (!other.equals(dir) && (isUnder(target, other, /*orEqual=*/true)
+              || isUnder(target, targets.get(other), /*orEqual=*/true)
+              || isUnder(targets.get(other), target, /*orEqual=*/true))) {
+            conflicts = true;
+            break;
+          }
+        }
+        if (!conflicts) {
+          result.put(target, dir);
+        }
+      }
+      // Sort by target, key by source.
+      Map<String, String> renames = new LinkedHashMap<>();
+      for (Map.Entry<String, String> entry : result.entrySet()) {
+        renames.put(entry.getValue(), entry.getKey());
+      }
+      return renames;
+    }
+
+    private static void mergeTarget(String dir, String target, Map<String, String> targets,
+        Set<String> invalid) {
+      if (target == null) {
+        invalid.add(dir);
+        return;
+      }
+      String previous = targets.putIfAbsent(dir, target);
+      if (previous != null && !previous.equals(target)) {
+        invalid.add(dir);
+      }
+    }
+  }
+
+  private static boolean isUnder(String path, String dir, boolean orEqual) {
+    if (path.equals(dir)) {
+      return orEqual;
+    }
+    return dir.isEmpty() || path.startsWith(dir + "/");
+  }
+
+  private static String resolve(String dir, String relative) {
+    if (relative.isEmpty()) {
+      return dir;
+    }
+    return dir.isEmpty() ? relative : dir + "/" + relative;
+  }
+
+  /** Returns the path of {@code path} relative to {@code dir}, that must contain it. */
+  private static String relative(String path, String dir) {
+    if (path.equals(dir)) {
+      return "";
+    }
+    return dir.isEmpty() ? path : path.substring(dir.length() + 1);
+  }
+
+  private static String parent(String path) {
+    int slash = path.lastIndexOf('/');
+    return slash == -1 ? "" : path.substring(0, slash);
+  }
+
+  private static String name(String path) {
+    return path.substring(path.lastIndexOf('/') + 1);
+  }
+
+  private static int depth(String path) {
+    int depth = 0;
+    for (int i = 0; i < path.length(); i++) {
+      if (path.charAt(i) == '/') {
+        depth++;
+      }
+    }
+    return depth;
+  }
+}
@@ -16,22 +16,26 @@
 
 package com.google.copybara.transform;
 
+import com.google.copybara.util.FileTreeIndex;
+import com.google.copybara.util.FileUtil;
 import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.CopyOption;
-import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
-import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
-import java.nio.file.attribute.BasicFileAttributes;
 import javax.annotation.Nullable;
 
 /**
- * A visitor which moves files recursively from the path it is visiting.
+ * Moves files recursively from the path it is visiting. The files are listed from the
+ * {@link FileTreeIndex} of the checkout directory, and the moved files are recorded in it.
+ *
+ * <p>Without a path matcher, a directory whose destination doesn't exist is moved with a single
+ * rename, so it is not left behind empty.
  */
-final class MovingVisitor extends SimpleFileVisitor<Path> {
+final class MovingVisitor {
   private final Path before;
   private final Path after;
   @Nullable
@@ -49,21 +53,57 @@ final class MovingVisitor extends SimpleFileVisitor<Path> {
     }
   }
 
-  @Override
-  public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
-    return dir.equals(after)
-        ? FileVisitResult.SKIP_SUBTREE
-        : FileVisitResult.CONTINUE;
+  /**
+   * Moves {@code before}, or the files under it that match, to {@code after}. Like
+   * {@link Files#walkFileTree}, a symlink {@code before} is moved itself, not followed.
+   */
+  void visit(FileTreeIndex index) throws IOException {
+    if (Files.isDirectory(before, LinkOption.NOFOLLOW_LINKS)) {
+      visitDirectory(index, before);
+    } else {
+      moveFile(index, before);
+    }
+  }
+
+  private void visitDirectory(FileTreeIndex index, Path dir) throws IOException {
+    if (dir.equals(after) || (pathMatcher == null && renameDirectory(index, dir))) {
+      return;
+    }
+    for (Path path : index.list(dir)) {
+      if (index.isDirectory(path)) {
+        if (pathMatcher == null || FileUtil.mayMatchUnder(pathMatcher, path)) {
+          visitDirectory(index, path);
+        }
+      } else if (pathMatcher == null || pathMatcher.matches(path)) {
+        moveFile(index, path);
+      }
+    }
   }
 
-  @Override
-  public FileVisitResult visitFile(Path source, BasicFileAttributes attrs) throws IOException {
-    if (pathMatcher==null || pathMatcher.matches(source)) {
-      Path relative = before.relativize(source);
-      Path dest = after.resolve(relative);
-      Files.createDirectories(dest.getParent());
-      Files.move(source, dest, moveMode);
+  /**
+   * Moves {@code dir} with a single rename if its destination doesn't exist. Returns false if the
+   * files have to be moved one by one instead: the destination exists, so the directories are
+   * merged, or the file system cannot rename the directory.
+   */
+  private boolean renameDirectory(FileTreeIndex index, Path dir) throws IOException {
+    Path dest = after.resolve(before.relativize(dir));
+    if (dest.startsWith(dir) || Files.exists(dest, LinkOption.NOFOLLOW_LINKS)) {
+      return false;
+    }
+    Files.createDirectories(dest.getParent());
+    try {
+      Files.move(dir, dest, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      return false;
     }
-    return FileVisitResult.CONTINUE;
+    index.moveDirectory(dir, dest);
+    return true;
+  }
+
+  private void moveFile(FileTreeIndex index, Path source) throws IOException {
+    Path dest = after.resolve(before.relativize(source));
+    Files.createDirectories(dest.getParent());
+    Files.move(source, dest, moveMode);
+    index.move(source, dest);
   }
 }
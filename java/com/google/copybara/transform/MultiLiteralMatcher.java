@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.transform;
+
+import com.google.common.base.Preconditions;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Finds which of a set of byte strings occur in some content, reading the content only once.
+ *
+ * <p>This is an Aho-Corasick automaton compiled to a DFA over bytes: every state has a transition
+ * for each of the 256 byte values, so scanning costs one array lookup per byte regardless of the
+ * number of literals.
+ */
+final class MultiLiteralMatcher {
+
+  private static final int ALPHABET = 256;
+
+  private final int literalCount;
+  /** Next state for state {@code s} and byte {@code b} is {@code transitions[s * 256 + b]}. */
+  private final int[] transitions;
+  /** Literals found when reaching each state, or null if none. */
+  private final BitSet[] outputs;
+
+  MultiLiteralMatcher(List<byte[]> literals) {
+    literalCount = literals.size();
+    // Build the trie. -1 means no transition.
+    List<int[]> trie = new ArrayList<>();
+    List<BitSet> found = new ArrayList<>();
+    trie.add(newState());
+    found.add(null);
+    for (int i = 0; i < literals.size(); i++) {
+      byte[] literal = literals.get(i);
+      Preconditions.checkArgument(literal.length > 0, "Empty literals are not supported");
+      int state = 0;
+      for (byte b : literal) {
+        int next = trie.get(state)[b & 0xFF];
+        if (next == -1) {
+          next = trie.size();
+          trie.get(state)[b & 0xFF] = next;
+          trie.add(newState());
+          found.add(null);
+        }
+        state = next;
+      }
+      if (found.get(state) == null) {
+        found.set(state, new BitSet(literalCount));
+      }
+      found.get(state).set(i);
+    }
+
+    // Compute the failure links in breadth-first order and complete the missing transitions with
+    // the ones of the failure state, that is already complete because it is shallower.
+    int states = trie.size();
+    transitions = new int[states * ALPHABET];
+    outputs = new BitSet[states];
+    int[] failure = new int[states];
+    Queue<Integer> queue = new ArrayDeque<>();
+    for (int b = 0; b < ALPHABET; b++) {
+      int next = trie.get(0)[b];
+      if (next == -1) {
+        transitions[b] = 0;
+      } else {
+        transitions[b] = next;
+        failure[next] = 0;
+        queue.add(next);
+      }
+    }
+    outputs[0] = found.get(0);
+    while (!queue.isEmpty()) {
+      int state = queue.remove();
+      BitSet output = found.get(state);
+      BitSet inherited = outputs[failure[state]];
+      if (inherited != null) {
+        output = output == null ? (BitSet) inherited.clone() : output;
+        output.or(inherited);
+      }
+      outputs[state] = output;
+      for (int b = 0; b < ALPHABET; b++) {
+        int next = trie.get(state)[b];
+        int fallback = transitions[failure[state] * ALPHABET + b];
+        if (next == -1) {
+          transitions[state * ALPHABET + b] = fallback;
+        } else {
+          transitions[state * ALPHABET + b] = next;
+          failure[next] = fallback;
+          queue.add(next);
+        }
+      }
+    }
+  }
+
+  private static int[] newState() {
+    int[] state = new int[ALPHABET];
+    Arrays.fill(state, -1);
+    return state;
+  }
+
+  /**
+   * Returns the indexes (in the list passed to the constructor) of the literals that occur in
+   * {@code content}.
+   */
+  BitSet findAll(ByteBuffer content) {
+    BitSet result = new BitSet(literalCount);
+    int state = 0;
+    int limit = content.limit();
+    for (int i = content.position(); i < limit; i++) {
+      state = transitions[state * ALPHABET + (content.get(i) & 0xFF)];
+      BitSet output = outputs[state];
+      if (output != null) {
+        result.or(output);
+        if (result.cardinality() == literalCount) {
+          break;
+        }
+      }
+    }
+    return result;
+  }
+}
@@ -30,7 +30,6 @@ import com.google.devtools.build.lib.syntax.EvalException;
 import com.google.re2j.Pattern;
 import com.google.re2j.PatternSyntaxException;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Map;
@@ -101,7 +100,7 @@ public final class Replace implements Transformation {
     ReplaceVisitor visitor = new ReplaceVisitor(
         before.replacer(after, firstOnly, multiline),
         fileMatcherBuilder.relativeTo(checkoutDir));
-    Files.walkFileTree(checkoutDir, visitor);
+    visitor.visit(work.getTreeIndex());
     if (!visitor.somethingWasChanged) {
       workflowOptions.reportNoop(
           work.getConsole(),
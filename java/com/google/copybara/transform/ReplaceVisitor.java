@@ -20,17 +20,16 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.google.common.base.Preconditions;
 import com.google.copybara.transform.TemplateTokens.Replacer;
+import com.google.copybara.util.FileContent;
+import com.google.copybara.util.FileTreeIndex;
 import java.io.IOException;
-import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-final class ReplaceVisitor extends SimpleFileVisitor<Path> {
+final class ReplaceVisitor {
 
   private static final Logger logger = Logger.getLogger(Replace.class.getName());
 
@@ -44,20 +43,29 @@ final class ReplaceVisitor extends SimpleFileVisitor<Path> {
     this.pathMatcher = Preconditions.checkNotNull(pathMatcher);
   }
 
-  @Override
-  public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-    if (!Files.isRegularFile(file) || !pathMatcher.matches(file)) {
-      return FileVisitResult.CONTINUE;
+  /**
+   * Applies the replacement to the files in {@code index} that match, without walking the file
+   * tree.
+   */
+  void visit(FileTreeIndex index) throws IOException {
+    for (Path file : index.match(pathMatcher)) {
+      if (Files.isRegularFile(file) && !index.isBinary(file)) {
+        replace(file);
+      }
     }
+  }
+
+  private void replace(Path file) throws IOException {
+    // Binary files were already skipped with the classification of the index.
+    FileContent content = FileContent.read(file);
     logger.log(Level.INFO, String.format("apply %s to %s", replacer, file));
 
-    String originalFileContent = new String(Files.readAllBytes(file), UTF_8);
-    String transformed = replacer.replace(originalFileContent);
-    if (!originalFileContent.equals(transformed)) {
+    CharSequence text = content.text();
+    String transformed = replacer.replaceIfMatches(text);
+    // The text is not used after writing: it could be a view of the mapping of the file.
+    if (transformed != null && !transformed.contentEquals(text)) {
       somethingWasChanged = true;
       Files.write(file, transformed.getBytes(UTF_8));
     }
-
-    return FileVisitResult.CONTINUE;
   }
 }
@@ -29,8 +29,10 @@ import com.google.devtools.build.lib.syntax.EvalException;
 import com.google.devtools.build.lib.syntax.SkylarkList;
 import com.google.devtools.build.lib.syntax.SkylarkType;
 import java.io.IOException;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 /**
  * A transformation that runs a sequence of delegate transformations
@@ -57,6 +59,26 @@ public class Sequence implements Transformation {
     }
 
     for (int i = 0; i < sequence.size(); i++) {
+      int batchEnd = batchEnd(i, VerifyMatchBatch::canBatch);
+      if (batchEnd - i > 1) {
+        VerifyMatchBatch batch = new VerifyMatchBatch(sequence.subList(i, batchEnd).stream()
+            .map(t -> (VerifyMatch) t)
+            .collect(Collectors.toList()));
+        reportBatch(work, i, batchEnd, batch.describe());
+        batch.transform(work);
+        i = batchEnd - 1;
+        continue;
+      }
+      batchEnd = batchEnd(i, MovePlanner::canBatch);
+      if (batchEnd - i > 1) {
+        MovePlanner planner = new MovePlanner(sequence.subList(i, batchEnd).stream()
+            .map(t -> (Move) t)
+            .collect(Collectors.toList()));
+        reportBatch(work, i, batchEnd, planner.describe());
+        planner.transform(work);
+        i = batchEnd - 1;
+        continue;
+      }
       Transformation transformation = sequence.get(i);
       String transformMsg = String.format(
           "[%2d/%d] Transform %s", i + 1, sequence.size(),
@@ -68,6 +90,32 @@ public class Sequence implements Transformation {
     }
   }
 
+  private void reportBatch(TransformWork work, int start, int end, String description) {
+    String transformMsg = String.format(
+        "[%2d-%d/%d] Transform %s", start + 1, end, sequence.size(), description);
+    logger.log(Level.INFO, transformMsg);
+    work.getConsole().progress(transformMsg);
+  }
+
+  /**
+   * Returns the end (exclusive) of the run of consecutive transformations starting at
+   * {@code start} that can be run together:
+   *
+   * <ul>
+   *   <li>verify_match transformations don't modify the files, so they are run together reading
+   *   each file once.
+   *   <li>move transformations are planned together, so that each file is moved once to its final
+   *   path.
+   * </ul>
+   */
+  private int batchEnd(int start, Predicate<Object> canBatch) {
+    int end = start;
+    while (end < sequence.size() && canBatch.test(sequence.get(end))) {
+      end++;
+    }
+    return end;
+  }
+
   @Override
   public Transformation reverse() throws NonReversibleValidationException {
     ImmutableList.Builder<Transformation> list = ImmutableList.builder();
@@ -16,9 +16,7 @@
 
 package com.google.copybara.transform;
 
-import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
-import com.google.common.base.Splitter;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Multimap;
@@ -27,6 +25,7 @@ import com.google.devtools.build.lib.events.Location;
 import com.google.devtools.build.lib.syntax.EvalException;
 import com.google.re2j.Matcher;
 import com.google.re2j.Pattern;
+import java.nio.CharBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
@@ -34,6 +33,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import javax.annotation.Nullable;
 
 /**
  * A string which is interpolated with named variables. The string is composed of interpolated and
@@ -113,36 +113,70 @@ final class TemplateTokens {
     }
 
     String replace(String content) {
-      List<String> originalRanges = multiline
-          ? ImmutableList.of(content)
-          : Splitter.on('\n').splitToList(content);
+      String replaced = replaceIfMatches(content);
+      return replaced == null ? content : replaced;
+    }
+
+    /**
+     * Like {@link #replace(String)}, but returns null if the regex doesn't match. The lines are
+     * matched over views of {@code content}, and the output is only built from the first line
+     * that matches, so content that doesn't match is not copied.
+     */
+    @Nullable
+    String replaceIfMatches(CharSequence content) {
+      StringBuilder result = null;
+      int start = 0;
+      while (start <= content.length()) {
+        int end = multiline ? content.length() : indexOf(content, '\n', start);
+        CharSequence line = CharBuffer.wrap(content, start, end);
+        String replaced = replaceLine(line);
+        if (replaced != null && result == null) {
+          result = new StringBuilder(content.length());
+          result.append(content, 0, start);
+        }
+        if (result != null) {
+          result.append(replaced != null ? replaced : line);
+          if (end < content.length()) {
+            result.append('\n');
+          }
+        }
+        start = end + 1;
+      }
+      return result == null ? null : result.toString();
+    }
 
-      List<String> newRanges = new ArrayList<>(originalRanges.size());
-      for (String line : originalRanges) {
-        newRanges.add(replaceLine(line));
+    private int indexOf(CharSequence content, char c, int from) {
+      for (int i = from; i < content.length(); i++) {
+        if (content.charAt(i) == c) {
+          return i;
+        }
       }
-      return Joiner.on('\n').join(newRanges);
+      return content.length();
     }
 
-    private String replaceLine(String line) {
+    /**
+     * Returns the line with the replacement applied, or null if the regex doesn't match it.
+     */
+    @Nullable
+    private String replaceLine(CharSequence line) {
       Matcher matcher = before.matcher(line);
+      if (!matcher.find()) {
+        return null;
+      }
       StringBuffer sb = new StringBuffer();
-      while (matcher.find()) {
+      do {
         for (Collection<Integer> groupIndexes : repeatedGroups.asMap().values()) {
           // Check that all the references of the repeated group match the same string
           Iterator<Integer> iterator = groupIndexes.iterator();
           String value = matcher.group(iterator.next());
           while (iterator.hasNext()) {
             if (!value.equals(matcher.group(iterator.next()))) {
-              return line;
+              return line.toString();
             }
           }
         }
         matcher.appendReplacement(sb, afterReplaceTemplate);
-        if (firstOnly) {
-          break;
-        }
-      }
+      } while (!firstOnly && matcher.find());
       matcher.appendTail(sb);
       return sb.toString();
     }
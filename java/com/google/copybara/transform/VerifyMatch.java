@@ -21,15 +21,17 @@ import com.google.common.base.Preconditions;
 import com.google.copybara.TransformWork;
 import com.google.copybara.Transformation;
 import com.google.copybara.ValidationException;
+import com.google.copybara.util.FileUtil;
 import com.google.copybara.util.Glob;
+import com.google.copybara.util.console.Console;
 import com.google.devtools.build.lib.events.Location;
 import com.google.devtools.build.lib.syntax.EvalException;
 import com.google.re2j.Pattern;
 import com.google.re2j.PatternSyntaxException;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
+import javax.annotation.Nullable;
 
 /**
  * A source code pseudo-transformation which verifies that all specified files satisfy a RegEx.
@@ -37,14 +39,22 @@ import java.util.List;
  */
 public final class VerifyMatch implements Transformation {
 
+  /**
+   * Maximum number of failing files reported. The rest are only counted.
+   */
+  static final int MAX_REPORTED_ERRORS = 100;
+
   private final Pattern pattern;
   private final boolean verifyNoMatch;
   private final Glob fileMatcherBuilder;
+  private final boolean failFast;
 
-  private VerifyMatch(Pattern pattern, boolean verifyNoMatch, Glob fileMatcherBuilder) {
+  private VerifyMatch(Pattern pattern, boolean verifyNoMatch, Glob fileMatcherBuilder,
+      boolean failFast) {
     this.pattern = Preconditions.checkNotNull(pattern);
     this.verifyNoMatch = verifyNoMatch;
     this.fileMatcherBuilder = Preconditions.checkNotNull(fileMatcherBuilder);
+    this.failFast = failFast;
   }
 
   @Override
@@ -53,25 +63,52 @@ public final class VerifyMatch implements Transformation {
         .add("Pattern", pattern)
         .add("verifyNoMatch", verifyNoMatch)
         .add("path", fileMatcherBuilder)
+        .add("failFast", failFast)
         .toString();
   }
 
   @Override
   public void transform(TransformWork work)
       throws IOException, ValidationException {
-    Path checkoutDir = work.getCheckoutDir();
-    VerifyMatchVisitor visitor = new VerifyMatchVisitor(pattern,
-        fileMatcherBuilder.relativeTo(checkoutDir), verifyNoMatch);
-    Files.walkFileTree(checkoutDir, visitor);
+    VerifyMatchVisitor visitor = newVisitor(work.getCheckoutDir());
+    visitor.visit(work.getTreeIndex(), FileUtil.DEFAULT_PARALLELISM);
+    ValidationException failure = reportErrors(work.getConsole(), visitor);
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  VerifyMatchVisitor newVisitor(Path checkoutDir) {
+    return new VerifyMatchVisitor(pattern, fileMatcherBuilder.relativeTo(checkoutDir),
+        verifyNoMatch, failFast, MAX_REPORTED_ERRORS);
+  }
+
+  boolean isFailFast() {
+    return failFast;
+  }
+
+  /**
+   * Prints the files that failed the validation in {@code visitor} and returns the exception to
+   * be thrown, or null if the validation passed.
+   */
+  @Nullable
+  ValidationException reportErrors(Console console, VerifyMatchVisitor visitor) {
     List<String> errors = visitor.getErrors();
     for (String error : errors) {
-      work.getConsole().error(String.format("File '%s' failed validation '%s'.", error,
-          describe()));
+      console.error(String.format("File '%s' failed validation '%s'.", error, describe()));
+    }
+    int errorCount = visitor.getErrorCount();
+    if (errorCount > errors.size()) {
+      console.error(String.format("%d more file(s) failed validation '%s'.",
+          errorCount - errors.size(), describe()));
     }
-    if (errors.size() != 0) {
-      throw new ValidationException(
-          String.format("%d file(s) failed the validation of %s.", errors.size(), describe()));
+    if (errorCount == 0) {
+      return null;
     }
+    return new ValidationException(failFast
+        ? String.format("%d file(s) failed the validation of %s. Other files were not"
+            + " verified because of fail_fast.", errorCount, describe())
+        : String.format("%d file(s) failed the validation of %s.", errorCount, describe()));
   }
 
   @Override
@@ -85,13 +122,13 @@ public final class VerifyMatch implements Transformation {
   }
 
   public static VerifyMatch create(Location location, String regEx, Glob paths,
-      boolean verifyNoMatch) throws EvalException {
+      boolean verifyNoMatch, boolean failFast) throws EvalException {
     Pattern parsed;
     try {
       parsed = Pattern.compile(regEx, Pattern.MULTILINE);
     } catch (PatternSyntaxException e) {
       throw new EvalException(location, String.format("Regex '%s' is invalid.", regEx), e);
     }
-    return new VerifyMatch(parsed, verifyNoMatch, paths);
+    return new VerifyMatch(parsed, verifyNoMatch, paths, failFast);
   }
 }
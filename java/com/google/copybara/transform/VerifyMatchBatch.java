@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.transform;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.copybara.TransformWork;
+import com.google.copybara.ValidationException;
+import com.google.copybara.util.FileContent;
+import com.google.copybara.util.FileTreeIndex;
+import com.google.copybara.util.FileUtil;
+import com.google.copybara.util.TreePathMatcher;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs several {@link VerifyMatch} transformations reading each file only once.
+ *
+ * <p>The literal regexes are compiled into a single {@link MultiLiteralMatcher}. The rest of the
+ * regexes are run one by one over the file content, that is decoded only once. Binary files are
+ * only verified by the transformations that check that the regex doesn't match (see
+ * {@link VerifyMatchVisitor#skipsBinaryFiles()}).
+ *
+ * <p>The errors are reported per transformation with the same messages as {@link VerifyMatch}.
+ * The exception thrown is the one of the first transformation that fails.
+ */
+final class VerifyMatchBatch {
+
+  private final ImmutableList<VerifyMatch> verifications;
+
+  VerifyMatchBatch(List<VerifyMatch> verifications) {
+    this.verifications = ImmutableList.copyOf(verifications);
+    for (VerifyMatch verification : verifications) {
+      Preconditions.checkArgument(canBatch(verification),
+          "%s cannot be run in a batch", verification);
+    }
+  }
+
+  /**
+   * Returns true if {@code transformation} can be part of a batch. Verifications that fail fast
+   * are not batched since they can skip files that other verifications need to read.
+   */
+  static boolean canBatch(Object transformation) {
+    return transformation instanceof VerifyMatch
+        && !((VerifyMatch) transformation).isFailFast();
+  }
+
+  String describe() {
+    List<String> descriptions = new ArrayList<>();
+    for (VerifyMatch verification : verifications) {
+      descriptions.add(verification.describe());
+    }
+    return Joiner.on(", ").join(descriptions);
+  }
+
+  void transform(TransformWork work) throws IOException, ValidationException {
+    Path checkoutDir = work.getCheckoutDir();
+    List<VerifyMatchVisitor> visitors = new ArrayList<>();
+    List<byte[]> literals = new ArrayList<>();
+    // Position of each visitor literal in 'literals', or -1 if it is not a literal.
+    int[] literalIndex = new int[verifications.size()];
+    for (int i = 0; i < verifications.size(); i++) {
+      VerifyMatchVisitor visitor = verifications.get(i).newVisitor(checkoutDir);
+      visitors.add(visitor);
+      if (visitor.getLiteral() != null) {
+        literalIndex[i] = literals.size();
+        literals.add(visitor.getLiteral());
+      } else {
+        literalIndex[i] = -1;
+      }
+    }
+    MultiLiteralMatcher literalMatcher =
+        literals.isEmpty() ? null : new MultiLiteralMatcher(literals);
+
+    FileTreeIndex index = work.getTreeIndex();
+    List<Path> files = index.match(new TreePathMatcher() {
+      @Override
+      public boolean mayMatchUnder(Path dir) {
+        for (VerifyMatchVisitor visitor : visitors) {
+          if (FileUtil.mayMatchUnder(visitor.getPathMatcher(), dir)) {
+            return true;
+          }
+        }
+        return false;
+      }
+
+      @Override
+      public boolean matches(Path path) {
+        for (VerifyMatchVisitor visitor : visitors) {
+          if (visitor.getPathMatcher().matches(path)) {
+            return true;
+          }
+        }
+        return false;
+      }
+    });
+
+    ExecutorService executor = Executors.newFixedThreadPool(FileUtil.DEFAULT_PARALLELISM);
+    List<Future<Void>> results = new ArrayList<>();
+    try {
+      for (Path file : files) {
+        results.add(executor.submit(() -> {
+          verify(file, index, visitors, literalMatcher, literalIndex);
+          return null;
+        }));
+      }
+      for (Future<Void> result : results) {
+        result.get();
+      }
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw new IOException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while verifying files");
+    } finally {
+      executor.shutdownNow();
+    }
+
+    ValidationException failure = null;
+    for (int i = 0; i < verifications.size(); i++) {
+      ValidationException e = verifications.get(i).reportErrors(work.getConsole(), visitors.get(i));
+      if (failure == null) {
+        failure = e;
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private static void verify(Path file, FileTreeIndex index, List<VerifyMatchVisitor> visitors,
+      MultiLiteralMatcher literalMatcher, int[] literalIndex) throws IOException {
+    BitSet applicable = new BitSet(visitors.size());
+    boolean skipsBinary = false;
+    boolean scansBinary = false;
+    for (int i = 0; i < visitors.size(); i++) {
+      VerifyMatchVisitor visitor = visitors.get(i);
+      if (visitor.getPathMatcher().matches(file)) {
+        applicable.set(i);
+        if (visitor.skipsBinaryFiles()) {
+          skipsBinary = true;
+        } else {
+          scansBinary = true;
+        }
+      }
+    }
+    // Only classify the file if some verification would skip it.
+    boolean binary = skipsBinary && index.isBinary(file);
+    if (binary && !scansBinary) {
+      return;
+    }
+    FileContent content = FileContent.read(file);
+    BitSet foundLiterals = null;
+    for (int i = applicable.nextSetBit(0); i >= 0; i = applicable.nextSetBit(i + 1)) {
+      VerifyMatchVisitor visitor = visitors.get(i);
+      if (binary && visitor.skipsBinaryFiles()) {
+        continue;
+      }
+      boolean found;
+      if (literalIndex[i] != -1) {
+        if (foundLiterals == null) {
+          foundLiterals = literalMatcher.findAll(content.bytes());
+        }
+        found = foundLiterals.get(literalIndex[i]);
+      } else {
+        found = visitor.find(content.text());
+      }
+      visitor.recordResult(file, found);
+    }
+  }
+}
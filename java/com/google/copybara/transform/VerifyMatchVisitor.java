@@ -18,47 +18,257 @@ package com.google.copybara.transform;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
+import com.google.copybara.util.FileContent;
+import com.google.copybara.util.FileTreeIndex;
 import com.google.re2j.Pattern;
 import java.io.IOException;
-import java.nio.file.FileVisitResult;
-import java.nio.file.Files;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
 
 /**
  * Visitor for the {@link VerifyMatch} transformation. Verifies that a regular expression matches
- * content in every visited file (or in no visited file, if {@code verifyNoMatch} is set).
+ * content in every visited file (or in no visited file, if {@code verifyNoMatch} is set). Binary
+ * files are skipped when verifying that the regex matches, but they are still scanned when
+ * verifying that it doesn't, so that a forbidden string cannot hide in them.
+ *
+ * <p>This class is thread-safe: files can be verified concurrently.
  */
-final class VerifyMatchVisitor extends SimpleFileVisitor<Path> {
+final class VerifyMatchVisitor {
+
+  private static final String REGEX_META_CHARS = "\\.+*?()|[]{}^$";
 
   private final Pattern regEx;
   private final boolean verifyNoMatch;
   private final PathMatcher pathMatcher;
+  private final boolean failFast;
+  private final int maxErrors;
+  /** UTF-8 bytes of the regex if it is a literal string, so that it can be searched as bytes. */
+  @Nullable
+  private final byte[] literal;
 
-  private ImmutableList.Builder<String> errorBuilder = ImmutableList.builder();
+  private final TreeSet<String> errors = new TreeSet<>();
+  private final AtomicInteger errorCount = new AtomicInteger();
+  private final AtomicBoolean stopped = new AtomicBoolean();
 
   VerifyMatchVisitor(Pattern regEx, PathMatcher pathMatcher, boolean verifyNoMatch) {
+    this(regEx, pathMatcher, verifyNoMatch, /*failFast=*/false, Integer.MAX_VALUE);
+  }
+
+  /**
+   * @param failFast stop verifying files after the first failure
+   * @param maxErrors maximum number of failing files to collect. Failures after that are only
+   *     counted. When the limit is reached, the files that sort first are the ones kept.
+   */
+  VerifyMatchVisitor(Pattern regEx, PathMatcher pathMatcher, boolean verifyNoMatch,
+      boolean failFast, int maxErrors) {
+    Preconditions.checkArgument(maxErrors > 0, "maxErrors must be positive: %s", maxErrors);
     this.regEx = Preconditions.checkNotNull(regEx);
     this.pathMatcher = Preconditions.checkNotNull(pathMatcher);
     this.verifyNoMatch = verifyNoMatch;
+    this.failFast = failFast;
+    this.maxErrors = maxErrors;
+    // Flags other than MULTILINE (that doesn't affect literals) could change what is matched.
+    String literalString = (regEx.flags() & ~Pattern.MULTILINE) == 0
+        ? asLiteral(regEx.pattern())
+        : null;
+    this.literal = literalString == null ? null : literalString.getBytes(UTF_8);
   }
 
+  /**
+   * Returns the files that failed the validation, sorted and limited to {@code maxErrors}.
+   */
   ImmutableList<String> getErrors() {
-    return errorBuilder.build();
+    synchronized (errors) {
+      return ImmutableList.copyOf(errors);
+    }
+  }
+
+  /**
+   * Returns the number of files that failed the validation, including the ones not collected
+   * because of {@code maxErrors}.
+   */
+  int getErrorCount() {
+    return errorCount.get();
+  }
+
+  /**
+   * Returns true if binary files are not verified. They are skipped only when the regex has to
+   * match, since binary files are not expected to contain it.
+   */
+  boolean skipsBinaryFiles() {
+    return !verifyNoMatch;
   }
-  @Override
-  public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-    if (!pathMatcher.matches(file)) {
-      return FileVisitResult.CONTINUE;
+
+  /**
+   * Verifies the files in {@code index} that match, without walking the file tree.
+   */
+  void visit(FileTreeIndex index) throws IOException {
+    visit(index, /*parallelism=*/1);
+  }
+
+  /**
+   * Like {@link #visit(FileTreeIndex)} but the files are verified using {@code parallelism}
+   * threads.
+   */
+  void visit(FileTreeIndex index, int parallelism) throws IOException {
+    List<Path> files = index.match(pathMatcher);
+    if (parallelism <= 1 || files.size() <= 1) {
+      for (Path file : files) {
+        if (stopped.get()) {
+          return;
+        }
+        if (!skips(index, file)) {
+          verify(FileContent.read(file));
+        }
+      }
+      return;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, files.size()));
+    List<Future<Void>> results = new ArrayList<>();
+    try {
+      for (Path file : files) {
+        results.add(executor.submit(() -> {
+          if (!stopped.get() && !skips(index, file)) {
+            verify(FileContent.read(file));
+          }
+          return null;
+        }));
+      }
+      for (Future<Void> result : results) {
+        result.get();
+      }
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw new IOException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while verifying files");
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private boolean skips(FileTreeIndex index, Path file) throws IOException {
+    return skipsBinaryFiles() && index.isBinary(file);
+  }
+
+  private void verify(FileContent content) {
+    boolean found = literal != null
+        ? indexOf(content.bytes(), literal) != -1
+        : find(content.text());
+    recordResult(content.getPath(), found);
+  }
+
+  /**
+   * Returns true if the regex matches {@code content}.
+   */
+  boolean find(CharSequence content) {
+    return regEx.matcher(content).find();
+  }
+
+  /**
+   * Records whether the regex was {@code found} in {@code file}, adding it to the errors if that
+   * fails the validation.
+   */
+  void recordResult(Path file, boolean found) {
+    if (verifyNoMatch != found) {
+      return;
+    }
+    errorCount.incrementAndGet();
+    if (failFast) {
+      stopped.set(true);
+    }
+    synchronized (errors) {
+      errors.add(file.toString());
+      if (errors.size() > maxErrors) {
+        errors.pollLast();
+      }
+    }
+  }
+
+  /**
+   * Returns the UTF-8 bytes of the regex if it only matches a literal string, or null otherwise.
+   */
+  @Nullable
+  byte[] getLiteral() {
+    return literal;
+  }
+
+  PathMatcher getPathMatcher() {
+    return pathMatcher;
+  }
+
+  /**
+   * Returns the position of the first occurrence of {@code target} in {@code content} or -1 if
+   * it is not found. Since UTF-8 is self-synchronizing, searching the encoded literal in the
+   * encoded content is equivalent to searching it in the decoded text.
+   */
+  @VisibleForTesting
+  static int indexOf(ByteBuffer content, byte[] target) {
+    if (target.length == 0) {
+      return 0;
+    }
+    byte first = target[0];
+    int last = content.limit() - target.length;
+    outer:
+    for (int i = 0; i <= last; i++) {
+      if (content.get(i) != first) {
+        continue;
+      }
+      for (int j = 1; j < target.length; j++) {
+        if (content.get(i + j) != target[j]) {
+          continue outer;
+        }
+      }
+      return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the string matched by {@code regex} if it only matches a literal string, or null
+   * otherwise. Metacharacters escaped with a backslash are accepted as literals.
+   */
+  @VisibleForTesting
+  @Nullable
+  static String asLiteral(String regex) {
+    StringBuilder sb = new StringBuilder(regex.length());
+    for (int i = 0; i < regex.length(); i++) {
+      char c = regex.charAt(i);
+      if (c == '\\') {
+        i++;
+        if (i == regex.length() || REGEX_META_CHARS.indexOf(regex.charAt(i)) == -1) {
+          // Classes like \d, escapes like \n or \Q...\E. Not worth handling.
+          return null;
+        }
+        sb.append(regex.charAt(i));
+      } else if (REGEX_META_CHARS.indexOf(c) != -1) {
+        return null;
+      } else {
+        sb.append(c);
+      }
     }
-    String originalFileContent = new String(Files.readAllBytes(file), UTF_8);
-    if (verifyNoMatch == regEx.matcher(originalFileContent).find()) {
-      errorBuilder.add(file.toString());
+    // The empty regex matches everything. Malformed input is decoded as the replacement char when
+    // reading the file as a String, so that cannot be searched as bytes.
+    if (sb.length() == 0 || sb.indexOf("\uFFFD") != -1) {
+      return null;
     }
-    return FileVisitResult.CONTINUE;
+    return sb.toString();
   }
 }
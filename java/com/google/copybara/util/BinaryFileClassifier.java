@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.util;
+
+import com.google.common.base.Ascii;
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Decides if a file is binary, so that text transformations can skip it.
+ *
+ * <p>Files with one of the configured extensions are binary without reading them. Otherwise the
+ * content is sniffed like git does: a NUL byte in the first 8000 bytes means that the file is
+ * binary.
+ */
+public final class BinaryFileClassifier {
+
+  /** A classifier that only looks at the content of the files. */
+  public static final BinaryFileClassifier CONTENT_ONLY =
+      new BinaryFileClassifier(ImmutableSet.<String>of());
+
+  private static final int SNIFF_LENGTH = 8000;
+
+  private final ImmutableSet<String> binaryExtensions;
+
+  /**
+   * @param binaryExtensions extensions of the files that are binary, without the dot. They are
+   *     compared ignoring case.
+   */
+  public BinaryFileClassifier(Iterable<String> binaryExtensions) {
+    ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+    for (String extension : binaryExtensions) {
+      String withoutDot = extension.startsWith(".") ? extension.substring(1) : extension;
+      builder.add(Ascii.toLowerCase(withoutDot));
+    }
+    this.binaryExtensions = builder.build();
+  }
+
+  /**
+   * Returns true if {@code file} is binary.
+   */
+  public boolean isBinary(Path file) throws IOException {
+    if (hasBinaryExtension(file)) {
+      return true;
+    }
+    ByteBuffer head = ByteBuffer.allocate(SNIFF_LENGTH);
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      while (head.hasRemaining() && channel.read(head) != -1) {
+        // Keep reading until the buffer is full or the end of the file.
+      }
+    }
+    head.flip();
+    return looksBinary(head);
+  }
+
+  boolean hasBinaryExtension(Path file) {
+    if (binaryExtensions.isEmpty() || file.getFileName() == null) {
+      return false;
+    }
+    String name = file.getFileName().toString();
+    int dot = name.lastIndexOf('.');
+    return dot != -1 && binaryExtensions.contains(Ascii.toLowerCase(name.substring(dot + 1)));
+  }
+
+  /**
+   * Returns true if there is a NUL byte in the first 8000 bytes of {@code content}.
+   */
+  static boolean looksBinary(ByteBuffer content) {
+    int limit = Math.min(content.limit(), SNIFF_LENGTH);
+    for (int i = 0; i < limit; i++) {
+      if (content.get(i) == 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("binaryExtensions", binaryExtensions)
+        .toString();
+  }
+}
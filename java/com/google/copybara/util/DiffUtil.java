@@ -70,6 +70,10 @@ public class DiffUtil {
    * Applies the diff into a directory tree.
    *
    * <p>{@code diffContents} is the result of invoking {@link DiffUtil#diff}.
+   *
+   * <p>Text changes are applied in-process by {@link UnifiedDiff}. Anything that it doesn't
+   * support, or a diff that doesn't apply cleanly, is applied with {@code git apply}, that also
+   * reports the errors.
    */
   public static void patch(
       Path rootDir, byte[] diffContents, int stripSlashes, boolean verbose, boolean reverse)
@@ -79,6 +83,19 @@ public class DiffUtil {
       return;
     }
     Preconditions.checkArgument(stripSlashes >= 0, "stripSlashes must be >= 0.");
+    if (UnifiedDiff.parse(diffContents, stripSlashes).apply(rootDir, reverse)) {
+      return;
+    }
+    gitApply(rootDir, diffContents, stripSlashes, verbose, reverse);
+  }
+
+  /**
+   * Applies the diff into a directory tree running {@code git apply}.
+   */
+  public static void gitApply(
+      Path rootDir, byte[] diffContents, int stripSlashes, boolean verbose, boolean reverse)
+      throws IOException {
+    Preconditions.checkArgument(stripSlashes >= 0, "stripSlashes must be >= 0.");
     ImmutableList.Builder<String> params = ImmutableList.builder();
     params.add("git", "apply", "-p" + stripSlashes);
     if (reverse) {
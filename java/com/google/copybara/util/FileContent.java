@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import javax.annotation.Nullable;
+
+/**
+ * The content of a file, read with a strategy that depends on its size.
+ *
+ * <p>Small files are read into the heap. Big files are memory-mapped (when the file system
+ * supports it) so that they don't use heap, and their text is only decoded to a {@link String}
+ * if it is not plain ASCII: otherwise {@link #text()} is a view over the mapped bytes.
+ *
+ * <p>Transformations that work on text should skip the files that are binary according to
+ * {@link FileTreeIndex#isBinary}, so that each file is classified once.
+ *
+ * <p>Note that a memory-mapped file must not be read after the file is truncated or rewritten.
+ */
+public final class FileContent {
+
+  /** Files bigger than this are memory-mapped instead of read into the heap. */
+  @VisibleForTesting
+  static final long MMAP_THRESHOLD = 64 * 1024;
+
+  private final Path path;
+  private final ByteBuffer bytes;
+  private final boolean mapped;
+  @Nullable
+  private CharSequence text;
+
+  private FileContent(Path path, ByteBuffer bytes, boolean mapped) {
+    this.path = Preconditions.checkNotNull(path);
+    this.bytes = Preconditions.checkNotNull(bytes);
+    this.mapped = mapped;
+  }
+
+  /**
+   * Reads {@code file}. Nothing is decoded until {@link #text()} is called.
+   */
+  public static FileContent read(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size >= MMAP_THRESHOLD && size <= Integer.MAX_VALUE) {
+        try {
+          return new FileContent(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, size),
+              /*mapped=*/true);
+        } catch (UnsupportedOperationException e) {
+          // Not supported by the file system (for example in-memory ones). Read it instead.
+        }
+      }
+    }
+    return new FileContent(file, ByteBuffer.wrap(Files.readAllBytes(file)), /*mapped=*/false);
+  }
+
+  public Path getPath() {
+    return path;
+  }
+
+  public int size() {
+    return bytes.limit();
+  }
+
+  boolean isMapped() {
+    return mapped;
+  }
+
+  /**
+   * Returns a read-only view of the bytes of the file.
+   */
+  public ByteBuffer bytes() {
+    return bytes.asReadOnlyBuffer();
+  }
+
+  /**
+   * Returns the content decoded as UTF-8. The result is cached.
+   */
+  public synchronized CharSequence text() {
+    if (text == null) {
+      text = mapped && isAscii(bytes)
+          ? new AsciiCharSequence(bytes, 0, bytes.limit())
+          : UTF_8.decode(bytes.duplicate()).toString();
+    }
+    return text;
+  }
+
+  private static boolean isAscii(ByteBuffer bytes) {
+    int limit = bytes.limit();
+    for (int i = 0; i < limit; i++) {
+      if (bytes.get(i) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * A {@link CharSequence} over ASCII bytes, where each byte is a char.
+   */
+  private static final class AsciiCharSequence implements CharSequence {
+
+    private final ByteBuffer bytes;
+    private final int start;
+    private final int end;
+
+    private AsciiCharSequence(ByteBuffer bytes, int start, int end) {
+      this.bytes = bytes;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public int length() {
+      return end - start;
+    }
+
+    @Override
+    public char charAt(int index) {
+      Preconditions.checkElementIndex(index, length());
+      return (char) bytes.get(start + index);
+    }
+
+    @Override
+    public CharSequence subSequence(int from, int to) {
+      Preconditions.checkPositionIndexes(from, to, length());
+      return new AsciiCharSequence(bytes, start + from, start + to);
+    }
+
+    @Override
+    public String toString() {
+      byte[] result = new byte[length()];
+      ByteBuffer view = bytes.duplicate();
+      view.position(start);
+      view.get(result);
+      return new String(result, UTF_8);
+    }
+  }
+}
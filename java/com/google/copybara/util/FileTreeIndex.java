@@ -0,0 +1,388 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.util;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * An in-memory index of the files in a directory tree.
+ *
+ * <p>The tree is read from the file system the first time it is queried. After that, callers that
+ * create, move or delete files are expected to keep the index up to date using {@link #add},
+ * {@link #move} and {@link #remove}, or to call {@link #invalidate()} if the tree was modified in
+ * a way that is not tracked (For example by an external tool).
+ *
+ * <p>Like {@link Files#walkFileTree}, symlinks are not followed and are indexed as files.
+ * Directories are indexed too, including the empty ones. Callers that create or delete
+ * directories record it with {@link #addDirectory} and {@link #removeDirectory}.
+ *
+ * <p>The index also caches which files are binary, so that each file is classified once for all
+ * the text transformations.
+ */
+public final class FileTreeIndex {
+
+  private static final Logger logger = Logger.getLogger(FileTreeIndex.class.getName());
+
+  private final Path root;
+  private final BinaryFileClassifier binaryClassifier;
+  @Nullable
+  private Node tree;
+  private final ConcurrentHashMap<Path, Boolean> binaryFiles = new ConcurrentHashMap<>();
+  private final AtomicInteger binarySkips = new AtomicInteger();
+
+  public FileTreeIndex(Path root) {
+    this(root, BinaryFileClassifier.CONTENT_ONLY);
+  }
+
+  public FileTreeIndex(Path root, BinaryFileClassifier binaryClassifier) {
+    this.root = Preconditions.checkNotNull(root);
+    this.binaryClassifier = Preconditions.checkNotNull(binaryClassifier);
+  }
+
+  public Path getRoot() {
+    return root;
+  }
+
+  /**
+   * Returns the files that match {@code pathMatcher}. The files of a directory are returned by
+   * name, before the files of its subdirectories. Subtrees that cannot match (see
+   * {@link TreePathMatcher}) are not visited.
+   */
+  public synchronized ImmutableList<Path> match(PathMatcher pathMatcher) throws IOException {
+    ImmutableList.Builder<Path> result = ImmutableList.builder();
+    match(getTree(), root, pathMatcher, result);
+    return result.build();
+  }
+
+  private void match(Node node, Path dir, PathMatcher pathMatcher,
+      ImmutableList.Builder<Path> result) {
+    for (String file : node.files) {
+      Path path = dir.resolve(file);
+      if (pathMatcher.matches(path)) {
+        result.add(path);
+      }
+    }
+    for (Map.Entry<String, Node> entry : node.dirs.entrySet()) {
+      Path subdir = dir.resolve(entry.getKey());
+      if (FileUtil.mayMatchUnder(pathMatcher, subdir)) {
+        match(entry.getValue(), subdir, pathMatcher, result);
+      }
+    }
+  }
+
+  /**
+   * Returns the files and the directories directly inside {@code dir}: first the files and then
+   * the directories, each by name. Returns an empty list if {@code dir} is not a directory of the
+   * tree.
+   */
+  public synchronized ImmutableList<Path> list(Path dir) throws IOException {
+    Node node = getNode(dir);
+    if (node == null) {
+      return ImmutableList.of();
+    }
+    ImmutableList.Builder<Path> result = ImmutableList.builder();
+    for (String file : node.files) {
+      result.add(dir.resolve(file));
+    }
+    for (String subdir : node.dirs.keySet()) {
+      result.add(dir.resolve(subdir));
+    }
+    return result.build();
+  }
+
+  /**
+   * Returns true if {@code path} is a directory of the tree. Symlinks to directories are files.
+   */
+  public synchronized boolean isDirectory(Path path) throws IOException {
+    return getNode(path) != null;
+  }
+
+  @Nullable
+  private Node getNode(Path dir) throws IOException {
+    Node node = getTree();
+    if (dir.equals(root)) {
+      return node;
+    }
+    for (Path name : relativize(dir)) {
+      node = node.dirs.get(name.toString());
+      if (node == null) {
+        return null;
+      }
+    }
+    return node;
+  }
+
+  /**
+   * Returns true if {@code file} is binary and should be skipped by text transformations. The
+   * classification is cached until the file is moved or removed, or the index is invalidated.
+   * Every call that returns true is counted as a skip (see {@link #logBinarySkips()}).
+   *
+   * <p>This method can be called concurrently.
+   */
+  public boolean isBinary(Path file) throws IOException {
+    Boolean binary = binaryFiles.get(file);
+    if (binary == null) {
+      binary = binaryClassifier.isBinary(file);
+      binaryFiles.put(file, binary);
+    }
+    if (binary) {
+      binarySkips.incrementAndGet();
+    }
+    return binary;
+  }
+
+  /**
+   * Logs how many binary files were found and how many times text transformations skipped them.
+   */
+  public void logBinarySkips() {
+    int files = 0;
+    for (boolean binary : binaryFiles.values()) {
+      if (binary) {
+        files++;
+      }
+    }
+    logger.log(Level.INFO, String.format(
+        "Text transformations skipped %d binary file(s) %d time(s)", files, binarySkips.get()));
+  }
+
+  /**
+   * Deletes the files that match the PathMatcher from the file system and from the index. Like
+   * {@link FileUtil#deleteFilesRecursively(Path, PathMatcher)}, directories are not deleted.
+   *
+   * @return the number of deleted files
+   */
+  public synchronized int deleteMatching(PathMatcher pathMatcher) throws IOException {
+    ImmutableList<Path> files = match(pathMatcher);
+    for (Path file : files) {
+      Files.delete(file);
+      remove(file);
+    }
+    return files.size();
+  }
+
+  /**
+   * Records that {@code file} was created.
+   */
+  public synchronized void add(Path file) {
+    binaryFiles.remove(file);
+    if (tree == null) {
+      return;
+    }
+    Path relative = relativize(file);
+    Node node = tree;
+    for (int i = 0; i < relative.getNameCount() - 1; i++) {
+      node = node.dirs.computeIfAbsent(relative.getName(i).toString(), k -> new Node());
+    }
+    node.files.add(relative.getFileName().toString());
+  }
+
+  /**
+   * Records that {@code file} was deleted.
+   */
+  public synchronized void remove(Path file) {
+    binaryFiles.remove(file);
+    if (tree == null) {
+      return;
+    }
+    Path relative = relativize(file);
+    Node node = tree;
+    for (int i = 0; i < relative.getNameCount() - 1; i++) {
+      node = node.dirs.get(relative.getName(i).toString());
+      if (node == null) {
+        return;
+      }
+    }
+    node.files.remove(relative.getFileName().toString());
+  }
+
+  /**
+   * Records that the file {@code from} was moved to {@code to}.
+   */
+  public synchronized void move(Path from, Path to) {
+    Boolean binary = binaryFiles.get(from);
+    remove(from);
+    add(to);
+    if (binary != null) {
+      binaryFiles.put(to, binary);
+    } else {
+      binaryFiles.remove(to);
+    }
+  }
+
+  /**
+   * Records that the directory {@code dir} was created, with its missing parents. The root and its
+   * ancestors always exist.
+   */
+  public synchronized void addDirectory(Path dir) {
+    if (tree == null || root.startsWith(dir)) {
+      return;
+    }
+    Node node = tree;
+    for (Path name : relativize(dir)) {
+      node = node.dirs.computeIfAbsent(name.toString(), k -> new Node());
+    }
+  }
+
+  /**
+   * Records that the empty directory {@code dir} was deleted.
+   */
+  public synchronized void removeDirectory(Path dir) {
+    if (tree == null) {
+      return;
+    }
+    Path relative = relativize(dir);
+    Node parent = tree;
+    for (int i = 0; i < relative.getNameCount() - 1; i++) {
+      parent = parent.dirs.get(relative.getName(i).toString());
+      if (parent == null) {
+        return;
+      }
+    }
+    parent.dirs.remove(relative.getFileName().toString());
+  }
+
+  /**
+   * Records that the directory {@code from} was moved to {@code to}, with all its files.
+   */
+  public synchronized void moveDirectory(Path from, Path to) {
+    for (Path file : new ArrayList<>(binaryFiles.keySet())) {
+      if (file.startsWith(from)) {
+        Boolean binary = binaryFiles.remove(file);
+        if (binary != null) {
+          binaryFiles.put(to.resolve(from.relativize(file)), binary);
+        }
+      }
+    }
+    if (tree == null) {
+      return;
+    }
+    Node fromParent = tree;
+    Path relativeFrom = relativize(from);
+    for (int i = 0; i < relativeFrom.getNameCount() - 1; i++) {
+      fromParent = fromParent.dirs.get(relativeFrom.getName(i).toString());
+      if (fromParent == null) {
+        return;
+      }
+    }
+    Node moved = fromParent.dirs.remove(relativeFrom.getFileName().toString());
+    if (moved == null) {
+      return;
+    }
+    Path relativeTo = relativize(to);
+    Node toParent = tree;
+    for (int i = 0; i < relativeTo.getNameCount() - 1; i++) {
+      toParent = toParent.dirs.computeIfAbsent(relativeTo.getName(i).toString(), k -> new Node());
+    }
+    Node existing = toParent.dirs.putIfAbsent(relativeTo.getFileName().toString(), moved);
+    if (existing != null) {
+      merge(moved, existing);
+    }
+  }
+
+  private static void merge(Node from, Node to) {
+    to.files.addAll(from.files);
+    for (Map.Entry<String, Node> entry : from.dirs.entrySet()) {
+      Node existing = to.dirs.putIfAbsent(entry.getKey(), entry.getValue());
+      if (existing != null) {
+        merge(entry.getValue(), existing);
+      }
+    }
+  }
+
+  /**
+   * Discards the index. The tree will be read again from the file system on the next query.
+   */
+  public synchronized void invalidate() {
+    tree = null;
+    binaryFiles.clear();
+  }
+
+  private Path relativize(Path file) {
+    Preconditions.checkArgument(file.startsWith(root) && !file.equals(root),
+        "%s is not inside %s", file, root);
+    return root.relativize(file);
+  }
+
+  private Node getTree() throws IOException {
+    if (tree == null) {
+      tree = read(root);
+    }
+    return tree;
+  }
+
+  private static Node read(Path root) throws IOException {
+    Node result = new Node();
+    if (!Files.isDirectory(root)) {
+      return result;
+    }
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+      Node current;
+      final Deque<Node> parents = new ArrayDeque<>();
+
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+        if (current == null) {
+          current = result;
+        } else {
+          parents.push(current);
+          current = current.dirs.computeIfAbsent(dir.getFileName().toString(), k -> new Node());
+        }
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        current.files.add(file.getFileName().toString());
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+        if (exc != null) {
+          throw exc;
+        }
+        current = parents.isEmpty() ? null : parents.pop();
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    return result;
+  }
+
+  private static final class Node {
+    private final TreeMap<String, Node> dirs = new TreeMap<>();
+    private final TreeSet<String> files = new TreeSet<>();
+  }
+}
@@ -19,25 +19,40 @@ package com.google.copybara.util;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
 import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
+import javax.annotation.Nullable;
 
 /**
  * Utility methods for files
@@ -58,6 +73,13 @@ public final class FileUtil {
     }
   };
 
+  /**
+   * Default number of threads for the parallel file operations. File copies and deletions are
+   * mostly I/O bound, so we use more threads than cores for small machines.
+   */
+  public static final int DEFAULT_PARALLELISM =
+      Math.max(4, Runtime.getRuntime().availableProcessors());
+
   private FileUtil() {}
 
   private static final Pattern RELATIVISM = Pattern.compile("(.*/)?[.][.]?(/.*)?");
@@ -102,9 +124,43 @@ public final class FileUtil {
    */
   public static void copyFilesRecursively(final Path from, final Path to,
       CopySymlinkStrategy symlinkStrategy) throws IOException {
-    checkArgument(Files.isDirectory(from), "%s (from) is not a directory");
-    checkArgument(Files.isDirectory(to), "%s (to) is not a directory");
-    Files.walkFileTree(from, new CopyVisitor(from, to, symlinkStrategy));
+    checkArgument(Files.isDirectory(from), "%s (from) is not a directory", from);
+    checkArgument(Files.isDirectory(to), "%s (to) is not a directory", to);
+    Files.walkFileTree(from, new CopyVisitor(from, to, symlinkStrategy, /*allowHardlinks=*/false));
+  }
+
+  /**
+   * Like {@link #copyFilesRecursively(Path, Path, CopySymlinkStrategy)} but the files are copied
+   * using {@code parallelism} threads. The tree is walked once and each file (or symlink) is copied
+   * in a worker thread, so the symlink handling is the same as the sequential version.
+   *
+   * <p>If a copy fails, the rest of pending copies are cancelled and the error is rethrown once
+   * the copies in progress finish. Some files might have been copied already.
+   */
+  public static void copyFilesRecursively(final Path from, final Path to,
+      CopySymlinkStrategy symlinkStrategy, int parallelism) throws IOException {
+    copyFilesRecursively(from, to, symlinkStrategy, parallelism, /*allowHardlinks=*/false);
+  }
+
+  /**
+   * Like {@link #copyFilesRecursively(Path, Path, CopySymlinkStrategy, int)} but if
+   * {@code allowHardlinks} is true, regular files are hardlinked instead of copied when possible.
+   *
+   * <p>Hardlinks share the contents with the original file, so this should only be used when
+   * neither the files in {@code from} nor the copies are going to be modified in place.
+   * Materialized symlinks are always copied, since the copies are made writable.
+   */
+  public static void copyFilesRecursively(final Path from, final Path to,
+      CopySymlinkStrategy symlinkStrategy, int parallelism, boolean allowHardlinks)
+      throws IOException {
+    checkArgument(Files.isDirectory(from), "%s (from) is not a directory", from);
+    checkArgument(Files.isDirectory(to), "%s (to) is not a directory", to);
+    CopyVisitor copyVisitor = new CopyVisitor(from, to, symlinkStrategy, allowHardlinks);
+    if (parallelism <= 1) {
+      Files.walkFileTree(from, copyVisitor);
+      return;
+    }
+    forEachFileInParallel(from, ALL_FILES, parallelism, copyVisitor::copyFile);
   }
 
   public static int deleteAllFilesRecursively(Path path) throws IOException {
@@ -125,6 +181,13 @@ public final class FileUtil {
     final AtomicInteger counter = new AtomicInteger();
     Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
 
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+        return mayMatchUnder(pathMatcher, dir)
+            ? FileVisitResult.CONTINUE
+            : FileVisitResult.SKIP_SUBTREE;
+      }
+
       @Override
       public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
         if (pathMatcher.matches(file)) {
@@ -137,6 +200,108 @@ public final class FileUtil {
     return counter.get();
   }
 
+  /**
+   * Like {@link #deleteFilesRecursively(Path, PathMatcher)} but the files are deleted using
+   * {@code parallelism} threads.
+   *
+   * @throws IOException If it fails traversing or deleting the tree.
+   */
+  public static int deleteFilesRecursively(Path path, PathMatcher pathMatcher, int parallelism)
+      throws IOException {
+    if (parallelism <= 1) {
+      return deleteFilesRecursively(path, pathMatcher);
+    }
+    return forEachFileInParallel(path, pathMatcher, parallelism,
+        (file, attrs) -> Files.delete(file));
+  }
+
+  /**
+   * An operation over a file that can be run in a worker thread.
+   */
+  @FunctionalInterface
+  @VisibleForTesting
+  interface FileOperation {
+    void apply(Path file, BasicFileAttributes attrs) throws IOException;
+  }
+
+  /**
+   * Walks the tree under {@code root} in the current thread and runs {@code operation} for each
+   * file matching {@code pathMatcher} using a pool of {@code parallelism} threads. Like in
+   * {@link Files#walkFileTree(Path, java.nio.file.FileVisitor)}, symlinks are not followed.
+   *
+   * @return the number of files processed
+   */
+  @VisibleForTesting
+  static int forEachFileInParallel(Path root, PathMatcher pathMatcher, int parallelism,
+      FileOperation operation) throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    List<Future<Void>> results = new ArrayList<>();
+    try {
+      Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+          return mayMatchUnder(pathMatcher, dir)
+              ? FileVisitResult.CONTINUE
+              : FileVisitResult.SKIP_SUBTREE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+          if (pathMatcher.matches(file)) {
+            results.add(executor.submit(() -> {
+              operation.apply(file, attrs);
+              return null;
+            }));
+          }
+          return FileVisitResult.CONTINUE;
+        }
+      });
+      for (Future<Void> result : results) {
+        result.get();
+      }
+      return results.size();
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw new IOException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while processing files in " + root);
+    } finally {
+      executor.shutdownNow();
+      // Don't return while some operations are still modifying the tree.
+      awaitTermination(executor);
+    }
+  }
+
+  /**
+   * Waits for the tasks of a shut down {@code executor} to finish. If the thread is interrupted it
+   * keeps waiting, and the interrupted status is restored before returning.
+   */
+  private static void awaitTermination(ExecutorService executor) {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        if (executor.awaitTermination(1, TimeUnit.MINUTES)) {
+          break;
+        }
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Returns false if {@code pathMatcher} is known to not match any file inside {@code dir}. This
+   * can be used for skipping subtrees while walking a file tree.
+   */
+  public static boolean mayMatchUnder(PathMatcher pathMatcher, Path dir) {
+    return !(pathMatcher instanceof TreePathMatcher)
+        || ((TreePathMatcher) pathMatcher).mayMatchUnder(dir);
+  }
+
   /**
    * A {@link PathMatcher} that returns true if any of the delegate {@code pathMatchers} returns
    * true.
@@ -196,25 +361,67 @@ public final class FileUtil {
    * A visitor that copies files recursively. If symlinks are found, and are relative to 'from'
    * they symlink is maintained, unless forceCopySymlinks is set.
    */
+  /**
+   * Returns the POSIX attributes of {@code file}, or null if its file system doesn't support
+   * them. The file walks hand out basic attributes even for POSIX file systems (at least on
+   * Linux), so in that case they are read again. Symlinks are followed, since only regular files
+   * and materialized symlinks are copied.
+   */
+  @VisibleForTesting
+  @Nullable
+  static PosixFileAttributes posixAttributes(Path file, BasicFileAttributes attrs)
+      throws IOException {
+    if (attrs instanceof PosixFileAttributes) {
+      return (PosixFileAttributes) attrs;
+    }
+    if (!file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+      return null;
+    }
+    return Files.readAttributes(file, PosixFileAttributes.class);
+  }
+
   private static class CopyVisitor extends SimpleFileVisitor<Path> {
 
     private final Path to;
     private final Path from;
     private final CopySymlinkStrategy symlinkStrategy;
+    /** Directories already created in the destination. Safe to be used by several threads. */
+    private final Set<Path> createdDirs = ConcurrentHashMap.newKeySet();
 
-    CopyVisitor(Path from, Path to, CopySymlinkStrategy symlinkStrategy) {
+    private final boolean allowHardlinks;
+
+    CopyVisitor(Path from, Path to, CopySymlinkStrategy symlinkStrategy, boolean allowHardlinks) {
       this.to = to;
       this.from = from;
       this.symlinkStrategy = symlinkStrategy;
+      this.allowHardlinks = allowHardlinks;
     }
 
     @Override
     public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+      copyFile(file, attrs);
+      return FileVisitResult.CONTINUE;
+    }
+
+    private void createDirectories(Path dir) throws IOException {
+      // Only add the directory once it exists, so that other threads don't skip its creation
+      // before it is ready.
+      if (!createdDirs.contains(dir)) {
+        Files.createDirectories(dir);
+        createdDirs.add(dir);
+      }
+    }
+
+    /**
+     * Copies a file or symlink. This method can be called concurrently for different files.
+     *
+     * @param attrs the attributes of {@code file} (Not following symlinks), as read by the visitor
+     */
+    void copyFile(Path file, BasicFileAttributes attrs) throws IOException {
       Path destFile = to.resolve(from.relativize(file));
-      Files.createDirectories(destFile.getParent());
+      createDirectories(destFile.getParent());
 
-      boolean symlink = Files.isSymbolicLink(file);
-      if (symlink) {
+      if (attrs.isSymbolicLink()) {
         // If the symlink remains under 'from' we keep the symlink as relative.
         // Otherwise we copy it as a regular file.
         ResolvedSymlink resolvedSymlink = resolveSymlink(from, file);
@@ -236,25 +443,77 @@ public final class FileUtil {
             Files.createDirectory(destFile);
             Files.walkFileTree(resolvedSymlink.regularFile,
                 new CopyVisitor(resolvedSymlink.regularFile, destFile,
-                    CopySymlinkStrategy.MATERIALIZE_ALL));
-            return FileVisitResult.CONTINUE;
+                    CopySymlinkStrategy.MATERIALIZE_ALL, /*allowHardlinks=*/false));
+            return;
           }
+          // Make writable any symlink that we materialize. This is safe since we are doing a
+          // copy of the file. And it is probable that we will want to modify it.
+          copyRegularFile(file, destFile, Files.readAttributes(file, BasicFileAttributes.class),
+              /*makeWritable=*/true);
         } else {
           Files.createSymbolicLink(destFile, Files.readSymbolicLink(file));
-          return FileVisitResult.CONTINUE;
         }
+        return;
+      }
+      if (allowHardlinks && createLink(file, destFile)) {
+        return;
+      }
+      copyRegularFile(file, destFile, attrs, /*makeWritable=*/false);
+    }
+
+    /**
+     * Tries to create {@code dest} as a hardlink of {@code file}. Returns false if the file system
+     * doesn't support it, for example because they are in different devices.
+     */
+    private boolean createLink(Path file, Path dest) {
+      try {
+        Files.createLink(dest, file);
+        return true;
+      } catch (UnsupportedOperationException | IOException e) {
+        logger.log(Level.FINE, "Cannot hardlink " + file + ". Copying it instead", e);
+        return false;
+      }
+    }
+
+    /**
+     * Copies the content of {@code file} using {@link FileChannel#transferTo} so that the copy can
+     * be done by the kernel, and then copies the permissions and modification time. If the file
+     * system doesn't support POSIX attributes, it falls back to {@link Files#copy}.
+     */
+    private void copyRegularFile(Path file, Path dest, BasicFileAttributes basicAttrs,
+        boolean makeWritable) throws IOException {
+      PosixFileAttributes attrs = posixAttributes(file, basicAttrs);
+      if (attrs == null) {
+        Files.copy(file, dest, StandardCopyOption.COPY_ATTRIBUTES);
+        if (makeWritable) {
+          Set<PosixFilePermission> perms = new HashSet<>(Files.getPosixFilePermissions(dest));
+          if (!perms.contains(PosixFilePermission.OWNER_WRITE)) {
+            perms.add(PosixFilePermission.OWNER_WRITE);
+            Files.setPosixFilePermissions(dest, perms);
+          }
+        }
+        return;
       }
-      Files.copy(file, destFile, StandardCopyOption.COPY_ATTRIBUTES);
-      // Make writable any symlink that we materialize. This is safe since we have already
-      // done a copy of the file. And it is probable that we will want to modify it.
-      if (symlink) {
-        Set<PosixFilePermission> perms = new HashSet<>(Files.getPosixFilePermissions(destFile));
-        if (!perms.contains(PosixFilePermission.OWNER_WRITE)) {
-          perms.add(PosixFilePermission.OWNER_WRITE);
-          Files.setPosixFilePermissions(destFile, perms);
+      try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+          FileChannel out = FileChannel.open(dest,
+              StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+        long size = in.size();
+        long position = 0;
+        while (position < size) {
+          long transferred = in.transferTo(position, size - position, out);
+          if (transferred <= 0) {
+            // The file was truncated while copying.
+            break;
+          }
+          position += transferred;
         }
       }
-      return FileVisitResult.CONTINUE;
+      Set<PosixFilePermission> perms = new HashSet<>(attrs.permissions());
+      if (makeWritable) {
+        perms.add(PosixFilePermission.OWNER_WRITE);
+      }
+      Files.setPosixFilePermissions(dest, perms);
+      Files.setLastModifiedTime(dest, attrs.lastModifiedTime());
     }
 
     /**
@@ -31,7 +31,9 @@ import java.nio.file.PathMatcher;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import javax.annotation.Nullable;
 
 /**
@@ -82,17 +84,59 @@ public final class Glob {
 
   public static final Glob ALL_FILES = new Glob(ImmutableList.of("**"));
 
-  public PathMatcher relativeTo(Path path) {
-    ImmutableList.Builder<PathMatcher> includeList = ImmutableList.builder();
-    for (String path1 : include) {
-      includeList.add(ReadablePathMatcher.relativeGlob(path, path1));
+  /**
+   * Creates a {@link TreePathMatcher} for the glob relative to {@code path}.
+   *
+   * <p>The include patterns are indexed by their literal leading segments, so that a path is only
+   * checked against the patterns that could match it, and directories that are outside all of the
+   * include patterns or that are completely excluded can be skipped while walking the tree.
+   */
+  public TreePathMatcher relativeTo(Path path) {
+    PrefixNode includeTrie = new PrefixNode();
+    for (String glob : include) {
+      List<String> literalPrefix = literalPrefix(glob);
+      includeTrie.add(literalPrefix, ReadablePathMatcher.relativeGlob(path, glob),
+          /*literal=*/literalPrefix.size() == Splitter.on('/').splitToList(glob).size());
     }
     PathMatcher excludeMatcher = (exclude == null)
         ? FileUtil.anyPathMatcher(ImmutableList.<PathMatcher>of())
         : exclude.relativeTo(path);
-    return new GlobPathMatcher(
-        FileUtil.anyPathMatcher(includeList.build()),
-        excludeMatcher);
+    return new GlobPathMatcher(path, includeTrie, excludeMatcher, excludedSubtrees(path));
+  }
+
+  /**
+   * Returns matchers for the directories whose contents are completely excluded. For an exclude
+   * pattern like {@code foo/**}, any directory matching {@code foo} is excluded.
+   */
+  private ImmutableList<PathMatcher> excludedSubtrees(Path path) {
+    // An exclude with its own exclude can re-include files inside excluded directories.
+    if (exclude == null || exclude.exclude != null) {
+      return ImmutableList.of();
+    }
+    ImmutableList.Builder<PathMatcher> result = ImmutableList.builder();
+    for (String glob : exclude.include) {
+      if (glob.equals("**")) {
+        result.add(p -> true);
+      } else if (glob.endsWith("/**")) {
+        result.add(ReadablePathMatcher.relativeGlob(path,
+            glob.substring(0, glob.length() - "/**".length())));
+      }
+    }
+    return result.build();
+  }
+
+  /**
+   * Returns the leading path segments of a glob that don't contain metacharacters, unescaped.
+   */
+  private static List<String> literalPrefix(String glob) {
+    List<String> result = new ArrayList<>();
+    for (String component : Splitter.on('/').split(glob)) {
+      if (isMeta(component)) {
+        break;
+      }
+      result.add(unescape(component));
+    }
+    return result;
   }
 
   @Override
@@ -165,11 +209,11 @@ public final class Glob {
     return ImmutableSet.copyOf(roots);
   }
 
-  private String unescape(String pathComponent) {
+  private static String unescape(String pathComponent) {
     return pathComponent.replaceAll("\\\\(.)", "$1");
   }
 
-  private boolean isMeta(String pathComponent) {
+  private static boolean isMeta(String pathComponent) {
     int c = 0;
     while (c < pathComponent.length()) {
       switch (pathComponent.charAt(c)) {
@@ -187,19 +231,104 @@ public final class Glob {
     return false;
   }
 
-  private class GlobPathMatcher implements PathMatcher {
+  /**
+   * A trie of literal path segments. Each node contains the matchers of the include patterns whose
+   * literal prefix ends in that node.
+   */
+  private static final class PrefixNode {
+
+    private final Map<String, PrefixNode> children = new HashMap<>();
+    private final List<PathMatcher> matchers = new ArrayList<>();
+    /**
+     * True if a pattern with metacharacters after its literal prefix ends in this node, so that
+     * any file under the node might match.
+     */
+    private boolean open;
 
-    private final PathMatcher includeMatcher;
+    void add(List<String> literalPrefix, PathMatcher matcher, boolean literal) {
+      PrefixNode node = this;
+      for (String segment : literalPrefix) {
+        node = node.children.computeIfAbsent(segment, k -> new PrefixNode());
+      }
+      node.matchers.add(matcher);
+      // A completely literal pattern only matches the node itself.
+      if (!literal) {
+        node.open = true;
+      }
+    }
+  }
+
+  private class GlobPathMatcher implements TreePathMatcher {
+
+    private final Path root;
+    private final PrefixNode includeTrie;
     private final PathMatcher excludeMatcher;
+    private final ImmutableList<PathMatcher> excludedSubtrees;
 
-    GlobPathMatcher(PathMatcher includeMatcher, PathMatcher excludeMatcher) {
-      this.includeMatcher = includeMatcher;
+    GlobPathMatcher(Path root, PrefixNode includeTrie, PathMatcher excludeMatcher,
+        ImmutableList<PathMatcher> excludedSubtrees) {
+      this.root = root;
+      this.includeTrie = includeTrie;
       this.excludeMatcher = excludeMatcher;
+      this.excludedSubtrees = excludedSubtrees;
     }
 
     @Override
     public boolean matches(Path path) {
-      return includeMatcher.matches(path) && !excludeMatcher.matches(path);
+      return includeMatches(path) && !excludeMatcher.matches(path);
+    }
+
+    private boolean includeMatches(Path path) {
+      if (!path.startsWith(root)) {
+        return anyMatches(allMatchers(includeTrie, new ArrayList<>()), path);
+      }
+      PrefixNode node = includeTrie;
+      if (anyMatches(node.matchers, path)) {
+        return true;
+      }
+      for (Path segment : relativeSegments(path)) {
+        node = node.children.get(segment.toString());
+        if (node == null) {
+          return false;
+        }
+        if (anyMatches(node.matchers, path)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public boolean mayMatchUnder(Path dir) {
+      if (!dir.startsWith(root)) {
+        return true;
+      }
+      if (!excludedSubtrees.isEmpty()) {
+        for (Path current = dir; current.startsWith(root); current = current.getParent()) {
+          if (anyMatches(excludedSubtrees, current)) {
+            return false;
+          }
+          if (current.equals(root)) {
+            break;
+          }
+        }
+      }
+      PrefixNode node = includeTrie;
+      for (Path segment : relativeSegments(dir)) {
+        if (node.open) {
+          return true;
+        }
+        node = node.children.get(segment.toString());
+        if (node == null) {
+          return false;
+        }
+      }
+      return node.open || !node.children.isEmpty();
+    }
+
+    private Iterable<Path> relativeSegments(Path path) {
+      // The relative path of the root is the empty path, that has a single empty segment.
+      return path.equals(root) ? ImmutableList.of() : root.relativize(path);
     }
 
     @Override
@@ -207,4 +336,21 @@ public final class Glob {
       return Glob.this.toString();
     }
   }
+
+  private static boolean anyMatches(List<PathMatcher> matchers, Path path) {
+    for (PathMatcher matcher : matchers) {
+      if (matcher.matches(path)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static List<PathMatcher> allMatchers(PrefixNode node, List<PathMatcher> result) {
+    result.addAll(node.matchers);
+    for (PrefixNode child : node.children.values()) {
+      allMatchers(child, result);
+    }
+    return result;
+  }
 }
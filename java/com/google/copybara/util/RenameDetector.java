@@ -16,69 +16,143 @@
 
 package com.google.copybara.util;
 
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ComparisonChain;
+import com.google.common.collect.ImmutableList;
 import com.google.common.io.ByteProcessor;
 import com.google.common.io.ByteStreams;
-import com.google.common.primitives.Ints;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Class for detecting renames between two repo versions. This is intended to be used when
  * implementing {@code Destination} for repositories that don't automatically detect renames
  * (e.g. Mercurial).
  *
+ * <p>The hashes of the prior files are kept in an inverted index from line hash to the prior files
+ * that contain it, so scoring a later file only looks at the prior files that share at least one
+ * line with it.
+ *
+ * <p>This class is not thread-safe.
+ *
  * @param <I> type of key to use for referencing files in the prior revision
  */
 public final class RenameDetector<I> {
 
-  private final List<PriorFile<I>> priorFiles = new ArrayList<>();
+  /**
+   * The maximum score that can be returned. This value gives high-enough resolution for reasonably
+   * sized files and eliminates the risk of overflow for source files with fewer than
+   * 2,000,000 lines (roughly {@code Integer.MAX_VALUE / MAX_SCORE}).
+   */
+  public static final int MAX_SCORE = 1000;
 
-  private static final class PriorFile<I> {
-    /**
-     * Key associated with the name of the file in the prior revision. For instance, this can just
-     * be a String of the relative path from the repo root.
-     */
-    I key;
+  private final int minScore;
 
-    /**
-     * A list of hashes corresponding with chunks of content in the file.
-     *
-     * TODO(copybara-team): Store hash counts rather than just the hash itself.
-     */
-    int[] hashes;
+  private final List<I> priorKeys = new ArrayList<>();
+  /** Number of distinct hashes of each prior file, indexed like {@link #priorKeys}. */
+  private int[] priorSizes = new int[16];
+  /** The hashes of the prior files added since the index was built. */
+  private final List<int[]> pendingHashes = new ArrayList<>();
+  private final Index index = new Index();
+  private final Scorer scorer = new Scorer();
+
+  /**
+   * Creates a detector that returns all the prior files that share at least one line with the
+   * later file.
+   */
+  public RenameDetector() {
+    this.minScore = 0;
   }
 
+  /**
+   * Creates a detector that only returns the prior files with a score of at least
+   * {@code minScore}. Like git, prior files whose size is too different from the later file to
+   * reach that score are not compared.
+   *
+   * @param minScore a score between 1 and {@link #MAX_SCORE}
+   */
+  public RenameDetector(int minScore) {
+    Preconditions.checkArgument(minScore > 0 && minScore <= MAX_SCORE,
+        "minScore must be between 1 and %s: %s", MAX_SCORE, minScore);
+    this.minScore = minScore;
+  }
+
+  /**
+   * Computes the sorted, distinct hashes of the lines of a file.
+   */
   private static final class HashingByteProcessor implements ByteProcessor<int[]> {
 
     int hash;
-    HashSet<Integer> hashes = new HashSet<Integer>();
+    /** Whether there are bytes after the last newline. */
+    boolean pendingLine;
+    int[] hashes = new int[64];
+    int count;
 
     @Override
     public boolean processBytes(byte[] buf, int off, int len) {
       int end = len + off;
-      while (off != len) {
-        hash *= 31;
-        byte b = buf[off++];
-        hash += b;
-        if (b == '\n') {
-          hashes.add(hash);
-          hash = 0;
-        }
+      while (off != end) {
+        processByte(buf[off++]);
       }
       return true;
     }
 
+    void processBuffer(ByteBuffer buffer) {
+      int limit = buffer.limit();
+      for (int i = buffer.position(); i < limit; i++) {
+        processByte(buffer.get(i));
+      }
+    }
+
+    private void processByte(byte b) {
+      hash *= 31;
+      hash += b;
+      if (b == '\n') {
+        add(hash);
+        hash = 0;
+        pendingLine = false;
+      } else {
+        pendingLine = true;
+      }
+    }
+
+    private void add(int hash) {
+      if (count == hashes.length) {
+        hashes = Arrays.copyOf(hashes, count * 2);
+      }
+      hashes[count++] = hash;
+    }
+
     @Override
     public int[] getResult() {
-      hashes.add(hash);
-      int[] hashesArray = Ints.toArray(hashes);
-      Arrays.sort(hashesArray);
-      return hashesArray;
+      // The empty "line" after the final newline is not hashed, or all the files that end with a
+      // newline would share it. Empty files get a hash so that they can be scored.
+      if (pendingLine || count == 0) {
+        add(hash);
+      }
+      Arrays.sort(hashes, 0, count);
+      int distinct = 0;
+      for (int i = 0; i < count; i++) {
+        if (i == 0 || hashes[i] != hashes[distinct - 1]) {
+          hashes[distinct++] = hashes[i];
+        }
+      }
+      return Arrays.copyOf(hashes, distinct);
     }
   }
 
@@ -98,18 +172,17 @@ public final class RenameDetector<I> {
    * the later revision. Closes {@code input} before returning.
    */
   public void addPriorFile(I key, InputStream input) throws IOException {
-    PriorFile<I> hash = new PriorFile<I>();
-    hash.key = key;
-    hash.hashes = hashes(input);
-    priorFiles.add(hash);
+    addPriorHashes(key, hashes(input));
   }
 
-  /**
-   * The maximum score that can be returned. This value gives high-enough resolution for reasonably
-   * sized files and eliminates the risk of overflow for source files with fewer than
-   * 2,000,000 lines (roughly {@code Integer.MAX_VALUE / MAX_SCORE}).
-   */
-  public static final int MAX_SCORE = 1000;
+  private void addPriorHashes(I key, int[] hashes) {
+    if (priorKeys.size() == priorSizes.length) {
+      priorSizes = Arrays.copyOf(priorSizes, priorSizes.length * 2);
+    }
+    priorSizes[priorKeys.size()] = hashes.length;
+    priorKeys.add(key);
+    pendingHashes.add(hashes);
+  }
 
   /**
    * Hashes a single file in the later revision so it can be checked for similarities with all files
@@ -120,53 +193,281 @@ public final class RenameDetector<I> {
    * algorithms hash every line of every file, store a list of the hash-codes for each file, and
    * then check the number of shared hash-codes between files to estimate their similarity.
    *
-   * <p>The Git algorithm has a concept of a minimum score. i.e. if two files have < X%
-   * similarity, they will not be returned in the results. This allows some file comparisons to be
-   * skipped because of large differences in size. That is not implemented here: all similarities
-   * greater than 0% (one or more shared lines) are returned.
+   * <p>The score of a prior file is the number of shared hashes relative to the number of hashes of
+   * the prior file. If the detector was created with a minimum score, prior files with a lower
+   * score are not returned, and the ones that differ too much in size from the later file are
+   * skipped without counting the shared hashes, like Git does. Otherwise all similarities greater
+   * than 0% (one or more shared lines) are returned.
    *
    * <p>When calling this method, the later file is checked against all the prior files added with
    * {@link addPriorFile(Object,InputStream)}, scored based on the number of shared hashes, and
-   * files with a score greater than 0 are returned.
+   * the matching files are returned sorted by decreasing score.
    */
   public List<Score<I>> scoresForLaterFile(InputStream input) throws IOException {
-    List<Score<I>> results = new ArrayList<>();
     int[] laterHashes = hashes(input);
+    updateIndex();
+    return scorer.score(laterHashes);
+  }
+
+  private void updateIndex() {
+    if (!pendingHashes.isEmpty()) {
+      index.add(pendingHashes, priorKeys.size() - pendingHashes.size());
+      pendingHashes.clear();
+    }
+  }
+
+  /**
+   * Finds the best renames between the files of two revisions.
+   *
+   * <p>All the files are read and hashed in parallel, memory-mapping the big ones. Then each later
+   * file is scored against the prior files with the same algorithm as
+   * {@link #scoresForLaterFile(InputStream)}, and the renames are chosen greedily by decreasing
+   * score like git does: every prior and later file is part of at most one rename.
+   *
+   * @param priorFiles the files of the prior revision, by key
+   * @param laterFiles the files of the later revision, by key
+   * @param minScore minimum score of a rename, between 1 and {@link #MAX_SCORE}
+   * @param parallelism number of threads used for reading and scoring the files
+   * @return the renames sorted by decreasing score
+   */
+  public static <K> ImmutableList<Rename<K>> findRenames(Map<K, Path> priorFiles,
+      Map<K, Path> laterFiles, int minScore, int parallelism) throws IOException {
+    RenameDetector<K> detector = new RenameDetector<>(minScore);
+    List<K> laterKeys = ImmutableList.copyOf(laterFiles.keySet());
+    List<Candidate> candidates = new ArrayList<>();
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    try {
+      List<Future<int[]>> priorHashes = hashFiles(executor, priorFiles.values());
+      List<Future<int[]>> laterFutures = hashFiles(executor, laterFiles.values());
+      int priorId = 0;
+      for (K key : priorFiles.keySet()) {
+        detector.addPriorHashes(key, priorHashes.get(priorId++).get());
+      }
+      detector.updateIndex();
+      List<int[]> laterHashes = new ArrayList<>(laterFutures.size());
+      for (Future<int[]> hashes : laterFutures) {
+        laterHashes.add(hashes.get());
+      }
+
+      // Each task has its own scorer, since they are not thread-safe. The index is not modified
+      // anymore.
+      List<Future<List<Candidate>>> scored = new ArrayList<>();
+      int chunkSize = Math.max(1, (laterKeys.size() + parallelism - 1) / parallelism);
+      for (int start = 0; start < laterKeys.size(); start += chunkSize) {
+        int chunkStart = start;
+        int chunkEnd = Math.min(start + chunkSize, laterKeys.size());
+        scored.add(executor.submit(() -> {
+          RenameDetector<K>.Scorer scorer = detector.new Scorer();
+          List<Candidate> result = new ArrayList<>();
+          for (int later = chunkStart; later < chunkEnd; later++) {
+            for (Score<K> score : scorer.score(laterHashes.get(later))) {
+              result.add(new Candidate(score.priorId, later, score.score));
+            }
+          }
+          return result;
+        }));
+      }
+      for (Future<List<Candidate>> result : scored) {
+        candidates.addAll(result.get());
+      }
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw new IOException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while detecting renames");
+    } finally {
+      executor.shutdownNow();
+    }
+
+    Collections.sort(candidates);
+    boolean[] usedPriors = new boolean[detector.priorKeys.size()];
+    boolean[] usedLaters = new boolean[laterKeys.size()];
+    ImmutableList.Builder<Rename<K>> renames = ImmutableList.builder();
+    for (Candidate candidate : candidates) {
+      if (!usedPriors[candidate.prior] && !usedLaters[candidate.later]) {
+        usedPriors[candidate.prior] = true;
+        usedLaters[candidate.later] = true;
+        renames.add(new Rename<>(detector.priorKeys.get(candidate.prior),
+            laterKeys.get(candidate.later), candidate.score));
+      }
+    }
+    return renames.build();
+  }
+
+  private static List<Future<int[]>> hashFiles(ExecutorService executor, Collection<Path> files) {
+    List<Future<int[]>> result = new ArrayList<>(files.size());
+    for (Path file : files) {
+      result.add(executor.submit(() -> {
+        HashingByteProcessor processor = new HashingByteProcessor();
+        processor.processBuffer(FileContent.read(file).bytes());
+        return processor.getResult();
+      }));
+    }
+    return result;
+  }
+
+  /**
+   * Scores later files against the indexed prior files. It keeps scratch arrays between calls, so
+   * it is not thread-safe, but several scorers can be used in parallel.
+   */
+  private final class Scorer {
 
-    for (PriorFile<I> priorFile : priorFiles) {
-      // Determine the number of hashes that priorFile.hashes and laterHashes have in common.
-      int matchCount = 0;
-      int priorIndex = 0;
-      int laterIndex = 0;
-      while (priorIndex < priorFile.hashes.length && laterIndex < laterHashes.length) {
-        int priorHash = priorFile.hashes[priorIndex];
-        int laterHash = laterHashes[laterIndex];
-        if (laterHash > priorHash) {
-          priorIndex++;
-        } else {
-          laterIndex++;
-          if (priorHash == laterHash) {
-            matchCount++;
+    /** Shared hashes with each prior file. Reset after each call. */
+    private int[] matchCounts = new int[0];
+    /** The prior files with a non-zero {@link #matchCounts} entry. */
+    private int[] matched = new int[16];
+
+    private List<Score<I>> score(int[] laterHashes) {
+      if (matchCounts.length < priorKeys.size()) {
+        matchCounts = new int[priorSizes.length];
+      }
+      int matchedCount = 0;
+      for (int hash : laterHashes) {
+        int position = Arrays.binarySearch(index.hashes, 0, index.hashCount, hash);
+        if (position < 0) {
+          continue;
+        }
+        for (int i = index.postingStarts[position]; i < index.postingStarts[position + 1]; i++) {
+          int prior = index.postings[i];
+          if (matchCounts[prior]++ == 0) {
+            if (matchedCount == matched.length) {
+              matched = Arrays.copyOf(matched, matchedCount * 2);
+            }
+            matched[matchedCount++] = prior;
           }
         }
       }
-      if (matchCount != 0) {
-        results.add(new Score<>(priorFile.key, matchCount * MAX_SCORE / priorFile.hashes.length));
+      // Keep the order in which the prior files were added for equal scores.
+      Arrays.sort(matched, 0, matchedCount);
+
+      List<Score<I>> results = new ArrayList<>();
+      for (int i = 0; i < matchedCount; i++) {
+        int prior = matched[i];
+        if (minScore > 0 && sizesTooDifferent(priorSizes[prior], laterHashes.length)) {
+          matchCounts[prior] = 0;
+          continue;
+        }
+        int score = matchCounts[prior] * MAX_SCORE / priorSizes[prior];
+        matchCounts[prior] = 0;
+        if (score >= minScore) {
+          results.add(new Score<>(priorKeys.get(prior), prior, score));
+        }
+      }
+
+      Collections.sort(results, (a, b) -> Integer.compare(b.score, a.score));
+
+      return results;
+    }
+  }
+
+  /**
+   * Returns true if two files with these number of hashes cannot reach the minimum score. This is
+   * the same check that {@code estimate_similarity} in diffcore-rename.c does with the file sizes.
+   */
+  private boolean sizesTooDifferent(int priorSize, int laterSize) {
+    long base = Math.min(priorSize, laterSize);
+    long delta = Math.max(priorSize, laterSize) - base;
+    return base * (MAX_SCORE - minScore) < delta * MAX_SCORE;
+  }
+
+  /**
+   * An inverted index from line hash to the prior files that contain it, stored in primitive
+   * arrays: the prior files that contain {@code hashes[i]} are
+   * {@code postings[postingStarts[i]]..postings[postingStarts[i + 1] - 1]}, in increasing order.
+   */
+  private static final class Index {
+
+    int hashCount;
+    int[] hashes = new int[0];
+    int[] postingStarts = {0};
+    int[] postings = new int[0];
+
+    /**
+     * Adds the hashes of the prior files with ids starting with {@code firstId}. Files are added
+     * in increasing id order, so the postings stay sorted.
+     */
+    void add(List<int[]> newFiles, int firstId) {
+      int total = postings.length;
+      for (int[] fileHashes : newFiles) {
+        total += fileHashes.length;
+      }
+      // Sort the (hash, prior) pairs of the existing and the new postings, encoded as longs so
+      // that they sort by hash first. Prior ids are positive, so they sort correctly too.
+      long[] pairs = new long[total];
+      int count = 0;
+      for (int i = 0; i < hashCount; i++) {
+        for (int j = postingStarts[i]; j < postingStarts[i + 1]; j++) {
+          pairs[count++] = pair(hashes[i], postings[j]);
+        }
+      }
+      for (int file = 0; file < newFiles.size(); file++) {
+        for (int hash : newFiles.get(file)) {
+          pairs[count++] = pair(hash, firstId + file);
+        }
+      }
+      Arrays.sort(pairs);
+
+      int[] newHashes = new int[total];
+      int[] newStarts = new int[total + 1];
+      int[] newPostings = new int[total];
+      int distinct = 0;
+      for (int i = 0; i < total; i++) {
+        int hash = (int) (pairs[i] >> 32);
+        if (i == 0 || hash != newHashes[distinct - 1]) {
+          newStarts[distinct] = i;
+          newHashes[distinct++] = hash;
+        }
+        newPostings[i] = (int) pairs[i];
       }
+      newStarts[distinct] = total;
+      hashCount = distinct;
+      hashes = Arrays.copyOf(newHashes, distinct);
+      postingStarts = Arrays.copyOf(newStarts, distinct + 1);
+      postings = newPostings;
     }
 
-    Collections.sort(results, (a, b) -> Integer.compare(b.score, a.score));
+    private static long pair(int hash, int prior) {
+      return ((long) hash << 32) | prior;
+    }
+  }
 
-    return results;
+  /**
+   * A possible rename between a prior and a later file, ordered by decreasing score. Equal scores
+   * are ordered by later file and then by prior file, in the order they were given.
+   */
+  private static final class Candidate implements Comparable<Candidate> {
+
+    private final int prior;
+    private final int later;
+    private final int score;
+
+    private Candidate(int prior, int later, int score) {
+      this.prior = prior;
+      this.later = later;
+      this.score = score;
+    }
+
+    @Override
+    public int compareTo(Candidate other) {
+      return ComparisonChain.start()
+          .compare(other.score, score)
+          .compare(later, other.later)
+          .compare(prior, other.prior)
+          .result();
+    }
   }
 
   public static final class Score<I> {
 
     private final I key;
+    /** Position of the prior file in the order they were added. */
+    private final int priorId;
     private final int score;
 
-    Score(I key, int score) {
+    Score(I key, int priorId, int score) {
       this.key = key;
+      this.priorId = priorId;
       this.score = score;
     }
 
@@ -178,4 +479,42 @@ public final class RenameDetector<I> {
       return score;
     }
   }
+
+  /**
+   * A rename between a prior and a later file found by
+   * {@link #findRenames(Map, Map, int, int)}.
+   */
+  public static final class Rename<K> {
+
+    private final K prior;
+    private final K later;
+    private final int score;
+
+    Rename(K prior, K later, int score) {
+      this.prior = prior;
+      this.later = later;
+      this.score = score;
+    }
+
+    public K getPrior() {
+      return prior;
+    }
+
+    public K getLater() {
+      return later;
+    }
+
+    public int getScore() {
+      return score;
+    }
+
+    @Override
+    public String toString() {
+      return MoreObjects.toStringHelper(this)
+          .add("prior", prior)
+          .add("later", later)
+          .add("score", score)
+          .toString();
+    }
+  }
 }
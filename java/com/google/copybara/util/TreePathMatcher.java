@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.util;
+
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+
+/**
+ * A {@link PathMatcher} that can also tell if a directory might contain matching files, so that
+ * file tree walks can skip whole subtrees.
+ */
+public interface TreePathMatcher extends PathMatcher {
+
+  /**
+   * Returns false only if no file inside {@code dir} (at any depth) can match. Implementations
+   * are allowed to return true conservatively.
+   */
+  boolean mayMatchUnder(Path dir);
+}
@@ -0,0 +1,613 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.util;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.Nullable;
+
+/**
+ * A unified diff, like the ones generated by {@code git diff}, that can be applied to a directory
+ * without running {@code git apply}.
+ *
+ * <p>Only text changes are supported: hunks with context, new and deleted files and renames. A
+ * diff with anything else, like binary patches, mode changes, copies or symlinks, is not
+ * supported and {@link #apply} doesn't modify anything. The same happens if a hunk doesn't apply.
+ * Callers are expected to fall back to {@code git apply} in both cases, which also reports the
+ * errors.
+ *
+ * <p>Hunks are matched like {@code git apply} does by default: all the context has to match, the
+ * hunk can be applied at a different line if the file changed, and a hunk without leading or
+ * trailing context has to match at the beginning or the end of the file.
+ *
+ * <p>The content is handled as bytes, so any encoding and line ending works.
+ */
+public final class UnifiedDiff {
+
+  private static final String DEV_NULL = "/dev/null";
+  private static final String REGULAR_FILE_MODE = "100644";
+  private static final String EXECUTABLE_FILE_MODE = "100755";
+  private static final Pattern HUNK_HEADER =
+      Pattern.compile("^@@ -(\\d+)(?:,(\\d+))? \\+(\\d+)(?:,(\\d+))? @@.*");
+
+  private final ImmutableList<FilePatch> filePatches;
+  private final boolean supported;
+
+  private UnifiedDiff(ImmutableList<FilePatch> filePatches, boolean supported) {
+    this.filePatches = filePatches;
+    this.supported = supported;
+  }
+
+  /**
+   * Parses {@code diff}, removing {@code stripSlashes} leading components from the paths like
+   * {@code git apply -p<n>} does.
+   */
+  public static UnifiedDiff parse(byte[] diff, int stripSlashes) {
+    Preconditions.checkArgument(stripSlashes >= 0, "stripSlashes must be >= 0.");
+    try {
+      return new UnifiedDiff(new Parser(diff, stripSlashes).parse(), /*supported=*/true);
+    } catch (UnsupportedDiffException e) {
+      return new UnifiedDiff(ImmutableList.of(), /*supported=*/false);
+    }
+  }
+
+  /**
+   * Returns true if all the changes of the diff can be applied by {@link #apply}.
+   */
+  public boolean isSupported() {
+    return supported;
+  }
+
+  /**
+   * Returns the paths of the files that the diff modifies, creates, deletes or renames, relative
+   * to the directory where it is applied. Empty if the diff is not supported.
+   */
+  public ImmutableSet<String> getPaths() {
+    ImmutableSet.Builder<String> paths = ImmutableSet.builder();
+    for (FilePatch filePatch : filePatches) {
+      if (filePatch.oldPath != null) {
+        paths.add(filePatch.oldPath);
+      }
+      if (filePatch.newPath != null) {
+        paths.add(filePatch.newPath);
+      }
+    }
+    return paths.build();
+  }
+
+  /**
+   * Returns the paths of the files that have to exist to apply the diff, or to revert it if
+   * {@code reverse} is true. That is, all the paths except the new files.
+   */
+  public ImmutableSet<String> getRequiredPaths(boolean reverse) {
+    ImmutableSet.Builder<String> paths = ImmutableSet.builder();
+    for (FilePatch filePatch : filePatches) {
+      String path = reverse ? filePatch.newPath : filePatch.oldPath;
+      if (path != null) {
+        paths.add(path);
+      }
+    }
+    return paths.build();
+  }
+
+  /**
+   * Applies the diff to the files in {@code rootDir}, or reverts it if {@code reverse} is true.
+   *
+   * <p>Returns false, without modifying any file, if the diff is not supported or doesn't apply
+   * cleanly.
+   */
+  public boolean apply(Path rootDir, boolean reverse) throws IOException {
+    if (!supported) {
+      return false;
+    }
+    // Contents after applying the previous file patches. Null values are deleted files.
+    Map<String, byte[]> contents = new HashMap<>();
+    List<Operation> operations = new ArrayList<>();
+    for (FilePatch filePatch : filePatches) {
+      FilePatch patch = reverse ? filePatch.reverse() : filePatch;
+      byte[] original = patch.oldPath == null
+          ? null
+          : read(rootDir, patch.oldPath, contents);
+      if (patch.oldPath != null && original == null) {
+        return false;
+      }
+      byte[] result = applyHunks(original == null ? new byte[0] : original, patch.hunks);
+      if (result == null) {
+        return false;
+      }
+      if (patch.newPath == null) {
+        // Deleted files have to match completely.
+        if (result.length != 0) {
+          return false;
+        }
+        contents.put(patch.oldPath, null);
+        operations.add(new Operation(patch.oldPath, /*to=*/null, /*content=*/null));
+        continue;
+      }
+      if (!patch.newPath.equals(patch.oldPath)) {
+        // New files and the destination of renames cannot exist.
+        if (read(rootDir, patch.newPath, contents) != null
+            || Files.exists(rootDir.resolve(patch.newPath), LinkOption.NOFOLLOW_LINKS)) {
+          return false;
+        }
+        if (patch.oldPath != null) {
+          contents.put(patch.oldPath, null);
+        }
+      }
+      contents.put(patch.newPath, result);
+      operations.add(new Operation(patch.oldPath, patch.newPath, result));
+    }
+    for (Operation operation : operations) {
+      operation.run(rootDir);
+    }
+    return true;
+  }
+
+  /**
+   * Returns the current content of {@code path}, or null if it doesn't exist. Returns null too for
+   * anything that is not a regular file, like symlinks, that are not supported.
+   */
+  @Nullable
+  private static byte[] read(Path rootDir, String path, Map<String, byte[]> contents)
+      throws IOException {
+    if (contents.containsKey(path)) {
+      return contents.get(path);
+    }
+    Path file = rootDir.resolve(path);
+    if (!Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS)) {
+      return null;
+    }
+    return Files.readAllBytes(file);
+  }
+
+  /**
+   * Applies the hunks to {@code content}. Returns null if one of them doesn't match.
+   */
+  @Nullable
+  private static byte[] applyHunks(byte[] content, List<Hunk> hunks) {
+    List<String> lines = splitLines(new String(content, ISO_8859_1));
+    for (Hunk hunk : hunks) {
+      int position = find(lines, hunk);
+      if (position == -1) {
+        return null;
+      }
+      List<String> replaced = lines.subList(position, position + hunk.oldLines.size());
+      replaced.clear();
+      replaced.addAll(hunk.newLines);
+    }
+    StringBuilder result = new StringBuilder(content.length);
+    for (String line : lines) {
+      result.append(line);
+    }
+    return result.toString().getBytes(ISO_8859_1);
+  }
+
+  /**
+   * Returns the line where {@code hunk} matches, searching from the line in the hunk header
+   * backwards and forwards. Returns -1 if it doesn't match anywhere.
+   */
+  private static int find(List<String> lines, Hunk hunk) {
+    int size = hunk.oldLines.size();
+    int last = lines.size() - size;
+    if (last < 0) {
+      return -1;
+    }
+    // Previous hunks are already applied, so the position in the new file is the expected one.
+    int expected = Math.max(0, Math.min(last, hunk.newStart > 0 ? hunk.newStart - 1 : 0));
+    for (int distance = 0; distance <= Math.max(expected, last - expected); distance++) {
+      if (matches(lines, hunk, expected - distance)) {
+        return expected - distance;
+      }
+      if (distance > 0 && matches(lines, hunk, expected + distance)) {
+        return expected + distance;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean matches(List<String> lines, Hunk hunk, int position) {
+    int size = hunk.oldLines.size();
+    if (position < 0 || position + size > lines.size()) {
+      return false;
+    }
+    // Without leading or trailing context, the hunk has to match at the beginning or the end.
+    if ((hunk.oldStart <= 1 && position != 0)
+        || (hunk.trailingContext == 0 && position + size != lines.size())) {
+      return false;
+    }
+    return lines.subList(position, position + size).equals(hunk.oldLines);
+  }
+
+  /**
+   * Splits {@code text} in lines, keeping the line terminators. The last line doesn't have one if
+   * the text doesn't end with a new line.
+   */
+  private static List<String> splitLines(String text) {
+    List<String> lines = new ArrayList<>();
+    int start = 0;
+    while (start < text.length()) {
+      int end = text.indexOf('\n', start);
+      end = end == -1 ? text.length() : end + 1;
+      lines.add(text.substring(start, end));
+      start = end;
+    }
+    return lines;
+  }
+
+  /**
+   * The changes to a single file. {@code oldPath} is null for new files and {@code newPath} is
+   * null for deleted files.
+   */
+  private static final class FilePatch {
+
+    @Nullable private final String oldPath;
+    @Nullable private final String newPath;
+    private final ImmutableList<Hunk> hunks;
+
+    private FilePatch(@Nullable String oldPath, @Nullable String newPath,
+        ImmutableList<Hunk> hunks) {
+      this.oldPath = oldPath;
+      this.newPath = newPath;
+      this.hunks = hunks;
+    }
+
+    FilePatch reverse() {
+      ImmutableList.Builder<Hunk> reversed = ImmutableList.builder();
+      for (Hunk hunk : hunks) {
+        reversed.add(hunk.reverse());
+      }
+      return new FilePatch(newPath, oldPath, reversed.build());
+    }
+  }
+
+  private static final class Hunk {
+
+    private final int oldStart;
+    private final int newStart;
+    private final ImmutableList<String> oldLines;
+    private final ImmutableList<String> newLines;
+    private final int trailingContext;
+
+    private Hunk(int oldStart, int newStart, ImmutableList<String> oldLines,
+        ImmutableList<String> newLines, int trailingContext) {
+      this.oldStart = oldStart;
+      this.newStart = newStart;
+      this.oldLines = oldLines;
+      this.newLines = newLines;
+      this.trailingContext = trailingContext;
+    }
+
+    Hunk reverse() {
+      return new Hunk(newStart, oldStart, newLines, oldLines, trailingContext);
+    }
+  }
+
+  /**
+   * A change to the file system, run once all the file patches were checked.
+   */
+  private static final class Operation {
+
+    @Nullable private final String from;
+    @Nullable private final String to;
+    @Nullable private final byte[] content;
+
+    private Operation(@Nullable String from, @Nullable String to, @Nullable byte[] content) {
+      this.from = from;
+      this.to = to;
+      this.content = content;
+    }
+
+    void run(Path rootDir) throws IOException {
+      if (to == null) {
+        Files.delete(rootDir.resolve(from));
+        deleteEmptyParents(rootDir, rootDir.resolve(from));
+        return;
+      }
+      Path dest = rootDir.resolve(to);
+      Files.createDirectories(dest.getParent());
+      if (from != null && !from.equals(to)) {
+        // Moving the file keeps its permissions.
+        Files.move(rootDir.resolve(from), dest);
+        deleteEmptyParents(rootDir, rootDir.resolve(from));
+      }
+      Files.write(dest, content);
+    }
+
+    /**
+     * Like {@code git apply}, deletes the directories left empty by deleting or moving a file.
+     */
+    private static void deleteEmptyParents(Path rootDir, Path file) throws IOException {
+      for (Path dir = file.getParent(); dir != null && !dir.equals(rootDir)
+          && dir.startsWith(rootDir); dir = dir.getParent()) {
+        try {
+          Files.delete(dir);
+        } catch (DirectoryNotEmptyException e) {
+          return;
+        }
+      }
+    }
+  }
+
+  private static final class UnsupportedDiffException extends Exception {
+
+    UnsupportedDiffException(String message) {
+      super(message);
+    }
+  }
+
+  private static final class Parser {
+
+    private final List<String> lines;
+    private final int stripSlashes;
+    private final ImmutableList.Builder<FilePatch> filePatches = ImmutableList.builder();
+    private int next;
+
+    // The file patch being parsed
+    private boolean started;
+    private boolean gitHeader;
+    @Nullable private String gitHeaderPath;
+    @Nullable private String oldPath;
+    @Nullable private String newPath;
+    @Nullable private String renameFrom;
+    @Nullable private String renameTo;
+    private boolean newFile;
+    private boolean deletedFile;
+    private List<Hunk> hunks = new ArrayList<>();
+
+    Parser(byte[] diff, int stripSlashes) {
+      List<String> lines = splitLines(new String(diff, ISO_8859_1));
+      this.lines = new ArrayList<>(lines.size());
+      for (String line : lines) {
+        this.lines.add(line.endsWith("\n") ? line.substring(0, line.length() - 1) : line);
+      }
+      this.stripSlashes = stripSlashes;
+    }
+
+    ImmutableList<FilePatch> parse() throws UnsupportedDiffException {
+      while (next < lines.size()) {
+        String line = lines.get(next++);
+        if (line.startsWith("diff --git ")) {
+          finishFilePatch();
+          started = true;
+          gitHeader = true;
+          gitHeaderPath = gitHeaderPath(line.substring("diff --git ".length()));
+        } else if (line.startsWith("--- ") && next < lines.size()
+            && lines.get(next).startsWith("+++ ")) {
+          if (!gitHeader || !hunks.isEmpty()) {
+            finishFilePatch();
+            started = true;
+          }
+          gitHeader = false;
+          oldPath = headerPath(line.substring("--- ".length()), stripSlashes);
+          newPath = headerPath(lines.get(next++).substring("+++ ".length()), stripSlashes);
+        } else if (line.startsWith("@@ ")) {
+          if (!started || gitHeader) {
+            throw new UnsupportedDiffException("Hunk without file header: " + line);
+          }
+          hunks.add(parseHunk(line));
+        } else if (gitHeader) {
+          parseExtendedHeader(line);
+        }
+        // Anything else, like the message of a 'git format-patch' patch, is ignored like
+        // 'git apply' does.
+      }
+      finishFilePatch();
+      return filePatches.build();
+    }
+
+    private void parseExtendedHeader(String line) throws UnsupportedDiffException {
+      if (line.startsWith("new file mode ")) {
+        // New files are written without the executable bit
+        if (!line.substring("new file mode ".length()).equals(REGULAR_FILE_MODE)) {
+          throw new UnsupportedDiffException("Unsupported header: " + line);
+        }
+        newFile = true;
+      } else if (line.startsWith("deleted file mode ")) {
+        checkFileMode(line.substring("deleted file mode ".length()));
+        deletedFile = true;
+      } else if (line.startsWith("rename from ")) {
+        // Like git, the names in rename headers don't have the a/ or b/ prefix.
+        renameFrom = strip(line.substring("rename from ".length()), stripSlashes - 1);
+      } else if (line.startsWith("rename to ")) {
+        renameTo = strip(line.substring("rename to ".length()), stripSlashes - 1);
+      } else if (line.startsWith("index ")) {
+        int space = line.indexOf(' ', "index ".length());
+        if (space != -1) {
+          checkFileMode(line.substring(space + 1));
+        }
+      } else if (!line.startsWith("similarity index ")
+          && !line.startsWith("dissimilarity index ")) {
+        // Mode changes, copies, binary patches...
+        throw new UnsupportedDiffException("Unsupported header: " + line);
+      }
+    }
+
+    /**
+     * Checks that {@code mode} is the one of a regular file. The mode of existing files is kept.
+     */
+    private static void checkFileMode(String mode) throws UnsupportedDiffException {
+      if (!mode.equals(REGULAR_FILE_MODE) && !mode.equals(EXECUTABLE_FILE_MODE)) {
+        throw new UnsupportedDiffException("Unsupported file mode: " + mode);
+      }
+    }
+
+    private Hunk parseHunk(String header) throws UnsupportedDiffException {
+      Matcher matcher = HUNK_HEADER.matcher(header);
+      if (!matcher.matches()) {
+        throw new UnsupportedDiffException("Invalid hunk header: " + header);
+      }
+      int oldStart = Integer.parseInt(matcher.group(1));
+      int oldCount = matcher.group(2) == null ? 1 : Integer.parseInt(matcher.group(2));
+      int newStart = Integer.parseInt(matcher.group(3));
+      int newCount = matcher.group(4) == null ? 1 : Integer.parseInt(matcher.group(4));
+      List<String> oldLines = new ArrayList<>();
+      List<String> newLines = new ArrayList<>();
+      int trailingContext = 0;
+      char previous = ' ';
+      while (oldLines.size() < oldCount || newLines.size() < newCount
+          || (next < lines.size() && lines.get(next).startsWith("\\"))) {
+        if (next >= lines.size()) {
+          throw new UnsupportedDiffException("Truncated hunk: " + header);
+        }
+        String line = lines.get(next++);
+        // Some tools remove the trailing space of empty context lines.
+        char type = line.isEmpty() ? ' ' : line.charAt(0);
+        String content = line.isEmpty() ? "\n" : line.substring(1) + "\n";
+        switch (type) {
+          case ' ':
+            oldLines.add(content);
+            newLines.add(content);
+            trailingContext++;
+            break;
+          case '-':
+            oldLines.add(content);
+            trailingContext = 0;
+            break;
+          case '+':
+            newLines.add(content);
+            trailingContext = 0;
+            break;
+          case '\\':
+            // "\ No newline at end of file" applies to the previous line
+            if (previous != '+') {
+              removeNewline(oldLines);
+            }
+            if (previous != '-') {
+              removeNewline(newLines);
+            }
+            break;
+          default:
+            throw new UnsupportedDiffException("Invalid hunk line: " + line);
+        }
+        previous = type;
+        if (oldLines.size() > oldCount || newLines.size() > newCount) {
+          throw new UnsupportedDiffException("Hunk longer than its header: " + header);
+        }
+      }
+      return new Hunk(oldStart, newStart, ImmutableList.copyOf(oldLines),
+          ImmutableList.copyOf(newLines), trailingContext);
+    }
+
+    private static void removeNewline(List<String> lines) throws UnsupportedDiffException {
+      if (lines.isEmpty()) {
+        throw new UnsupportedDiffException("Misplaced 'No newline at end of file'");
+      }
+      String last = lines.get(lines.size() - 1);
+      lines.set(lines.size() - 1, last.substring(0, last.length() - 1));
+    }
+
+    private void finishFilePatch() throws UnsupportedDiffException {
+      if (!started) {
+        return;
+      }
+      String from = oldPath;
+      String to = newPath;
+      if (renameFrom != null || renameTo != null) {
+        if (renameFrom == null || renameTo == null) {
+          throw new UnsupportedDiffException("Incomplete rename");
+        }
+        from = renameFrom;
+        to = renameTo;
+      } else if (from == null && to == null) {
+        // A git diff without hunks, like a new empty file
+        from = gitHeaderPath;
+        to = gitHeaderPath;
+      }
+      if (newFile || DEV_NULL.equals(from)) {
+        from = null;
+      }
+      if (deletedFile || DEV_NULL.equals(to)) {
+        to = null;
+      }
+      if ((from == null && to == null) || (newFile && deletedFile)) {
+        throw new UnsupportedDiffException("Invalid file patch");
+      }
+      filePatches.add(new FilePatch(from, to, ImmutableList.copyOf(hunks)));
+      started = false;
+      gitHeader = false;
+      gitHeaderPath = null;
+      oldPath = null;
+      newPath = null;
+      renameFrom = null;
+      renameTo = null;
+      newFile = false;
+      deletedFile = false;
+      hunks = new ArrayList<>();
+    }
+
+    /**
+     * Returns the path of a {@code diff --git a/<path> b/<path>} header if both paths are the
+     * same, or null otherwise. In that case the paths come from other headers.
+     */
+    @Nullable
+    private String gitHeaderPath(String names) throws UnsupportedDiffException {
+      if (names.length() % 2 == 0 || names.charAt(names.length() / 2) != ' ') {
+        return null;
+      }
+      String oldName = strip(names.substring(0, names.length() / 2), stripSlashes);
+      String newName = strip(names.substring(names.length() / 2 + 1), stripSlashes);
+      return oldName.equals(newName) ? oldName : null;
+    }
+
+    private static String headerPath(String name, int stripSlashes)
+        throws UnsupportedDiffException {
+      // Traditional diffs add a timestamp after a tab
+      int tab = name.indexOf('\t');
+      if (tab != -1) {
+        name = name.substring(0, tab);
+      }
+      return name.equals(DEV_NULL) ? DEV_NULL : strip(name, stripSlashes);
+    }
+
+    private static String strip(String name, int stripSlashes) throws UnsupportedDiffException {
+      if (name.startsWith("\"") || name.contains("\r")) {
+        throw new UnsupportedDiffException("Unsupported file name: " + name);
+      }
+      String path = name;
+      for (int i = 0; i < stripSlashes; i++) {
+        int slash = path.indexOf('/');
+        if (slash == -1) {
+          throw new UnsupportedDiffException("Cannot strip " + stripSlashes + " from " + name);
+        }
+        path = path.substring(slash + 1);
+      }
+      try {
+        FileUtil.checkNormalizedRelative(path);
+      } catch (IllegalArgumentException e) {
+        throw new UnsupportedDiffException("Invalid path: " + name);
+      }
+      if (path.isEmpty() || path.contains("//") || path.endsWith("/")) {
+        throw new UnsupportedDiffException("Invalid path: " + name);
+      }
+      return path;
+    }
+  }
+}
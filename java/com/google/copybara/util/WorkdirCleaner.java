@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.util;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Empties working directories without making the caller wait for the deletion.
+ *
+ * <p>The contents of the directory are renamed into a trash directory inside of it and deleted by
+ * a background thread. Trash left behind by a previous execution that didn't finish the deletion
+ * (for example because it crashed) is collected the first time the directory is cleaned.
+ */
+public final class WorkdirCleaner {
+
+  private static final Logger logger = Logger.getLogger(WorkdirCleaner.class.getName());
+
+  static final String TRASH_DIR = ".copybara_trash";
+
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(
+      new ThreadFactoryBuilder()
+          .setNameFormat("workdir-cleaner-%d")
+          .setDaemon(true)
+          .build());
+  private final Set<Path> scheduled = ConcurrentHashMap.newKeySet();
+  private final Set<Path> trashDirs = ConcurrentHashMap.newKeySet();
+  private final List<Future<?>> pending = new ArrayList<>();
+
+  /**
+   * Empties {@code workdir}, creating it if it doesn't exist. When this method returns the
+   * directory only contains the trash directory, that is deleted in the background.
+   */
+  public void clean(Path workdir) throws IOException {
+    Files.createDirectories(workdir);
+    Path trash = workdir.resolve(TRASH_DIR);
+    List<Path> entries = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(workdir)) {
+      for (Path entry : stream) {
+        if (!entry.equals(trash)) {
+          entries.add(entry);
+        }
+      }
+    }
+    if (!entries.isEmpty()) {
+      Path batch = Files.createTempDirectory(Files.createDirectories(trash), "workdir");
+      for (Path entry : entries) {
+        try {
+          Files.move(entry, batch.resolve(entry.getFileName().toString()),
+              StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+          logger.log(Level.WARNING, "Cannot move " + entry + " to the trash. Deleting it.", e);
+          deleteRecursively(entry);
+        }
+      }
+    }
+    if (Files.isDirectory(trash)) {
+      trashDirs.add(trash);
+      scheduleDeletion(trash);
+    }
+  }
+
+  /**
+   * Blocks until all the trash scheduled for deletion is deleted and removes the (now empty)
+   * trash directories. Deletion errors are logged and the trash is left for the next execution.
+   */
+  public void awaitTermination() {
+    List<Future<?>> futures;
+    synchronized (pending) {
+      futures = new ArrayList<>(pending);
+      pending.clear();
+    }
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (ExecutionException e) {
+        logger.log(Level.WARNING, "Error deleting the working directory trash", e.getCause());
+      }
+    }
+    for (Path trash : trashDirs) {
+      try {
+        Files.deleteIfExists(trash);
+      } catch (DirectoryNotEmptyException e) {
+        // Something failed to be deleted. Keep it for the next execution.
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Cannot delete " + trash, e);
+      }
+    }
+  }
+
+  private void scheduleDeletion(Path trash) throws IOException {
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(trash)) {
+      for (final Path batch : stream) {
+        if (!scheduled.add(batch)) {
+          continue;
+        }
+        Future<?> future = executor.submit(() -> {
+          try {
+            deleteRecursively(batch);
+          } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot delete " + batch, e);
+          }
+        });
+        synchronized (pending) {
+          pending.add(future);
+        }
+      }
+    }
+  }
+
+  /**
+   * Deletes {@code path} and, if it is a directory, all its contents. Symlinks are not followed.
+   */
+  private static void deleteRecursively(Path path) throws IOException {
+    if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+      Files.deleteIfExists(path);
+      return;
+    }
+    Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+        if (exc != null) {
+          throw exc;
+        }
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.util.console;
+
+import com.google.common.base.Preconditions;
+import com.google.copybara.util.console.Message.MessageType;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link Console} that holds the error/warn/info messages until {@link #flush()} is called,
+ * and then prints them in order in another {@link Console}.
+ *
+ * <p>Useful for keeping together the output of a task that runs in parallel with others.
+ * Progress messages, prompts and colors go directly to the delegate.
+ */
+public class BufferedConsole implements Console {
+
+  private final Console delegate;
+  private final List<Message> messages = new ArrayList<>();
+
+  public BufferedConsole(Console delegate) {
+    this.delegate = Preconditions.checkNotNull(delegate);
+  }
+
+  @Override
+  public void startupMessage() {
+    delegate.startupMessage();
+  }
+
+  @Override
+  public void error(String message) {
+    addMessage(MessageType.ERROR, message);
+  }
+
+  @Override
+  public void warn(String message) {
+    addMessage(MessageType.WARNING, message);
+  }
+
+  @Override
+  public void info(String message) {
+    addMessage(MessageType.INFO, message);
+  }
+
+  @Override
+  public void progress(String progress) {
+    delegate.progress(progress);
+  }
+
+  @Override
+  public boolean promptConfirmation(String message) throws IOException {
+    return delegate.promptConfirmation(message);
+  }
+
+  @Override
+  public String colorize(AnsiColor ansiColor, String message) {
+    return delegate.colorize(ansiColor, message);
+  }
+
+  /**
+   * Prints the held messages in the delegate.
+   */
+  public synchronized void flush() {
+    for (Message message : messages) {
+      switch (message.getType()) {
+        case ERROR:
+          delegate.error(message.getText());
+          break;
+        case WARNING:
+          delegate.warn(message.getText());
+          break;
+        default:
+          delegate.info(message.getText());
+      }
+    }
+    messages.clear();
+  }
+
+  private synchronized void addMessage(Message.MessageType type, String message) {
+    messages.add(new Message(type, message));
+  }
+}
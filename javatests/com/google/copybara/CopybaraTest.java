@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.copybara.config.ConfigFile;
+import com.google.copybara.config.MapConfigFile;
+import com.google.copybara.config.SkylarkParser;
+import com.google.copybara.testing.OptionsBuilder;
+import com.google.copybara.testing.TestingModule;
+import com.google.copybara.util.console.Message.MessageType;
+import com.google.copybara.util.console.testing.TestingConsole;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class CopybaraTest {
+
+  private TestingConsole console;
+  private Options options;
+  private Copybara copybara;
+  private final Map<String, byte[]> configFiles = new HashMap<>();
+
+  @Before
+  public void setup() {
+    console = new TestingConsole();
+    options = new OptionsBuilder()
+        .setConsole(console)
+        .build();
+    copybara = new Copybara(new SkylarkParser(ImmutableSet.<Class<?>>of(TestingModule.class)));
+    addConfigFile("common.bara.sky", ""
+        + "def workflow(name):\n"
+        + "  core.workflow(\n"
+        + "      name = name,\n"
+        + "      origin = testing.origin(),\n"
+        + "      destination = testing.destination(),\n"
+        + "      authoring = authoring.pass_thru('Foo <foo@example.com>'),\n"
+        + "  )\n");
+  }
+
+  @Test
+  public void testBulkValidate() throws Exception {
+    addConfigFile("foo/copy.bara.sky", "load('//common', 'workflow')\nworkflow('foo')\n");
+    addConfigFile("bar/copy.bara.sky", "load('//common', 'workflow')\nworkflow(undefined)\n");
+    addConfigFile("baz/copy.bara.sky", "load('//common', 'workflow')\n");
+    addConfigFile("qux/copy.bara.sky", "load('//common', 'workflow')\nworkflow('qux')\n");
+
+    assertThat(copybara.bulkValidate(options, ImmutableList.of(
+        config("foo/copy.bara.sky"),
+        config("bar/copy.bara.sky"),
+        config("baz/copy.bara.sky"),
+        config("qux/copy.bara.sky"))))
+        .isFalse();
+
+    // The errors of loading each config are printed together with its result
+    console.assertThat()
+        .equalsNext(MessageType.INFO, "Configuration 'foo/copy.bara.sky' is valid.")
+        .matchesNext(MessageType.ERROR, ".*bar/copy.bara.sky.*'undefined' is not defined.*")
+        .equalsNext(MessageType.ERROR, "Configuration 'bar/copy.bara.sky' is invalid.")
+        .matchesNext(MessageType.ERROR, "Error loading config file(.|\n)*")
+        .equalsNext(MessageType.ERROR, "Configuration 'baz/copy.bara.sky' is invalid.")
+        .equalsNext(MessageType.ERROR, "At least one migration is required.")
+        .equalsNext(MessageType.INFO, "Configuration 'qux/copy.bara.sky' is valid.")
+        .equalsNext(MessageType.ERROR, "Validated 4 configurations: 2 valid, 2 invalid.")
+        .containsNoMoreMessages();
+  }
+
+  @Test
+  public void testBulkValidateAllValid() throws Exception {
+    addConfigFile("foo/copy.bara.sky", "load('//common', 'workflow')\nworkflow('foo')\n");
+    addConfigFile("bar/copy.bara.sky", "load('//common', 'workflow')\nworkflow('bar')\n");
+
+    assertThat(copybara.bulkValidate(options,
+        ImmutableList.of(config("foo/copy.bara.sky"), config("bar/copy.bara.sky"))))
+        .isTrue();
+
+    console.assertThat()
+        .equalsNext(MessageType.INFO, "Configuration 'foo/copy.bara.sky' is valid.")
+        .equalsNext(MessageType.INFO, "Configuration 'bar/copy.bara.sky' is valid.")
+        .equalsNext(MessageType.INFO, "Validated 2 configurations: 2 valid, 0 invalid.")
+        .containsNoMoreMessages();
+  }
+
+  @Test
+  public void testBulkValidateWithLoadErrors() throws Exception {
+    addConfigFile("foo/copy.bara.sky", "load('//common', 'workflow')\nworkflow('foo')\n");
+
+    assertThat(copybara.bulkValidate(options, ImmutableList.of(config("foo/copy.bara.sky")),
+        ImmutableMap.of("missing/copy.bara.sky", "Configuration file not found")))
+        .isFalse();
+
+    console.assertThat()
+        .equalsNext(MessageType.ERROR, "Configuration 'missing/copy.bara.sky' is invalid.")
+        .equalsNext(MessageType.ERROR, "Configuration file not found")
+        .equalsNext(MessageType.INFO, "Configuration 'foo/copy.bara.sky' is valid.")
+        .equalsNext(MessageType.ERROR, "Validated 2 configurations: 1 valid, 1 invalid.")
+        .containsNoMoreMessages();
+  }
+
+  private void addConfigFile(String path, String content) {
+    configFiles.put(path, content.getBytes(UTF_8));
+  }
+
+  private ConfigFile config(String path) {
+    return new MapConfigFile(ImmutableMap.copyOf(configFiles), path);
+  }
+}
@@ -128,6 +128,24 @@ public class MainArgumentsTest {
     checkParsing(ImmutableList.of("info", "copy.bara.sky", "import_wf", "some_ref"));
   }
 
+  /**
+   * Subcommand 'bulk_validate' allows any number of config paths.
+   */
+  @Test
+  public void testArgumentParsingBulkValidate() throws Exception {
+    checkParsing(ImmutableList.of("bulk_validate", "a/copy.bara.sky", "b/copy.bara.sky",
+        "c/copy.bara.sky", "d/copy.bara.sky", "e/copy.bara.sky"));
+    assertThat(mainArguments.getSubcommand()).isEqualTo(Subcommand.BULK_VALIDATE);
+    assertThat(mainArguments.getConfigPaths()).containsExactly("a/copy.bara.sky",
+        "b/copy.bara.sky", "c/copy.bara.sky", "d/copy.bara.sky", "e/copy.bara.sky").inOrder();
+    assertThat(mainArguments.getConfigPath()).isEqualTo("a/copy.bara.sky");
+    assertThat(mainArguments.getWorkflowName()).isNull();
+
+    thrown.expect(CommandLineException.class);
+    thrown.expectMessage("Configuration file missing for 'bulk_validate' subcommand.");
+    checkParsing(ImmutableList.of("bulk_validate"));
+  }
+
   private void checkParsing(List<String> args, Subcommand expectedSubcommand, String expectedConfigPath,
       String expectedWorkflowName, @Nullable String expectedSourceRef) throws CommandLineException {
     checkParsing(args);
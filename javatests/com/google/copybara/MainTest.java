@@ -17,10 +17,14 @@
 package com.google.copybara;
 
 import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.beust.jcommander.JCommander;
 import com.google.copybara.util.ExitCode;
+import java.io.IOException;
 import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -96,4 +100,62 @@ public class MainTest {
     main.run(args);
     assertThat(called).isTrue();
   }
+
+  @Test
+  public void testBulkValidateExitCode() throws Exception {
+    Path root = Files.createTempDirectory("MainTest");
+    Files.createDirectories(root.resolve(".git"));
+    writeFile(root.resolve("common.bara.sky"), ""
+        + "def workflow(name):\n"
+        + "  core.workflow(\n"
+        + "      name = name,\n"
+        + "      origin = folder.origin(),\n"
+        + "      destination = folder.destination(),\n"
+        + "      authoring = authoring.pass_thru('Foo <foo@example.com>'),\n"
+        + "  )\n");
+    Path valid = writeFile(root.resolve("foo/copy.bara.sky"),
+        "load('//common', 'workflow')\nworkflow('default')\n");
+    Path invalid = writeFile(root.resolve("bar/copy.bara.sky"),
+        "load('//common', 'workflow')\nworkflow(undefined)\n");
+
+    assertThat(newMainWithoutLog().run(
+        new String[]{"bulk_validate", valid.toString(), valid.toString()}))
+        .isEqualTo(ExitCode.SUCCESS);
+    assertThat(newMainWithoutLog().run(
+        new String[]{"bulk_validate", valid.toString(), invalid.toString()}))
+        .isEqualTo(ExitCode.CONFIGURATION_ERROR);
+  }
+
+  @Test
+  public void testBulkValidateMissingPath() throws Exception {
+    Path root = Files.createTempDirectory("MainTest");
+    Files.createDirectories(root.resolve(".git"));
+    Path valid = writeFile(root.resolve("foo/copy.bara.sky"), ""
+        + "core.workflow(\n"
+        + "    name = 'default',\n"
+        + "    origin = folder.origin(),\n"
+        + "    destination = folder.destination(),\n"
+        + "    authoring = authoring.pass_thru('Foo <foo@example.com>'),\n"
+        + ")\n");
+    Path missing = root.resolve("bar/copy.bara.sky");
+    Path misnamed = writeFile(root.resolve("baz/other.bara.sky"), "");
+
+    // The paths that cannot be loaded are reported as invalid configurations instead of failing
+    // the command.
+    assertThat(newMainWithoutLog().run(new String[]{
+        "bulk_validate", missing.toString(), misnamed.toString(), valid.toString()}))
+        .isEqualTo(ExitCode.CONFIGURATION_ERROR);
+  }
+
+  private static Main newMainWithoutLog() {
+    return new Main() {
+      @Override
+      protected void configureLog(FileSystem fs) {}
+    };
+  }
+
+  private static Path writeFile(Path path, String content) throws IOException {
+    Files.createDirectories(path.getParent());
+    return Files.write(path, content.getBytes(UTF_8));
+  }
 }
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.benchmarks;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Compares two JMH result files written with {@code -rf csv}, typically a saved baseline and the
+ * results of the current tree.
+ *
+ * <p>Usage: {@code BenchmarkComparison BASELINE_CSV CURRENT_CSV [THRESHOLD_PERCENT]}
+ *
+ * <p>Prints the change of every benchmark present in both files and exits with 1 if any of them
+ * is worse than the baseline by more than the threshold (10% by default) and by more than the
+ * sum of both score errors.
+ */
+public final class BenchmarkComparison {
+
+  private static final double DEFAULT_THRESHOLD_PERCENT = 10;
+
+  private BenchmarkComparison() {}
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2 || args.length > 3) {
+      System.err.println(
+          "Usage: BenchmarkComparison BASELINE_CSV CURRENT_CSV [THRESHOLD_PERCENT]");
+      System.exit(2);
+    }
+    double threshold = args.length == 3
+        ? Double.parseDouble(args[2])
+        : DEFAULT_THRESHOLD_PERCENT;
+    Map<String, Result> baseline = read(Paths.get(args[0]));
+    Map<String, Result> current = read(Paths.get(args[1]));
+
+    int regressions = 0;
+    for (Entry<String, Result> entry : current.entrySet()) {
+      Result before = baseline.get(entry.getKey());
+      Result after = entry.getValue();
+      if (before == null) {
+        System.out.printf("%-90s %14s -> %12.3f %s (new)%n",
+            entry.getKey(), "", after.score, after.unit);
+        continue;
+      }
+      double change = (after.score - before.score) / before.score * 100;
+      // For throughput a higher score is better, for the rest of the modes it is worse
+      double worse = after.higherIsBetter() ? -change : change;
+      boolean regression = worse > threshold
+          && Math.abs(after.score - before.score) > before.error + after.error;
+      if (regression) {
+        regressions++;
+      }
+      System.out.printf("%-90s %12.3f -> %12.3f %s %+7.1f%%%s%n",
+          entry.getKey(), before.score, after.score, after.unit, change,
+          regression ? "  REGRESSION" : "");
+    }
+    for (String missing : baseline.keySet()) {
+      if (!current.containsKey(missing)) {
+        System.out.printf("%-90s (missing in current results)%n", missing);
+      }
+    }
+    System.out.printf("%d benchmarks compared, %d regressions.%n",
+        current.size(), regressions);
+    System.exit(regressions == 0 ? 0 : 1);
+  }
+
+  /**
+   * Reads a JMH CSV result file, returning the results by benchmark name, mode and params.
+   */
+  static Map<String, Result> read(Path file) throws IOException {
+    List<String> lines = Files.readAllLines(file, UTF_8);
+    if (lines.isEmpty()) {
+      throw new IOException("Empty JMH result file: " + file);
+    }
+    List<String> header = parseLine(lines.get(0));
+    int benchmark = column(header, "Benchmark", file);
+    int mode = column(header, "Mode", file);
+    int score = column(header, "Score", file);
+    int error = column(header, "Score Error (99.9%)", file);
+    int unit = column(header, "Unit", file);
+
+    Map<String, Result> results = new LinkedHashMap<>();
+    for (String line : lines.subList(1, lines.size())) {
+      if (line.isEmpty()) {
+        continue;
+      }
+      List<String> fields = parseLine(line);
+      List<String> params = new ArrayList<>();
+      for (int i = 0; i < header.size(); i++) {
+        if (header.get(i).startsWith("Param: ") && !fields.get(i).isEmpty()) {
+          params.add(header.get(i).substring("Param: ".length()) + "=" + fields.get(i));
+        }
+      }
+      String key = fields.get(benchmark) + " " + fields.get(mode)
+          + (params.isEmpty() ? "" : " [" + Joiner.on(", ").join(params) + "]");
+      results.put(key, new Result(fields.get(mode), parseNumber(fields.get(score)),
+          parseNumber(fields.get(error)), fields.get(unit)));
+    }
+    return results;
+  }
+
+  private static int column(List<String> header, String name, Path file) throws IOException {
+    int index = header.indexOf(name);
+    if (index == -1) {
+      throw new IOException(String.format("Cannot find column '%s' in %s. Was it written with"
+          + " '-rf csv'?", name, file));
+    }
+    return index;
+  }
+
+  /**
+   * Splits a CSV line. Fields can be quoted, and quotes inside them are escaped by doubling them.
+   */
+  private static ImmutableList<String> parseLine(String line) {
+    ImmutableList.Builder<String> fields = ImmutableList.builder();
+    StringBuilder field = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (quoted) {
+        if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+          field.append('"');
+          i++;
+        } else if (c == '"') {
+          quoted = false;
+        } else {
+          field.append(c);
+        }
+      } else if (c == '"') {
+        quoted = true;
+      } else if (c == ',') {
+        fields.add(field.toString());
+        field.setLength(0);
+      } else {
+        field.append(c);
+      }
+    }
+    return fields.add(field.toString()).build();
+  }
+
+  private static double parseNumber(String value) {
+    // Score errors are NaN when there is a single measurement
+    return value.isEmpty() || value.equals("NaN") ? 0 : Double.parseDouble(value);
+  }
+
+  static final class Result {
+
+    private final String mode;
+    private final double score;
+    private final double error;
+    private final String unit;
+
+    Result(String mode, double score, double error, String unit) {
+      this.mode = mode;
+      this.score = score;
+      this.error = error;
+      this.unit = unit;
+    }
+
+    private boolean higherIsBetter() {
+      return mode.equals("thrpt");
+    }
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.benchmarks;
+
+import com.google.copybara.util.FileUtil;
+import com.google.copybara.util.FileUtil.CopySymlinkStrategy;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Copies a synthetic tree to an empty directory, like Copybara does for the checkout and the
+ * reverse checks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FileUtilBenchmark {
+
+  @Param({"100", "2000"})
+  public int fileCount;
+
+  @Param({"1024", "65536"})
+  public int fileSize;
+
+  @Param({"4"})
+  public int depth;
+
+  @Param({"1", "4"})
+  public int parallelism;
+
+  private Path workdir;
+  private Path source;
+  private Path destination;
+
+  @Setup
+  public void setup() throws IOException {
+    workdir = Files.createTempDirectory("FileUtilBenchmark");
+    source = new TreeGenerator(fileCount, fileSize, depth).write(workdir.resolve("source"));
+  }
+
+  @Setup(Level.Invocation)
+  public void createDestination() throws IOException {
+    destination = Files.createDirectory(workdir.resolve("destination"));
+  }
+
+  @TearDown(Level.Invocation)
+  public void deleteDestination() throws IOException {
+    TreeGenerator.delete(destination);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    TreeGenerator.delete(workdir);
+  }
+
+  @Benchmark
+  public void copyFilesRecursively() throws IOException {
+    FileUtil.copyFilesRecursively(
+        source, destination, CopySymlinkStrategy.FAIL_OUTSIDE_SYMLINKS, parallelism);
+  }
+}
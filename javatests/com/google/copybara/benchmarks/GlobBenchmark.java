@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.benchmarks;
+
+import com.google.common.collect.ImmutableList;
+import com.google.copybara.util.Glob;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Matches the paths of a synthetic tree against globs like the ones used for origin_files and
+ * destination_files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GlobBenchmark {
+
+  private static final Path ROOT = FileSystems.getDefault().getPath("/benchmark/checkout");
+
+  @Param({"1000", "100000"})
+  public int fileCount;
+
+  @Param({"2", "6"})
+  public int depth;
+
+  private List<Path> paths;
+  private Glob simpleGlob;
+  private Glob complexGlob;
+
+  @Setup
+  public void setup() {
+    paths = new ArrayList<>(fileCount);
+    for (String path : new TreeGenerator(fileCount, /*fileSize=*/0, depth).paths()) {
+      paths.add(ROOT.resolve(path));
+    }
+    simpleGlob = new Glob(ImmutableList.of("**"), ImmutableList.of("**/*Test.java"));
+    complexGlob = new Glob(
+        ImmutableList.of("dir0/**/*.java", "dir1/**", "**/*.md", "dir2/dir0/File*.txt"),
+        ImmutableList.of("**/dir3/**", "dir1/**/*Test.java", "**/File1*.java"));
+  }
+
+  @Benchmark
+  public int simpleGlob() {
+    return countMatches(simpleGlob.relativeTo(ROOT));
+  }
+
+  @Benchmark
+  public int complexGlob() {
+    return countMatches(complexGlob.relativeTo(ROOT));
+  }
+
+  private int countMatches(PathMatcher matcher) {
+    int matches = 0;
+    for (Path path : paths) {
+      if (matcher.matches(path)) {
+        matches++;
+      }
+    }
+    return matches;
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.benchmarks;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.copybara.util.RenameDetector;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Detects the renames between two synthetic trees where every file of the later tree is a
+ * modified copy of a file of the prior tree.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RenameDetectorBenchmark {
+
+  private static final int LINES_PER_FILE = 50;
+  /** Percentage of the lines of each file that are changed in the later tree. */
+  private static final int CHANGED_LINES_PERCENT = 20;
+
+  @Param({"100", "1000", "10000"})
+  public int fileCount;
+
+  @Param({"0", "500"})
+  public int minScore;
+
+  private List<byte[]> priorFiles;
+  private List<byte[]> laterFiles;
+
+  @Setup
+  public void setup() {
+    Random random = new Random(42);
+    priorFiles = new ArrayList<>(fileCount);
+    laterFiles = new ArrayList<>(fileCount);
+    for (int file = 0; file < fileCount; file++) {
+      StringBuilder prior = new StringBuilder();
+      StringBuilder later = new StringBuilder();
+      for (int line = 0; line < LINES_PER_FILE; line++) {
+        // Some lines are shared by many files, like imports or license headers.
+        String content = random.nextInt(10) == 0
+            ? "common line " + random.nextInt(100)
+            : "file " + file + " line " + line + " " + random.nextLong();
+        prior.append(content).append('\n');
+        later.append(random.nextInt(100) < CHANGED_LINES_PERCENT
+            ? "changed " + random.nextLong()
+            : content).append('\n');
+      }
+      priorFiles.add(prior.toString().getBytes(UTF_8));
+      laterFiles.add(later.toString().getBytes(UTF_8));
+    }
+  }
+
+  @Benchmark
+  public void detectRenames(Blackhole blackhole) throws IOException {
+    RenameDetector<Integer> detector = minScore == 0
+        ? new RenameDetector<>()
+        : new RenameDetector<>(minScore);
+    for (int i = 0; i < priorFiles.size(); i++) {
+      detector.addPriorFile(i, new ByteArrayInputStream(priorFiles.get(i)));
+    }
+    for (byte[] later : laterFiles) {
+      blackhole.consume(detector.scoresForLaterFile(new ByteArrayInputStream(later)));
+    }
+  }
+}
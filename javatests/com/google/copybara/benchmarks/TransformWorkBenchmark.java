@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.benchmarks;
+
+import com.google.copybara.TransformWork;
+import com.google.copybara.testing.TransformWorks;
+import com.google.copybara.util.console.testing.TestingConsole;
+import java.nio.file.FileSystems;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Adds a label to change messages with a long description and a group of existing labels.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TransformWorkBenchmark {
+
+  @Param({"10", "1000"})
+  public int descriptionLines;
+
+  @Param({"0", "50"})
+  public int labelCount;
+
+  private String message;
+  private TransformWork work;
+
+  @Setup
+  public void setup() {
+    StringBuilder sb = new StringBuilder("Summary of the change\n\n");
+    sb.append(TreeGenerator.content(descriptionLines * 40, /*seed=*/0));
+    sb.append("\n");
+    for (int i = 0; i < labelCount; i++) {
+      sb.append("LABEL_").append(i).append("=value ").append(i).append("\n");
+    }
+    message = sb.toString();
+    work = TransformWorks.of(
+        FileSystems.getDefault().getPath("/benchmark/checkout"), message, new TestingConsole());
+  }
+
+  @Benchmark
+  public String addLabel() {
+    work.setMessage(message);
+    work.addLabel("NEW_LABEL", "new value");
+    return work.getMessage();
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.benchmarks;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+
+/**
+ * Generates synthetic source trees for the benchmarks.
+ *
+ * <p>The trees have {@code fileCount} files of roughly {@code fileSize} bytes, spread over
+ * directories nested {@code depth} levels. The generation is deterministic, so two runs of a
+ * benchmark work on the same tree.
+ */
+public final class TreeGenerator {
+
+  private static final ImmutableList<String> EXTENSIONS =
+      ImmutableList.of(".java", ".java", ".java", ".txt", ".md", "Test.java");
+
+  private final int fileCount;
+  private final int fileSize;
+  private final int depth;
+  private final int fanOut;
+
+  public TreeGenerator(int fileCount, int fileSize, int depth) {
+    Preconditions.checkArgument(fileCount > 0, "fileCount must be positive");
+    Preconditions.checkArgument(fileSize >= 0, "fileSize cannot be negative");
+    Preconditions.checkArgument(depth >= 0, "depth cannot be negative");
+    this.fileCount = fileCount;
+    this.fileSize = fileSize;
+    this.depth = depth;
+    // Enough directories per level so that the leaf directories have a few files each
+    this.fanOut = Math.max(2, (int) Math.ceil(Math.pow(fileCount, 1.0 / (depth + 1))));
+  }
+
+  /**
+   * Returns the relative paths of the files of the tree, like
+   * {@code "dir1/dir0/dir3/File42.java"}.
+   */
+  public ImmutableList<String> paths() {
+    ImmutableList.Builder<String> paths = ImmutableList.builder();
+    for (int i = 0; i < fileCount; i++) {
+      paths.add(path(i));
+    }
+    return paths.build();
+  }
+
+  /**
+   * Writes the tree under {@code root}, that is created if it doesn't exist.
+   */
+  public Path write(Path root) throws IOException {
+    for (int i = 0; i < fileCount; i++) {
+      Path file = root.resolve(path(i));
+      Files.createDirectories(file.getParent());
+      Files.write(file, content(fileSize, /*seed=*/i).getBytes(UTF_8));
+    }
+    return root;
+  }
+
+  /**
+   * Deletes {@code root} and everything under it.
+   */
+  public static void delete(Path root) throws IOException {
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+        if (exc != null) {
+          throw exc;
+        }
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  /**
+   * Returns Java-like text of roughly {@code size} bytes. The lines include imports, constants
+   * with URLs and comments, which are the usual targets of {@code core.replace} and
+   * {@code core.verify_match}.
+   */
+  public static String content(int size, long seed) {
+    Random random = new Random(seed);
+    StringBuilder sb = new StringBuilder(size + 100);
+    while (sb.length() < size) {
+      int value = random.nextInt(1000);
+      switch (random.nextInt(5)) {
+        case 0:
+          sb.append("import com.google.example").append(value % 10).append(".Foo")
+              .append(value).append(";\n");
+          break;
+        case 1:
+          sb.append("  private static final String URL_").append(value)
+              .append(" = \"https://internal.example.com/path/").append(value).append("\";\n");
+          break;
+        case 2:
+          sb.append("  // TODO(user").append(value % 20).append("): Remove this line ")
+              .append(value).append("\n");
+          break;
+        case 3:
+          sb.append("\n");
+          break;
+        default:
+          sb.append("  int field").append(value).append(" = ").append(random.nextInt())
+              .append(";\n");
+      }
+    }
+    return sb.toString();
+  }
+
+  private String path(int file) {
+    StringBuilder path = new StringBuilder();
+    int index = file;
+    for (int level = 0; level < depth; level++) {
+      index /= fanOut;
+      path.append("dir").append(index % fanOut).append('/');
+    }
+    return path.append("File").append(file).append(EXTENSIONS.get(file % EXTENSIONS.size()))
+        .toString();
+  }
+}
@@ -22,9 +22,11 @@ import static org.junit.Assert.fail;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.copybara.authoring.Authoring;
 import com.google.copybara.Config;
 import com.google.copybara.Destination;
+import com.google.copybara.Options;
 import com.google.copybara.Origin;
 import com.google.copybara.Reference;
 import com.google.copybara.RepoException;
@@ -43,6 +45,7 @@ import com.google.devtools.build.lib.skylarkinterface.SkylarkModule;
 import com.google.devtools.build.lib.skylarkinterface.SkylarkModuleCategory;
 import com.google.devtools.build.lib.skylarkinterface.SkylarkSignature;
 import com.google.devtools.build.lib.syntax.BuiltinFunction;
+import com.google.devtools.build.lib.syntax.Environment;
 import com.google.devtools.build.lib.syntax.EvalException;
 import com.google.devtools.build.lib.syntax.SkylarkList;
 import com.google.devtools.build.lib.syntax.Type;
@@ -214,6 +217,33 @@ public class SkylarkParserTest {
     }
   }
 
+  @Test
+  public void testIndependentImportsAreEvaluated() throws Exception {
+    parser.addExtraConfigFile("a.bara.sky", "load('//common', 'common')\na = common + 1\n");
+    parser.addExtraConfigFile("b.bara.sky", "load('//common', 'common')\nb = common + 2\n");
+    parser.addExtraConfigFile("common.bara.sky", "common = 40\n");
+
+    assertThat(parser.<Integer>eval("r", ""
+        + "load('//a', 'a')\n"
+        + "load('//b', 'b')\n"
+        + "r = a + b\n")).isEqualTo(83);
+  }
+
+  @Test
+  public void testOnlyTheFirstFailingImportIsReported() throws Exception {
+    parser.addExtraConfigFile("a.bara.sky", "a = 1\nfail('Error in a')\n");
+    parser.addExtraConfigFile("b.bara.sky", "b = 2\nfail('Error in b')\n");
+    try {
+      parser.loadConfig("load('//a', 'a')\nload('//b', 'b')\n");
+      fail();
+    } catch (ValidationException e) {
+      // Like a sequential evaluation, 'b' errors are not reported
+      console.assertThat()
+          .onceInLog(MessageType.ERROR, ".*Error in a.*")
+          .timesInLog(0, MessageType.ERROR, ".*Error in b.*");
+    }
+  }
+
   @Test
   public void testTransformsAreOptional()
       throws IOException, ValidationException {
@@ -315,6 +345,60 @@ public class SkylarkParserTest {
     Config config = parser.loadConfig(prepareResolveLabelTest());
   }
 
+  @Test
+  public void testEvaluationIsReusedUntilAnImportChanges() throws Exception {
+    SkylarkParser skylarkParser = new SkylarkParser(ImmutableSet.<Class<?>>of(Mock.class));
+    Options opts = options.build();
+    Map<String, byte[]> files = new HashMap<>();
+    files.put("copy.bara.sky", "load('foo', 'bar')\nbaz = bar\n".getBytes(UTF_8));
+    files.put("foo.bara.sky", "bar = 'first'\n".getBytes(UTF_8));
+
+    Environment first = skylarkParser.executeSkylark(configFile(files), opts);
+    assertThat(skylarkParser.executeSkylark(configFile(files), opts)).isSameAs(first);
+    // Other options might create different objects
+    assertThat(skylarkParser.executeSkylark(configFile(files), options.build()))
+        .isNotSameAs(first);
+
+    files.put("foo.bara.sky", "bar = 'second'\n".getBytes(UTF_8));
+    Environment second = skylarkParser.executeSkylark(configFile(files), opts);
+    assertThat(second).isNotSameAs(first);
+    assertThat(second.getGlobals().get("baz")).isEqualTo("second");
+  }
+
+  @Test
+  public void testEventsAreReportedWhenTheEvaluationIsReused() throws Exception {
+    SkylarkParser skylarkParser = new SkylarkParser(ImmutableSet.<Class<?>>of(Mock.class));
+    Options opts = options.build();
+    Map<String, byte[]> files = new HashMap<>();
+    files.put("copy.bara.sky", "load('foo', 'bar')\nbaz = bar\n".getBytes(UTF_8));
+    files.put("foo.bara.sky", "print('Evaluating foo')\nbar = 'first'\n".getBytes(UTF_8));
+
+    Environment first = skylarkParser.executeSkylark(configFile(files), opts);
+    assertThat(skylarkParser.executeSkylark(configFile(files), opts)).isSameAs(first);
+    console.assertThat().timesInLog(2, MessageType.WARNING, ".*Evaluating foo.*");
+  }
+
+  @Test
+  public void testEvaluationIsNotReusedIfAResolvedLabelChanges() throws Exception {
+    SkylarkParser skylarkParser =
+        new SkylarkParser(ImmutableSet.<Class<?>>of(MockLabelsAwareModule.class));
+    Options opts = options.build();
+    Map<String, byte[]> files = new HashMap<>();
+    files.put("copy.bara.sky", "foo = mock_labels_aware_module.read_foo()\n".getBytes(UTF_8));
+    files.put("foo", "first".getBytes(UTF_8));
+
+    Environment first = skylarkParser.executeSkylark(configFile(files), opts);
+    assertThat(skylarkParser.executeSkylark(configFile(files), opts)).isSameAs(first);
+
+    files.put("foo", "second".getBytes(UTF_8));
+    Environment second = skylarkParser.executeSkylark(configFile(files), opts);
+    assertThat(second.getGlobals().get("foo")).isEqualTo("second");
+  }
+
+  private static ConfigFile<String> configFile(Map<String, byte[]> files) {
+    return new MapConfigFile(ImmutableMap.copyOf(files), "copy.bara.sky");
+  }
+
   /**
    * TODO(copybara-team): Migrate SkylarkParserTest.testNonReversibleTransform
    */
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.git;
+
+import com.google.common.collect.ImmutableList;
+import com.google.copybara.RepoException;
+import com.google.copybara.benchmarks.TreeGenerator;
+import com.google.copybara.util.console.testing.TestingConsole;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parses a synthetic {@code git log} output with {@link ChangeReader}.
+ *
+ * <p>Lives in the git package because {@link ChangeReader} is package-private. It is compiled
+ * into the {@code //javatests/com/google/copybara/benchmarks} binary.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ChangeReaderBenchmark {
+
+  @Param({"100", "10000"})
+  public int commitCount;
+
+  @Param({"5", "100"})
+  public int messageLines;
+
+  private Path repoDir;
+  private String log;
+  private ChangeReader changeReader;
+
+  @Setup
+  public void setup() throws IOException {
+    Random random = new Random(42);
+    StringBuilder sb = new StringBuilder();
+    for (int commit = commitCount; commit > 0; commit--) {
+      if (commit != commitCount) {
+        // Empty line between commits
+        sb.append('\n');
+      }
+      sb.append("commit ").append(sha1(commit)).append(' ').append(sha1(commit - 1)).append('\n')
+          .append("Author: Author ").append(commit % 50)
+          .append(" <author").append(commit % 50).append("@example.com>\n")
+          .append("Date:   2016-10-19T10:").append(String.format("%02d", commit % 60))
+          .append(":00+02:00\n")
+          .append('\n')
+          .append(GitOrigin.GIT_LOG_COMMENT_PREFIX).append("Change number ").append(commit)
+          .append('\n')
+          .append(GitOrigin.GIT_LOG_COMMENT_PREFIX).append('\n');
+      for (int line = 0; line < messageLines; line++) {
+        sb.append(GitOrigin.GIT_LOG_COMMENT_PREFIX)
+            .append("Description line ").append(random.nextLong()).append('\n');
+      }
+      sb.append(GitOrigin.GIT_LOG_COMMENT_PREFIX).append('\n')
+          .append(GitOrigin.GIT_LOG_COMMENT_PREFIX).append("BUG=").append(commit).append('\n')
+          .append(GitOrigin.GIT_LOG_COMMENT_PREFIX).append("Change-Id: I").append(sha1(commit))
+          .append('\n');
+    }
+    log = sb.toString();
+    // parseChanges only creates references, so the repository is never used
+    repoDir = Files.createTempDirectory("ChangeReaderBenchmark");
+    GitRepository repository =
+        GitRepository.bareRepo(repoDir, System.getenv(), /*verbose=*/false);
+    changeReader =
+        ChangeReader.Builder.forDestination(repository, new TestingConsole()).build();
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    TreeGenerator.delete(repoDir);
+  }
+
+  // GitChange is package-private, and the code that JMH generates is in another package
+  @Benchmark
+  public ImmutableList<?> parseChanges() throws RepoException {
+    return changeReader.parseChanges(log);
+  }
+
+  private static String sha1(int commit) {
+    return String.format("%040x", commit);
+  }
+}
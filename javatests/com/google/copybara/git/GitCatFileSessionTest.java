@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.git;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.copybara.Change;
+import com.google.copybara.RepoException;
+import com.google.copybara.git.ChangeReader.GitChange;
+import com.google.copybara.git.GitRepository.GitObjectType;
+import com.google.copybara.git.GitRepository.TreeElement;
+import com.google.copybara.util.console.testing.TestingConsole;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class GitCatFileSessionTest {
+
+  @Rule
+  public final ExpectedException thrown = ExpectedException.none();
+
+  private GitRepository repository;
+  private Path workdir;
+  private GitCatFileSession session;
+
+  @Before
+  public void setup() throws Exception {
+    workdir = Files.createTempDirectory("workdir");
+    repository = GitRepository.initScratchRepo(/*verbose=*/false, workdir, System.getenv());
+    Files.createDirectories(workdir.resolve("dir"));
+    Files.write(workdir.resolve("dir/foo.txt"), "foo".getBytes(UTF_8));
+    repository.add().all().run();
+    repository.simpleCommand("commit", "-m", "first");
+    session = repository.catFileSession();
+  }
+
+  @After
+  public void tearDown() {
+    repository.close();
+  }
+
+  @Test
+  public void testResolve() throws Exception {
+    assertThat(session.resolve("HEAD"))
+        .isEqualTo(repository.simpleCommand("rev-parse", "HEAD").getStdout().trim());
+    assertThat(session.resolve("HEAD:dir/foo.txt"))
+        .isEqualTo(repository.simpleCommand("rev-parse", "HEAD:dir/foo.txt").getStdout().trim());
+  }
+
+  @Test
+  public void testSeesNewCommits() throws Exception {
+    String first = session.resolve("HEAD");
+    commit("second", "bar.txt");
+    assertThat(session.resolve("HEAD")).isNotEqualTo(first);
+    assertThat(session.resolve("HEAD~1")).isEqualTo(first);
+  }
+
+  @Test
+  public void testReadBlobAndTree() throws Exception {
+    assertThat(session.read("HEAD:dir/foo.txt").getType()).isEqualTo(GitObjectType.BLOB);
+    assertThat(new String(session.read("HEAD:dir/foo.txt").getContent(), UTF_8))
+        .isEqualTo("foo");
+    ImmutableList<GitObjectReader.TreeEntry> entries = session.readTree("HEAD");
+    assertThat(entries).hasSize(1);
+    assertThat(entries.get(0).getName()).isEqualTo("dir");
+    assertThat(entries.get(0).getType()).isEqualTo(GitObjectType.TREE);
+    assertThat(session.readTree("HEAD:dir").get(0).getName()).isEqualTo("foo.txt");
+  }
+
+  @Test
+  public void testMissingObject() throws Exception {
+    thrown.expect(CannotFindReferenceException.class);
+    thrown.expectMessage("Cannot find reference 'foo'");
+    session.read("foo");
+  }
+
+  @Test
+  public void testSessionIsUsableAfterMissingObject() throws Exception {
+    try {
+      session.resolve("foo");
+    } catch (CannotFindReferenceException expected) {
+      // Expected
+    }
+    assertThat(session.isAlive()).isTrue();
+    assertThat(session.resolve("HEAD")).isEqualTo(repository.revParse("HEAD"));
+  }
+
+  @Test
+  public void testResolveAllInOneBatch() throws Exception {
+    List<String> refs = new ArrayList<>();
+    // More references than the requests that are written before reading the responses.
+    for (int i = 0; i < 150; i++) {
+      repository.simpleCommand("branch", "branch" + i);
+      refs.add("refs/heads/branch" + i);
+    }
+    refs.add("HEAD:dir/foo.txt");
+    Path gitLog = workdir.resolve("git_invocations.log");
+    GitRepository countingRepo = GitRepository.bareRepo(
+        workdir.resolve(".git"), countingGitEnvironment(gitLog), /*verbose=*/false);
+    try {
+      ImmutableMap<String, String> sha1s = countingRepo.revParse(refs);
+
+      assertThat(sha1s.keySet()).containsExactlyElementsIn(refs).inOrder();
+      ImmutableMap<String, GitReference> branches =
+          repository.forEachRef(ImmutableList.of("refs/heads"));
+      for (int i = 0; i < 150; i++) {
+        assertThat(sha1s.get("refs/heads/branch" + i))
+            .isEqualTo(branches.get("refs/heads/branch" + i).asString());
+      }
+      assertThat(sha1s.get("HEAD:dir/foo.txt")).isEqualTo(session.resolve("HEAD:dir/foo.txt"));
+      // The only process started is the cat-file session.
+      List<String> invocations = Files.readAllLines(gitLog, UTF_8);
+      assertThat(invocations).hasSize(1);
+      assertThat(invocations.get(0)).contains("cat-file --batch");
+    } finally {
+      countingRepo.close();
+    }
+  }
+
+  @Test
+  public void testResolveAllWithMissingReference() throws Exception {
+    String head = session.resolve("HEAD");
+    try {
+      session.resolveAll(ImmutableList.of("HEAD", "foo", "HEAD"));
+      fail();
+    } catch (CannotFindReferenceException expected) {
+      assertThat(expected).hasMessage("Cannot find reference 'foo'");
+    }
+    // The responses after the missing reference were read too.
+    assertThat(session.isAlive()).isTrue();
+    assertThat(session.resolveAll(ImmutableList.of("HEAD"))).containsExactly(head);
+  }
+
+  @Test
+  public void testSessionIsRestartedAfterClose() throws Exception {
+    String head = repository.revParse("HEAD");
+    repository.close();
+    assertThat(session.isAlive()).isFalse();
+    assertThat(repository.revParse("HEAD")).isEqualTo(head);
+    assertThat(repository.catFileSession()).isNotSameAs(session);
+  }
+
+  @Test
+  public void testSessionIsSharedWithOtherWorkTrees() throws Exception {
+    assertThat(repository.withWorkTree(Files.createTempDirectory("other")).catFileSession())
+        .isSameAs(session);
+  }
+
+  @Test
+  public void testLsTree() throws Exception {
+    GitReference head = repository.resolveReference("HEAD");
+    ImmutableList<TreeElement> elements = repository.lsTree(head, "dir/foo.txt");
+    assertThat(elements).hasSize(1);
+    assertThat(elements.get(0).getType()).isEqualTo(GitObjectType.BLOB);
+    assertThat(elements.get(0).getRef()).isEqualTo(repository.revParse("HEAD:dir/foo.txt"));
+    assertThat(elements.get(0).getPath()).isEqualTo("dir/foo.txt");
+
+    assertThat(repository.lsTree(head, "dir").get(0).getType()).isEqualTo(GitObjectType.TREE);
+    assertThat(repository.lsTree(head, "dir/bar.txt")).isEmpty();
+    assertThat(repository.lsTree(head, "dir/foo.txt/bar")).isEmpty();
+    assertThat(repository.lsTree(head, "other/foo.txt")).isEmpty();
+  }
+
+  @Test
+  public void testChangeReaderWithLimitMatchesGitLog() throws Exception {
+    commit("second", "bar.txt");
+    repository.simpleCommand("checkout", "-q", "-b", "feature", "HEAD~1");
+    commit("feature change\n\nFoo=bar", "feature.txt");
+    repository.simpleCommand("checkout", "-q", "master");
+    repository.simpleCommand("merge", "--no-ff", "-m", "merge", "feature");
+    commit("after merge", "after.txt");
+    // git log expands tabs, drops trailing empty lines and applies the mailmap.
+    Files.write(workdir.resolve(".mailmap"),
+        "Proper Name <proper@example.com> <foo@bar.com>\n".getBytes(UTF_8));
+    Files.write(workdir.resolve("tabs.txt"), "tabs".getBytes(UTF_8));
+    repository.add().all().run();
+    repository.simpleCommand("commit", "--cleanup=verbatim", "--author", "Foo Bar <foo@bar.com>",
+        "-m", "tabs\n\n\tindented\tLabel=value\nTab\t=value\n\n\n");
+
+    ImmutableList<GitChange> limited = ChangeReader.Builder
+        .forDestination(repository, new TestingConsole())
+        .setLimit(10)
+        .build()
+        .run("master");
+    // Without limit git log reads the whole history in one go.
+    ImmutableList<GitChange> unlimited = ChangeReader.Builder
+        .forDestination(repository, new TestingConsole())
+        .build()
+        .run("master");
+
+    assertThat(limited).hasSize(5);
+    assertThat(describe(limited)).isEqualTo(describe(unlimited));
+    Change<GitReference> last = limited.get(4).getChange();
+    assertThat(last.getAuthor().getEmail()).isEqualTo("proper@example.com");
+    assertThat(last.getMessage()).doesNotContain("\t");
+    assertThat(last.getMessage()).doesNotContain("\n\n\n");
+  }
+
+  @Test
+  public void testChangeReaderReadsFromSessionLikeGitLog() throws Exception {
+    Files.write(workdir.resolve("bar.txt"), "bar".getBytes(UTF_8));
+    repository.add().all().run();
+    repository.simpleCommand("commit", "--cleanup=verbatim", "-m",
+        "\n \nleading\n  trailing   \n\tindented\tLabel=value\r\nab\tc\n \n\nend\n\n\n");
+    assertThat(repository.logRewritesCommits(session)).isFalse();
+
+    ImmutableList<GitChange> limited = ChangeReader.Builder
+        .forDestination(repository, new TestingConsole())
+        .setLimit(10)
+        .build()
+        .run("master");
+    ImmutableList<GitChange> unlimited = ChangeReader.Builder
+        .forDestination(repository, new TestingConsole())
+        .build()
+        .run("master");
+
+    assertThat(limited).hasSize(2);
+    assertThat(describe(limited)).isEqualTo(describe(unlimited));
+    assertThat(limited.get(1).getChange().getMessage()).isEqualTo(
+        "leading\n  trailing\n        indented        Label=value\nab      c\n\n\nend\n");
+  }
+
+  @Test
+  public void testLogMessageLinesNeedsWidthOfNonAsciiWithTabs() throws Exception {
+    assertThat(ChangeReader.logMessageLines("caf\u00e9 ok\n")).containsExactly("caf\u00e9 ok");
+    assertThat(ChangeReader.logMessageLines("caf\u00e9\tnot ok\n")).isNull();
+  }
+
+  @Test
+  public void testMailmapDisablesChangeReaderSession() throws Exception {
+    Files.write(workdir.resolve(".mailmap"),
+        "Proper Name <proper@example.com> <foo@bar.com>\n".getBytes(UTF_8));
+    assertThat(repository.logRewritesCommits(session)).isTrue();
+  }
+
+  /**
+   * Returns an environment where git is a script that logs its arguments to {@code gitLog} before
+   * running the real git.
+   */
+  private Map<String, String> countingGitEnvironment(Path gitLog) throws IOException {
+    Path binDir = Files.createTempDirectory("bin");
+    Path git = binDir.resolve("git");
+    Files.write(git, ("#!/bin/sh\n"
+        + "echo \"$@\" >> '" + gitLog + "'\n"
+        + "unset GIT_EXEC_PATH\n"
+        + "exec git \"$@\"\n").getBytes(UTF_8));
+    assertThat(git.toFile().setExecutable(true)).isTrue();
+    Map<String, String> environment = new HashMap<>(System.getenv());
+    // GitRepository runs $GIT_EXEC_PATH/git when it is set.
+    environment.put("GIT_EXEC_PATH", binDir.toString());
+    return environment;
+  }
+
+  private static String describe(ImmutableList<GitChange> changes) {
+    StringBuilder result = new StringBuilder();
+    for (GitChange change : changes) {
+      result.append(change.getChange().getReference().asString())
+          .append(' ').append(change.getParents())
+          .append(' ').append(change.getChange().getAuthor())
+          .append(' ').append(change.getChange().getDateTime())
+          .append(' ').append(change.getChange().getLabels())
+          .append(' ').append(change.getChange().getMessage())
+          .append('\n');
+    }
+    return result.toString();
+  }
+
+  private void commit(String message, String file) throws IOException, RepoException {
+    Files.write(workdir.resolve(file), file.getBytes(UTF_8));
+    repository.add().all().run();
+    repository.simpleCommand("commit", "-m", message);
+  }
+}
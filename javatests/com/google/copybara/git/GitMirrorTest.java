@@ -24,6 +24,7 @@ import com.google.copybara.RepoException;
 import com.google.copybara.ValidationException;
 import com.google.copybara.testing.OptionsBuilder;
 import com.google.copybara.testing.SkylarkTestExecutor;
+import com.google.copybara.util.console.Message.MessageType;
 import com.google.copybara.util.console.testing.TestingConsole;
 import java.io.IOException;
 import java.nio.file.Files;
@@ -171,6 +172,164 @@ public class GitMirrorTest {
     checkRefDoesntExist("refs/heads/other");
   }
 
+  @Test
+  public void testMirrorSkipsPushIfNothingChanged() throws Exception {
+    Migration migration = loadMigration(""
+        + "core.project('foo')\n"
+        + "git.mirror("
+        + "    name = 'default',"
+        + "    origin = 'file://" + originRepo.getGitDir().toAbsolutePath() + "',"
+        + "    destination = 'file://" + destRepo.getGitDir().toAbsolutePath() + "',"
+        + ")", "default");
+    migration.run(workdir, /*sourceRef=*/null);
+    migration.run(workdir, /*sourceRef=*/null);
+
+    console.assertThat().onceInLog(MessageType.INFO, "No references changed in .*"
+        + "Skipping push to .*");
+    String orig = originRepo.git(originRepo.getGitDir(), "show-ref").getStdout();
+    String dest = destRepo.git(destRepo.getGitDir(), "show-ref").getStdout();
+    assertThat(dest).isEqualTo(orig);
+  }
+
+  @Test
+  public void testMirrorRepairsChangesInTheDestination() throws Exception {
+    Migration migration = loadMigration(""
+        + "core.project('foo')\n"
+        + "git.mirror("
+        + "    name = 'default',"
+        + "    origin = 'file://" + originRepo.getGitDir().toAbsolutePath() + "',"
+        + "    destination = 'file://" + destRepo.getGitDir().toAbsolutePath() + "',"
+        + "    prune = True,"
+        + ")", "default");
+    migration.run(workdir, /*sourceRef=*/null);
+    // Somebody else changes the destination. The origin doesn't change.
+    destRepo.simpleCommand("branch", "-D", "other");
+    destRepo.simpleCommand("branch", "extra", "master");
+    migration.run(workdir, /*sourceRef=*/null);
+
+    console.assertThat()
+        .onceInLog(MessageType.INFO, "References of .* changed since the last mirror.*")
+        .timesInLog(0, MessageType.INFO, "No references changed in .*");
+    String orig = originRepo.git(originRepo.getGitDir(), "show-ref").getStdout();
+    String dest = destRepo.git(destRepo.getGitDir(), "show-ref").getStdout();
+    assertThat(dest).isEqualTo(orig);
+  }
+
+  @Test
+  public void testMirrorPushesOnlyChangedRefs() throws Exception {
+    Migration migration = loadMigration(""
+        + "core.project('foo')\n"
+        + "git.mirror("
+        + "    name = 'default',"
+        + "    origin = 'file://" + originRepo.getGitDir().toAbsolutePath() + "',"
+        + "    destination = 'file://" + destRepo.getGitDir().toAbsolutePath() + "',"
+        + "    prune = True,"
+        + ")", "default");
+    migration.run(workdir, /*sourceRef=*/null);
+
+    Files.write(originRepo.getWorkTree().resolve("test.txt"), "other content".getBytes());
+    originRepo.add().files("test.txt").run();
+    originRepo.git(originRepo.getWorkTree(), "commit", "-m", "second commit");
+    originRepo.simpleCommand("branch", "new");
+    originRepo.simpleCommand("branch", "-D", "other");
+    migration.run(workdir, /*sourceRef=*/null);
+
+    console.assertThat().onceInLog(MessageType.PROGRESS, "Pushing 3 changed references to .*");
+    String orig = originRepo.git(originRepo.getGitDir(), "show-ref").getStdout();
+    String dest = destRepo.git(destRepo.getGitDir(), "show-ref").getStdout();
+    assertThat(dest).isEqualTo(orig);
+    checkRefDoesntExist("refs/heads/other");
+  }
+
+  @Test
+  public void testMirrorPushesChangedRefsInParallelBatches() throws Exception {
+    options.gitMirrorOptions.pushBatchSize = 2;
+    options.gitMirrorOptions.pushThreads = 3;
+    Migration migration = loadMigration(""
+        + "core.project('foo')\n"
+        + "git.mirror("
+        + "    name = 'default',"
+        + "    origin = 'file://" + originRepo.getGitDir().toAbsolutePath() + "',"
+        + "    destination = 'file://" + destRepo.getGitDir().toAbsolutePath() + "',"
+        + ")", "default");
+    migration.run(workdir, /*sourceRef=*/null);
+    for (int i = 0; i < 7; i++) {
+      originRepo.simpleCommand("branch", "branch" + i);
+    }
+    migration.run(workdir, /*sourceRef=*/null);
+
+    String orig = originRepo.git(originRepo.getGitDir(), "show-ref").getStdout();
+    String dest = destRepo.git(destRepo.getGitDir(), "show-ref").getStdout();
+    assertThat(dest).isEqualTo(orig);
+  }
+
+  @Test
+  public void testMirrorMultipleDestinations() throws Exception {
+    GitRepository destRepo1 = bareRepo(Files.createTempDirectory("dest1"));
+    destRepo1.initGitDir();
+    Migration migration = loadMigration(""
+        + "core.project('foo')\n"
+        + "git.mirror("
+        + "    name = 'default',"
+        + "    origin = 'file://" + originRepo.getGitDir().toAbsolutePath() + "',"
+        + "    destination = ["
+        + "        'file://" + destRepo.getGitDir().toAbsolutePath() + "',"
+        + "        'file://" + destRepo1.getGitDir().toAbsolutePath() + "',"
+        + "    ],"
+        + ")", "default");
+    migration.run(workdir, /*sourceRef=*/null);
+    originRepo.simpleCommand("branch", "new");
+    migration.run(workdir, /*sourceRef=*/null);
+
+    console.assertThat()
+        .timesInLog(2, MessageType.PROGRESS, "Fetching from .*")
+        .timesInLog(2, MessageType.PROGRESS, "Pushing 1 changed references to .*")
+        .timesInLog(4, MessageType.INFO, "Mirrored .* to .*");
+    String orig = originRepo.git(originRepo.getGitDir(), "show-ref").getStdout();
+    assertThat(destRepo.git(destRepo.getGitDir(), "show-ref").getStdout()).isEqualTo(orig);
+    assertThat(destRepo1.git(destRepo1.getGitDir(), "show-ref").getStdout()).isEqualTo(orig);
+  }
+
+  @Test
+  public void testMirrorMultipleDestinationsOneFails() throws Exception {
+    GitRepository destRepo1 = bareRepo(Files.createTempDirectory("dest1"));
+    destRepo1.initGitDir();
+    Migration migration = loadMigration(""
+        + "core.project('foo')\n"
+        + "git.mirror("
+        + "    name = 'default',"
+        + "    origin = 'file://" + originRepo.getGitDir().toAbsolutePath() + "',"
+        + "    destination = ["
+        + "        'file://" + destRepo.getGitDir().toAbsolutePath() + "',"
+        + "        'file://" + destRepo1.getGitDir().toAbsolutePath() + "',"
+        + "    ],"
+        + ")", "default");
+    pushConflictingHistory(destRepo);
+    try {
+      migration.run(workdir, /*sourceRef=*/null);
+      fail();
+    } catch (RepoException e) {
+      assertThat(e.getMessage()).contains("to 1 of 2 destinations");
+      assertThat(e.getMessage()).contains(destRepo.getGitDir().toAbsolutePath().toString());
+    }
+    console.assertThat()
+        .onceInLog(MessageType.ERROR, "Failed to mirror (.|\n)*\\[rejected\\](.|\n)*")
+        .onceInLog(MessageType.INFO, "Mirrored .* to .*");
+    assertThat(destRepo1.git(destRepo1.getGitDir(), "show-ref").getStdout())
+        .isEqualTo(originRepo.git(originRepo.getGitDir(), "show-ref").getStdout());
+  }
+
+  @Test
+  public void testMirrorDuplicatedDestinations() throws Exception {
+    String dest = "file://" + destRepo.getGitDir().toAbsolutePath();
+    skylark.evalFails(""
+        + "git.mirror("
+        + "    name = 'default',"
+        + "    origin = 'file://" + originRepo.getGitDir().toAbsolutePath() + "',"
+        + "    destination = ['" + dest + "', '" + dest + "'],"
+        + ")", "Duplicated URLs in 'destination'");
+  }
+
   private GitRepository bareRepo(Path path) throws IOException {
     return GitRepository.bareRepo(path, options.general.getEnvironment(),
         options.general.isVerbose());
@@ -230,13 +389,17 @@ public class GitMirrorTest {
         + "    origin = 'file://" + originRepo.getGitDir().toAbsolutePath() + "',"
         + "    destination = 'file://" + destRepo.getGitDir().toAbsolutePath() + "',"
         + ")";
+    pushConflictingHistory(destRepo);
+    return loadMigration(cfg, "default");
+  }
+
+  private void pushConflictingHistory(GitRepository dest) throws IOException, RepoException {
     GitRepository other = GitRepository.initScratchRepo(/*verbose=*/true,
         options.general.getEnvironment());
     Files.write(other.getWorkTree().resolve("test2.txt"), "some content".getBytes());
     other.add().files("test2.txt").run();
     other.git(other.getWorkTree(), "commit", "-m", "another file");
     other.git(other.getWorkTree(), "branch", "other");
-    other.git(other.getWorkTree(), "push", "file://" + destRepo.getGitDir(), "+refs/*:refs/*");
-    return loadMigration(cfg, "default");
+    other.git(other.getWorkTree(), "push", "file://" + dest.getGitDir(), "+refs/*:refs/*");
   }
 }
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.git;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.copybara.RepoException;
+import com.google.copybara.git.GitObjectReader.GitObject;
+import com.google.copybara.git.GitObjectReader.TreeEntry;
+import com.google.copybara.util.console.testing.TestingConsole;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Compares the objects read by {@link GitObjectReader} with the ones returned by the git CLI.
+ */
+@RunWith(JUnit4.class)
+public class GitObjectReaderTest {
+
+  @Rule
+  public final ExpectedException thrown = ExpectedException.none();
+
+  private GitRepository repository;
+  private Path workdir;
+
+  @Before
+  public void setup() throws Exception {
+    workdir = Files.createTempDirectory("workdir");
+    repository = GitRepository.initScratchRepo(/*verbose=*/false, workdir, System.getenv());
+    createHistory();
+  }
+
+  private void createHistory() throws IOException, RepoException {
+    StringBuilder big = new StringBuilder();
+    for (int i = 0; i < 2000; i++) {
+      big.append("line number ").append(i).append('\n');
+    }
+    Files.createDirectories(workdir.resolve("dir/subdir"));
+    Files.write(workdir.resolve("big.txt"), big.toString().getBytes(UTF_8));
+    Files.write(workdir.resolve("empty.txt"), new byte[0]);
+    Files.write(workdir.resolve("dir/subdir/binary.bin"), new byte[]{0, 1, 2, (byte) 0xff});
+    Files.write(workdir.resolve("dir/with space.txt"), "\u00e1\u00e9\u00ed".getBytes(UTF_8));
+    repository.add().all().run();
+    repository.simpleCommand("commit", "-m", "first");
+    // Small modifications of a big file so that packing creates deltas.
+    for (int i = 0; i < 5; i++) {
+      big.insert(big.length() / 2, "modification " + i + "\n");
+      Files.write(workdir.resolve("big.txt"), big.toString().getBytes(UTF_8));
+      repository.add().all().run();
+      repository.simpleCommand("commit", "-m", "change " + i);
+    }
+    repository.simpleCommand("tag", "-a", "v1", "-m", "annotated tag");
+  }
+
+  @Test
+  public void testLooseObjects() throws Exception {
+    assertSameObjectsAsCli();
+  }
+
+  @Test
+  public void testPackedObjectsWithOffsetDeltas() throws Exception {
+    repository.simpleCommand("repack", "-a", "-d", "-f", "--depth=50", "--window=50");
+    assertNoLooseObjects();
+    assertSameObjectsAsCli();
+  }
+
+  @Test
+  public void testPackedObjectsWithRefDeltas() throws Exception {
+    repository.simpleCommand("-c", "repack.useDeltaBaseOffset=false",
+        "repack", "-a", "-d", "-f", "--depth=50", "--window=50");
+    assertNoLooseObjects();
+    assertSameObjectsAsCli();
+  }
+
+  @Test
+  public void testPackedAndLooseObjects() throws Exception {
+    repository.simpleCommand("repack", "-a", "-d");
+    Files.write(workdir.resolve("new.txt"), "new file".getBytes(UTF_8));
+    repository.add().all().run();
+    repository.simpleCommand("commit", "-m", "loose commit");
+    assertSameObjectsAsCli();
+  }
+
+  @Test
+  public void testReadTree() throws Exception {
+    repository.simpleCommand("repack", "-a", "-d");
+    try (GitObjectReader reader = repository.newObjectReader()) {
+      String tree = repository.revParse("HEAD^{tree}");
+      List<String> entries = new ArrayList<>();
+      for (TreeEntry entry : reader.readTree(tree)) {
+        entries.add(entry.getType().name().toLowerCase() + " " + entry.getSha1()
+            + "\t" + entry.getName());
+      }
+      List<String> expected = new ArrayList<>();
+      for (String line : Splitter.on('\n').omitEmptyStrings().split(
+          repository.simpleCommand("ls-tree", "-z", tree).getStdout().replace('\0', '\n'))) {
+        // Remove the mode, since git pads it to six digits.
+        expected.add(line.substring(line.indexOf(' ') + 1));
+      }
+      assertThat(entries).containsExactlyElementsIn(expected).inOrder();
+    }
+  }
+
+  @Test
+  public void testObjectNotFound() throws Exception {
+    try (GitObjectReader reader = repository.newObjectReader()) {
+      thrown.expect(CannotFindReferenceException.class);
+      thrown.expectMessage("Cannot find object '0000000000000000000000000000000000000000'");
+      reader.read("0000000000000000000000000000000000000000");
+    }
+  }
+
+  @Test
+  public void testNewPackAfterOpeningTheReader() throws Exception {
+    try (GitObjectReader reader = repository.newObjectReader()) {
+      repository.simpleCommand("repack", "-a", "-d");
+      repository.simpleCommand("prune-packed");
+      String head = repository.revParse("HEAD");
+      assertThat(reader.read(head).getType()).isEqualTo(GitRepository.GitObjectType.COMMIT);
+    }
+  }
+
+  @Test
+  public void testVersion1PackIndexIsSkipped() throws Exception {
+    repository.simpleCommand("-c", "pack.indexVersion=1", "repack", "-a", "-d");
+    assertNoLooseObjects();
+    try (GitObjectReader reader = repository.newObjectReader()) {
+      thrown.expect(CannotFindReferenceException.class);
+      reader.read(repository.revParse("HEAD"));
+    }
+  }
+
+  @Test
+  public void testLsTreeInProcessMatchesCli() throws Exception {
+    repository.simpleCommand("repack", "-a", "-d");
+    assertSameLsTreeAsCli(repository.withInProcessObjectReader());
+  }
+
+  @Test
+  public void testLsTreeInProcessFallsBackToGit() throws Exception {
+    repository.simpleCommand("-c", "pack.indexVersion=1", "repack", "-a", "-d");
+    assertSameLsTreeAsCli(repository.withInProcessObjectReader());
+  }
+
+  @Test
+  public void testChangeReaderInProcessMatchesGitLog() throws Exception {
+    repository.simpleCommand("repack", "-a", "-d");
+    GitRepository inProcess = repository.withInProcessObjectReader();
+    // The annotated tag is peeled by the cat-file session. Its parents are read in-process.
+    for (String ref : ImmutableList.of("HEAD", "v1", repository.revParse("HEAD~1"))) {
+      ImmutableList<ChangeReader.GitChange> limited =
+          ChangeReader.Builder.forDestination(inProcess, new TestingConsole())
+              .setLimit(4)
+              .build()
+              .run(ref);
+      ImmutableList<ChangeReader.GitChange> gitLog =
+          ChangeReader.Builder.forDestination(repository, new TestingConsole())
+              .build()
+              .run(ref);
+      assertWithMessage(ref).that(describeChanges(limited))
+          .isEqualTo(describeChanges(gitLog.subList(gitLog.size() - 4, gitLog.size())));
+    }
+    inProcess.close();
+  }
+
+  private static String describeChanges(List<ChangeReader.GitChange> changes) {
+    StringBuilder result = new StringBuilder();
+    for (ChangeReader.GitChange change : changes) {
+      result.append(change.getChange().getReference().asString())
+          .append(' ').append(change.getParents())
+          .append(' ').append(change.getChange().getAuthor())
+          .append(' ').append(change.getChange().getDateTime())
+          .append(' ').append(change.getChange().getMessage())
+          .append('\n');
+    }
+    return result.toString();
+  }
+
+  private void assertSameLsTreeAsCli(GitRepository inProcess) throws RepoException {
+    // 'v1' is an annotated tag, so the reader has to peel it.
+    for (String ref : ImmutableList.of("HEAD", "HEAD~2", "v1")) {
+      GitReference reference = new GitReference(repository, repository.revParse(ref));
+      for (String path : ImmutableList.of("big.txt", "dir", "dir/with space.txt",
+          "dir/subdir/binary.bin", "dir/missing.txt", "big.txt/foo", "missing/dir/file")) {
+        assertWithMessage(ref + " " + path)
+            .that(describe(inProcess.lsTree(reference, path)))
+            .isEqualTo(repository.simpleCommand("ls-tree", ref, path).getStdout());
+      }
+    }
+    inProcess.close();
+  }
+
+  private static String describe(ImmutableList<GitRepository.TreeElement> elements) {
+    StringBuilder result = new StringBuilder();
+    for (GitRepository.TreeElement element : elements) {
+      // Not part of TreeElement. The paths of the test are all regular files or directories.
+      String mode = element.getType() == GitRepository.GitObjectType.TREE ? "040000" : "100644";
+      result.append(mode).append(' ').append(element.getType().name().toLowerCase())
+          .append(' ').append(element.getRef()).append('\t').append(element.getPath())
+          .append('\n');
+    }
+    return result.toString();
+  }
+
+  private void assertNoLooseObjects() throws RepoException {
+    assertThat(repository.simpleCommand("count-objects").getStdout()).startsWith("0 objects");
+  }
+
+  private void assertSameObjectsAsCli() throws RepoException {
+    String allObjects = repository.simpleCommand(
+        "cat-file", "--batch-all-objects", "--batch-check=%(objectname) %(objecttype)")
+        .getStdout();
+    List<String> lines = Splitter.on('\n').omitEmptyStrings().splitToList(allObjects);
+    assertThat(lines).isNotEmpty();
+    try (GitObjectReader reader = repository.newObjectReader()) {
+      for (String line : lines) {
+        List<String> fields = Splitter.on(' ').splitToList(line);
+        String sha1 = fields.get(0);
+        String type = fields.get(1);
+        GitObject object = reader.read(sha1);
+        assertWithMessage(sha1).that(object.getType().name().toLowerCase()).isEqualTo(type);
+        assertWithMessage(sha1).that(object.getContent())
+            .isEqualTo(repository.simpleCommand("cat-file", type, sha1).getStdoutBytes());
+      }
+    }
+  }
+
+  @Test
+  public void testApplyDelta() throws Exception {
+    byte[] base = "0123456789".getBytes(UTF_8);
+    byte[] delta = {
+        10, // base size
+        7, // result size
+        (byte) 0x91, 2, 3, // copy 3 bytes from offset 2
+        4, 'a', 'b', 'c', 'd' // insert 4 bytes
+    };
+    assertThat(new String(GitObjectReader.applyDelta(base, delta), UTF_8)).isEqualTo("234abcd");
+  }
+
+  @Test
+  public void testApplyDeltaWrongBaseSize() throws Exception {
+    thrown.expect(IOException.class);
+    thrown.expectMessage("Delta base size mismatch");
+    GitObjectReader.applyDelta(new byte[5], new byte[]{10, 0});
+  }
+}
@@ -228,6 +228,19 @@ public class GitOriginTest {
     assertThat(Files.exists(testFile)).isFalse();
   }
 
+  @Test
+  public void testGitProcessesLiveUntilTheCommandFinishes() throws Exception {
+    GitReference master = origin.resolve("master");
+    GitCatFileSession session = origin.getRepository().catFileSession();
+    newReader().change(master);
+    newReader().checkout(master, checkoutDir);
+    assertThat(origin.getRepository().isCatFileSessionRunning()).isTrue();
+    assertThat(origin.getRepository().catFileSession()).isSameAs(session);
+
+    options.general.closeResources();
+    assertThat(origin.getRepository().isCatFileSessionRunning()).isFalse();
+  }
+
   @Test
   public void testGitOriginWithHook() throws Exception {
     Path hook = Files.createTempFile("script", "script");
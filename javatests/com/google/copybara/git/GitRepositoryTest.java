@@ -68,6 +68,48 @@ public class GitRepositoryTest {
     assertThat(ImmutableSet.of(after.values())).hasSize(1);
   }
 
+  @Test
+  public void testForEachRef() throws RepoException, IOException {
+    Files.write(workdir.resolve("foo.txt"), new byte[]{});
+    repository.add().files("foo.txt").run();
+    repository.simpleCommand("commit", "foo.txt", "-m", "message");
+    repository.simpleCommand("branch", "bar");
+    repository.simpleCommand("tag", "v1");
+
+    assertThat(repository.forEachRef(ImmutableList.of()).keySet())
+        .containsExactly("refs/heads/master", "refs/heads/bar", "refs/tags/v1");
+    assertThat(repository.forEachRef(ImmutableList.of("refs/heads")).keySet())
+        .containsExactly("refs/heads/master", "refs/heads/bar");
+    assertThat(repository.forEachRef(ImmutableList.of("refs/heads/b*", "refs/tags")).keySet())
+        .containsExactly("refs/heads/bar", "refs/tags/v1");
+  }
+
+  @Test
+  public void testRevParseMultipleRefs() throws RepoException, IOException {
+    Files.write(workdir.resolve("foo.txt"), new byte[]{});
+    repository.add().files("foo.txt").run();
+    repository.simpleCommand("commit", "foo.txt", "-m", "message");
+    String first = repository.revParse("HEAD");
+    Files.write(workdir.resolve("foo.txt"), new byte[]{42});
+    repository.simpleCommand("commit", "foo.txt", "-m", "message2");
+    String second = repository.revParse("HEAD");
+
+    assertThat(repository.revParse(ImmutableList.of("HEAD~1", "master", "HEAD")))
+        .containsExactly("HEAD~1", first, "master", second, "HEAD", second).inOrder();
+    assertThat(repository.revParse(ImmutableList.of())).isEmpty();
+  }
+
+  @Test
+  public void testRevParseMultipleRefsNotFound() throws RepoException, IOException {
+    Files.write(workdir.resolve("foo.txt"), new byte[]{});
+    repository.add().files("foo.txt").run();
+    repository.simpleCommand("commit", "foo.txt", "-m", "message");
+
+    thrown.expect(CannotFindReferenceException.class);
+    thrown.expectMessage("Cannot find reference 'foo'");
+    repository.revParse(ImmutableList.of("HEAD", "foo"));
+  }
+
   @Test
   public void testFetch() throws RepoException, IOException {
     GitRepository dest = GitRepository.bareRepo(Files.createTempDirectory("destDir"),
@@ -104,6 +146,50 @@ public class GitRepositoryTest {
     assertThat(result.getInserted()).isEmpty();
   }
 
+  @Test
+  public void testFetchOnlyReportsRefspecDestinations() throws RepoException, IOException {
+    GitRepository dest = GitRepository.bareRepo(Files.createTempDirectory("destDir"),
+        System.getenv(), /*verbose=*/true);
+    dest.initGitDir();
+
+    Files.write(workdir.resolve("foo.txt"), new byte[]{});
+    repository.add().files("foo.txt").run();
+    repository.simpleCommand("commit", "foo.txt", "-m", "message");
+    repository.simpleCommand("tag", "v1");
+
+    String fetchUrl = "file://" + repository.getGitDir();
+
+    FetchResult result = dest.fetch(fetchUrl, /*prune=*/false, /*force=*/true,
+        ImmutableList.of("refs/tags/*:refs/tags/*"));
+    assertThat(result.getInserted().keySet()).containsExactly("refs/tags/v1");
+
+    result = dest.fetch(fetchUrl, /*prune=*/false, /*force=*/true,
+        ImmutableList.of("+refs/heads/master:refs/heads/master"));
+    assertThat(result.getInserted().keySet()).containsExactly("refs/heads/master");
+
+    // Only FETCH_HEAD is updated
+    result = dest.fetch(fetchUrl, /*prune=*/false, /*force=*/true,
+        ImmutableList.of("refs/heads/master"));
+    assertThat(result.getInserted()).isEmpty();
+    assertThat(result.getUpdated()).isEmpty();
+    assertThat(result.getDeleted()).isEmpty();
+  }
+
+  @Test
+  public void testFetchedLocalRefPatterns() throws Exception {
+    assertThat(GitRepository.fetchedLocalRefPatterns(ImmutableList.of())).isEmpty();
+    assertThat(GitRepository.fetchedLocalRefPatterns(
+        ImmutableList.of("refs/heads/master", "refs/foo:")))
+        .isEmpty();
+    assertThat(GitRepository.fetchedLocalRefPatterns(ImmutableList.of(
+        "refs/*:refs/*",
+        "+refs/heads/foo-*:refs/remotes/origin/foo-*",
+        "refs/heads/master:refs/heads/master")))
+        .containsExactly("refs", "refs/remotes/origin", "refs/heads/master");
+    assertThat(GitRepository.fetchedLocalRefPatterns(ImmutableList.of("master:master")))
+        .isNull();
+  }
+
   @Test
   public void testCheckoutLocalBranch() throws Exception {
     thrown.expect(CannotFindReferenceException.class);
@@ -84,6 +84,16 @@ public class RefspecTest {
     refspec("la:la:la");
   }
 
+  @Test
+  public void testMatchesDestination() throws EvalException {
+    Refspec refspec = refspec("refs/heads/*:refs/origin/*");
+    assertThat(refspec.matchesDestination("refs/origin/master")).isTrue();
+    assertThat(refspec.matchesDestination("refs/heads/master")).isFalse();
+    assertThat(refspec.matchesDestination("refs/origin/")).isFalse();
+    assertThat(refspec("refs/foo:refs/bar").matchesDestination("refs/bar")).isTrue();
+    assertThat(refspec("refs/foo:refs/bar").matchesDestination("refs/foo")).isFalse();
+  }
+
   @Test
   public void convertTest() throws EvalException {
     checkConvert("refs/foo/bar", "refs/foo/bar", "refs/foo/bar");
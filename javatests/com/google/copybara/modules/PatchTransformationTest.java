@@ -28,6 +28,8 @@ import com.google.copybara.config.MapConfigFile;
 import com.google.copybara.testing.OptionsBuilder;
 import com.google.copybara.testing.SkylarkTestExecutor;
 import com.google.copybara.testing.TransformWorks;
+import com.google.copybara.util.Glob;
+import com.google.copybara.util.console.Message.MessageType;
 import com.google.copybara.util.console.testing.TestingConsole;
 import java.io.IOException;
 import java.nio.file.Files;
@@ -92,6 +94,30 @@ public class PatchTransformationTest {
         .containsFile("test.txt", "foo\n");
   }
 
+  @Test
+  public void patchForExcludedFilesIsSkipped() throws Exception {
+    Files.write(checkoutDir.resolve("other.txt"), "foo\n".getBytes(UTF_8));
+    PatchTransformation transform =
+        new PatchTransformation(ImmutableList.<ConfigFile<?>>of(patchFile), general, false);
+    transform.transform(TransformWorks.of(checkoutDir, "testmsg", console,
+        new Glob(ImmutableList.of("**"), ImmutableList.of("test.txt"))));
+    assertThatPath(checkoutDir)
+        .containsFile("other.txt", "foo\n")
+        .containsNoMoreFiles();
+    console.assertThat()
+        .onceInLog(MessageType.INFO, "Skipping patch 0/1: 'diff.patch'.*");
+  }
+
+  @Test
+  public void patchForMissingFilesFails() throws Exception {
+    Files.write(checkoutDir.resolve("other.txt"), "foo\n".getBytes(UTF_8));
+    PatchTransformation transform =
+        new PatchTransformation(ImmutableList.<ConfigFile<?>>of(patchFile), general, false);
+    thrown.expect(IOException.class);
+    thrown.expectMessage("Error executing 'patch'");
+    transform.transform(TransformWorks.of(checkoutDir, "testmsg", console));
+  }
+
   @Test
   public void testParseSkylark() throws Exception {
     Files.write(checkoutDir.resolve("test.txt"), "foo\n".getBytes(UTF_8));
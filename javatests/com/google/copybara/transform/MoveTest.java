@@ -16,22 +16,27 @@
 
 package com.google.copybara.transform;
 
+import static com.google.common.truth.Truth.assertThat;
 import static com.google.copybara.testing.FileSubjects.assertThatPath;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.jimfs.Jimfs;
 import com.google.copybara.Core;
 import com.google.copybara.NonReversibleValidationException;
+import com.google.copybara.TransformWork;
 import com.google.copybara.ValidationException;
 import com.google.copybara.testing.OptionsBuilder;
 import com.google.copybara.testing.SkylarkTestExecutor;
 import com.google.copybara.testing.TransformWorks;
+import com.google.copybara.util.Glob;
 import com.google.copybara.util.console.Message.MessageType;
 import com.google.copybara.util.console.testing.TestingConsole;
 import java.io.IOException;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.List;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
@@ -254,6 +259,47 @@ public class MoveTest {
         .containsNoMoreFiles();
   }
 
+  @Test
+  public void testMoveDirRenamesTheDirectory() throws Exception {
+    Move mover = skylark.eval("m",
+        "m = core.move(before = 'third_party/java', after = 'foo/java')\n");
+    Files.createDirectories(checkoutDir.resolve("third_party/java/org"));
+    Files.write(checkoutDir.resolve("third_party/java/one.java"), new byte[]{});
+    Files.write(checkoutDir.resolve("third_party/java/org/two.java"), new byte[]{});
+    TransformWork work = TransformWorks.of(checkoutDir, "testmsg", console);
+    assertThat(work.getTreeIndex().match(Glob.ALL_FILES.relativeTo(checkoutDir))).hasSize(2);
+
+    mover.transform(work);
+
+    assertThatPath(checkoutDir)
+        .containsFiles("foo/java/one.java", "foo/java/org/two.java")
+        .containsNoMoreFiles();
+    assertThat(Files.exists(checkoutDir.resolve("third_party/java"))).isFalse();
+    assertThat(work.getTreeIndex().match(Glob.ALL_FILES.relativeTo(checkoutDir)))
+        .containsExactly(
+            checkoutDir.resolve("foo/java/one.java"), checkoutDir.resolve("foo/java/org/two.java"));
+  }
+
+  @Test
+  public void testMoveDirMergesWithExistingDir() throws Exception {
+    Move mover = skylark.eval("m",
+        "m = core.move(before = 'third_party/java', after = 'foo')\n");
+    Files.createDirectories(checkoutDir.resolve("third_party/java/org"));
+    Files.createDirectories(checkoutDir.resolve("foo"));
+    Files.write(checkoutDir.resolve("foo/existing.java"), new byte[]{});
+    Files.write(checkoutDir.resolve("third_party/java/one.java"), new byte[]{});
+    Files.write(checkoutDir.resolve("third_party/java/org/two.java"), new byte[]{});
+
+    transform(mover);
+
+    assertThatPath(checkoutDir)
+        .containsFiles("foo/existing.java", "foo/one.java", "foo/org/two.java")
+        .containsNoMoreFiles();
+    // 'foo' existed so the files were moved one by one, but 'org' was renamed.
+    assertThat(Files.isDirectory(checkoutDir.resolve("third_party/java"))).isTrue();
+    assertThat(Files.exists(checkoutDir.resolve("third_party/java/org"))).isFalse();
+  }
+
   @Test
   public void testMoveFromCheckoutDirRootToSubdir() throws Exception {
     Move mover = skylark.eval("m",
@@ -280,6 +326,96 @@ public class MoveTest {
     transform(mover);
   }
 
+  @Test
+  public void testMovePlannerMatchesSequentialMoves() throws Exception {
+    List<Move> moves = ImmutableList.of(
+        move("a", "lib/a"),
+        move("lib/a/sub", "sub"),
+        move("c.txt", "lib/c.txt"),
+        move("d", ""),
+        skylark.eval("m", "m = core.move('e.txt', 'b/z.txt', overwrite = True)"),
+        skylark.eval("m", "m = core.move('b', 'java', paths = glob(['**.java']))"));
+    Path sequentialDir = checkoutDir.resolveSibling("sequential");
+    for (Path dir : ImmutableList.of(checkoutDir, sequentialDir)) {
+      writeFile(dir, "a/x.txt", "x");
+      writeFile(dir, "a/sub/y.txt", "y");
+      writeFile(dir, "b/z.txt", "z");
+      writeFile(dir, "b/w/Foo.java", "foo");
+      writeFile(dir, "c.txt", "c");
+      writeFile(dir, "d/e/f.txt", "f");
+      writeFile(dir, "e.txt", "e");
+    }
+    new MovePlanner(moves).transform(TransformWorks.of(checkoutDir, "testmsg", console));
+    for (Move move : moves) {
+      move.transform(TransformWorks.of(sequentialDir, "testmsg", console));
+    }
+
+    assertThatPath(checkoutDir)
+        .containsFile("lib/a/x.txt", "x")
+        .containsFile("sub/y.txt", "y")
+        .containsFile("lib/c.txt", "c")
+        .containsFile("e/f.txt", "f")
+        .containsFile("b/z.txt", "e")
+        .containsFile("java/w/Foo.java", "foo")
+        .containsNoMoreFiles();
+    assertThatPath(sequentialDir)
+        .containsFile("lib/a/x.txt", "x")
+        .containsFile("sub/y.txt", "y")
+        .containsFile("lib/c.txt", "c")
+        .containsFile("e/f.txt", "f")
+        .containsFile("b/z.txt", "e")
+        .containsFile("java/w/Foo.java", "foo")
+        .containsNoMoreFiles();
+  }
+
+  @Test
+  public void testMovePlannerRenamesWholeDirectories() throws Exception {
+    writeFile(checkoutDir, "a/x.txt", "x");
+    writeFile(checkoutDir, "a/sub/y.txt", "y");
+    new MovePlanner(ImmutableList.of(move("a", "lib/a"), move("lib/a", "src/a")))
+        .transform(TransformWorks.of(checkoutDir, "testmsg", console));
+
+    assertThatPath(checkoutDir)
+        .containsFile("src/a/x.txt", "x")
+        .containsFile("src/a/sub/y.txt", "y")
+        .containsNoMoreFiles();
+    // The directory was renamed, so it is not left behind empty.
+    assertThat(Files.exists(checkoutDir.resolve("a"))).isFalse();
+    assertThat(Files.isDirectory(checkoutDir.resolve("lib"))).isTrue();
+  }
+
+  @Test
+  public void testMovePlannerRunsConflictingMovesOneByOne() throws Exception {
+    writeFile(checkoutDir, "one", "1");
+    writeFile(checkoutDir, "two", "2");
+    new MovePlanner(ImmutableList.of(move("one", "tmp"), move("two", "one"), move("tmp", "two")))
+        .transform(TransformWorks.of(checkoutDir, "testmsg", console));
+
+    assertThatPath(checkoutDir)
+        .containsFile("one", "2")
+        .containsFile("two", "1")
+        .containsNoMoreFiles();
+  }
+
+  @Test
+  public void testMovePlannerReportsTheErrorsOfMove() throws Exception {
+    writeFile(checkoutDir, "one", "1");
+    writeFile(checkoutDir, "two", "2");
+    thrown.expect(ValidationException.class);
+    thrown.expectMessage("because it already exists");
+    new MovePlanner(ImmutableList.of(move("one", "three"), move("three", "two")))
+        .transform(TransformWorks.of(checkoutDir, "testmsg", console));
+  }
+
+  private Move move(String before, String after) throws ValidationException {
+    return skylark.eval("m", String.format("m = core.move('%s', '%s')", before, after));
+  }
+
+  private static void writeFile(Path dir, String path, String content) throws IOException {
+    Files.createDirectories(dir.resolve(path).getParent());
+    Files.write(dir.resolve(path), content.getBytes(UTF_8));
+  }
+
   @Test
   public void errorForMissingBefore() throws Exception {
     try {
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.transform;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class MultiLiteralMatcherTest {
+
+  @Test
+  public void testFindAll() {
+    MultiLiteralMatcher matcher = matcher("he", "she", "his", "hers", "\u00e9");
+
+    assertThat(find(matcher, "ushers")).containsExactly(0, 1, 3);
+    assertThat(find(matcher, "this")).containsExactly(2);
+    assertThat(find(matcher, "caf\u00e9")).containsExactly(4);
+    assertThat(find(matcher, "nothing")).isEmpty();
+    assertThat(find(matcher, "")).isEmpty();
+  }
+
+  @Test
+  public void testOverlappingLiterals() {
+    MultiLiteralMatcher matcher = matcher("aab", "ab", "b", "aaab");
+
+    assertThat(find(matcher, "aaab")).containsExactly(0, 1, 2, 3);
+    assertThat(find(matcher, "aab")).containsExactly(0, 1, 2);
+    assertThat(find(matcher, "aa")).isEmpty();
+  }
+
+  @Test
+  public void testSameAsIndexOf() {
+    Random random = new Random(42);
+    for (int iteration = 0; iteration < 500; iteration++) {
+      List<String> literals = new ArrayList<>();
+      for (int i = 0; i < 5; i++) {
+        literals.add(randomString(random, 1 + random.nextInt(4)));
+      }
+      String content = randomString(random, random.nextInt(30));
+      List<Integer> expected = new ArrayList<>();
+      for (int i = 0; i < literals.size(); i++) {
+        if (content.contains(literals.get(i))) {
+          expected.add(i);
+        }
+      }
+      assertThat(find(matcher(literals.toArray(new String[0])), content))
+          .containsExactlyElementsIn(expected);
+    }
+  }
+
+  private static String randomString(Random random, int length) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < length; i++) {
+      sb.append((char) ('a' + random.nextInt(3)));
+    }
+    return sb.toString();
+  }
+
+  private static MultiLiteralMatcher matcher(String... literals) {
+    ImmutableList.Builder<byte[]> bytes = ImmutableList.builder();
+    for (String literal : literals) {
+      bytes.add(literal.getBytes(UTF_8));
+    }
+    return new MultiLiteralMatcher(bytes.build());
+  }
+
+  private static List<Integer> find(MultiLiteralMatcher matcher, String content) {
+    BitSet found = matcher.findAll(ByteBuffer.wrap(content.getBytes(UTF_8)));
+    List<Integer> result = new ArrayList<>();
+    for (int i = found.nextSetBit(0); i >= 0; i = found.nextSetBit(i + 1)) {
+      result.add(i);
+    }
+    return result;
+  }
+}
@@ -20,6 +20,7 @@ import static com.google.common.truth.Truth.assertThat;
 import static com.google.copybara.testing.FileSubjects.assertThatPath;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+import com.google.common.base.Strings;
 import com.google.common.jimfs.Jimfs;
 import com.google.copybara.Core;
 import com.google.copybara.ValidationException;
@@ -116,6 +117,42 @@ public final class ReplaceTest {
     assertThat(before.lastModifiedTime()).isEqualTo(after.lastModifiedTime());
   }
 
+  @Test
+  public void testReplaceInBigFile() throws Exception {
+    Replace transformation =
+        eval("core.replace(\n"
+            + "  before = 'foo',\n"
+            + "  after  = 'bar',\n"
+            + ")");
+
+    // Only the last of many lines matches.
+    String content = Strings.repeat("baz\n", 64 * 1024);
+    writeFile(checkoutDir.resolve("big.txt"), content + "foo");
+    writeFile(checkoutDir.resolve("other.txt"), content);
+    transform(transformation);
+
+    assertThatPath(checkoutDir)
+        .containsFile("big.txt", content + "bar")
+        .containsFile("other.txt", content);
+  }
+
+  @Test
+  public void testBinaryFilesAreNotModified() throws Exception {
+    Replace transformation =
+        eval("core.replace(\n"
+            + "  before = 'foo',\n"
+            + "  after  = 'bar',\n"
+            + ")");
+
+    writeFile(checkoutDir.resolve("file.txt"), "foo");
+    writeFile(checkoutDir.resolve("file.bin"), "foo\0foo");
+    transform(transformation);
+
+    assertThatPath(checkoutDir)
+        .containsFile("file.txt", "bar")
+        .containsFile("file.bin", "foo\0foo");
+  }
+
   @Test
   public void testWithGroups() throws Exception {
     Replace transformation = eval("core.replace(\n"
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.transform;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.copybara.benchmarks.TreeGenerator;
+import com.google.copybara.transform.TemplateTokens.Replacer;
+import com.google.devtools.build.lib.syntax.EvalException;
+import com.google.re2j.Pattern;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Runs the {@link Replacer} of {@code core.replace} over the content of a synthetic file.
+ *
+ * <p>Lives in the transform package because {@link TemplateTokens} is package-private. It is
+ * compiled into the {@code //javatests/com/google/copybara/benchmarks} binary.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TemplateTokensBenchmark {
+
+  @Param({"4096", "1048576"})
+  public int fileSize;
+
+  private String content;
+  private Replacer literalReplacer;
+  private Replacer groupReplacer;
+  private Replacer multilineReplacer;
+
+  @Setup
+  public void setup() throws EvalException {
+    content = TreeGenerator.content(fileSize, /*seed=*/0);
+    literalReplacer = replacer("internal.example.com", "external.example.com",
+        ImmutableMap.<String, Pattern>of(), /*multiline=*/false);
+    groupReplacer = replacer("import com.google.${pkg}.Foo${n};", "import org.${pkg}.Bar${n};",
+        ImmutableMap.of("pkg", Pattern.compile("[a-z0-9]+"), "n", Pattern.compile("[0-9]+")),
+        /*multiline=*/false);
+    multilineReplacer = replacer("${todo}\n\n", "\n",
+        ImmutableMap.of("todo", Pattern.compile("  // TODO[^\n]*")), /*multiline=*/true);
+  }
+
+  @Benchmark
+  public String literal() {
+    return literalReplacer.replace(content);
+  }
+
+  @Benchmark
+  public String regexGroups() {
+    return groupReplacer.replace(content);
+  }
+
+  @Benchmark
+  public String multiline() {
+    return multilineReplacer.replace(content);
+  }
+
+  private static Replacer replacer(String before, String after, Map<String, Pattern> groups,
+      boolean multiline) throws EvalException {
+    TemplateTokens beforeTokens =
+        new TemplateTokens(/*location=*/null, before, groups, /*repeatedGroups=*/false);
+    TemplateTokens afterTokens =
+        new TemplateTokens(/*location=*/null, after, groups, /*repeatedGroups=*/false);
+    return beforeTokens.replacer(afterTokens, /*firstOnly=*/false, multiline);
+  }
+}
@@ -1,19 +1,27 @@
 package com.google.copybara.transform;
 
+import static com.google.common.truth.Truth.assertThat;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.fail;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.jimfs.Jimfs;
 import com.google.copybara.Core;
 import com.google.copybara.ValidationException;
 import com.google.copybara.testing.OptionsBuilder;
 import com.google.copybara.testing.SkylarkTestExecutor;
 import com.google.copybara.testing.TransformWorks;
+import com.google.copybara.util.FileTreeIndex;
+import com.google.copybara.util.Glob;
 import com.google.copybara.util.console.Message.MessageType;
 import com.google.copybara.util.console.testing.TestingConsole;
+import com.google.re2j.Pattern;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -106,6 +114,39 @@ public final class VerifyMatchTest {
         "File '/file1.txt' failed validation 'Verify match foo'");
   }
 
+  @Test
+  public void testBinaryFilesAreSkipped() throws Exception {
+    VerifyMatch transformation = eval("core.verify_match(\n"
+        + "  regex = 'foo',\n"
+        + ")");
+    writeFile(checkoutDir.resolve("file.bin"), "bar\0bar");
+    transform(transformation);
+  }
+
+  @Test
+  public void testBinaryFilesAreVerifiedWithVerifyNoMatch() throws Exception {
+    VerifyMatch transformation = eval("core.verify_match(\n"
+        + "  regex = 'foo',\n"
+        + "  verify_no_match = True,\n"
+        + ")");
+    writeFile(checkoutDir.resolve("file.bin"), "bar\0foo");
+    thrown.expect(ValidationException.class);
+    thrown.expectMessage("1 file(s) failed the validation of Verify match 'foo'.");
+    transform(transformation);
+  }
+
+  @Test
+  public void testBinaryFilesAreVerifiedWithVerifyNoMatchRegex() throws Exception {
+    VerifyMatch transformation = eval("core.verify_match(\n"
+        + "  regex = 'fo+',\n"
+        + "  verify_no_match = True,\n"
+        + ")");
+    writeFile(checkoutDir.resolve("file.bin"), "bar\0foo");
+    thrown.expect(ValidationException.class);
+    thrown.expectMessage("1 file(s) failed the validation of Verify match 'fo+'.");
+    transform(transformation);
+  }
+
   @Test
   public void testWithGlob() throws Exception {
     VerifyMatch transformation = eval("core.verify_match(\n"
@@ -148,6 +189,162 @@ public final class VerifyMatchTest {
     transform(transformation);
   }
 
+  @Test
+  public void testFailFast() throws Exception {
+    VerifyMatch transformation = eval("core.verify_match(\n"
+        + "  regex = 'foo',\n"
+        + "  fail_fast = True,\n"
+        + ")");
+    for (int i = 0; i < 50; i++) {
+      writeFile(checkoutDir.resolve("file" + i + ".txt"), "bar");
+    }
+    thrown.expect(ValidationException.class);
+    thrown.expectMessage("Other files were not verified because of fail_fast");
+    transform(transformation);
+  }
+
+  @Test
+  public void testReportedErrorsAreCapped() throws Exception {
+    VerifyMatch transformation = eval("core.verify_match(\n"
+        + "  regex = 'foo',\n"
+        + ")");
+    int files = VerifyMatch.MAX_REPORTED_ERRORS + 5;
+    for (int i = 0; i < files; i++) {
+      writeFile(checkoutDir.resolve(String.format("file%03d.txt", i)), "bar");
+    }
+    try {
+      transform(transformation);
+      fail();
+    } catch (ValidationException e) {
+      assertThat(e.getMessage())
+          .isEqualTo(files + " file(s) failed the validation of Verify match 'foo'.");
+    }
+    console.assertThat()
+        .timesInLog(VerifyMatch.MAX_REPORTED_ERRORS, MessageType.ERROR,
+            "File '/file[0-9]+.txt' failed validation 'Verify match 'foo''.")
+        .onceInLog(MessageType.ERROR, "5 more file\\(s\\) failed validation 'Verify match 'foo''.")
+        .onceInLog(MessageType.ERROR, "File '/file099.txt' failed validation .*");
+  }
+
+  @Test
+  public void testLiteralRegexInBigFile() throws Exception {
+    Path workdir = Files.createTempDirectory("workdir");
+    byte[] content = new byte[1024 * 1024];
+    Arrays.fill(content, (byte) 'a');
+    byte[] literal = "Copyright (C) 2016".getBytes(UTF_8);
+    System.arraycopy(literal, 0, content, content.length - literal.length, literal.length);
+    Files.write(workdir.resolve("big.txt"), content);
+
+    VerifyMatchVisitor visitor = new VerifyMatchVisitor(
+        Pattern.compile("Copyright \\(C\\) 2016"),
+        Glob.ALL_FILES.relativeTo(workdir), /*verifyNoMatch=*/false);
+    visitor.visit(new FileTreeIndex(workdir), /*parallelism=*/2);
+    assertThat(visitor.getErrorCount()).isEqualTo(0);
+
+    visitor = new VerifyMatchVisitor(
+        Pattern.compile("Copyright \\(C\\) 2017"),
+        Glob.ALL_FILES.relativeTo(workdir), /*verifyNoMatch=*/false);
+    visitor.visit(new FileTreeIndex(workdir), /*parallelism=*/2);
+    assertThat(visitor.getErrors()).containsExactly(workdir.resolve("big.txt").toString());
+  }
+
+  @Test
+  public void testBatch() throws Exception {
+    VerifyMatch copyright = eval("core.verify_match(\n"
+        + "  regex = 'Copyright',\n"
+        + ")");
+    VerifyMatch internal = eval("core.verify_match(\n"
+        + "  regex = 'internal',\n"
+        + "  verify_no_match = True,\n"
+        + ")");
+    VerifyMatch javaPackage = eval("core.verify_match(\n"
+        + "  regex = '^package [a-z.]+;',\n"
+        + "  paths = glob(['**.java']),\n"
+        + ")");
+    writeFile(checkoutDir.resolve("Foo.java"), "// Copyright\npackage foo;\n");
+    writeFile(checkoutDir.resolve("Bar.java"), "// Copyright\nclass Bar {} // internal\n");
+    writeFile(checkoutDir.resolve("README"), "internal");
+
+    thrown.expect(ValidationException.class);
+    thrown.expectMessage("1 file(s) failed the validation of Verify match 'Copyright'.");
+    try {
+      new VerifyMatchBatch(ImmutableList.of(copyright, internal, javaPackage))
+          .transform(TransformWorks.of(checkoutDir, "testmsg", console));
+    } finally {
+      console.assertThat()
+          .onceInLog(MessageType.ERROR, "File '.*README' failed validation .*Copyright.*")
+          .onceInLog(MessageType.ERROR, "File '.*README' failed validation .*internal.*")
+          .onceInLog(MessageType.ERROR, "File '.*Bar.java' failed validation .*internal.*")
+          .onceInLog(MessageType.ERROR, "File '.*Bar.java' failed validation .*package.*")
+          .timesInLog(4, MessageType.ERROR, ".*");
+    }
+  }
+
+  @Test
+  public void testBatchPasses() throws Exception {
+    VerifyMatch copyright = eval("core.verify_match(\n"
+        + "  regex = 'Copyright',\n"
+        + ")");
+    VerifyMatch internal = eval("core.verify_match(\n"
+        + "  regex = 'internal',\n"
+        + "  verify_no_match = True,\n"
+        + ")");
+    writeFile(checkoutDir.resolve("Foo.java"), "// Copyright\npackage foo;\n");
+    new VerifyMatchBatch(ImmutableList.of(copyright, internal))
+        .transform(TransformWorks.of(checkoutDir, "testmsg", console));
+  }
+
+  @Test
+  public void testBatchVerifiesBinaryFilesOnlyWithVerifyNoMatch() throws Exception {
+    VerifyMatch copyright = eval("core.verify_match(\n"
+        + "  regex = 'Copyright',\n"
+        + ")");
+    VerifyMatch internal = eval("core.verify_match(\n"
+        + "  regex = 'internal',\n"
+        + "  verify_no_match = True,\n"
+        + ")");
+    writeFile(checkoutDir.resolve("Foo.java"), "// Copyright\npackage foo;\n");
+    writeFile(checkoutDir.resolve("file.bin"), "bar\0internal");
+
+    thrown.expect(ValidationException.class);
+    thrown.expectMessage("1 file(s) failed the validation of Verify match 'internal'.");
+    try {
+      new VerifyMatchBatch(ImmutableList.of(copyright, internal))
+          .transform(TransformWorks.of(checkoutDir, "testmsg", console));
+    } finally {
+      console.assertThat()
+          .onceInLog(MessageType.ERROR, "File '.*file.bin' failed validation .*internal.*")
+          .timesInLog(1, MessageType.ERROR, ".*");
+    }
+  }
+
+  @Test
+  public void testFailFastIsNotBatched() throws Exception {
+    assertThat(VerifyMatchBatch.canBatch(eval("core.verify_match(regex = 'foo')"))).isTrue();
+    assertThat(VerifyMatchBatch.canBatch(
+        eval("core.verify_match(regex = 'foo', fail_fast = True)"))).isFalse();
+  }
+
+  @Test
+  public void testAsLiteral() throws Exception {
+    assertThat(VerifyMatchVisitor.asLiteral("foo bar")).isEqualTo("foo bar");
+    assertThat(VerifyMatchVisitor.asLiteral("foo\\.bar\\(\\)")).isEqualTo("foo.bar()");
+    assertThat(VerifyMatchVisitor.asLiteral("foo.bar")).isNull();
+    assertThat(VerifyMatchVisitor.asLiteral("^foo")).isNull();
+    assertThat(VerifyMatchVisitor.asLiteral("foo\\d")).isNull();
+    assertThat(VerifyMatchVisitor.asLiteral("foo\\")).isNull();
+    assertThat(VerifyMatchVisitor.asLiteral("")).isNull();
+  }
+
+  @Test
+  public void testIndexOf() throws Exception {
+    ByteBuffer content = ByteBuffer.wrap("aababc".getBytes(UTF_8));
+    assertThat(VerifyMatchVisitor.indexOf(content, "abc".getBytes(UTF_8))).isEqualTo(3);
+    assertThat(VerifyMatchVisitor.indexOf(content, "aab".getBytes(UTF_8))).isEqualTo(0);
+    assertThat(VerifyMatchVisitor.indexOf(content, "abcd".getBytes(UTF_8))).isEqualTo(-1);
+    assertThat(VerifyMatchVisitor.indexOf(content, "bb".getBytes(UTF_8))).isEqualTo(-1);
+  }
+
   private void prepareGlobTree() throws IOException {
     writeFile(checkoutDir.resolve("file1.txt"), "bar");
     writeFile(checkoutDir.resolve("file1.java"), "foobar");
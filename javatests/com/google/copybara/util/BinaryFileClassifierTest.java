@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.util;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class BinaryFileClassifierTest {
+
+  private Path workdir;
+
+  @Before
+  public void setup() throws IOException {
+    workdir = Files.createTempDirectory("workdir");
+  }
+
+  @Test
+  public void testContentSniffing() throws IOException {
+    BinaryFileClassifier classifier = BinaryFileClassifier.CONTENT_ONLY;
+
+    assertThat(classifier.isBinary(write("text.png", "some text"))).isFalse();
+    assertThat(classifier.isBinary(write("empty", ""))).isFalse();
+    assertThat(classifier.isBinary(write("file", "foo\0bar"))).isTrue();
+    assertThat(classifier.isBinary(write("late", Strings.repeat("a", 8000) + "\0"))).isFalse();
+  }
+
+  @Test
+  public void testExtensions() throws IOException {
+    BinaryFileClassifier classifier =
+        new BinaryFileClassifier(ImmutableList.of("png", ".JAR"));
+
+    assertThat(classifier.isBinary(write("text.png", "some text"))).isTrue();
+    assertThat(classifier.isBinary(write("lib.jar", "some text"))).isTrue();
+    assertThat(classifier.isBinary(write("IMAGE.PNG", "some text"))).isTrue();
+    assertThat(classifier.isBinary(write("png", "some text"))).isFalse();
+    assertThat(classifier.isBinary(write("foo.png.txt", "some text"))).isFalse();
+    assertThat(classifier.isBinary(write("foo.txt", "foo\0bar"))).isTrue();
+  }
+
+  private Path write(String name, String content) throws IOException {
+    return Files.write(workdir.resolve(name), content.getBytes(UTF_8));
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.util;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Strings;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class FileContentTest {
+
+  private Path workdir;
+
+  @Before
+  public void setup() throws IOException {
+    workdir = Files.createTempDirectory("workdir");
+  }
+
+  @Test
+  public void testSmallFile() throws IOException {
+    FileContent content = FileContent.read(write("small.txt", "hello \u00e9"));
+
+    assertThat(content.isMapped()).isFalse();
+    assertThat(content.size()).isEqualTo(8);
+    assertThat(content.text().toString()).isEqualTo("hello \u00e9");
+  }
+
+  @Test
+  public void testBigAsciiFile() throws IOException {
+    String text = Strings.repeat("some text\n", (int) FileContent.MMAP_THRESHOLD / 10 + 1);
+    FileContent content = FileContent.read(write("big.txt", text));
+
+    assertThat(content.isMapped()).isTrue();
+    CharSequence result = content.text();
+    assertThat(result.length()).isEqualTo(text.length());
+    assertThat(result.charAt(5)).isEqualTo('t');
+    assertThat(result.subSequence(5, 14).toString()).isEqualTo("text\nsome");
+    assertThat(result.toString()).isEqualTo(text);
+  }
+
+  @Test
+  public void testBigNonAsciiFile() throws IOException {
+    String text = Strings.repeat("\u00e9", (int) FileContent.MMAP_THRESHOLD);
+    FileContent content = FileContent.read(write("big.txt", text));
+
+    assertThat(content.isMapped()).isTrue();
+    assertThat(content.text().toString()).isEqualTo(text);
+  }
+
+  private Path write(String name, String content) throws IOException {
+    return Files.write(workdir.resolve(name), content.getBytes(UTF_8));
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.util;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class FileTreeIndexTest {
+
+  private Path workdir;
+  private FileTreeIndex index;
+
+  @Before
+  public void setup() throws IOException {
+    workdir = Files.createTempDirectory("workdir");
+    index = new FileTreeIndex(workdir);
+  }
+
+  @Test
+  public void testMatch() throws IOException {
+    touch("foo/Foo.java");
+    touch("foo/bar/Bar.java");
+    touch("foo/bar/README");
+    touch("vendor/Vendor.java");
+    touch("Root.java");
+
+    assertThat(index.match(Glob.ALL_FILES.relativeTo(workdir))).containsExactly(
+        workdir.resolve("Root.java"),
+        workdir.resolve("foo/Foo.java"),
+        workdir.resolve("foo/bar/Bar.java"),
+        workdir.resolve("foo/bar/README"),
+        workdir.resolve("vendor/Vendor.java")).inOrder();
+    assertThat(index.match(
+        new Glob(ImmutableList.of("**.java"), ImmutableList.of("vendor/**")).relativeTo(workdir)))
+        .containsExactly(
+            workdir.resolve("Root.java"),
+            workdir.resolve("foo/Foo.java"),
+            workdir.resolve("foo/bar/Bar.java"));
+    assertThat(index.match(new Glob(ImmutableList.of("foo/bar/*")).relativeTo(workdir)))
+        .containsExactly(workdir.resolve("foo/bar/Bar.java"), workdir.resolve("foo/bar/README"));
+  }
+
+  @Test
+  public void testUpdates() throws IOException {
+    touch("foo/Foo.java");
+    touch("bar/Bar.java");
+    assertThat(index.match(Glob.ALL_FILES.relativeTo(workdir))).hasSize(2);
+
+    // Files created after the index was read are not visible until they are recorded.
+    touch("baz/Baz.java");
+    assertThat(index.match(Glob.ALL_FILES.relativeTo(workdir)))
+        .doesNotContain(workdir.resolve("baz/Baz.java"));
+    index.add(workdir.resolve("baz/Baz.java"));
+    index.move(workdir.resolve("foo/Foo.java"), workdir.resolve("other/Foo.java"));
+    index.remove(workdir.resolve("bar/Bar.java"));
+
+    assertThat(index.match(Glob.ALL_FILES.relativeTo(workdir))).containsExactly(
+        workdir.resolve("baz/Baz.java"),
+        workdir.resolve("other/Foo.java"));
+  }
+
+  @Test
+  public void testMoveDirectory() throws IOException {
+    touch("foo/Foo.java");
+    touch("foo/bar/Bar.java");
+    touch("other/Other.java");
+    assertThat(index.match(Glob.ALL_FILES.relativeTo(workdir))).hasSize(3);
+
+    index.moveDirectory(workdir.resolve("foo"), workdir.resolve("dest/foo"));
+    // Merged with the files already recorded in the destination
+    index.moveDirectory(workdir.resolve("other"), workdir.resolve("dest/foo/bar"));
+
+    assertThat(index.match(Glob.ALL_FILES.relativeTo(workdir))).containsExactly(
+        workdir.resolve("dest/foo/Foo.java"),
+        workdir.resolve("dest/foo/bar/Bar.java"),
+        workdir.resolve("dest/foo/bar/Other.java"));
+  }
+
+  @Test
+  public void testListDirectories() throws IOException {
+    touch("foo/Foo.java");
+    touch("foo/bar/Bar.java");
+    touch("Root.java");
+    Files.createDirectories(workdir.resolve("empty"));
+
+    assertThat(index.list(workdir)).containsExactly(
+        workdir.resolve("Root.java"),
+        workdir.resolve("empty"),
+        workdir.resolve("foo")).inOrder();
+    assertThat(index.list(workdir.resolve("foo"))).containsExactly(
+        workdir.resolve("foo/Foo.java"),
+        workdir.resolve("foo/bar")).inOrder();
+    assertThat(index.isDirectory(workdir.resolve("empty"))).isTrue();
+    assertThat(index.isDirectory(workdir.resolve("Root.java"))).isFalse();
+    assertThat(index.list(workdir.resolve("Root.java"))).isEmpty();
+    assertThat(index.list(workdir.resolve("other"))).isEmpty();
+
+    index.addDirectory(workdir.resolve("new/sub"));
+    index.removeDirectory(workdir.resolve("empty"));
+    assertThat(index.list(workdir)).containsExactly(
+        workdir.resolve("Root.java"),
+        workdir.resolve("foo"),
+        workdir.resolve("new")).inOrder();
+    assertThat(index.list(workdir.resolve("new"))).containsExactly(workdir.resolve("new/sub"));
+  }
+
+  @Test
+  public void testInvalidate() throws IOException {
+    touch("foo/Foo.java");
+    assertThat(index.match(Glob.ALL_FILES.relativeTo(workdir))).hasSize(1);
+    touch("foo/Bar.java");
+    index.invalidate();
+    assertThat(index.match(Glob.ALL_FILES.relativeTo(workdir))).containsExactly(
+        workdir.resolve("foo/Bar.java"),
+        workdir.resolve("foo/Foo.java"));
+  }
+
+  @Test
+  public void testDeleteMatching() throws IOException {
+    touch("foo/Foo.java");
+    touch("foo/README");
+    touch("bar/Bar.java");
+
+    assertThat(index.deleteMatching(new Glob(ImmutableList.of("**.java")).relativeTo(workdir)))
+        .isEqualTo(2);
+    assertThat(Files.exists(workdir.resolve("foo/Foo.java"))).isFalse();
+    assertThat(Files.exists(workdir.resolve("bar/Bar.java"))).isFalse();
+    assertThat(index.match(Glob.ALL_FILES.relativeTo(workdir)))
+        .containsExactly(workdir.resolve("foo/README"));
+  }
+
+  @Test
+  public void testSymlinksAreNotFollowed() throws IOException {
+    touch("foo/Foo.java");
+    Files.createSymbolicLink(workdir.resolve("link"), workdir.resolve("foo"));
+
+    assertThat(index.match(Glob.ALL_FILES.relativeTo(workdir))).containsExactly(
+        workdir.resolve("foo/Foo.java"),
+        workdir.resolve("link"));
+  }
+
+  @Test
+  public void testBinaryFilesAreClassifiedOnce() throws IOException {
+    touch("foo/image.png");
+    Path data = workdir.resolve("foo/data");
+    Files.write(data, new byte[]{1, 0, 2});
+    Path text = workdir.resolve("foo/text");
+    Files.write(text, "text".getBytes(UTF_8));
+    index = new FileTreeIndex(workdir, new BinaryFileClassifier(ImmutableList.of("png")));
+
+    assertThat(index.isBinary(workdir.resolve("foo/image.png"))).isTrue();
+    assertThat(index.isBinary(data)).isTrue();
+    assertThat(index.isBinary(text)).isFalse();
+
+    // The classification is cached
+    Files.write(data, "now text".getBytes(UTF_8));
+    assertThat(index.isBinary(data)).isTrue();
+
+    // And follows the moves
+    Path moved = workdir.resolve("bar/data");
+    Files.createDirectories(moved.getParent());
+    Files.move(data, moved);
+    index.move(data, moved);
+    assertThat(index.isBinary(moved)).isTrue();
+
+    Files.write(data, "text".getBytes(UTF_8));
+    index.add(data);
+    assertThat(index.isBinary(data)).isFalse();
+
+    index.invalidate();
+    assertThat(index.isBinary(moved)).isFalse();
+  }
+
+  private void touch(String path) throws IOException {
+    Path file = workdir.resolve(path);
+    Files.createDirectories(file.getParent());
+    Files.write(file, new byte[]{});
+  }
+}
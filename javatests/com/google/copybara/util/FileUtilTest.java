@@ -19,14 +19,26 @@ package com.google.copybara.util;
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.copybara.testing.FileSubjects.assertThatPath;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.fail;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.copybara.util.FileUtil.CopySymlinkStrategy;
 import java.io.IOException;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributes;
 import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
@@ -94,6 +106,15 @@ public class FileUtilTest {
 
   @Test
   public void testCopyMaterializeAbsolutePaths() throws Exception {
+    checkCopyMaterializeAbsolutePaths(/*parallelism=*/1);
+  }
+
+  @Test
+  public void testCopyMaterializeAbsolutePathsInParallel() throws Exception {
+    checkCopyMaterializeAbsolutePaths(/*parallelism=*/4);
+  }
+
+  private void checkCopyMaterializeAbsolutePaths(int parallelism) throws Exception {
     Path temp = Files.createTempDirectory("temp");
     Path one = Files.createDirectory(temp.resolve("one"));
     Path two = Files.createDirectory(temp.resolve("two"));
@@ -131,7 +152,8 @@ public class FileUtilTest {
     // Symlink to a directory outside root
     Files.createSymbolicLink(folder.resolve("absolute3"), absoluteDir);
 
-    FileUtil.copyFilesRecursively(one, two, CopySymlinkStrategy.MATERIALIZE_OUTSIDE_SYMLINKS);
+    FileUtil.copyFilesRecursively(one, two, CopySymlinkStrategy.MATERIALIZE_OUTSIDE_SYMLINKS,
+        parallelism);
 
     assertThatPath(two)
         .containsFile("foo", "abc")
@@ -176,6 +198,140 @@ public class FileUtilTest {
     FileUtil.copyFilesRecursively(one, two, CopySymlinkStrategy.FAIL_OUTSIDE_SYMLINKS);
   }
 
+  @Test
+  public void testCopyFailAbsoluteSymlinksInParallel() throws Exception {
+    Path temp = Files.createTempDirectory("temp");
+    Path one = Files.createDirectory(temp.resolve("one"));
+    Path two = Files.createDirectory(temp.resolve("two"));
+    Path absolute = touch(Files.createDirectory(temp.resolve("absolute")).resolve("absolute"));
+    for (int i = 0; i < 20; i++) {
+      touch(one.resolve("some/folder" + i + "/file"));
+    }
+    Path folder = Files.createDirectories(one.resolve("some/folder"));
+    Files.createSymbolicLink(folder.resolve("absolute"), folder.relativize(absolute));
+
+    thrown.expect(AbsoluteSymlinksNotAllowed.class);
+    FileUtil.copyFilesRecursively(one, two, CopySymlinkStrategy.FAIL_OUTSIDE_SYMLINKS,
+        /*parallelism=*/4);
+  }
+
+  @Test
+  public void testCopyFromNotADirectory() throws Exception {
+    Path file = Files.createTempFile("file", "txt");
+    thrown.expect(IllegalArgumentException.class);
+    thrown.expectMessage(file + " (from) is not a directory");
+    FileUtil.copyFilesRecursively(file, Files.createTempDirectory("to"),
+        CopySymlinkStrategy.FAIL_OUTSIDE_SYMLINKS, /*parallelism=*/4);
+  }
+
+  @Test
+  public void testParallelFailureWaitsForOperationsInProgress() throws Exception {
+    Path root = Files.createTempDirectory("root");
+    for (int i = 0; i < 20; i++) {
+      touch(root.resolve("file" + i));
+    }
+    AtomicInteger started = new AtomicInteger();
+    AtomicInteger finished = new AtomicInteger();
+    try {
+      FileUtil.forEachFileInParallel(root, file -> true, /*parallelism=*/4,
+          (file, attrs) -> {
+            if (started.incrementAndGet() == 3) {
+              throw new IOException("Failed " + file);
+            }
+            // Like most file operations, this cannot be interrupted.
+            Uninterruptibles.sleepUninterruptibly(200, TimeUnit.MILLISECONDS);
+            finished.incrementAndGet();
+          });
+      fail();
+    } catch (IOException expected) {
+      assertThat(expected.getMessage()).startsWith("Failed ");
+    }
+    assertThat(finished.get()).isEqualTo(started.get() - 1);
+  }
+
+  @Test
+  public void testCopyKeepsPermissionsAndModificationTime() throws Exception {
+    Path temp = Files.createTempDirectory("temp");
+    Path one = Files.createDirectory(temp.resolve("one"));
+    Path two = Files.createDirectory(temp.resolve("two"));
+    Path file = touch(one.resolve("some/folder/file"));
+    Files.write(file, new byte[100_000]);
+    Files.setPosixFilePermissions(file,
+        ImmutableSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_EXECUTE));
+    Files.setLastModifiedTime(file, FileTime.fromMillis(1_000_000_000_000L));
+
+    FileUtil.copyFilesRecursively(one, two, CopySymlinkStrategy.FAIL_OUTSIDE_SYMLINKS);
+
+    Path copy = two.resolve("some/folder/file");
+    assertThat(Files.readAllBytes(copy)).isEqualTo(new byte[100_000]);
+    assertThat(Files.getPosixFilePermissions(copy)).containsExactly(
+        PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_EXECUTE);
+    assertThat(Files.getLastModifiedTime(copy)).isEqualTo(FileTime.fromMillis(1_000_000_000_000L));
+    assertThat(Files.isSameFile(file, copy)).isFalse();
+  }
+
+  @Test
+  public void testCopyUsesPosixAttributesOfWalkedFiles() throws Exception {
+    Path temp = Files.createTempDirectory("temp");
+    Path file = touch(temp.resolve("some/folder/file"));
+    Files.setPosixFilePermissions(file,
+        ImmutableSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_EXECUTE));
+    List<PosixFileAttributes> walked = new ArrayList<>();
+    Files.walkFileTree(temp, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        walked.add(FileUtil.posixAttributes(file, attrs));
+        return FileVisitResult.CONTINUE;
+      }
+    });
+
+    // A null would mean that the copy falls back to Files.copy instead of using transferTo.
+    assertThat(walked).hasSize(1);
+    assertThat(walked.get(0)).isNotNull();
+    assertThat(walked.get(0).permissions()).containsExactly(
+        PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_EXECUTE);
+  }
+
+  @Test
+  public void testCopyWithHardlinks() throws Exception {
+    Path temp = Files.createTempDirectory("temp");
+    Path one = Files.createDirectory(temp.resolve("one"));
+    Path two = Files.createDirectory(temp.resolve("two"));
+    Path file = touch(one.resolve("some/folder/file"));
+    Path outside = touch(temp.resolve("outside"));
+    Files.createSymbolicLink(one.resolve("some/outside"), one.resolve("some").relativize(outside));
+
+    FileUtil.copyFilesRecursively(one, two, CopySymlinkStrategy.MATERIALIZE_OUTSIDE_SYMLINKS,
+        /*parallelism=*/2, /*allowHardlinks=*/true);
+
+    assertThatPath(two)
+        .containsFile("some/folder/file", "abc")
+        .containsFile("some/outside", "abc")
+        .containsNoMoreFiles();
+    assertThat(Files.isSameFile(file, two.resolve("some/folder/file"))).isTrue();
+    // Materialized symlinks are always copied.
+    assertThat(Files.isSameFile(outside, two.resolve("some/outside"))).isFalse();
+  }
+
+  @Test
+  public void testDeleteFilesRecursivelyInParallel() throws Exception {
+    Path temp = Files.createTempDirectory("temp");
+    for (int i = 0; i < 20; i++) {
+      touch(temp.resolve("folder" + i + "/file.java"));
+      touch(temp.resolve("folder" + i + "/file.txt"));
+    }
+    touch(temp.resolve("vendor/file.java"));
+
+    int deleted = FileUtil.deleteFilesRecursively(temp,
+        new Glob(ImmutableList.of("**.java"), ImmutableList.of("vendor/**")).relativeTo(temp),
+        /*parallelism=*/4);
+
+    assertThat(deleted).isEqualTo(20);
+    assertThat(Files.exists(temp.resolve("folder0/file.java"))).isFalse();
+    assertThat(Files.exists(temp.resolve("folder0/file.txt"))).isTrue();
+    assertThat(Files.exists(temp.resolve("vendor/file.java"))).isTrue();
+  }
+
   private Path touch(Path path) throws IOException {
     Files.createDirectories(path.getParent());
     Files.write(path, "abc".getBytes());
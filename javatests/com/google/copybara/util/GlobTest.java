@@ -25,9 +25,14 @@ import com.google.copybara.testing.OptionsBuilder;
 import com.google.copybara.testing.SkylarkTestExecutor;
 import com.google.copybara.util.console.testing.TestingConsole;
 import java.io.IOException;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -167,6 +172,78 @@ public class GlobTest {
         .containsExactly("foo/bar", "foo/barbar");
   }
 
+  @Test
+  public void testMayMatchUnder() {
+    TreePathMatcher matcher = new Glob(ImmutableList.of("foo/bar/*.java", "baz/Some.java"))
+        .relativeTo(workdir);
+    assertThat(matcher.mayMatchUnder(workdir)).isTrue();
+    assertThat(matcher.mayMatchUnder(workdir.resolve("foo"))).isTrue();
+    assertThat(matcher.mayMatchUnder(workdir.resolve("foo/bar"))).isTrue();
+    assertThat(matcher.mayMatchUnder(workdir.resolve("foo/bar/sub"))).isTrue();
+    assertThat(matcher.mayMatchUnder(workdir.resolve("foo/other"))).isFalse();
+    assertThat(matcher.mayMatchUnder(workdir.resolve("baz"))).isTrue();
+    assertThat(matcher.mayMatchUnder(workdir.resolve("baz/Some.java"))).isFalse();
+    assertThat(matcher.mayMatchUnder(workdir.resolve("other"))).isFalse();
+
+    assertThat(new Glob(ImmutableList.of("**")).relativeTo(workdir)
+        .mayMatchUnder(workdir.resolve("foo/bar"))).isTrue();
+    assertThat(new Glob(ImmutableList.<String>of()).relativeTo(workdir)
+        .mayMatchUnder(workdir)).isFalse();
+  }
+
+  @Test
+  public void testMayMatchUnder_excludedSubtrees() {
+    TreePathMatcher matcher = new Glob(ImmutableList.of("**"),
+        ImmutableList.of("third_party/**", "**/generated/**", "foo"))
+        .relativeTo(workdir);
+    assertThat(matcher.mayMatchUnder(workdir)).isTrue();
+    assertThat(matcher.mayMatchUnder(workdir.resolve("third_party"))).isFalse();
+    assertThat(matcher.mayMatchUnder(workdir.resolve("third_party/foo"))).isFalse();
+    assertThat(matcher.mayMatchUnder(workdir.resolve("src/generated"))).isFalse();
+    assertThat(matcher.mayMatchUnder(workdir.resolve("generated"))).isTrue();
+    assertThat(matcher.mayMatchUnder(workdir.resolve("foo"))).isTrue();
+
+    assertThat(new Glob(ImmutableList.of("**"), ImmutableList.of("**")).relativeTo(workdir)
+        .mayMatchUnder(workdir)).isFalse();
+  }
+
+  @Test
+  public void testMayMatchUnder_understandsEscaping() {
+    TreePathMatcher matcher = new Glob(ImmutableList.of("foo\\*/*.java")).relativeTo(workdir);
+    assertThat(matcher.mayMatchUnder(workdir.resolve("foo*"))).isTrue();
+    assertThat(matcher.mayMatchUnder(workdir.resolve("foobar"))).isFalse();
+    assertThat(matcher.matches(workdir.resolve("foo*/Some.java"))).isTrue();
+    assertThat(matcher.matches(workdir.resolve("foobar/Some.java"))).isFalse();
+  }
+
+  @Test
+  public void testWalkSkipsNonMatchingDirectories() throws IOException {
+    Files.createDirectories(workdir.resolve("src/vendor"));
+    Files.createDirectories(workdir.resolve("other"));
+    Files.write(workdir.resolve("src/Some.java"), new byte[]{});
+    Files.write(workdir.resolve("src/vendor/Vendor.java"), new byte[]{});
+    Files.write(workdir.resolve("other/Other.java"), new byte[]{});
+    TreePathMatcher matcher = new Glob(ImmutableList.of("src/**"),
+        ImmutableList.of("src/vendor/**")).relativeTo(workdir);
+
+    List<Path> visited = new ArrayList<>();
+    Files.walkFileTree(workdir, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+        return matcher.mayMatchUnder(dir)
+            ? FileVisitResult.CONTINUE
+            : FileVisitResult.SKIP_SUBTREE;
+      }
+
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        visited.add(workdir.relativize(file));
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    assertThat(visited).containsExactly(workdir.getFileSystem().getPath("src/Some.java"));
+  }
+
   private PathMatcher createPathMatcher(final String expression)
       throws ValidationException {
     Glob result = skylark.eval("result", "result=" + expression);
@@ -19,11 +19,17 @@ package com.google.copybara.util;
 import static com.google.common.truth.Truth.assertThat;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+import com.google.copybara.util.RenameDetector.Rename;
 import com.google.copybara.util.RenameDetector.Score;
 import java.io.ByteArrayInputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -202,4 +208,137 @@ public final class RenameDetectorTest {
     // FOO has 2 lines less than later file - slightly less score
     assertThat(result.get(1).getKey()).isEqualTo(TestKey.FOO);
   }
+
+  @Test
+  public void minScoreFiltersLowScores() throws Exception {
+    RenameDetector<TestKey> detector = new RenameDetector<>(/*minScore=*/500);
+    detector.addPriorFile(TestKey.FOO, new Bytes("aaaa\nbbbb\ncccc\ndddd\n"));
+    detector.addPriorFile(TestKey.BAR, new Bytes("aaaa\nxxxx\nyyyy\nzzzz\n"));
+
+    List<Score<TestKey>> result = detector.scoresForLaterFile(new Bytes("aaaa\nbbbb\ncccc\n"));
+    assertThat(result).hasSize(1);
+    assertThat(result.get(0).getKey()).isEqualTo(TestKey.FOO);
+    assertThat(result.get(0).getScore()).isAtLeast(500);
+  }
+
+  @Test
+  public void minScorePrunesFilesWithVeryDifferentSize() throws Exception {
+    RenameDetector<TestKey> detector = new RenameDetector<>(/*minScore=*/500);
+    detector.addPriorFile(TestKey.FOO, new Bytes("aaaa\n"));
+    detector.addPriorFile(TestKey.BAR, new Bytes("aaaa\nbbbb\n"));
+
+    // FOO is fully contained but the later file is three times as big.
+    List<Score<TestKey>> result = detector.scoresForLaterFile(new Bytes("aaaa\nbbbb\ncccc\n"));
+    assertThat(result).hasSize(1);
+    assertThat(result.get(0).getKey()).isEqualTo(TestKey.BAR);
+  }
+
+  @Test
+  public void priorFilesCanBeAddedAfterScoring() throws Exception {
+    RenameDetector<TestKey> detector = new RenameDetector<>();
+    detector.addPriorFile(TestKey.FOO, new Bytes("aaaa\nbbbb"));
+    assertThat(detector.scoresForLaterFile(new Bytes("aaaa\ncccc"))).hasSize(1);
+
+    detector.addPriorFile(TestKey.BAR, new Bytes("aaaa\ncccc"));
+    List<Score<TestKey>> result = detector.scoresForLaterFile(new Bytes("aaaa\ncccc"));
+    assertThat(result).hasSize(2);
+    assertThat(result.get(0).getKey()).isEqualTo(TestKey.BAR);
+    assertThat(result.get(0).getScore()).isEqualTo(RenameDetector.MAX_SCORE);
+    assertThat(result.get(1).getKey()).isEqualTo(TestKey.FOO);
+  }
+
+  @Test
+  public void sameScoresKeepTheOrderOfThePriorFiles() throws Exception {
+    RenameDetector<Integer> detector = new RenameDetector<>();
+    for (int i = 0; i < 100; i++) {
+      detector.addPriorFile(i, new Bytes("same\n" + (100 - i) + "\n"));
+    }
+    List<Score<Integer>> result = detector.scoresForLaterFile(new Bytes("same\nother\n"));
+    assertThat(result).hasSize(100);
+    for (int i = 0; i < 100; i++) {
+      assertThat(result.get(i).getKey()).isEqualTo(i);
+    }
+  }
+
+  @Test
+  public void finalNewlineIsNotALine() throws Exception {
+    RenameDetector<TestKey> detector = new RenameDetector<>();
+    detector.addPriorFile(TestKey.FOO, new Bytes("aaaa\n"));
+    detector.addPriorFile(TestKey.BAR, new Bytes("bbbb\n"));
+
+    List<Score<TestKey>> result = detector.scoresForLaterFile(new Bytes("aaaa\n"));
+    assertThat(result).hasSize(1);
+    assertThat(result.get(0).getKey()).isEqualTo(TestKey.FOO);
+    assertThat(result.get(0).getScore()).isEqualTo(RenameDetector.MAX_SCORE);
+  }
+
+  @Test
+  public void findRenamesPairsEachFileOnce() throws Exception {
+    Path prior = Files.createTempDirectory("prior");
+    Path later = Files.createTempDirectory("later");
+    Map<String, Path> priorFiles = new LinkedHashMap<>();
+    Map<String, Path> laterFiles = new LinkedHashMap<>();
+    priorFiles.put("a.txt", write(prior, "a.txt", "1\n2\n3\n4\n"));
+    priorFiles.put("b.txt", write(prior, "b.txt", "1\n2\n3\n5\n"));
+    priorFiles.put("deleted.txt", write(prior, "deleted.txt", "x\ny\n"));
+    // x/b.txt has the maximum score with both a.txt and b.txt, but a.txt is paired with x/a.txt.
+    laterFiles.put("x/a.txt", write(later, "x/a.txt", "1\n2\n3\n4\n"));
+    laterFiles.put("x/b.txt", write(later, "x/b.txt", "1\n2\n3\n4\n5\n"));
+    laterFiles.put("new.txt", write(later, "new.txt", "new\nfile\n"));
+
+    List<Rename<String>> renames = RenameDetector.findRenames(
+        priorFiles, laterFiles, /*minScore=*/500, /*parallelism=*/2);
+
+    assertThat(renames).hasSize(2);
+    assertThat(renames.get(0).getPrior()).isEqualTo("a.txt");
+    assertThat(renames.get(0).getLater()).isEqualTo("x/a.txt");
+    assertThat(renames.get(0).getScore()).isEqualTo(RenameDetector.MAX_SCORE);
+    assertThat(renames.get(1).getPrior()).isEqualTo("b.txt");
+    assertThat(renames.get(1).getLater()).isEqualTo("x/b.txt");
+  }
+
+  @Test
+  public void findRenamesMatchesScoresForLaterFile() throws Exception {
+    Path prior = Files.createTempDirectory("prior");
+    Path later = Files.createTempDirectory("later");
+    Map<Integer, Path> priorFiles = new LinkedHashMap<>();
+    Map<Integer, Path> laterFiles = new LinkedHashMap<>();
+    RenameDetector<Integer> detector = new RenameDetector<>(/*minScore=*/300);
+    Random random = new Random(0);
+    for (int i = 0; i < 50; i++) {
+      StringBuilder content = new StringBuilder();
+      for (int line = 0; line < 20; line++) {
+        content.append(random.nextInt(30)).append('\n');
+      }
+      priorFiles.put(i, write(prior, i + ".txt", content.toString()));
+      detector.addPriorFile(i, new Bytes(content.toString()));
+      content.append("more\n");
+      laterFiles.put(i, write(later, i + ".txt", content.toString()));
+    }
+
+    List<Rename<Integer>> renames = RenameDetector.findRenames(
+        priorFiles, laterFiles, /*minScore=*/300, /*parallelism=*/4);
+
+    for (Rename<Integer> rename : renames) {
+      boolean found = false;
+      for (Score<Integer> score : detector.scoresForLaterFile(
+          Files.newInputStream(laterFiles.get(rename.getLater())))) {
+        if (score.getKey().equals(rename.getPrior())) {
+          assertThat(score.getScore()).isEqualTo(rename.getScore());
+          found = true;
+        }
+      }
+      assertThat(found).isTrue();
+    }
+    // Renames are sorted by decreasing score
+    for (int i = 1; i < renames.size(); i++) {
+      assertThat(renames.get(i).getScore()).isAtMost(renames.get(i - 1).getScore());
+    }
+  }
+
+  private static Path write(Path root, String path, String content) throws IOException {
+    Path file = root.resolve(path);
+    Files.createDirectories(file.getParent());
+    return Files.write(file, content.getBytes(UTF_8));
+  }
 }
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.util;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.copybara.testing.FileSubjects.assertThatPath;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.jimfs.Jimfs;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class UnifiedDiffTest {
+
+  private static final String MODIFY = ""
+      + "diff --git a/foo.txt b/foo.txt\n"
+      + "index 1111111..2222222 100644\n"
+      + "--- a/foo.txt\n"
+      + "+++ b/foo.txt\n"
+      + "@@ -2,3 +2,3 @@ header\n"
+      + " two\n"
+      + "-three\n"
+      + "+THREE\n"
+      + " four\n";
+
+  private Path workdir;
+
+  @Before
+  public void setup() throws IOException {
+    workdir = Jimfs.newFileSystem().getPath("/workdir");
+    Files.createDirectories(workdir);
+  }
+
+  @Test
+  public void testApply() throws Exception {
+    writeFile("foo.txt", "one\ntwo\nthree\nfour\nfive\n");
+
+    assertThat(apply(MODIFY, /*reverse=*/false)).isTrue();
+    assertThatPath(workdir)
+        .containsFile("foo.txt", "one\ntwo\nTHREE\nfour\nfive\n")
+        .containsNoMoreFiles();
+
+    assertThat(apply(MODIFY, /*reverse=*/true)).isTrue();
+    assertThatPath(workdir)
+        .containsFile("foo.txt", "one\ntwo\nthree\nfour\nfive\n")
+        .containsNoMoreFiles();
+  }
+
+  @Test
+  public void testApplyAtADifferentLine() throws Exception {
+    writeFile("foo.txt", "zero\nzero\none\ntwo\nthree\nfour\nfive\n");
+
+    assertThat(apply(MODIFY, /*reverse=*/false)).isTrue();
+    assertThatPath(workdir)
+        .containsFile("foo.txt", "zero\nzero\none\ntwo\nTHREE\nfour\nfive\n")
+        .containsNoMoreFiles();
+  }
+
+  @Test
+  public void testApplyNewDeletedAndRenamedFiles() throws Exception {
+    writeFile("dir/old.txt", "old\n");
+    writeFile("renamed.txt", "a\nb\n");
+    String diff = ""
+        + "diff --git a/dir/old.txt b/dir/old.txt\n"
+        + "deleted file mode 100644\n"
+        + "index 3367afd..0000000\n"
+        + "--- a/dir/old.txt\n"
+        + "+++ /dev/null\n"
+        + "@@ -1 +0,0 @@\n"
+        + "-old\n"
+        + "diff --git a/new.txt b/new.txt\n"
+        + "new file mode 100644\n"
+        + "index 0000000..3e75765\n"
+        + "--- /dev/null\n"
+        + "+++ b/new.txt\n"
+        + "@@ -0,0 +1 @@\n"
+        + "+new\n"
+        + "diff --git a/empty.txt b/empty.txt\n"
+        + "new file mode 100644\n"
+        + "index 0000000..e69de29\n"
+        + "diff --git a/renamed.txt b/other/renamed.txt\n"
+        + "similarity index 66%\n"
+        + "rename from renamed.txt\n"
+        + "rename to other/renamed.txt\n"
+        + "index 1111111..2222222 100644\n"
+        + "--- a/renamed.txt\n"
+        + "+++ b/other/renamed.txt\n"
+        + "@@ -1,2 +1,2 @@\n"
+        + " a\n"
+        + "-b\n"
+        + "+c\n";
+
+    assertThat(apply(diff, /*reverse=*/false)).isTrue();
+    assertThatPath(workdir)
+        .containsFile("new.txt", "new\n")
+        .containsFile("empty.txt", "")
+        .containsFile("other/renamed.txt", "a\nc\n")
+        .containsNoMoreFiles();
+    // Like git apply, the directories left empty are deleted
+    assertThat(Files.exists(workdir.resolve("dir"))).isFalse();
+
+    assertThat(apply(diff, /*reverse=*/true)).isTrue();
+    assertThatPath(workdir)
+        .containsFile("dir/old.txt", "old\n")
+        .containsFile("renamed.txt", "a\nb\n")
+        .containsNoMoreFiles();
+  }
+
+  @Test
+  public void testNoNewlineAtEndOfFile() throws Exception {
+    writeFile("foo.txt", "one\ntwo");
+    String diff = ""
+        + "--- a/foo.txt\n"
+        + "+++ b/foo.txt\n"
+        + "@@ -1,2 +1,2 @@\n"
+        + " one\n"
+        + "-two\n"
+        + "\\ No newline at end of file\n"
+        + "+two\n";
+
+    assertThat(apply(diff, /*reverse=*/false)).isTrue();
+    assertThatPath(workdir)
+        .containsFile("foo.txt", "one\ntwo\n")
+        .containsNoMoreFiles();
+  }
+
+  @Test
+  public void testHunkWithoutTrailingContextMatchesAtTheEnd() throws Exception {
+    writeFile("foo.txt", "one\ntwo\none\n");
+    String diff = ""
+        + "--- a/foo.txt\n"
+        + "+++ b/foo.txt\n"
+        + "@@ -1,1 +1,2 @@\n"
+        + " one\n"
+        + "+added\n";
+
+    // Without leading context either, it has to match the whole file
+    assertThat(apply(diff, /*reverse=*/false)).isFalse();
+    writeFile("foo.txt", "one\n");
+    assertThat(apply(diff, /*reverse=*/false)).isTrue();
+    assertThatPath(workdir)
+        .containsFile("foo.txt", "one\nadded\n")
+        .containsNoMoreFiles();
+  }
+
+  @Test
+  public void testNothingIsModifiedIfAHunkDoesNotApply() throws Exception {
+    writeFile("foo.txt", "one\ntwo\nthree\nfour\nfive\n");
+    writeFile("bar.txt", "bar\n");
+    String diff = MODIFY + ""
+        + "--- a/bar.txt\n"
+        + "+++ b/bar.txt\n"
+        + "@@ -1 +1 @@\n"
+        + "-other\n"
+        + "+new\n";
+
+    assertThat(apply(diff, /*reverse=*/false)).isFalse();
+    assertThatPath(workdir)
+        .containsFile("foo.txt", "one\ntwo\nthree\nfour\nfive\n")
+        .containsFile("bar.txt", "bar\n")
+        .containsNoMoreFiles();
+  }
+
+  @Test
+  public void testUnsupportedDiffs() throws Exception {
+    assertThat(parse(""
+        + "diff --git a/foo.sh b/foo.sh\n"
+        + "old mode 100644\n"
+        + "new mode 100755\n").isSupported()).isFalse();
+    assertThat(parse(""
+        + "diff --git a/foo.png b/foo.png\n"
+        + "index 1111111..2222222 100644\n"
+        + "GIT binary patch\n"
+        + "literal 1\n").isSupported()).isFalse();
+    assertThat(parse(""
+        + "diff --git a/foo.txt b/bar.txt\n"
+        + "similarity index 100%\n"
+        + "copy from foo.txt\n"
+        + "copy to bar.txt\n").isSupported()).isFalse();
+    assertThat(parse(""
+        + "--- a/../outside.txt\n"
+        + "+++ b/../outside.txt\n"
+        + "@@ -1 +1 @@\n"
+        + "-a\n"
+        + "+b\n").isSupported()).isFalse();
+    assertThat(parse(MODIFY).isSupported()).isTrue();
+  }
+
+  @Test
+  public void testPaths() throws Exception {
+    UnifiedDiff diff = parse(""
+        + "diff --git a/old.txt b/new.txt\n"
+        + "similarity index 100%\n"
+        + "rename from old.txt\n"
+        + "rename to new.txt\n"
+        + "diff --git a/added.txt b/added.txt\n"
+        + "new file mode 100644\n"
+        + "index 0000000..e69de29\n");
+
+    assertThat(diff.getPaths()).containsExactly("old.txt", "new.txt", "added.txt");
+    assertThat(diff.getRequiredPaths(/*reverse=*/false)).containsExactly("old.txt");
+    assertThat(diff.getRequiredPaths(/*reverse=*/true)).containsExactly("new.txt", "added.txt");
+  }
+
+  private boolean apply(String diff, boolean reverse) throws IOException {
+    return parse(diff).apply(workdir, reverse);
+  }
+
+  private static UnifiedDiff parse(String diff) {
+    return UnifiedDiff.parse(diff.getBytes(UTF_8), /*stripSlashes=*/1);
+  }
+
+  private void writeFile(String path, String content) throws IOException {
+    Files.createDirectories(workdir.resolve(path).getParent());
+    Files.write(workdir.resolve(path), content.getBytes(UTF_8));
+  }
+}
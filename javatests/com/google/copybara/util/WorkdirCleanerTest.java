@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.copybara.util;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class WorkdirCleanerTest {
+
+  private Path workdir;
+  private WorkdirCleaner cleaner;
+
+  @Before
+  public void setup() throws IOException {
+    workdir = Files.createTempDirectory("workdir");
+    cleaner = new WorkdirCleaner();
+  }
+
+  @Test
+  public void testClean() throws IOException {
+    touch("checkout/foo/Foo.java");
+    touch("checkout/.git/config");
+    touch("origin/foo/Foo.java");
+    Files.createSymbolicLink(workdir.resolve("link"), workdir.resolve("origin"));
+
+    cleaner.clean(workdir);
+
+    assertThat(list(workdir)).containsExactly(WorkdirCleaner.TRASH_DIR);
+
+    cleaner.awaitTermination();
+
+    assertThat(list(workdir)).isEmpty();
+  }
+
+  @Test
+  public void testCleanCreatesTheDirectory() throws IOException {
+    Path notExisting = workdir.resolve("foo");
+    cleaner.clean(notExisting);
+    cleaner.awaitTermination();
+
+    assertThat(list(notExisting)).isEmpty();
+  }
+
+  @Test
+  public void testCleanSeveralTimes() throws IOException {
+    touch("checkout/Foo.java");
+    cleaner.clean(workdir);
+    touch("checkout/Foo.java");
+    cleaner.clean(workdir);
+    touch("checkout/Bar.java");
+
+    cleaner.awaitTermination();
+
+    assertThat(list(workdir)).containsExactly("checkout");
+    assertThat(list(workdir.resolve("checkout"))).containsExactly("Bar.java");
+  }
+
+  @Test
+  public void testCollectsLeftoverTrash() throws IOException {
+    // Simulates an execution that died before deleting its trash
+    touch(WorkdirCleaner.TRASH_DIR + "/workdir123/checkout/Foo.java");
+    touch("checkout/Bar.java");
+
+    cleaner.clean(workdir);
+    cleaner.awaitTermination();
+
+    assertThat(list(workdir)).isEmpty();
+  }
+
+  private void touch(String path) throws IOException {
+    Path file = workdir.resolve(path);
+    Files.createDirectories(file.getParent());
+    Files.write(file, path.getBytes());
+  }
+
+  private static List<String> list(Path dir) throws IOException {
+    List<String> result = new ArrayList<>();
+    try (Stream<Path> stream = Files.list(dir)) {
+      stream.forEach(p -> result.add(p.getFileName().toString()));
+    }
+    return result;
+  }
+}
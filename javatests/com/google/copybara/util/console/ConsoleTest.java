@@ -113,6 +113,29 @@ public class ConsoleTest {
         .containsNoMoreMessages();
   }
 
+  @Test
+  public void bufferedConsole() throws Exception {
+    TestingConsole delegate = new TestingConsole();
+    BufferedConsole console = new BufferedConsole(delegate);
+
+    console.error("This is error!");
+    console.progress("This is progress");
+    console.warn("This is warning");
+    console.info("This is info");
+
+    delegate.assertThat()
+        .matchesNext(MessageType.PROGRESS, "This is progress")
+        .containsNoMoreMessages();
+
+    console.flush();
+    delegate.assertThat()
+        .matchesNext(MessageType.PROGRESS, "This is progress")
+        .matchesNext(MessageType.ERROR, "This is error!")
+        .matchesNext(MessageType.WARNING, "This is warning")
+        .matchesNext(MessageType.INFO, "This is info")
+        .containsNoMoreMessages();
+  }
+
   @Test
   public void captureAllConsole() throws Exception {
     TestingConsole delegate = new TestingConsole()